@@ -284,6 +284,9 @@ public class FileHashClient {
 	            String sha256 = new String( Hex.encodeHex( h.sha256 ) );
 	            System.out.println(h.descriptor+"|"+md5+"|"+sha1+"|"+sha256+"|"+h.size+"|"+h.path);
 	        }
+	        if(!fhr.isComplete()){
+	            System.err.println("Incomplete, lookups failed or timed out: "+fhr.incomplete);
+	        }
 		}
 
 		// Clean up
@@ -56,10 +56,14 @@ public class FileHashResponse {
     // Intended to be accessed by amqp.client, amqp,server code only...
     public final String algorithm;
     public final List<Hit> hits;
+    // Disks whose hits may be missing, their lookups having failed or
+    // timed out. Null in a response from an older server.
+    public final List<ManagedDiskDescriptor> incomplete;
 
 	public FileHashResponse( String algorithm ) {
 		this.algorithm = algorithm;
 		hits = new ArrayList<Hit>();
+		incomplete = new ArrayList<ManagedDiskDescriptor>();
 	}
 
 	public void add( byte[] md5, byte[] sha1, byte[] sha256, long size, ManagedDiskDescriptor mdd, String path ) {
@@ -67,8 +71,23 @@ public class FileHashResponse {
 		hits.add( h );
 	}
 
+	/**
+	 * Note that the disk's hits, if any, may be only some of them
+	 */
+	public void addIncomplete( ManagedDiskDescriptor mdd ) {
+		incomplete.add( mdd );
+	}
+
+	/**
+	 * @return true if every disk with a hit gave all its hits
+	 */
+	public boolean isComplete() {
+		return incomplete == null || incomplete.isEmpty();
+	}
+
 	public String paramString() {
-		return algorithm + " " + hits;
+		return algorithm + " " + hits +
+			( isComplete() ? "" : " incomplete " + incomplete );
 	}
 	
 	/**
@@ -80,6 +80,29 @@ public class FileHashResponseTest extends junit.framework.TestCase {
 
 		// LOOK: what are we asserting ??
 		System.out.println( "R2: " + r2.paramString() );
+		assertTrue( r2.isComplete() );
+	}
+
+	public void testIncomplete() throws Exception {
+		FileHashResponse r1 = new FileHashResponse( "md5" );
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor
+			( "seagate1234", Session.testSession() );
+		r1.addIncomplete( mdd );
+		assertFalse( r1.isComplete() );
+
+		String s = gson.toJson( RPCObject.asRPCObject( r1 ) );
+		Type fhrType = new TypeToken<RPCObject<FileHashResponse>>(){}.getType();
+		RPCObject<FileHashResponse> rpc2 = gson.fromJson( s, fhrType );
+		FileHashResponse r2 = rpc2.appdata;
+		assertFalse( r2.isComplete() );
+		assertEquals( 1, r2.incomplete.size() );
+		assertEquals( mdd.getDiskID(), r2.incomplete.get( 0 ).getDiskID() );
+
+		// A response from a server which never reported incomplete disks
+		s = s.replaceFirst( ",?\"incomplete\":\\[[^\\]]*\\]", "" );
+		assertFalse( s.contains( "incomplete" ) );
+		rpc2 = gson.fromJson( s, fhrType );
+		assertTrue( rpc2.appdata.isComplete() );
 	}
 
 	Gson gson;
@@ -35,6 +35,7 @@ package edu.uw.apl.tupelo.amqp.server;
 
 import java.lang.reflect.Type;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeoutException;
 import java.io.IOException;
 
@@ -52,6 +53,7 @@ import com.rabbitmq.client.ShutdownSignalException;
 import com.rabbitmq.client.AMQP.BasicProperties;
 
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.store.ParallelRecordQuery;
 import edu.uw.apl.tupelo.store.Store;
 import edu.uw.apl.commons.tsk4j.digests.BodyFile.Record;
 import edu.uw.apl.tupelo.amqp.objects.FileHashQuery;
@@ -79,15 +81,34 @@ public class FileHashService {
     private static final String BINDINGKEY = "who-has";
     private static final Log log = LogFactory.getLog(FileHashService.class);
 
+    /**
+     * Default time, in milliseconds, a query waits for all disks' records
+     */
+    public static final long QUERY_TIMEOUT_DEFAULT = 30 * 1000;
+
     private final Store store;
     private final String brokerURL;
     private Channel channel;
     private Gson gson;
+    private final ExecutorService queryExecutor;
+    private final ParallelRecordQuery recordQuery;
+    private long queryTimeout = QUERY_TIMEOUT_DEFAULT;
 
 	public FileHashService( Store s, String brokerURL ) {
 		store = s;
 		this.brokerURL = brokerURL;
 		gson = Utils.createGson( true );
+		queryExecutor = ParallelRecordQuery.newExecutor
+			( Runtime.getRuntime().availableProcessors() );
+		recordQuery = new ParallelRecordQuery( store, queryExecutor );
+	}
+
+	/**
+	 * Set how long, in milliseconds, a query waits for all matching
+	 * disks' records.  Disks slower than that are left out of the reply.
+	 */
+	public void setQueryTimeout( long millis ) {
+		queryTimeout = millis;
 	}
 	
 	public void start() throws Exception {
@@ -139,21 +160,28 @@ public class FileHashService {
 
             log.info( "Searching for " + fhq.hashes.size() + " hashes..." );
 
-			FileHashResponse fhr = new FileHashResponse( fhq.algorithm );
+			final FileHashResponse fhr = new FileHashResponse( fhq.algorithm );
 
 			// Search for the hashes
 			List<ManagedDiskDescriptor> matchingDisks = store.checkForHashes(fhq.algorithm, fhq.hashes);
 
-			// Get the matching record details
-			for( ManagedDiskDescriptor mdd : matchingDisks ) {
-			    List<Record> records = store.getRecords(mdd, fhq.algorithm, fhq.hashes);
-
-				log.info(records.size() + " hashes match from " + mdd );
-
-				for(Record record : records){
-				    fhr.add(record.md5, record.sha1, record.sha256, record.size, mdd, record.path);
-				}
-			}
+			// Get the matching record details, from all disks at once,
+			// straight into the response
+			List<ManagedDiskDescriptor> incomplete = recordQuery.getRecords
+				( matchingDisks, fhq.algorithm, fhq.hashes, queryTimeout,
+				  new ParallelRecordQuery.Callback() {
+					@Override
+					public void gotRecord( ManagedDiskDescriptor mdd, Record record ) {
+						fhr.add(record.md5, record.sha1, record.sha256, record.size, mdd, record.path);
+					}
+				});
+			log.info( fhr.hits.size() + " hashes match from " +
+					  matchingDisks.size() + " disks" );
+			// Their hits so far are kept, but flagged as partial
+			for( ManagedDiskDescriptor mdd : incomplete )
+				fhr.addIncomplete( mdd );
+			if( !incomplete.isEmpty() )
+				log.warn( "Records incomplete, failed or timed out: " + incomplete );
 
 			channel.basicAck( delivery.getEnvelope().getDeliveryTag(), false );
 			BasicProperties reqProps = delivery.getProperties();
@@ -170,6 +198,7 @@ public class FileHashService {
 	}
 
 	public void stop() throws IOException {
+		queryExecutor.shutdownNow();
 		if( channel == null )
 			return;
 		try {
@@ -42,6 +42,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.log4j.LogManager;
 
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.store.AttributeOutputStream;
 import edu.uw.apl.tupelo.store.Store;
 
 /**
@@ -118,15 +119,20 @@ public class PutAttr extends CliBase {
 			System.err.println( "Not stored: " + diskID + "," + sessionID );
 			System.exit(1);
 		}
-		byte[] ba = null;
+		System.out.println( "Storing attribute " + key +
+							" for managedDisk " + mdd );
 		if( valueFile != null ) {
-			ba = FileUtils.readFileToByteArray( valueFile );
+			// Stream it, the file may be large
+			AttributeOutputStream os = store.attributeOutputStream( mdd, key );
+			try {
+				FileUtils.copyFile( valueFile, os );
+				os.commit();
+			} finally {
+				os.close();
+			}
 		} else {
-			ba = valueString.getBytes();
+			store.setAttribute( mdd, key, valueString.getBytes() );
 		}
-		System.out.println( "Storing attribute " + key +
-							" for managedDisk " + mdd );
-		store.setAttribute( mdd, key, ba );
 
 		Collection<String> keys = store.listAttributes( mdd );
 		System.out.println( "Stored Attributes: " + keys );
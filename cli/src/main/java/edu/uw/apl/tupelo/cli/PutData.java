@@ -56,6 +56,7 @@ import edu.uw.apl.tupelo.model.UnmanagedDisk;
 import edu.uw.apl.tupelo.model.physical.PhysicalDisk;
 import edu.uw.apl.tupelo.model.virtual.VirtualDisk;
 import edu.uw.apl.tupelo.model.ProgressMonitor;
+import edu.uw.apl.tupelo.store.PagedManagedDiskDigest;
 import edu.uw.apl.tupelo.store.Store;
 
 /**
@@ -178,8 +179,9 @@ public class PutData extends CliBase {
 			uuid = store.uuid( recent );
 			System.out.println( "UUID: " + uuid );
 			log.info( "Retrieving digest for: "+ recent );
-			digest = store.digest( recent );
-			System.out.println( "Digest: " + digest.size() );
+			digest = PagedManagedDiskDigest.open( store, recent );
+			if( digest != null )
+				System.out.println( "Digest: " + digest.size() );
 			
 		}
 
@@ -61,9 +61,11 @@ import edu.uw.apl.tupelo.store.filesys.FilesystemStore;
 					  "dryrun, show the filesystem but skip the mount" );
 		os.addOption( "s", true,
 					  "Store directory. Defaults to " + STORELOCATIONDEFAULT );
+		os.addOption( "1", false,
+					  "single-threaded, serve one request at a time" );
 		os.addOption( "v", false, "verbose" );
 		final String USAGE = Main.class.getName() + 
-			" [-n] [-s storeLocation] [-v] mountPoint";
+			" [-1] [-n] [-s storeLocation] [-v] mountPoint";
 		final String HEADER = "";
 		final String FOOTER = "";
 		
@@ -104,6 +106,7 @@ import edu.uw.apl.tupelo.store.filesys.FilesystemStore;
 		}
 
 		ManagedDiskFileSystem mdfs = new ManagedDiskFileSystem( store );
+		mdfs.setSingleThreaded( cl.hasOption( "1" ) );
 		boolean ownThread = false;
 		mdfs.mount( mount, ownThread );
 	}
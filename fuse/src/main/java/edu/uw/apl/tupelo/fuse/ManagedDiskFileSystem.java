@@ -35,27 +35,21 @@ package edu.uw.apl.tupelo.fuse;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.HashSet;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import fuse.*;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import edu.uw.apl.tupelo.model.ManagedDisk;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
-import edu.uw.apl.tupelo.model.SeekableInputStream;
-import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.model.ManagedDisk;
 import edu.uw.apl.tupelo.store.Store;
 
 /**
@@ -101,6 +95,17 @@ import edu.uw.apl.tupelo.store.Store;
  * $ md5sum /path/to/mount/diskID1/sessionID2
  * </pre>
  *
+ * By default the filesystem is multi-threaded: fuse serves requests
+ * on several threads, so readers of distinct open files (several
+ * Sleuthkit tools, dd, loop devices over partitions) proceed in
+ * parallel.  Reads are positional reads of the managed disk itself,
+ * which keep no per-reader state, so even reads of one open file run
+ * in parallel, meeting only on the disk's own brief metadata and
+ * grain cache monitors.  Each disk is closed, dropping its open file
+ * and any cached grains, when fuse releases its last open.  See {@link
+ * #setSingleThreaded(boolean) setSingleThreaded} for the old
+ * behaviour.
+ *
  * Note how we access the 'Store' object totally by the base Store
  * interface.  We do NOT need to know here HOW the Store is
  * implemented (though of course the likely implementation is a
@@ -119,21 +124,43 @@ public class ManagedDiskFileSystem extends AbstractFilesystem3 {
 	public ManagedDiskFileSystem( Store s ) {
 		store = s;
 		startTime = (int) (System.currentTimeMillis() / 1000L);
-		readBuffers = new HashMap<Object,byte[]>();
 
 		log = LogFactory.getLog( getClass() );
 
-		try {
-			Collection<ManagedDiskDescriptor> mdds = store.enumerate();
-			for( ManagedDiskDescriptor mdd : mdds ) {
-				log.info( "Exposing: " + mdd.getDiskID() +
-						  "/" + mdd.getSession() );
-			}
-		} catch( IOException ioe ) {
-			log.warn( "Exception creating MDFS", ioe );
+		index = new PathIndex( store );
+		for( String diskID : index.diskIDs() ) {
+			for( String session : index.sessions( diskID ) )
+				log.info( "Exposing: " + diskID + "/" + session );
 		}
 	}
 	
+	/**
+	 * Let the kernel cache managed disk content across opens, and read
+	 * ahead up to {@link #MAXREADAHEAD} bytes.  Must be called before
+	 * {@link #mount(java.io.File, boolean) mount}.  Default is true;
+	 * false mounts as before, every read of every open reaching us.
+	 */
+	public void setKernelCache( boolean b ) {
+		kernelCache = b;
+	}
+
+	/**
+	 * @return the number of read requests fuse has made of us, i.e.
+	 * those the kernel could not serve from its own cache
+	 */
+	public long getReadCount() {
+		return reads.get();
+	}
+
+	/**
+	 * Serve all fuse requests on a single thread, as fuse's -s option.
+	 * Must be called before {@link #mount(java.io.File, boolean)
+	 * mount}.  Default is false, i.e. multi-threaded.
+	 */
+	public void setSingleThreaded( boolean b ) {
+		singleThreaded = b;
+	}
+
 	/**
 	 * Do the fuse mount.  Until this command called, the store's
 	 * contents are not visible to the host filesystem.
@@ -144,7 +171,8 @@ public class ManagedDiskFileSystem extends AbstractFilesystem3 {
 	 * @param ownThread false if caller willing to block until the
 	 * mount is torn down (by an external <code>fusermount -u
 	 * mount</code>).  A caller which needs a new thread spawned
-	 * supplies true.
+	 * supplies true.  Either way, once unmounted (then by {@link
+	 * #umount}), we stop following the store's changes.
 	 */
 	public void mount( File mountPoint, boolean ownThread ) throws Exception {
 		if( !mountPoint.isDirectory() )
@@ -154,22 +182,35 @@ public class ManagedDiskFileSystem extends AbstractFilesystem3 {
 		/*
 		  The -f says no fork, we need this!!
 
-		  The -s says single-threaded, we need this!!
-
-		  LOOK: Consider relaxing this and synchronizing on the
-		  SeekableInputStream objects, may improve performance ??
-		  Can't have arbitrary multi-threaded access to each
-		  SeekableInputStream (since it has state and is NOT
-		  synchronized internally) but MT-access to distinct
-		  SeekableInputStreams likely OK. Likely we are not achieving
-		  this latter situation even with the current -s option set to
-		  true.  Not sure if 'fuse single threaded' means a single
-		  thread for the entire filesystem, or a single thread per
-		  opened file.
-		  
+		  The -s, if asked for, says single-threaded.  Otherwise fuse
+		  runs requests on many threads.  That is safe since read()
+		  is a ManagedDisk positional read, which holds no
+		  per-reader state.  So reads run in parallel, of one open
+		  file or many, serialized only on the disk's brief
+		  metadata and grain cache locks, never across i/o.
+
 		  The -r says read-only, which makes sense here
+
+		  The kernel_cache option lets the kernel keep managed disk
+		  content in its page cache across opens.  Safe, since a
+		  managed disk never changes once in the store, and it means
+		  the repeated passes Sleuthkit makes over the same disk
+		  (volume system, then each filesystem, then file content)
+		  mostly stop crossing into this process at all.  The
+		  larger max_readahead turns Sleuthkit's small sequential
+		  reads into fewer, bigger round trips.
 		*/
-		String[] args = { mountPoint.getPath(), "-f", "-s", "-r"  };
+		List<String> args = new ArrayList<String>();
+		args.add( mountPoint.getPath() );
+		args.add( "-f" );
+		if( singleThreaded )
+			args.add( "-s" );
+		args.add( "-r" );
+		if( kernelCache ) {
+			args.add( "-o" );
+			args.add( "kernel_cache,max_readahead=" + MAXREADAHEAD );
+		}
+		String[] argv = args.toArray( new String[args.size()] );
 
 		/*
 		  If we supply the fuse package OUR logger, we cannot separate
@@ -179,9 +220,13 @@ public class ManagedDiskFileSystem extends AbstractFilesystem3 {
 		Log logFuse = LogFactory.getLog( "fuse" );
 		if( ownThread ) {
 			ThreadGroup tg = new ThreadGroup( "MDFS.Threads" );
-			FuseMount.mount( args, this, tg, logFuse );
+			FuseMount.mount( argv, this, tg, logFuse );
 		} else {
-			FuseMount.mount( args, this, logFuse );
+			try {
+				FuseMount.mount( argv, this, logFuse );
+			} finally {
+				index.close();
+			}
 		}
 	}
 
@@ -204,19 +249,12 @@ public class ManagedDiskFileSystem extends AbstractFilesystem3 {
 		Process p = pb.start();
 		p.waitFor();
 		log.info( "Result: " + p.exitValue() );
+		// Drop our store listener, lest it keep us alive
+		if( p.exitValue() == 0 )
+			index.close();
 		return p.exitValue();
 	}
 
-	// LOOK: how do we handle io errors from store?
-	private Collection<ManagedDiskDescriptor> descriptors() {
-		try {
-			return store.enumerate();
-		} catch( IOException ioe ) {
-			log.warn( "Exception getting descriptors", ioe );
-			return Collections.emptyList();
-		}
-	}
-
 	/**
 	   Convenience method, for applications to derive where in the
 	   mounted file system a ManagedDisk can be located.
@@ -237,10 +275,8 @@ public class ManagedDiskFileSystem extends AbstractFilesystem3 {
 			log.trace( "getattr " + path );
 		}
 
-		Collection<ManagedDiskDescriptor> mdds = descriptors();
-
 		if( path.equals( "/" ) ) {
-			int count = mdds.size();
+			int count = index.size();
 			int time = startTime;
 			getattrSetter.set
 				( path.hashCode(), FuseFtypeConstants.TYPE_DIR | 0755, 2,
@@ -251,20 +287,12 @@ public class ManagedDiskFileSystem extends AbstractFilesystem3 {
 			return 0;
 		}
 		
-		String details = path.substring(1);
-		Matcher m1 = DISKIDPATHREGEX.matcher( details );
-		if( m1.matches() ) {
-			String diskID = m1.group(1);
-			List<ManagedDiskDescriptor> matching =
-				new ArrayList<ManagedDiskDescriptor>();
-			for( ManagedDiskDescriptor mdd : mdds ) {
-				if( mdd.getDiskID().equals( diskID ) ) {
-					matching.add( mdd );
-				}
-			}
-			if( matching.isEmpty() )
+		String[] parts = split( path );
+		if( parts.length == 1 ) {
+			Set<String> sessions = index.sessions( parts[0] );
+			if( sessions == null )
 				return Errno.ENOENT;
-			int count = matching.size();
+			int count = sessions.size();
 			int time = startTime;
 			getattrSetter.set
 				( path.hashCode(),
@@ -276,31 +304,15 @@ public class ManagedDiskFileSystem extends AbstractFilesystem3 {
 			return 0;
 		}
 		
-		Matcher m2 = MANAGEDDISKDESCRIPTORPATHREGEX.matcher( details );
-		if( m2.matches() ) {
-			//System.out.println( "getAttr(VD)." + m.group(0) );
-			String diskID = m2.group(1);
-			String sessionID = m2.group(2);
-			ManagedDiskDescriptor matching = null;
-			for( ManagedDiskDescriptor mdd : mdds ) {
-				if( mdd.getDiskID().equals( diskID ) &&
-					mdd.getSession().toString().equals( sessionID ) ) {
-					/*
-					  System.out.println( "getattr.Matched: " + mdd +
-										" to " + MANAGEDDISKDESCRIPTORPATHREGEX );
-					*/
-					matching = mdd;
-					break;
-				}
-			}
+		if( parts.length == 2 ) {
+			PathIndex.Entry matching = index.get( parts[0], parts[1] );
 			if( matching == null )
 				return Errno.ENOENT;
 
 			int time = startTime;// LOOK: link to session date/time?
-			ManagedDisk md = store.locate( matching );
-			long size = md.size();
+			long size = matching.size;
 			getattrSetter.set
-				( matching.hashCode(), FuseFtypeConstants.TYPE_FILE | 0444,
+				( matching.mdd.hashCode(), FuseFtypeConstants.TYPE_FILE | 0444,
 				  1, 0, 0, 0, size, (size + 512 - 1) / 512,
 				  time, time, time );
 			return 0;
@@ -313,39 +325,22 @@ public class ManagedDiskFileSystem extends AbstractFilesystem3 {
 	public int getdir(String path, FuseDirFiller filler )
 		throws FuseException {
 
-		Collection<ManagedDiskDescriptor> mdds = descriptors();
-
 		if( log.isTraceEnabled() )
 			log.trace( "getdir: " + path );
 
-		//		System.out.println( "getdir: " + path );
-
 		if( "/".equals( path ) ) {
-			Set<String> matching = new HashSet<String>();
-			for( ManagedDiskDescriptor mdd : mdds ) {
-				matching.add( mdd.getDiskID() );
-			}
-			for( String s : matching ) {
+			for( String s : index.diskIDs() ) {
 				filler.add( s, s.hashCode(),
 							FuseFtypeConstants.TYPE_DIR | 0755 );
 			}
 			return 0;
 		}
-		String details = path.substring(1);
-		Matcher m1 = DISKIDPATHREGEX.matcher( details );
-		if( m1.matches() ) {
-			String needle = m1.group(0);
-			List<String> matchingDirs = new ArrayList<String>();
-			for( ManagedDiskDescriptor mdd : mdds ) {
-				//				System.out.println( mdd );
-				if( mdd.getDiskID().equals( needle ) ) {
-					matchingDirs.add( mdd.getSession().toString() );
-					//					System.out.println( "Matched: " + mdd );
-				}
-			}
-			if( matchingDirs.isEmpty() )
+		String[] parts = split( path );
+		if( parts.length == 1 ) {
+			Set<String> sessions = index.sessions( parts[0] );
+			if( sessions == null )
 				return Errno.ENOENT;
-			for( String s : matchingDirs )
+			for( String s : sessions )
 				filler.add( s, s.hashCode(),
 							FuseFtypeConstants.TYPE_FILE| 0644 );
 			return 0;
@@ -363,56 +358,49 @@ public class ManagedDiskFileSystem extends AbstractFilesystem3 {
 	public int open( String path, int flags, FuseOpenSetter openSetter )
 		throws FuseException {
 
-		Collection<ManagedDiskDescriptor> mdds = descriptors();
-		String details = path.substring( 1 );
-		Matcher m = MANAGEDDISKDESCRIPTORPATHREGEX.matcher( details );
-		if( m.matches() ) {
-			String diskID = m.group(1);
-			String sessionID = m.group(2);
-			ManagedDiskDescriptor matching = null;
-			for( ManagedDiskDescriptor mdd : mdds ) {
-				if( mdd.getDiskID().equals( diskID ) &&
-					mdd.getSession().toString().equals( sessionID ) ) {
-					/*
-					  System.out.println( "open.Matched: " + mdd +
-										" to " + MANAGEDDISKDESCRIPTORPATHREGEX );
-					*/
-					matching = mdd;
-					break;
-				}
-			}
+		String[] parts = split( path );
+		if( parts.length == 2 ) {
+			PathIndex.Entry matching = index.get( parts[0], parts[1] );
 			if( matching == null )
 				return Errno.ENOENT;
 
-			ManagedDisk md = store.locate( matching );
-			// LOOK: could be null ??
-			//			System.out.println( "open.Matched: " + md );
-
-			try {
-				SeekableInputStream sis = md.getSeekableInputStream();
-				openSetter.setFh( sis );
-				//	System.out.println( "open.rar: " + rar );
-				return 0;
-			} catch( IOException e ) {
-				throw new FuseException( e );
+			synchronized( opens ) {
+				Integer n = opens.get( matching.md );
+				opens.put( matching.md, n == null ? 1 : n + 1 );
 			}
+			openSetter.setFh( matching.md );
+			return 0;
 		}
 		return Errno.ENOENT;
 	}
 
+	/*
+	  The components of a path below the mount point, e.g.
+	  /diskID/session/ -> [diskID, session]. Paths fuse hands us are
+	  absolute, any trailing / is dropped.
+	*/
+	static String[] split( String path ) {
+		int end = path.length();
+		if( end > 1 && path.charAt( end - 1 ) == '/' )
+			end--;
+		String details = path.substring( 1, end );
+		if( details.isEmpty() )
+			return new String[0];
+		return details.split( "/", -1 );
+	}
+
 	
 	/**
 	  @param path the file to read.  Represents a single managed disk
 	  (what/when).
 
 	  @param fh filehandle passed from {@link #open(String, int,
-	  fuse.FuseOpenSetter) open)}. We know it represents a
-	  SeekableInputStream.
+	  fuse.FuseOpenSetter) open)}. We know it is the ManagedDisk.
 
 	  @param buf a buffer to store the read data.  Has a known
 	  available space, which governs how much data we should/can read.
 
-	  @param offset file offset at which to read.  We seek to it.
+	  @param offset file offset at which to read.
 	*/
 	@Override
 	public int read(String path, Object fh, ByteBuffer buf, long offset)
@@ -421,38 +409,19 @@ public class ManagedDiskFileSystem extends AbstractFilesystem3 {
 		if( log.isDebugEnabled() )
 			log.debug( "read.: " + path );
 
-		SeekableInputStream sis = (SeekableInputStream)fh;
+		reads.incrementAndGet();
+		ManagedDisk md = (ManagedDisk)fh;
 		try {
-			sis.seek( offset );
-			
 			/*
-			  We keep building a bigger read buffer for each open 'file'.
-			  Remember that any read may be for a smaller byte count
-			  than the previous one, so use the 3-arg version of read
+			  Straight into fuse's buffer, no byte[] staging.  At eof
+			  nothing is put, which tells fuse so.
 			*/
-			byte[] ba;
-			int nin;
-			ba = readBuffers.get( fh );
-			if( ba == null || buf.remaining() > ba.length ) {
-				ba = new byte[buf.remaining()];
-				readBuffers.put( fh, ba );
-				if( log.isInfoEnabled() )
-					log.info( "New read buffer for " + path +
-							  " = " + ba.length );
-			}
-			nin = sis.read( ba, 0, buf.remaining() );
-//			ba = new byte[buf.remaining()];
-//			nin = sis.read( ba );
+			int nin = md.read( offset, buf );
 			
 			if( log.isDebugEnabled() ) {
-				log.debug( "sis.read " + nin );
+				log.debug( "md.read " + nin );
 			}
 			
-			if( nin > -1 )
-				buf.put( ba, 0, nin );
-			else
-				// need this??  does this tells fuse we are at eof???
-				buf.put( ba, 0, 0 );
 			/*
 			  the fuse4j api says we return 0, NOT the byte count written
 			  to the ByteBuffer
@@ -476,28 +445,50 @@ public class ManagedDiskFileSystem extends AbstractFilesystem3 {
    // called when last filehandle is closed, fh is filehandle passed from open
 	@Override
 	public int release(String path, Object fh, int flags) throws FuseException {
-		log.info( "Release read buffer for " + path );
-		
-		readBuffers.remove( fh );
+		log.info( "Release " + path );
+		ManagedDisk md = (ManagedDisk)fh;
+		/*
+		  The ManagedDisk is the store's, so lives as long as we do.
+		  Close it on its last release, else every disk ever read
+		  keeps its file open, and its grains cached, for good.  Any
+		  other reader, and any later open, just reopens it.  Closing
+		  under the lock keeps a racing open from reading meanwhile.
+		*/
+		synchronized( opens ) {
+			Integer n = opens.get( md );
+			if( n != null && n > 1 ) {
+				opens.put( md, n - 1 );
+				return 0;
+			}
+			opens.remove( md );
+			try {
+				md.close();
+			} catch( IOException ioe ) {
+				log.warn( "Closing " + path, ioe );
+			}
+		}
 		return 0;
 	}
 
 	private final Store store;
+	// Resolves our paths to managed disks
+	private final PathIndex index;
 	private final int startTime;
-	private File mountPoint;
-	private final Map<Object,byte[]> readBuffers;
-	private final Log log;
 
 	/*
-	  We check provided paths as identifying valid managed disk content
-	  via these two regexs
+	  Upper bound on kernel readahead, in bytes.  The kernel may clamp
+	  this lower.
 	*/
-	static final Pattern DISKIDPATHREGEX = Pattern.compile
-		( "^(" + ManagedDiskDescriptor.DISKIDREGEX.pattern() + ")/?$" );
+	static final int MAXREADAHEAD = 1024 * 1024;
 
-	static final Pattern MANAGEDDISKDESCRIPTORPATHREGEX = Pattern.compile
-		( "^(" + ManagedDiskDescriptor.DISKIDREGEX.pattern() + ")/(" +
-		  Session.SHORTREGEX.pattern() + ")/?$" );
+	private File mountPoint;
+	private boolean singleThreaded;
+	private boolean kernelCache = true;
+	private final AtomicLong reads = new AtomicLong();
+	// Opens not yet released, per disk, see release
+	private final Map<ManagedDisk,Integer> opens =
+		new IdentityHashMap<ManagedDisk,Integer>();
+	private final Log log;
 }
 
 // eof
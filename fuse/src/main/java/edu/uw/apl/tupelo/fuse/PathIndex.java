@@ -0,0 +1,198 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.uw.apl.tupelo.fuse;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.uw.apl.tupelo.model.ManagedDisk;
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.store.Store;
+import edu.uw.apl.tupelo.store.filesys.FilesystemStore;
+
+/**
+ * The managed disks of a store, indexed by the path components under
+ * which a {@link ManagedDiskFileSystem} exposes them: diskID, then
+ * session string.  Resolving a path is then a map lookup or two,
+ * rather than a scan of every descriptor formatting each session.
+ *
+ * Built from the store's contents, and kept current from its put
+ * events where the store has them (a FilesystemStore).  For other
+ * stores, a lookup miss rescans the store, since the disk may have
+ * arrived since.
+ */
+class PathIndex {
+
+	/**
+	 * One managed disk, as exposed at diskID/session
+	 */
+	static class Entry {
+		Entry( ManagedDiskDescriptor mdd, ManagedDisk md ) {
+			this.mdd = mdd;
+			this.md = md;
+			this.size = md.size();
+		}
+
+		final ManagedDiskDescriptor mdd;
+		final ManagedDisk md;
+		final long size;
+	}
+	
+	PathIndex( Store s ) {
+		store = s;
+		disks = new ConcurrentHashMap<String,ConcurrentMap<String,Entry>>();
+		count = new AtomicInteger();
+		log = LogFactory.getLog( getClass() );
+
+		if( store instanceof FilesystemStore ) {
+			listener = new FilesystemStore.ListenerAdapter() {
+					@Override
+					public void putCompleted( ManagedDiskDescriptor mdd ) {
+						add( mdd );
+					}
+				};
+			((FilesystemStore)store).addListener( listener );
+		} else {
+			listener = null;
+		}
+		rescan();
+	}
+
+	/**
+	 * Stop following the store's events
+	 */
+	void close() {
+		if( listener != null )
+			((FilesystemStore)store).removeListener( listener );
+	}
+
+	/**
+	 * @return the number of managed disks
+	 */
+	int size() {
+		return count.get();
+	}
+
+	/**
+	 * @return the distinct diskIDs
+	 */
+	Set<String> diskIDs() {
+		return Collections.unmodifiableSet( disks.keySet() );
+	}
+
+	/**
+	 * @return the session strings of the diskID, null if no such disk
+	 */
+	Set<String> sessions( String diskID ) {
+		ConcurrentMap<String,Entry> sessions = disks.get( diskID );
+		if( sessions == null && listener == null && rescan() )
+			sessions = disks.get( diskID );
+		return sessions == null ? null :
+			Collections.unmodifiableSet( sessions.keySet() );
+	}
+
+	/**
+	 * @return the managed disk at diskID/session, null if none
+	 */
+	Entry get( String diskID, String session ) {
+		Entry result = lookup( diskID, session );
+		if( result == null && listener == null && rescan() )
+			result = lookup( diskID, session );
+		return result;
+	}
+
+	private Entry lookup( String diskID, String session ) {
+		ConcurrentMap<String,Entry> sessions = disks.get( diskID );
+		return sessions == null ? null : sessions.get( session );
+	}
+
+	/**
+	 * Add any managed disks not yet indexed
+	 *
+	 * @return true if any were
+	 */
+	private boolean rescan() {
+		Collection<ManagedDiskDescriptor> mdds;
+		try {
+			mdds = store.enumerate();
+		} catch( IOException ioe ) {
+			log.warn( "Exception getting descriptors", ioe );
+			return false;
+		}
+		boolean result = false;
+		for( ManagedDiskDescriptor mdd : mdds ) {
+			if( lookup( mdd.getDiskID(), mdd.getSession().toString() ) == null )
+				result |= add( mdd );
+		}
+		return result;
+	}
+
+	private boolean add( ManagedDiskDescriptor mdd ) {
+		ManagedDisk md = store.locate( mdd );
+		if( md == null )
+			return false;
+		ConcurrentMap<String,Entry> sessions = disks.get( mdd.getDiskID() );
+		if( sessions == null ) {
+			ConcurrentMap<String,Entry> fresh =
+				new ConcurrentHashMap<String,Entry>();
+			sessions = disks.putIfAbsent( mdd.getDiskID(), fresh );
+			if( sessions == null )
+				sessions = fresh;
+		}
+		if( sessions.putIfAbsent( mdd.getSession().toString(),
+								  new Entry( mdd, md ) ) != null )
+			return false;
+		count.incrementAndGet();
+		if( log.isDebugEnabled() )
+			log.debug( "Indexed: " + mdd );
+		return true;
+	}
+
+	private final Store store;
+	private final ConcurrentMap<String,ConcurrentMap<String,Entry>> disks;
+	private final AtomicInteger count;
+	private final FilesystemStore.Listener listener;
+	private final Log log;
+}
+
+// eof
@@ -34,10 +34,20 @@
 package edu.uw.apl.tupelo.fuse;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
 import edu.uw.apl.tupelo.model.Session;
 import edu.uw.apl.tupelo.model.DiskImage;
 import edu.uw.apl.tupelo.model.FlatDisk;
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.StreamOptimizedDisk;
 import edu.uw.apl.tupelo.store.Store;
 import edu.uw.apl.tupelo.store.filesys.FilesystemStore;
 
@@ -144,6 +154,229 @@ public class ManagedDiskFileSystemTest extends junit.framework.TestCase {
 		sc = mdfs.umount();
 		assertEquals( sc, 0 );
 	}
+
+	/**
+	 * Compare reading a managed disk through the fuse mount, as
+	 * Sleuthkit does, with and without the kernel caching it.  Without,
+	 * every pass over the disk crosses into this process again; with,
+	 * a second pass is served from the page cache, so should make a
+	 * small fraction of the reads of us.  Counted, not timed, as times
+	 * vary too much from run to run.  Content must match in all cases.
+	 */
+	public void testReadThroughput() throws Exception {
+		boolean loadManagedDisks = false;
+		Store store = new FilesystemStore( new File( "test-store" ),
+										   loadManagedDisks );
+
+		// Big enough for the fuse round trips to tell
+		File f = new File( "test-throughput" );
+		RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+		byte[] ba = new byte[1024*1024];
+		new Random( 44 ).nextBytes( ba );
+		for( int i = 0; i < 32; i++ )
+			raf.write( ba );
+		raf.close();
+		try {
+			Session session = Session.CANNED;
+			DiskImage di = new DiskImage( f );
+			FlatDisk fd1 = new FlatDisk( di, session );
+			store.put( fd1 );
+			ManagedDiskDescriptor mdd = fd1.getDescriptor();
+			byte[] expected = digest( store.locate( mdd ).
+									  getSeekableInputStream() );
+
+			long[] uncached = twoPasses( store, mdd, false, expected );
+			long[] cached = twoPasses( store, mdd, true, expected );
+			System.out.println( "Second pass, uncached: " + uncached[1] +
+								" reads" );
+			System.out.println( "Second pass, kernel_cache: " + cached[1] +
+								" reads" );
+
+			// Both mounts read it all the first time...
+			assertTrue( cached[0] * 2 > uncached[0] );
+			// ...the uncached one reads it all again...
+			assertTrue( uncached[1] * 2 > uncached[0] );
+			// ...the cached one next to none of it
+			assertTrue( cached[1] * 10 < uncached[1] );
+		} finally {
+			f.delete();
+		}
+	}
+
+	/*
+	  Mount the store, read the disk through it twice, and unmount.
+	  Returns the read requests reaching the filesystem for each pass.
+	*/
+	private long[] twoPasses( Store store, ManagedDiskDescriptor mdd,
+							  boolean kernelCache, byte[] expected )
+		throws Exception {
+		File mount = new File( "test-mount" );
+		mount.mkdirs();
+		ManagedDiskFileSystem mdfs = new ManagedDiskFileSystem( store );
+		mdfs.setKernelCache( kernelCache );
+		boolean ownThread = true;
+		mdfs.mount( mount, ownThread );
+
+		// Wait for the mount point to become available
+		Thread.sleep( 1000 * 4 );
+
+		long[] result = new long[2];
+		try {
+			File path = mdfs.pathTo( mdd );
+			for( int pass = 0; pass < 2; pass++ ) {
+				long reads = mdfs.getReadCount();
+				byte[] actual = digest( new FileInputStream( path ) );
+				result[pass] = mdfs.getReadCount() - reads;
+				assertTrue( MessageDigest.isEqual( expected, actual ) );
+			}
+		} finally {
+			int sc = mdfs.umount();
+			assertEquals( sc, 0 );
+		}
+		return result;
+	}
+
+	/**
+	 * Read one managed disk through the mount from several threads at
+	 * once, each with its own open file and its own part of the disk.
+	 * Every reader must see the right content.  The disk is stream
+	 * optimized, so each read costs us some inflating, which the
+	 * default multi-threaded mount should spread over the cpus, and so
+	 * finish well ahead of a single-threaded, i.e. -s, mount.  The
+	 * kernel cache is off, so all reads reach us in both cases.
+	 */
+	public void testConcurrentReads() throws Exception {
+		boolean loadManagedDisks = false;
+		Store store = new FilesystemStore( new File( "test-store" ),
+										   loadManagedDisks );
+
+		// Compressible, but with some work in it
+		File f = new File( "test-concurrent" );
+		RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+		byte[] ba = new byte[1024*1024];
+		Random r = new Random( 47 );
+		for( int i = 0; i < 32; i++ ) {
+			for( int j = 0; j < ba.length; j++ )
+				ba[j] = (byte)r.nextInt( 16 );
+			raf.write( ba );
+		}
+		raf.close();
+		try {
+			Session session = Session.CANNED;
+			DiskImage di = new DiskImage( f );
+			StreamOptimizedDisk sod = new StreamOptimizedDisk( di, session );
+			store.put( sod );
+			ManagedDiskDescriptor mdd = sod.getDescriptor();
+
+			int readers = Math.min( 4, Runtime.getRuntime().
+									availableProcessors() );
+			// Multi-threaded first, so any warm cache favours -s
+			long multi = concurrentReads( store, mdd, false, readers, f );
+			long single = concurrentReads( store, mdd, true, readers, f );
+			System.out.println( readers + " concurrent readers: " +
+								multi + "ms, single-threaded: " +
+								single + "ms" );
+			if( readers > 1 )
+				assertTrue( multi * 4 < single * 3 );
+		} finally {
+			f.delete();
+		}
+	}
+
+	/*
+	  Mount the store, have each reader read its own slice of the disk
+	  through it, checking it against the raw image, and unmount.
+	  Returns the milliseconds until all readers were done.
+	*/
+	private long concurrentReads( Store store, ManagedDiskDescriptor mdd,
+								  boolean singleThreaded, int readers,
+								  File raw ) throws Exception {
+		File mount = new File( "test-mount" );
+		mount.mkdirs();
+		ManagedDiskFileSystem mdfs = new ManagedDiskFileSystem( store );
+		mdfs.setSingleThreaded( singleThreaded );
+		mdfs.setKernelCache( false );
+		boolean ownThread = true;
+		mdfs.mount( mount, ownThread );
+
+		// Wait for the mount point to become available
+		Thread.sleep( 1000 * 4 );
+
+		try {
+			final File path = mdfs.pathTo( mdd );
+			final long slice = raw.length() / readers;
+			final List<Throwable> failures =
+				Collections.synchronizedList( new ArrayList<Throwable>() );
+			final byte[][] expected = new byte[readers][];
+			for( int i = 0; i < readers; i++ )
+				expected[i] = digest( raw, i * slice, slice );
+			Thread[] ts = new Thread[readers];
+			long start = System.currentTimeMillis();
+			for( int i = 0; i < readers; i++ ) {
+				final int n = i;
+				ts[i] = new Thread() {
+						public void run() {
+							try {
+								byte[] actual = digest( path, n * slice,
+														slice );
+								if( !MessageDigest.isEqual( expected[n],
+															actual ) )
+									throw new AssertionError
+										( "Content mismatch" );
+							} catch( Throwable t ) {
+								failures.add( t );
+							}
+						}
+					};
+				ts[i].start();
+			}
+			for( Thread t : ts )
+				t.join();
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue( failures.toString(), failures.isEmpty() );
+			return elapsed;
+		} finally {
+			int sc = mdfs.umount();
+			assertEquals( sc, 0 );
+		}
+	}
+
+	// The md5 of length bytes of a file from an offset
+	private byte[] digest( File f, long offset, long length )
+		throws Exception {
+		MessageDigest md5 = MessageDigest.getInstance( "md5" );
+		byte[] ba = new byte[1024*64];
+		RandomAccessFile raf = new RandomAccessFile( f, "r" );
+		try {
+			raf.seek( offset );
+			while( length > 0 ) {
+				int nin = raf.read( ba, 0, (int)Math.min( ba.length, length ) );
+				if( nin < 0 )
+					break;
+				md5.update( ba, 0, nin );
+				length -= nin;
+			}
+		} finally {
+			raf.close();
+		}
+		return md5.digest();
+	}
+
+	private byte[] digest( InputStream is ) throws Exception {
+		MessageDigest md5 = MessageDigest.getInstance( "md5" );
+		byte[] ba = new byte[1024*64];
+		try {
+			while( true ) {
+				int nin = is.read( ba );
+				if( nin < 0 )
+					break;
+				md5.update( ba, 0, nin );
+			}
+		} finally {
+			is.close();
+		}
+		return md5.digest();
+	}
 }
 
 // eof
@@ -0,0 +1,102 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.fuse;
+
+import java.io.File;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.model.DiskImage;
+import edu.uw.apl.tupelo.model.FlatDisk;
+import edu.uw.apl.tupelo.store.filesys.FilesystemStore;
+
+public class PathIndexTest extends junit.framework.TestCase {
+
+	protected void setUp() throws Exception {
+		dir = new File( "test-store-index" );
+		FileUtils.deleteDirectory( dir );
+		store = new FilesystemStore( dir, false );
+	}
+
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory( dir );
+	}
+
+	/**
+	 * Disks already in the store are indexed by diskID and session,
+	 * disks put afterwards are picked up from the store's events.
+	 */
+	public void testPutIsIndexed() throws Exception {
+		File f1 = new File( "src/test/resources/64k" );
+		File f2 = new File( "src/test/resources/1m" );
+		if( !f1.exists() || !f2.exists() )
+			return;
+
+		Session session = Session.CANNED;
+		FlatDisk fd1 = new FlatDisk( new DiskImage( f1 ), session );
+		store.put( fd1 );
+
+		PathIndex index = new PathIndex( store );
+		try {
+			assertEquals( 1, index.size() );
+			Set<String> sessions = index.sessions( f1.getName() );
+			assertNotNull( sessions );
+			assertTrue( sessions.contains( session.toString() ) );
+			PathIndex.Entry e = index.get( f1.getName(), session.toString() );
+			assertNotNull( e );
+			assertEquals( fd1.getDescriptor(), e.mdd );
+			assertEquals( f1.length(), e.size );
+
+			assertNull( index.sessions( f2.getName() ) );
+			assertNull( index.get( f1.getName(), "FOOBARBAZ" ) );
+
+			FlatDisk fd2 = new FlatDisk( new DiskImage( f2 ), session );
+			store.put( fd2 );
+			assertEquals( 2, index.size() );
+			assertEquals( 2, index.diskIDs().size() );
+			e = index.get( f2.getName(), session.toString() );
+			assertNotNull( e );
+			assertEquals( f2.length(), e.size );
+		} finally {
+			index.close();
+		}
+	}
+
+	private File dir;
+	private FilesystemStore store;
+}
+
+// eof
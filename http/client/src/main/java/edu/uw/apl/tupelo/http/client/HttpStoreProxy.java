@@ -42,12 +42,12 @@ import java.io.ObjectInputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import org.apache.http.Header;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -56,9 +56,11 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 
 import org.apache.http.entity.ContentType;
@@ -74,6 +76,7 @@ import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.model.ManagedDiskDigest;
 import edu.uw.apl.tupelo.model.Session;
 import edu.uw.apl.tupelo.model.ProgressMonitor;
+import edu.uw.apl.tupelo.store.AttributeOutputStream;
 import edu.uw.apl.tupelo.store.Store;
 
 /**
@@ -86,8 +89,14 @@ public class HttpStoreProxy implements Store {
     private static final String JAVA_TYPE = "application/x-java-serialized-object";
     private static final String JSON_TYPE = "application/json";
     private static final String TEXT_TYPE = "text/plain";
+    private static final String OCTET_TYPE = "application/octet-stream";
+    // Response header carrying a digest's total grain hash count
+    private static final String DIGEST_SIZE_HEADER = "digest-size";
 
     private String server;
+    // From an older server without digest ranges, see digest(mdd,from,count)
+    private ManagedDiskDescriptor wholeDigestDisk;
+    private ManagedDiskDigest wholeDigest;
     private final Log log;
     private Gson gson;
 
@@ -245,6 +254,8 @@ public class HttpStoreProxy implements Store {
 	@Override
 	public void put( final ManagedDisk md ) throws IOException {
 		ManagedDiskDescriptor mdd = md.getDescriptor();
+		// The put is done with any parent digest we were paging
+		setWholeDigest( null, null );
 		HttpPost p = new HttpPost( server + "disks/data/put/" + mdd.getDiskID() +
 								   "/" + mdd.getSession() );
 		log.debug( p.getRequestLine() );
@@ -282,6 +293,8 @@ public class HttpStoreProxy implements Store {
 		throws IOException {
 
 		ManagedDiskDescriptor mdd = md.getDescriptor();
+		// The put is done with any parent digest we were paging
+		setWholeDigest( null, null );
 		HttpPost p = new HttpPost( server + "disks/data/put/" +
 								   mdd.getDiskID() +
 								   "/" + mdd.getSession() );
@@ -351,6 +364,105 @@ public class HttpStoreProxy implements Store {
 		return result;
 	}
 
+	@Override
+	public ManagedDiskDigest digest( ManagedDiskDescriptor mdd,
+									 int from, int count )
+		throws IOException {
+		ManagedDiskDigest whole = wholeDigest( mdd );
+		if( whole != null )
+			return page( whole, from, count );
+		HttpGet g = new HttpGet( server + "disks/data/digest/" + mdd.getDiskID() +
+								 "/" + mdd.getSession() +
+								 "?from=" + from + "&count=" + count );
+		g.addHeader( "Accept", TEXT_TYPE );
+	
+		log.debug( g.getRequestLine() );
+		
+		HttpClient req = new DefaultHttpClient( );
+		HttpResponse res = req.execute( g );
+		StatusLine sl = res.getStatusLine();
+		if( sl.getStatusCode() == HttpStatus.SC_NOT_FOUND )
+			return null;
+		
+		HttpEntity he = res.getEntity();
+		InputStream is = he.getContent();
+		InputStreamReader isr = new InputStreamReader( is );
+		ManagedDiskDigest result = ManagedDiskDigest.readFrom( isr );
+		isr.close();
+
+		/*
+		  A server without digest range support ignores the range and
+		  sends it all (and no size header), so take the range
+		  ourselves.  Keep the whole digest for the pages to come,
+		  rather than fetch it all again for each.
+		*/
+		if( res.getFirstHeader( DIGEST_SIZE_HEADER ) == null ) {
+			setWholeDigest( mdd, result );
+			result = page( result, from, count );
+		}
+		return result;
+	}
+
+	static private ManagedDiskDigest page( ManagedDiskDigest whole,
+										   int from, int count ) {
+		ManagedDiskDigest result = new ManagedDiskDigest();
+		for( int i = from; i < whole.size() && i - from < count; i++ )
+			result.add( whole.get(i) );
+		return result;
+	}
+
+	/*
+	  The last whole digest an older server sent us, if for mdd.  One
+	  is enough, a paged traversal walks one disk at a time, so asking
+	  after another disk drops it, as does a put.
+	*/
+	private synchronized ManagedDiskDigest wholeDigest
+		( ManagedDiskDescriptor mdd ) {
+		if( !mdd.equals( wholeDigestDisk ) ) {
+			wholeDigestDisk = null;
+			wholeDigest = null;
+		}
+		return wholeDigest;
+	}
+
+	private synchronized void setWholeDigest( ManagedDiskDescriptor mdd,
+											  ManagedDiskDigest d ) {
+		wholeDigestDisk = mdd;
+		wholeDigest = d;
+	}
+
+	@Override
+	public int digestSize( ManagedDiskDescriptor mdd ) throws IOException {
+		ManagedDiskDigest whole = wholeDigest( mdd );
+		if( whole != null )
+			return whole.size();
+		// An empty range still carries the total size header
+		HttpGet g = new HttpGet( server + "disks/data/digest/" + mdd.getDiskID() +
+								 "/" + mdd.getSession() + "?from=0&count=0" );
+		g.addHeader( "Accept", TEXT_TYPE );
+
+		log.debug( g.getRequestLine() );
+
+		HttpClient req = new DefaultHttpClient( );
+		HttpResponse res = req.execute( g );
+		StatusLine sl = res.getStatusLine();
+		if( sl.getStatusCode() == HttpStatus.SC_NOT_FOUND )
+			return -1;
+
+		Header h = res.getFirstHeader( DIGEST_SIZE_HEADER );
+		if( h != null ) {
+			EntityUtils.consume( res.getEntity() );
+			return Integer.parseInt( h.getValue() );
+		}
+		// Older server, sent the whole digest, just count it
+		InputStreamReader isr = new InputStreamReader
+			( res.getEntity().getContent() );
+		ManagedDiskDigest all = ManagedDiskDigest.readFrom( isr );
+		isr.close();
+		setWholeDigest( mdd, all );
+		return all.size();
+	}
+
 		
 	@SuppressWarnings("unchecked")
 	@Override
@@ -415,6 +527,149 @@ public class HttpStoreProxy implements Store {
 		HttpResponse res = req.execute( p );
 	}
 
+	@Override
+	public void setAttributes( ManagedDiskDescriptor mdd,
+							   Map<String,byte[]> values ) throws IOException {
+		HttpPost p = new HttpPost( server + "disks/attr/setmany/" +
+								   mdd.getDiskID() + "/" + mdd.getSession() );
+		log.debug( p.getRequestLine() );
+
+		p.setHeader( "content-type", JSON_TYPE );
+		p.setEntity( new StringEntity( gson.toJson( values ) ) );
+		HttpClient req = new DefaultHttpClient( );
+		HttpResponse res = req.execute( p );
+		StatusLine sl = res.getStatusLine();
+		EntityUtils.consume( res.getEntity() );
+		if( sl.getStatusCode() >= 300 )
+			throw new IOException( sl.toString() );
+	}
+
+	@Override
+	public Map<String,byte[]> getAttributes( ManagedDiskDescriptor mdd,
+											 Collection<String> keys )
+		throws IOException {
+		HttpPost p = new HttpPost( server + "disks/attr/getmany/" +
+								   mdd.getDiskID() + "/" + mdd.getSession() );
+		p.addHeader( "Accept", JSON_TYPE );
+		log.debug( p.getRequestLine() );
+
+		p.setHeader( "content-type", JSON_TYPE );
+		p.setEntity( new StringEntity( gson.toJson( keys ) ) );
+		HttpClient req = new DefaultHttpClient( );
+		HttpResponse res = req.execute( p );
+		StatusLine sl = res.getStatusLine();
+		if( sl.getStatusCode() >= 300 ) {
+			EntityUtils.consume( res.getEntity() );
+			throw new IOException( sl.toString() );
+		}
+		JsonReader reader = new JsonReader
+			( new InputStreamReader( res.getEntity().getContent() ) );
+		try {
+			Map<String,byte[]> result = gson.fromJson
+				( reader, new TypeToken<Map<String,byte[]>>(){}.getType() );
+			return result;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/*
+	  The value is posted, chunked, as it is written.  The post runs
+	  on its own thread, fed by a pipe, and close() waits for the
+	  server's response.
+	*/
+	@Override
+	public AttributeOutputStream attributeOutputStream
+		( ManagedDiskDescriptor mdd, String key )
+		throws IOException {
+		final HttpPost p = new HttpPost( server + "disks/attr/set/" +
+										 mdd.getDiskID() + "/" +
+										 mdd.getSession() + "/" + key  );
+		log.debug( p.getRequestLine() );
+
+		final PipedOutputStream pos = new PipedOutputStream();
+		final PipedInputStream pis = new PipedInputStream( pos, 1024*64 );
+		InputStreamEntity ise = new InputStreamEntity
+			( pis, -1, ContentType.APPLICATION_OCTET_STREAM );
+		ise.setChunked( true );
+		p.setEntity( ise );
+		final IOException[] failure = new IOException[1];
+		Runnable r = new Runnable() {
+				public void run() {
+					try {
+						HttpClient req = new DefaultHttpClient( );
+						HttpResponse res = req.execute( p );
+						StatusLine sl = res.getStatusLine();
+						EntityUtils.consume( res.getEntity() );
+						if( sl.getStatusCode() >= 300 )
+							failure[0] = new IOException( sl.toString() );
+					} catch( IOException ioe ) {
+						failure[0] = ioe;
+					} finally {
+						// Any further writes fail, rather than block
+						try {
+							pis.close();
+						} catch( IOException ignore ) {
+						}
+					}
+				}
+			};
+		final Thread t = new Thread( r );
+		t.start();
+		return new AttributeOutputStream( pos ) {
+			@Override
+			protected void publish() throws IOException {
+				out.close();
+				try {
+					t.join();
+				} catch( InterruptedException ie ) {
+				}
+				if( failure[0] != null )
+					throw failure[0];
+			}
+			/*
+			  Abort BEFORE ending the body, so the server sees a
+			  broken upload, not a complete (but short) value
+			*/
+			@Override
+			protected void discard() throws IOException {
+				p.abort();
+				out.close();
+				try {
+					t.join();
+				} catch( InterruptedException ie ) {
+				}
+			}
+		};
+	}
+
+	@Override
+	public InputStream attributeInputStream( ManagedDiskDescriptor mdd,
+											 String key )
+		throws IOException {
+		HttpGet g = new HttpGet( server + "disks/attr/get/" + mdd.getDiskID() +
+								 "/" + mdd.getSession() + "/" + key  );
+		g.addHeader( "Accept", OCTET_TYPE );
+		log.debug( g.getRequestLine() );
+
+		HttpClient req = new DefaultHttpClient( );
+		HttpResponse res = req.execute( g );
+		StatusLine sl = res.getStatusLine();
+		HttpEntity he = res.getEntity();
+		if( sl.getStatusCode() == HttpStatus.SC_NOT_FOUND ) {
+			EntityUtils.consume( he );
+			return null;
+		}
+		Header ct = he.getContentType();
+		if( ct == null || !ct.getValue().startsWith( OCTET_TYPE ) ) {
+			// Older server, cannot stream, so fetch it whole
+			EntityUtils.consume( he );
+			byte[] value = getAttribute( mdd, key );
+			return value == null ? null : new ByteArrayInputStream( value );
+		}
+		return he.getContent();
+	}
+
 	/*
 	  For the benefit of the fuse-based ManagedDiskFileSystem, so
 	  meaningless for a client-side http proxy.  Should never be
@@ -503,6 +758,23 @@ public class HttpStoreProxy implements Store {
 
     @Override
     public List<Record> getRecords(ManagedDiskDescriptor mdd, String algorithm, List<byte[]> hashes) throws IOException {
+        final List<Record> records = new ArrayList<Record>();
+        getRecords(mdd, algorithm, hashes, new RecordCallback() {
+            @Override
+            public void gotRecord(Record record) {
+                records.add(record);
+            }
+        });
+        return records;
+    }
+
+    /**
+     * The response is parsed as it arrives, one record at a time, so
+     * memory use does not grow with the number of records
+     */
+    @Override
+    public void getRecords(ManagedDiskDescriptor mdd, String algorithm, List<byte[]> hashes,
+            RecordCallback callback) throws IOException {
         HttpPost post = new HttpPost(server + "disks/data/filerecord/"+mdd.getDiskID()+"/"+mdd.getSession());
         post.addHeader("Accept", JSON_TYPE);
         post.addHeader("algorithm", algorithm);
@@ -518,9 +790,16 @@ public class HttpStoreProxy implements Store {
 
         // Read the response
         JsonReader reader = new JsonReader(new InputStreamReader(res.getEntity().getContent()));
-        Record[] records = gson.fromJson(reader, Record[].class);
-
-        return Arrays.asList(records);
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Record record = gson.fromJson(reader, Record.class);
+                callback.gotRecord(record);
+            }
+            reader.endArray();
+        } finally {
+            reader.close();
+        }
     }
 
     @Override
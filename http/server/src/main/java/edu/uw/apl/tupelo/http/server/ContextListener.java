@@ -41,15 +41,22 @@ import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.io.IOException;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
 
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.store.Store;
 import edu.uw.apl.tupelo.store.filesys.FilesystemStore;
+import edu.uw.apl.tupelo.store.tools.BodyFile;
+import edu.uw.apl.tupelo.store.tools.HashFS;
+import edu.uw.apl.tupelo.store.tools.HashVS;
 import edu.uw.apl.tupelo.utils.Discovery;
 import edu.uw.apl.tupelo.amqp.server.FileHashService;
 import edu.uw.apl.tupelo.fuse.ManagedDiskFileSystem;
 import edu.uw.apl.tupelo.http.server.service.DiskFileRecordService;
+import edu.uw.apl.tupelo.http.server.service.JobScheduler;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -70,6 +77,51 @@ public class ContextListener implements ServletContextListener {
 	 */
 	static public final String DATA_ROOT_KEY = "dataroot";
 
+	/**
+	 * Key for any further data volumes, beyond the data root, the store
+	 * spans.  Paths separated by the platform path separator, e.g.
+	 * /data1:/data2 (Use in property file)
+	 */
+	static public final String DATA_VOLUMES_KEY = "datavolumes";
+
+	/**
+	 * Key for the store's volume placement policy: freespace, roundrobin
+	 * or affinity (Use in property file)
+	 */
+	static public final String PLACEMENT_KEY = "placement";
+
+	/**
+	 * Key for when puts force data to disk: end, interval or none
+	 * (Use in property file)
+	 */
+	static public final String FSYNC_KEY = "fsync";
+
+	/**
+	 * Key for the MiB written between syncs, under the interval fsync
+	 * policy (Use in property file)
+	 */
+	static public final String FSYNC_INTERVAL_KEY = "fsync.interval";
+
+	/**
+	 * Key for keeping each disk's attributes packed in one log file,
+	 * rather than a file per attribute: true or false (Use in property
+	 * file)
+	 */
+	static public final String PACKED_ATTRIBUTES_KEY = "attributes.packed";
+
+	/**
+	 * Key for answering file record hash queries from sorted,
+	 * memory-mapped hash files: true or false (Use in property file)
+	 */
+	static public final String SORTED_HASH_FILES_KEY = "filerecords.sorted";
+
+	/**
+	 * Key for the file record policy on known files, those in the
+	 * store's imported known-file hash set: keep or skip (Use in
+	 * property file)
+	 */
+	static public final String KNOWN_FILES_KEY = "filerecords.known";
+
 	/**
 	 * Key for storing the Store in the ServletContext (Internal)
 	 */
@@ -99,6 +151,35 @@ public class ContextListener implements ServletContextListener {
 	 */
 	static public final String DISK_FHASH_KEY = "filerecord.service";
 
+	/**
+	 * For storing the JobScheduler (Internal)
+	 */
+	static public final String JOBS_KEY = "jobs";
+
+	/**
+	 * Key for the maximum number of concurrently running store jobs
+	 * (Use in property file)
+	 */
+	static public final String JOBS_WORKERS_KEY = "jobs.workers";
+
+	/**
+	 * Key for the maximum number of concurrently running I/O-intensive
+	 * store jobs (Use in property file)
+	 */
+	static public final String JOBS_IOLIMIT_KEY = "jobs.iolimit";
+
+	/**
+	 * Key for the number of threads walking filesystems for file
+	 * records, over all disks (Use in property file)
+	 */
+	static public final String FILERECORD_THREADS_KEY = "filerecord.threads";
+
+	/**
+	 * Key for the maximum number of filesystems of any one disk walked
+	 * for file records at once (Use in property file)
+	 */
+	static public final String FILERECORD_PERDISK_KEY = "filerecord.perdisk";
+
 	/**
 	 * How long (In seconds) to sleep between connection attempts
 	 */
@@ -192,7 +273,57 @@ public class ContextListener implements ServletContextListener {
 		dataRoot.mkdirs();
 		sc.setAttribute( DATA_ROOT_KEY, dataRoot );
 		log.info( "Store Root: " + dataRoot );
-		Store store = new FilesystemStore( dataRoot );
+		List<File> volumes = new ArrayList<File>();
+		volumes.add( dataRoot );
+		String extraVolumes = Discovery.locatePropertyValue( DATA_VOLUMES_KEY );
+		if( extraVolumes != null ) {
+			for( String s : extraVolumes.split( File.pathSeparator ) ) {
+				if( s.trim().isEmpty() )
+					continue;
+				File volume = new File( s.trim() ).getCanonicalFile();
+				log.info( "Store Volume: " + volume );
+				volumes.add( volume );
+			}
+		}
+		FilesystemStore.Placement placement = FilesystemStore.Placement.FREESPACE;
+		String p = Discovery.locatePropertyValue( PLACEMENT_KEY );
+		if( p != null ) {
+			try {
+				placement = FilesystemStore.Placement.valueOf
+					( p.trim().toUpperCase() );
+			} catch( IllegalArgumentException iae ) {
+				log.warn( "Unknown " + PLACEMENT_KEY + ": " + p );
+			}
+		}
+		FilesystemStore store = new FilesystemStore( volumes, placement, true );
+		FilesystemStore.Fsync fsync = FilesystemStore.Fsync.END;
+		String fs = Discovery.locatePropertyValue( FSYNC_KEY );
+		if( fs != null ) {
+			try {
+				fsync = FilesystemStore.Fsync.valueOf( fs.trim().toUpperCase() );
+			} catch( IllegalArgumentException iae ) {
+				log.warn( "Unknown " + FSYNC_KEY + ": " + fs );
+			}
+		}
+		store.setFsyncPolicy( fsync, Math.max
+							  ( 1, locateIntValue
+								( FSYNC_INTERVAL_KEY,
+								  FilesystemStore.FSYNC_INTERVAL_DEFAULT ) ) );
+		String packed = Discovery.locatePropertyValue( PACKED_ATTRIBUTES_KEY );
+		if( packed != null )
+			store.setPackedAttributes( Boolean.parseBoolean( packed.trim() ) );
+		String sorted = Discovery.locatePropertyValue( SORTED_HASH_FILES_KEY );
+		if( sorted != null )
+			store.setSortedHashFiles( Boolean.parseBoolean( sorted.trim() ) );
+		String known = Discovery.locatePropertyValue( KNOWN_FILES_KEY );
+		if( known != null ) {
+			try {
+				store.setKnownFilePolicy( FilesystemStore.KnownFiles.valueOf
+										  ( known.trim().toUpperCase() ) );
+			} catch( IllegalArgumentException iae ) {
+				log.warn( "Unknown " + KNOWN_FILES_KEY + ": " + known );
+			}
+		}
 		log.info( "Store UUID: " + store.getUUID() );
 
 		// Set up the MDFS
@@ -208,12 +339,84 @@ public class ContextListener implements ServletContextListener {
         sc.setAttribute( ContextListener.MDFS_OBJ_KEY, mdfs );
         sc.setAttribute( ContextListener.MDFS_MOUNT_KEY, mountPoint );
 
+		// Set up the job scheduler, every job kind registered before it starts
+		int workers = locateIntValue( JOBS_WORKERS_KEY, 4 );
+		int ioLimit = locateIntValue( JOBS_IOLIMIT_KEY, 2 );
+		JobScheduler scheduler = new JobScheduler( dataRoot, workers, ioLimit );
+		registerTools( scheduler, (FilesystemStore)store, mdfs );
+
         // Set up the file hash service
-		DiskFileRecordService diskFileHashService = new DiskFileRecordService(store, mdfs);
+		int fsThreads = locateIntValue( FILERECORD_THREADS_KEY,
+										Runtime.getRuntime().availableProcessors() );
+		int fsPerDisk = locateIntValue( FILERECORD_PERDISK_KEY,
+										DiskFileRecordService.FILESYSTEMS_PER_DISK_DEFAULT );
+		DiskFileRecordService diskFileHashService =
+			new DiskFileRecordService( store, mdfs, scheduler, fsThreads, fsPerDisk );
+		scheduler.start();
 		sc.setAttribute( STORE_KEY, store );
+		sc.setAttribute( JOBS_KEY, scheduler );
 		sc.setAttribute( DISK_FHASH_KEY, diskFileHashService);
 	}
 
+	/**
+	 * Register the store processing tools (the ToolsServlet's digest,
+	 * hashvs, hashfs and bodyfile commands) as scheduler job kinds.
+	 * Each reads a whole managed disk, so all are I/O-intensive.
+	 * Every newly put disk is queued for its digest.
+	 */
+	private void registerTools( final JobScheduler scheduler,
+								final FilesystemStore store,
+								final ManagedDiskFileSystem mdfs ) {
+		scheduler.register( "digest", new JobScheduler.Task() {
+				public void run( JobScheduler.Job job ) throws Exception {
+					store.computeDigest( job.getDescriptor() );
+				}
+			}, true );
+		store.addListener( new FilesystemStore.ListenerAdapter() {
+				@Override
+				public void putCompleted( ManagedDiskDescriptor mdd ) {
+					scheduler.submit( "digest", mdd,
+									  JobScheduler.PRIORITY_NORMAL );
+				}
+			} );
+		scheduler.register( "hashvs", new JobScheduler.Task() {
+				public void run( JobScheduler.Job job ) throws Exception {
+					ManagedDiskDescriptor mdd = job.getDescriptor();
+					HashVS.process( mdfs.pathTo( mdd ), mdd, store );
+				}
+			}, true );
+		scheduler.register( "hashfs", new JobScheduler.Task() {
+				public void run( JobScheduler.Job job ) throws Exception {
+					ManagedDiskDescriptor mdd = job.getDescriptor();
+					HashFS.process( mdfs.pathTo( mdd ), mdd, store );
+				}
+			}, true );
+		scheduler.register( "bodyfile", new JobScheduler.Task() {
+				public void run( JobScheduler.Job job ) throws Exception {
+					ManagedDiskDescriptor mdd = job.getDescriptor();
+					boolean printResult = false;
+					BodyFile.process( mdfs.pathTo( mdd ), mdd, store,
+									  printResult );
+				}
+			}, true );
+	}
+
+	/**
+	 * @return the integer value of the named property, as found by
+	 * {@link Discovery}, or the default if absent or malformed
+	 */
+	private int locateIntValue( String key, int defaultValue ) {
+		String s = Discovery.locatePropertyValue( key );
+		if( s == null )
+			return defaultValue;
+		try {
+			return Integer.parseInt( s.trim() );
+		} catch( NumberFormatException nfe ) {
+			log.warn( "Bad value for " + key + ": " + s );
+			return defaultValue;
+		}
+	}
+
 	/**
 	 * Returns the full path to ~/.tupelo
 	 * @return
@@ -325,6 +528,13 @@ public class ContextListener implements ServletContextListener {
 		DiskFileRecordService diskFileHashService = (DiskFileRecordService) sc.getAttribute(DISK_FHASH_KEY);
 		diskFileHashService.stop();
 
+		// Stop the job workers, leaving unfinished jobs queued for the next start
+		JobScheduler scheduler = (JobScheduler)sc.getAttribute( JOBS_KEY );
+		if( scheduler != null ) {
+			log.info( "Stopping job scheduler" );
+			scheduler.stop();
+		}
+
 		// Clean up the MDFS
 		ManagedDiskFileSystem mdfs = (ManagedDiskFileSystem)sc.getAttribute( MDFS_OBJ_KEY );
 
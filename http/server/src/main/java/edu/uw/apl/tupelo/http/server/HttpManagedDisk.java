@@ -37,6 +37,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 
 import org.apache.commons.io.IOUtils;
@@ -184,6 +185,18 @@ public class HttpManagedDisk extends ManagedDisk {
 		return delegate.getSeekableInputStream();
 	}
 	
+	@Override
+	public int read( long pos, ByteBuffer dst ) throws IOException {
+		checkDelegate();
+		return delegate.read( pos, dst );
+	}
+
+	@Override
+	public void close() throws IOException {
+		if( delegate != null )
+			delegate.close();
+	}
+	
 	@Override
 	public void verify() throws IOException {
 		checkDelegate();
@@ -60,4 +60,16 @@ public class Utils {
 			return false;
 		return h.indexOf( "application/json" ) > -1;
 	}
+
+    /**
+     * Check if there in an Accept header for application/octet-stream
+     * @param req
+     * @return
+     */
+	public static boolean acceptsOctetStream( HttpServletRequest req ) {
+		String h = req.getHeader( "Accept" );
+		if( h == null )
+			return false;
+		return h.indexOf( "application/octet-stream" ) > -1;
+	}
 }
@@ -34,12 +34,22 @@
 
 package edu.uw.apl.tupelo.http.server.service;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -47,71 +57,343 @@ import org.apache.commons.logging.LogFactory;
 import edu.uw.apl.commons.tsk4j.digests.BodyFile.Record;
 import edu.uw.apl.commons.tsk4j.digests.BodyFileBuilder.BuilderCallback;
 import edu.uw.apl.commons.tsk4j.filesys.FileSystem;
+import edu.uw.apl.commons.tsk4j.volsys.Partition;
 import edu.uw.apl.tupelo.fuse.ManagedDiskFileSystem;
+import edu.uw.apl.tupelo.model.Constants;
+import edu.uw.apl.tupelo.model.ManagedDisk;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.store.Store;
+import edu.uw.apl.tupelo.store.Store.RecordCallback;
 import edu.uw.apl.tupelo.store.filesys.FileRecordStore;
 import edu.uw.apl.tupelo.store.filesys.FilesystemStore;
+import edu.uw.apl.tupelo.store.filesys.KnownFileSet;
 import edu.uw.apl.tupelo.utils.DiskHashUtils;
 
 /**
  * Monitors and generates the file hashes for managed disks that do not yet have file records. <br>
- * It polls the store for disks without file hashes approximately every 20 minutes
+ * It listens for puts to the store, and submits a job for each new disk to the
+ * {@link JobScheduler} as soon as it is stored. As a safety net, for disks put
+ * while the server was down or whose job failed, it also checks the whole store
+ * shortly after startup and then every few hours, submitting a low priority job
+ * for each disk still without file hashes. <br>
+ * How many disks are hashed at once is up to the scheduler's worker and I/O
+ * limits. Within one disk, each partition's filesystem is walked by its own
+ * {@link FilesystemWorker}, on a pool shared by all disks, with at most
+ * filesystemsPerDisk of them reading any one disk at a time. <br>
+ * A disk stored as a delta against a parent session need not be walked in full:
+ * a filesystem whose every grain is inherited unchanged from the parent has the
+ * same records as the parent's, which are copied over instead. <br>
+ * Every filesystem of a disk is registered in its {@link FileRecordStore} before
+ * any is walked, and each batch of records is committed as it arrives, so the
+ * store doubles as the job's checkpoint. A job interrupted by a restart, or
+ * cancelled, is resumed later: filesystems already ended are left alone, and a
+ * partly loaded one is walked again with the records it already has skipped.
+ * SleuthKit can only walk a filesystem from its root, so the walk itself, and
+ * the hashing of every file it passes, is repeated up to the checkpoint, but no
+ * committed record is added twice. <br>
+ * Under the store's {@link FilesystemStore.KnownFiles#SKIP} policy, records of
+ * files in its {@link KnownFileSet} are dropped before they are saved.
  */
 public class DiskFileRecordService {
     private static final Log log = LogFactory.getLog(DiskFileRecordService.class);
 
-    // How often to check the store, in milis
-    private static final long UPDATE_INTERVAL = 20 * 60 * 1000;
+    // The job kind this service registers with the scheduler
+    public static final String JOB_KIND = "filerecord";
+
+    // How often to check the store, in milis. New disks are queued when put,
+    // so this only catches the odd disk missed
+    private static final long UPDATE_INTERVAL = 6 * 60 * 60 * 1000;
+
+    // Default number of filesystems hashed at once per disk
+    public static final int FILESYSTEMS_PER_DISK_DEFAULT = 2;
+
+    // Partition number reported for a disk holding a bare filesystem
+    public static final int WHOLE_DISK = -1;
+
+    /**
+     * Progress of one filesystem being hashed
+     */
+    public static class FilesystemWorker {
+        private final ManagedDiskDescriptor mdd;
+        private final int partition;
+        // Extent in sectors, 0,0 for a bare filesystem
+        private final long start;
+        private final long length;
+        private volatile long started;
+        private volatile boolean copied;
+        private final AtomicLong records;
+        private final AtomicLong bytes;
+        // The filesystem's id in the record store
+        private int id;
+        private final AtomicLong known;
+        // Records already committed before this run, and the last of them
+        private long resume;
+        private Record checkpoint;
+        // This pass over the filesystem has reached the checkpoint
+        private boolean pastCheckpoint;
+
+        FilesystemWorker(ManagedDiskDescriptor mdd, int partition, long start, long length){
+            this.mdd = mdd;
+            this.partition = partition;
+            this.start = start;
+            this.length = length;
+            this.records = new AtomicLong();
+            this.bytes = new AtomicLong();
+            this.known = new AtomicLong();
+        }
+
+        // Pick up where an earlier, interrupted, load of the filesystem left off
+        void resume(int id, long count, Record last){
+            this.id = id;
+            this.resume = count;
+            this.checkpoint = last;
+            this.pastCheckpoint = false;
+            this.records.set(count);
+        }
+
+        // Throw away any previous pass, and start with an empty filesystem
+        void restart(int id){
+            resume(id, 0, null);
+            this.bytes.set(0);
+            this.known.set(0);
+        }
+
+        /*
+          The records of a batch to be saved: those after the checkpoint,
+          if there is one, and not of known files. The batches of a pass
+          must be given in order.
+        */
+        List<Record> unsaved(List<Record> records, KnownFileSet known){
+            List<Record> fresh = records;
+            if(checkpoint != null && !pastCheckpoint){
+                int i = records.size() - 1;
+                while(i >= 0 && !sameRecord(checkpoint, records.get(i))){
+                    i--;
+                }
+                if(i < 0){
+                    return Collections.emptyList();
+                }
+                pastCheckpoint = true;
+                fresh = records.subList(i + 1, records.size());
+            }
+            if(known != null){
+                List<Record> unknown = new ArrayList<Record>(fresh.size());
+                for(Record r : fresh){
+                    if(!known.isKnown(r)){
+                        unknown.add(r);
+                    }
+                }
+                this.known.addAndGet(fresh.size() - unknown.size());
+                fresh = unknown;
+            }
+            return fresh;
+        }
+
+        private static boolean sameRecord(Record a, Record b){
+            return a.inode == b.inode && a.attrId == b.attrId && a.path.equals(b.path);
+        }
+
+        // The pass ended without meeting the checkpoint
+        boolean diverged(){
+            return checkpoint != null && !pastCheckpoint;
+        }
+
+        public ManagedDiskDescriptor getDescriptor(){
+            return mdd;
+        }
+
+        /**
+         * @return The partition index in the disk's volume system, or
+         * {@link DiskFileRecordService#WHOLE_DISK}
+         */
+        public int getPartition(){
+            return partition;
+        }
+
+        public long getStarted(){
+            return started;
+        }
+
+        public long getRecords(){
+            return records.get();
+        }
+
+        /**
+         * @return The total size of the files recorded so far
+         */
+        public long getBytes(){
+            return bytes.get();
+        }
+
+        /**
+         * @return How many known files were left out of the records
+         */
+        public long getKnown(){
+            return known.get();
+        }
+
+        /**
+         * @return How many records were already in the store from an earlier,
+         * interrupted, run, and are not added again
+         */
+        public long getResumed(){
+            return resume;
+        }
+
+        /**
+         * @return true if the records are being copied from the parent disk,
+         * rather than read from this one
+         */
+        public boolean isCopied(){
+            return copied;
+        }
+
+        public String toString(){
+            return (partition == WHOLE_DISK ? "disk" : "p" + partition) +
+                (copied ? " copied " : " ") + records.get() +
+                (known.get() == 0 ? "" : " (" + known.get() + " known)");
+        }
+    }
 
     // The store
     private final FilesystemStore store;
     // The store's MDFS
     private final ManagedDiskFileSystem mdfs;
-    // Which disks are next
-    private BlockingQueue<ManagedDiskDescriptor> diskQueue;
-    // The currently hashing disk (If any)
-    private ManagedDiskDescriptor currentDisk;
+    // Runs the hashing jobs
+    private final JobScheduler scheduler;
     // Update thread
     private UpdaterThread updater;
-    // Worker thread
-    private WorkerThread worker;
+    // Walks the filesystems of every disk being hashed
+    private final ExecutorService filesystemPool;
+    // Maximum filesystems of one disk walked at once
+    private final int filesystemsPerDisk;
+    // The filesystems being walked right now
+    private final List<FilesystemWorker> workers;
+    // Disks known to have file records, skipped by the periodic check
+    private final Set<ManagedDiskDescriptor> hashed;
+    // Disks whose job was cancelled, also left alone by the periodic check
+    private final Set<ManagedDiskDescriptor> cancelled;
+    // Queues the disks put into the store
+    private final FilesystemStore.Listener listener;
+
+    public DiskFileRecordService(Store store, ManagedDiskFileSystem mdfs, JobScheduler scheduler){
+        this(store, mdfs, scheduler, Runtime.getRuntime().availableProcessors(),
+                FILESYSTEMS_PER_DISK_DEFAULT);
+    }
 
-    public DiskFileRecordService(Store store, ManagedDiskFileSystem mdfs){
+    /**
+     * @param store
+     * @param mdfs
+     * @param scheduler
+     * @param threads Maximum number of filesystems hashed at once, over all disks
+     * @param filesystemsPerDisk Maximum number of filesystems of one disk hashed at once
+     */
+    public DiskFileRecordService(Store store, ManagedDiskFileSystem mdfs, JobScheduler scheduler,
+            int threads, int filesystemsPerDisk){
+        if(threads < 1 || filesystemsPerDisk < 1){
+            throw new IllegalArgumentException("Need at least one filesystem worker");
+        }
         this.store = (FilesystemStore) store;
         this.mdfs = mdfs;
+        this.scheduler = scheduler;
+        this.filesystemsPerDisk = filesystemsPerDisk;
+        this.workers = new ArrayList<FilesystemWorker>();
+        this.hashed = Collections.synchronizedSet(new HashSet<ManagedDiskDescriptor>());
+        this.cancelled = Collections.synchronizedSet(new HashSet<ManagedDiskDescriptor>());
+        final AtomicInteger threadCount = new AtomicInteger();
+        filesystemPool = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FileRecordWorker-" + threadCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        scheduler.register(JOB_KIND, new JobScheduler.Task(){
+            @Override
+            public void run(JobScheduler.Job job) throws Exception {
+                cancelled.remove(job.getDescriptor());
+                try {
+                    hashDisk(job);
+                } finally {
+                    if(job.isCancelled()){
+                        cancelled.add(job.getDescriptor());
+                    }
+                }
+            }
+        }, true);
+
+        listener = new FilesystemStore.ListenerAdapter(){
+            @Override
+            public void putCompleted(ManagedDiskDescriptor mdd) {
+                log.debug("Disk stored, adding to queue: " + mdd);
+                DiskFileRecordService.this.scheduler.submit(JOB_KIND, mdd, JobScheduler.PRIORITY_NORMAL);
+            }
+        };
+        this.store.addListener(listener);
 
-        diskQueue = new LinkedBlockingQueue<ManagedDiskDescriptor>();
         // Start the updater
         updater = new UpdaterThread();
         updater.start();
-        // Start the worker
-        worker = new WorkerThread();
-        worker.start();
     }
 
     /**
      * Get the queue of disks to be hashed
      * @return
      */
-    public synchronized ManagedDiskDescriptor[] getQueue(){
-        return diskQueue.toArray(new ManagedDiskDescriptor[diskQueue.size()]);
+    public ManagedDiskDescriptor[] getQueue(){
+        List<ManagedDiskDescriptor> result = new ArrayList<ManagedDiskDescriptor>();
+        for(JobScheduler.Job job : scheduler.getJobs()){
+            if(job.getKind().equals(JOB_KIND) && job.getState() == JobScheduler.State.QUEUED){
+                result.add(job.getDescriptor());
+            }
+        }
+        return result.toArray(new ManagedDiskDescriptor[result.size()]);
+    }
+
+    /**
+     * Get the disk (If any) that are currently being hashed.
+     * With more than one, this is the one started first.
+     * @return
+     */
+    public ManagedDiskDescriptor getCurrentDisk(){
+        List<ManagedDiskDescriptor> current = getCurrentDisks();
+        return current.isEmpty() ? null : current.get(0);
+    }
+
+    /**
+     * Get all disks currently being hashed
+     * @return
+     */
+    public List<ManagedDiskDescriptor> getCurrentDisks(){
+        List<ManagedDiskDescriptor> result = new ArrayList<ManagedDiskDescriptor>();
+        for(JobScheduler.Job job : scheduler.getJobs()){
+            if(job.getKind().equals(JOB_KIND) && job.getState() == JobScheduler.State.RUNNING){
+                result.add(job.getDescriptor());
+            }
+        }
+        return result;
     }
 
     /**
-     * Get the disk (If any) that are currently being hashed
+     * Get the filesystems being hashed right now, with their record counts
      * @return
      */
-    public synchronized ManagedDiskDescriptor getCurrentDisk(){
-        return currentDisk;
+    public List<FilesystemWorker> getWorkers(){
+        synchronized(workers){
+            return new ArrayList<FilesystemWorker>(workers);
+        }
     }
 
     /**
-     * Shut down all threads
+     * Shut down the updater thread and the filesystem workers.
+     * Hashing jobs belong to the scheduler.
      */
     public void stop(){
-        worker.interrupt();
+        store.removeListener(listener);
         updater.interrupt();
+        filesystemPool.shutdownNow();
     }
 
     /**
@@ -123,7 +405,11 @@ public class DiskFileRecordService {
             Collection<ManagedDiskDescriptor> allDisks = store.enumerate();
             for(ManagedDiskDescriptor mdd : allDisks){
                 FileRecordStore fileRecordStore = store.getRecordStore(mdd);
-                fileRecordStore.checkVersion();
+                try {
+                    fileRecordStore.checkVersion();
+                } finally {
+                    fileRecordStore.close();
+                }
             }
         } catch(Exception e){
             log.warn("Exception checking FileRecordStore versions", e);
@@ -131,17 +417,25 @@ public class DiskFileRecordService {
     }
 
     /**
-     * Check for disks without file hashes, queue them, and start processing them.
+     * Check for disks without file hashes, or whose hashing was interrupted,
+     * and queue them for processing. The scheduler ignores disks already
+     * queued. Disks whose job an analyst cancelled are left until they are
+     * submitted again.
      */
     public synchronized void checkForUnhashedDisks(){
         log.debug("Starting check for disks without file hashes");
         try{
             Collection<ManagedDiskDescriptor> allDisks = store.enumerate();
             for(ManagedDiskDescriptor mdd : allDisks){
-                // Check if the store has hashes
-                if(!store.hasFileRecords(mdd) && !diskQueue.contains(mdd)){
+                if(hashed.contains(mdd) || cancelled.contains(mdd)){
+                    continue;
+                }
+                // Check if the store has all its hashes
+                if(isComplete(mdd)){
+                    hashed.add(mdd);
+                } else {
                     log.debug("Disk missing file hashes, adding to queue: "+mdd);
-                    diskQueue.add(mdd);
+                    scheduler.submit(JOB_KIND, mdd, JobScheduler.PRIORITY_LOW);
                 }
             }
         } catch(IOException e){
@@ -149,6 +443,16 @@ public class DiskFileRecordService {
         }
     }
 
+    // True if the disk has records, and none of its filesystems is part loaded
+    private boolean isComplete(ManagedDiskDescriptor mdd) throws IOException {
+        FileRecordStore recordStore = store.getRecordStore(mdd);
+        try {
+            return recordStore.hasData() && !recordStore.hasPartialFilesystems();
+        } finally {
+            recordStore.close();
+        }
+    }
+
     /**
      * Thread that runs a check for unhashed files every UPDATE_INTERVAL. <br>
      * If interrupted, it will stop
@@ -161,7 +465,7 @@ public class DiskFileRecordService {
             try {
                 Thread.sleep(30 * 1000);
             } catch(InterruptedException e){
-                // Ignore
+                return;
             }
 
             // Check the FileRecordStore versions
@@ -181,83 +485,396 @@ public class DiskFileRecordService {
     }
 
     /**
-     * Worker thread. It will pull disks from the queue and process them.
+     * Generate and save the file records of every filesystem on one disk.
+     * Runs on a scheduler worker, handing each filesystem to the filesystem
+     * pool. Every filesystem is walked with its own image handle, since a
+     * SleuthKit image is not safe to share between threads.
      */
-    private class WorkerThread extends Thread {
-        @Override
-        public void run() {
-            do {
-                try {
-                    log.debug("File record worker waiting for disk");
-                    // Get an available disk from the queue
-                    // This will block until one is available
-                    ManagedDiskDescriptor diskDescriptor = diskQueue.take();
-
-                    DiskHashUtils hashUtils = null;
-                    try {
-                        // Check that there are still no file records
-                        final FileRecordStore recordStore = store.getRecordStore(diskDescriptor);
-                        if(recordStore.hasData()){
-                            log.debug("Disk has file records, skipping "+diskDescriptor);
-                            recordStore.close();
-                            continue;
-                        }
+    private void hashDisk(final JobScheduler.Job job) throws IOException {
+        final ManagedDiskDescriptor diskDescriptor = job.getDescriptor();
+        // Check that the file records are still missing, or only part loaded
+        final FileRecordStore recordStore = store.getRecordStore(diskDescriptor);
+        try {
+            if(recordStore.hasData() && !recordStore.hasPartialFilesystems()){
+                log.debug("Disk has file records, skipping "+diskDescriptor);
+                hashed.add(diskDescriptor);
+                return;
+            }
 
-                        log.debug("Starting to process disk: " + diskDescriptor);
-                        currentDisk = diskDescriptor;
+            log.debug("Starting to process disk: " + diskDescriptor);
 
-                        File diskPath = mdfs.pathTo(diskDescriptor);
-                        hashUtils = new DiskHashUtils(diskPath.getAbsolutePath());
+            final String diskPath = mdfs.pathTo(diskDescriptor).getAbsolutePath();
+            List<FilesystemWorker> filesystems = new ArrayList<FilesystemWorker>();
+            DiskHashUtils hashUtils = new DiskHashUtils(diskPath);
+            try {
+                List<Partition> found = hashUtils.getPartitions();
+                if(found == null){
+                    filesystems.add(new FilesystemWorker(diskDescriptor, WHOLE_DISK, 0, 0));
+                } else {
+                    for(int i = 0; i < found.size(); i++){
+                        Partition p = found.get(i);
+                        if(p.isAllocated()){
+                            filesystems.add(new FilesystemWorker(diskDescriptor, i, p.start(), p.length()));
+                        }
+                    }
+                }
+            } finally {
+                hashUtils.close();
+            }
 
-                        final BuilderCallback callback = new BuilderCallback(){
-                            @Override
-                            public int getUpdateInterval() {
-                                // Get the records back in chunks we save to the database right away
-                                return FileRecordStore.INSERT_BATCH_SIZE;
-                            }
+            // Register them all before walking any, so that an interrupted
+            // run leaves every unfinished filesystem behind as part loaded
+            KnownFileSet known = null;
+            if(store.getKnownFilePolicy() == FilesystemStore.KnownFiles.SKIP){
+                known = store.getKnownFileSet();
+                if(known.isEmpty()){
+                    known = null;
+                }
+            }
+            final DiskProgress progress = new DiskProgress(job, filesystems.size(), known);
+            List<FilesystemWorker> todo = new ArrayList<FilesystemWorker>();
+            for(FilesystemWorker worker : filesystems){
+                int done = recordStore.findFilesystem(worker.start, worker.length);
+                if(done != FileRecordStore.NO_FILESYSTEM){
+                    log.debug("Partition " + worker.getPartition() + " of " + diskDescriptor +
+                            " done in an earlier run");
+                    progress.resumed(recordStore.getFilesystemRecordCount(done));
+                    progress.done.incrementAndGet();
+                    continue;
+                }
+                int id = recordStore.findPartialFilesystem(worker.start, worker.length);
+                if(id == FileRecordStore.NO_FILESYSTEM){
+                    worker.restart(recordStore.addFilesystem(worker.start, worker.length));
+                } else {
+                    worker.resume(id, recordStore.getFilesystemRecordCount(id),
+                            recordStore.getLastFilesystemRecord(id));
+                    log.debug("Resuming partition " + worker.getPartition() + " of " +
+                            diskDescriptor + " after " + worker.getResumed() + " records");
+                    progress.resumed(worker.getResumed());
+                }
+                todo.add(worker);
+            }
 
+            final Semaphore slots = new Semaphore(filesystemsPerDisk);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+
+            // Process the filesystems, indexing only once all are in
+            recordStore.beginBulkLoad();
+            try {
+                try {
+                    for(final FilesystemWorker worker : todo){
+                        slots.acquire();
+                        if(job.isCancelled()){
+                            slots.release();
+                            break;
+                        }
+                        futures.add(filesystemPool.submit(new Runnable(){
                             @Override
-                            public void gotRecords(List<Record> records) {
-                                // Save the records as we get them
+                            public void run() {
+                                if(progress.stopping()){
+                                    // Queued when the job stopped
+                                    progress.done.incrementAndGet();
+                                    slots.release();
+                                    return;
+                                }
+                                worker.started = System.currentTimeMillis();
+                                synchronized(workers){
+                                    workers.add(worker);
+                                }
                                 try {
-                                    recordStore.addRecords(records);
-                                } catch (IOException e) {
-                                    log.error("Exception saving file records", e);
+                                    // If there is an error processing a partition, it wont stop everything else from being processed
+                                    processFileSystem(diskPath, worker, recordStore, progress);
+                                } catch(Exception e){
+                                    if(progress.stopping()){
+                                        log.debug("Cancelled partition " + worker.getPartition() +
+                                                " on disk " + diskDescriptor);
+                                    } else {
+                                        log.error("Exception processing partition " + worker.getPartition() +
+                                                " on disk " + diskDescriptor, e);
+                                    }
+                                } finally {
+                                    synchronized(workers){
+                                        workers.remove(worker);
+                                    }
+                                    progress.done.incrementAndGet();
+                                    slots.release();
                                 }
                             }
-                        };
-
-                        // Process the filesystems
-                        List<FileSystem> fileSystems = hashUtils.getFilesystems();
-                        for(FileSystem fs : fileSystems){
-                            try{
-                                // Process each filesystem individually
-                                // If there is an error processing a partition, it wont stop everything else from being processed
-                                hashUtils.hashFileSystem(fs, callback);
-                            } catch(Exception e){
-                                log.error("Exception processing filesystem "+fs+" on disk "+diskDescriptor, e);
-                            }
+                        }));
+                    }
+                    for(Future<?> f : futures){
+                        f.get();
+                    }
+                } catch(InterruptedException e){
+                    progress.stop();
+                    throw new InterruptedIOException("Interrupted hashing " + diskDescriptor);
+                } catch(ExecutionException e){
+                    // Each worker catches its own failures
+                    progress.stop();
+                    throw new IOException(e.getCause());
+                } finally {
+                    // The bulk load cannot end, nor the store close, under
+                    // running workers, so wait out any still going
+                    awaitAll(futures);
+                }
+            } finally {
+                job.setProgress(progress.records.get() + " records, indexing");
+                recordStore.endBulkLoad();
+            }
+            if(job.isCancelled()){
+                log.info("Cancelled hashing " + diskDescriptor + ", kept " +
+                        progress.records.get() + " records to resume from");
+                return;
+            }
+            hashed.add(diskDescriptor);
+            log.debug("Done getting records for disk " + diskDescriptor);
+        } finally {
+            recordStore.close();
+        }
+    }
+
+    /*
+      Wait for every task to finish, whatever the interrupts meanwhile,
+      which are passed on once done
+    */
+    private static void awaitAll(List<Future<?>> futures){
+        boolean interrupted = Thread.interrupted();
+        for(Future<?> f : futures){
+            while(true){
+                try {
+                    f.get();
+                    break;
+                } catch(InterruptedException e){
+                    interrupted = true;
+                } catch(ExecutionException e){
+                    // Each worker catches its own failures
+                    break;
+                }
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Load the records of one filesystem, copied from the parent disk if
+     * unchanged or else walked, and end it. Should the walk not reproduce
+     * the records an earlier run left, these are discarded and the
+     * filesystem loaded from scratch. A cancelled load is not ended, so
+     * remains part loaded.
+     */
+    private void processFileSystem(String diskPath, FilesystemWorker worker,
+            FileRecordStore recordStore, DiskProgress progress) throws IOException {
+        while(true){
+            if(!copyFileSystem(worker, recordStore, progress)){
+                hashFileSystem(diskPath, worker, recordStore, progress);
+            }
+            if(progress.stopping()){
+                return;
+            }
+            if(!worker.diverged()){
+                break;
+            }
+            log.warn("Partition " + worker.getPartition() + " of " + worker.getDescriptor() +
+                    " does not match its checkpoint, starting it over");
+            progress.resumed(-worker.getRecords());
+            recordStore.discardFilesystem(worker.id);
+            worker.restart(recordStore.addFilesystem(worker.start, worker.length));
+        }
+        recordStore.endFilesystem(worker.id, worker.getRecords());
+    }
+
+    /**
+     * Save a batch of records delivered by a walk or copy. When resuming,
+     * everything up to and including the checkpoint, the last record an
+     * earlier run committed, is skipped. Known files are dropped if the
+     * store's policy says so.
+     */
+    private void save(FilesystemWorker worker, List<Record> records,
+            FileRecordStore recordStore, DiskProgress progress) throws IOException {
+        List<Record> fresh = worker.unsaved(records, progress.known);
+        if(fresh.isEmpty() || progress.stopping()){
+            return;
+        }
+        recordStore.addRecords(worker.id, fresh);
+        progress.added(worker, fresh);
+    }
+
+    /**
+     * Walk one filesystem of a disk, saving its records as they arrive. A
+     * failure to save, or the job stopping, ends the walk, and is thrown,
+     * so the filesystem is not ended but left part loaded.
+     */
+    private void hashFileSystem(String diskPath, final FilesystemWorker worker,
+            final FileRecordStore recordStore, final DiskProgress progress) throws IOException {
+        // The first failure, kept should SleuthKit not pass on our throw
+        final IOException[] failure = { null };
+        DiskHashUtils hashUtils = new DiskHashUtils(diskPath);
+        try {
+            FileSystem fs;
+            if(worker.getPartition() == WHOLE_DISK){
+                fs = new FileSystem(hashUtils.getImage());
+            } else {
+                fs = hashUtils.getFileSystem(hashUtils.getPartitions().get(worker.getPartition()));
+            }
+            if(fs == null){
+                return;
+            }
+            try {
+                hashUtils.hashFileSystem(fs, new BuilderCallback(){
+                    @Override
+                    public int getUpdateInterval() {
+                        // Get the records back in chunks we save to the database right away
+                        return FileRecordStore.INSERT_BATCH_SIZE;
+                    }
+
+                    @Override
+                    public void gotRecords(List<Record> records) {
+                        if(failure[0] == null && progress.stopping()){
+                            failure[0] = new InterruptedIOException("Cancelled");
+                        }
+                        if(failure[0] != null){
+                            throw new WalkAborted(failure[0]);
                         }
+                        // Save the records as we get them
+                        try {
+                            save(worker, records, recordStore, progress);
+                        } catch (IOException e) {
+                            failure[0] = e;
+                            throw new WalkAborted(e);
+                        }
+                    }
+                });
+            } catch(WalkAborted e){
+                // Thrown on below
+            }
+            if(failure[0] != null){
+                throw failure[0];
+            }
+        } finally {
+            // Always try and close the disk files
+            try{
+                hashUtils.close();
+            } catch(Exception e){
+                // Ignore
+            }
+        }
+    }
 
-                        // Clean up
-                        hashUtils.close();
-                        recordStore.close();
-                        log.debug("Done getting records for disk " + diskDescriptor);
-                    } catch (Exception e) {
-                        log.error("Exception getting records disk", e);
-                    } finally {
-                        // Always try and close the disk files
-                        try{
-                            hashUtils.close();
-                        } catch(Exception e){
-                            // Ignore
+    // Thrown from a walk's callback, to end the walk
+    private static class WalkAborted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        WalkAborted(IOException cause){
+            super(cause);
+        }
+    }
+
+    /**
+     * If the filesystem lies wholly in grains unchanged from the disk's parent,
+     * and the parent's records for it are all in, copy those instead of
+     * walking the filesystem.
+     * @return true if copied
+     */
+    private boolean copyFileSystem(final FilesystemWorker worker,
+            final FileRecordStore recordStore, final DiskProgress progress) throws IOException {
+        ManagedDiskDescriptor parent = store.getParent(worker.getDescriptor());
+        if(parent == null){
+            return false;
+        }
+        ManagedDisk md = store.locate(worker.getDescriptor());
+        long offset = worker.start * Constants.SECTORLENGTH;
+        long length = worker.length == 0 ? md.size() : worker.length * Constants.SECTORLENGTH;
+        if(!md.sameAsParent(offset, length)){
+            return false;
+        }
+        FileRecordStore parentStore = store.getRecordStore(parent);
+        try {
+            int parentID = parentStore.findFilesystem(worker.start, worker.length);
+            if(parentID == FileRecordStore.NO_FILESYSTEM){
+                return false;
+            }
+            log.debug("Copying unchanged partition " + worker.getPartition() + " of " +
+                    worker.getDescriptor() + " from " + parent);
+            worker.copied = true;
+            final List<Record> batch = new ArrayList<Record>(FileRecordStore.INSERT_BATCH_SIZE);
+            parentStore.getFilesystemRecords(parentID, new RecordCallback(){
+                @Override
+                public void gotRecord(Record record) throws IOException {
+                    batch.add(record);
+                    if(batch.size() == FileRecordStore.INSERT_BATCH_SIZE){
+                        if(progress.stopping()){
+                            throw new InterruptedIOException("Cancelled");
                         }
+                        save(worker, batch, recordStore, progress);
+                        batch.clear();
                     }
-                } catch (InterruptedException e) {
-                    log.warn("File record thread interrupted, stopping");
-                    break;
                 }
-            } while (!isInterrupted());
+            });
+            save(worker, batch, recordStore, progress);
+            return true;
+        } finally {
+            parentStore.close();
+        }
+    }
+
+    /**
+     * Record and byte counts for a disk being hashed, published as its job's progress
+     */
+    private class DiskProgress {
+        final JobScheduler.Job job;
+        final int total;
+        // Files whose records are dropped, null to keep all
+        final KnownFileSet known;
+        final AtomicLong records = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicInteger done = new AtomicInteger();
+
+        // Set when the job is interrupted, as by a shutdown, not cancelled
+        private volatile boolean stopped;
+
+        DiskProgress(JobScheduler.Job job, int total, KnownFileSet known){
+            this.job = job;
+            this.total = total;
+            this.known = known;
+        }
+
+        void stop(){
+            stopped = true;
+        }
+
+        // Whether the workers should give up, leaving the disk part loaded
+        boolean stopping(){
+            return stopped || job.isCancelled();
+        }
+
+        // Records already in the store from an earlier run
+        void resumed(long count){
+            job.setCounts(records.addAndGet(count), bytes.get());
+        }
+
+        void added(FilesystemWorker worker, List<Record> added){
+            long size = 0;
+            for(Record r : added){
+                size += r.size;
+            }
+            worker.records.addAndGet(added.size());
+            worker.bytes.addAndGet(size);
+            long n = records.addAndGet(added.size());
+            job.setCounts(n, bytes.addAndGet(size));
+            job.setProgress(n + " records, " + done.get() + "/" + total +
+                    " filesystems done " + getWorkers(job.getDescriptor()));
+        }
+    }
+
+    private List<FilesystemWorker> getWorkers(ManagedDiskDescriptor mdd){
+        List<FilesystemWorker> result = new ArrayList<FilesystemWorker>();
+        for(FilesystemWorker w : getWorkers()){
+            if(w.getDescriptor().equals(mdd)){
+                result.add(w);
+            }
         }
+        return result;
     }
 }
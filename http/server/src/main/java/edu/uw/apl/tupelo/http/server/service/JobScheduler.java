@@ -0,0 +1,606 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.uw.apl.tupelo.http.server.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.Session;
+
+/**
+ * Runs store maintenance work (digests, volume/filesystem hashing, body
+ * files, file records) on a bounded pool of worker threads, in place of a
+ * raw thread per request. <br>
+ * The scheduler guarantees:
+ * <ul>
+ * <li> At most one job at a time per managed disk, so two tools never
+ * compete for the same disk's data </li>
+ * <li> A job (kind, disk) already queued or running is not queued again </li>
+ * <li> Higher priority jobs are started first, FIFO within a priority </li>
+ * <li> At most ioLimit jobs of I/O-intensive kinds run concurrently </li>
+ * </ul>
+ * Queued and running jobs are written to a file under the store root, and
+ * are re-queued when the scheduler next starts. Finished jobs are kept (in
+ * memory only) in a short history for status queries. <br>
+ * A queued job can be moved to another priority, and any job not yet
+ * finished cancelled. Cancelling a running job interrupts its worker and
+ * flags the job; tasks doing long work should check
+ * {@link Job#isCancelled()} as they go.
+ */
+public class JobScheduler {
+    private static final Log log = LogFactory.getLog(JobScheduler.class);
+
+    public static final int PRIORITY_LOW = 1;
+    public static final int PRIORITY_NORMAL = 5;
+    public static final int PRIORITY_HIGH = 10;
+
+    // File, under the state directory, holding the pending job list
+    public static final String QUEUE_FILE = "jobs.queue";
+
+    // How many finished jobs to remember for status queries
+    private static final int HISTORY_SIZE = 100;
+
+    /**
+     * The work done for one job kind
+     */
+    public interface Task {
+        public void run(Job job) throws Exception;
+    }
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    /**
+     * A single unit of scheduled work: one task kind applied to one managed disk
+     */
+    public static class Job {
+        private final long id;
+        private final String kind;
+        private final ManagedDiskDescriptor mdd;
+        private volatile int priority;
+        private volatile State state;
+        private final long submitted;
+        private volatile long started;
+        private volatile long finished;
+        private volatile String progress;
+        private volatile long records;
+        private volatile long bytes;
+        private volatile String error;
+        private volatile boolean cancelled;
+        // The worker running the job, interrupted on cancel
+        private transient Thread worker;
+
+        Job(long id, String kind, ManagedDiskDescriptor mdd, int priority){
+            this.id = id;
+            this.kind = kind;
+            this.mdd = mdd;
+            this.priority = priority;
+            this.state = State.QUEUED;
+            this.submitted = System.currentTimeMillis();
+        }
+
+        public long getID(){
+            return id;
+        }
+
+        public String getKind(){
+            return kind;
+        }
+
+        public ManagedDiskDescriptor getDescriptor(){
+            return mdd;
+        }
+
+        public int getPriority(){
+            return priority;
+        }
+
+        public State getState(){
+            return state;
+        }
+
+        public long getSubmitted(){
+            return submitted;
+        }
+
+        public long getStarted(){
+            return started;
+        }
+
+        public long getFinished(){
+            return finished;
+        }
+
+        public String getProgress(){
+            return progress;
+        }
+
+        /**
+         * Tasks may call this to publish a short, human-readable progress message
+         * @param progress
+         */
+        public void setProgress(String progress){
+            this.progress = progress;
+        }
+
+        public long getRecords(){
+            return records;
+        }
+
+        public long getBytes(){
+            return bytes;
+        }
+
+        /**
+         * Tasks may call this to publish how much they have done so far
+         * @param records items (e.g. file records) produced
+         * @param bytes data read
+         */
+        public void setCounts(long records, long bytes){
+            this.records = records;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return true once {@link JobScheduler#cancel(long)} has been called
+         * for the job. A task seeing this should stop as soon as it safely can.
+         */
+        public boolean isCancelled(){
+            return cancelled;
+        }
+
+        public String getError(){
+            return error;
+        }
+
+        public String toString(){
+            return id + " " + kind + " " + mdd + " " + state + " " + priority +
+                (progress == null ? "" : " " + progress) +
+                (error == null ? "" : " " + error);
+        }
+    }
+
+    private static class Registration {
+        final Task task;
+        final boolean ioIntensive;
+
+        Registration(Task task, boolean ioIntensive){
+            this.task = task;
+            this.ioIntensive = ioIntensive;
+        }
+    }
+
+    // Highest priority first, then oldest first
+    private static final Comparator<Job> PENDINGORDER = new Comparator<Job>(){
+        @Override
+        public int compare(Job o1, Job o2) {
+            if(o1.priority != o2.priority){
+                return o2.priority - o1.priority;
+            }
+            return Long.compare(o1.id, o2.id);
+        }
+    };
+
+    private final File queueFile;
+    private final int workerCount;
+    private final int ioLimit;
+    private final Map<String, Registration> kinds;
+    private final List<Job> pending;
+    private final List<Job> running;
+    private final LinkedList<Job> history;
+    private final Set<ManagedDiskDescriptor> busyDisks;
+    private int ioRunning;
+    private long nextID;
+    private boolean stopped;
+    private Thread[] workers;
+    // Jobs read from the queue file, resubmitted by start()
+    private List<String[]> saved;
+
+    /**
+     * @param stateDir Directory holding the persisted job queue, normally the store root
+     * @param workerCount Maximum number of jobs running at once
+     * @param ioLimit Maximum number of I/O-intensive jobs running at once
+     */
+    public JobScheduler(File stateDir, int workerCount, int ioLimit){
+        if(workerCount < 1 || ioLimit < 1){
+            throw new IllegalArgumentException("Need at least one worker");
+        }
+        this.queueFile = new File(stateDir, QUEUE_FILE);
+        this.workerCount = workerCount;
+        this.ioLimit = ioLimit;
+        kinds = new HashMap<String, Registration>();
+        pending = new ArrayList<Job>();
+        running = new ArrayList<Job>();
+        history = new LinkedList<Job>();
+        busyDisks = new HashSet<ManagedDiskDescriptor>();
+        nextID = 1;
+        saved = load();
+    }
+
+    /**
+     * Register the task to run for a job kind. Kinds must be registered
+     * before {@link #start()}, so that persisted jobs can be restored.
+     * @param kind
+     * @param task
+     * @param ioIntensive true if the task reads or writes substantial disk data
+     */
+    public synchronized void register(String kind, Task task, boolean ioIntensive){
+        kinds.put(kind, new Registration(task, ioIntensive));
+    }
+
+    /**
+     * Restore any jobs left queued at the last shutdown and start the workers
+     */
+    public void start(){
+        restore();
+        workers = new Thread[workerCount];
+        for(int i = 0; i < workers.length; i++){
+            workers[i] = new Worker();
+            workers[i].setName("JobWorker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        log.info("Started " + workerCount + " job workers, I/O limit " + ioLimit);
+    }
+
+    /**
+     * Stop all workers. Jobs queued or running at this point remain in the
+     * persisted queue, and will be run again on the next start.
+     */
+    public void stop(){
+        synchronized(this){
+            stopped = true;
+            notifyAll();
+        }
+        if(workers != null){
+            for(Thread t : workers){
+                t.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queue a job. If a job of the same kind for the same disk is already
+     * queued or running, that job is returned instead; a queued duplicate
+     * adopts the higher of the two priorities.
+     * @param kind a registered job kind
+     * @param mdd
+     * @param priority
+     * @return the queued (or existing) job
+     */
+    public synchronized Job submit(String kind, ManagedDiskDescriptor mdd, int priority){
+        if(!kinds.containsKey(kind)){
+            throw new IllegalArgumentException("Unknown job kind: " + kind);
+        }
+        for(Job j : running){
+            if(j.kind.equals(kind) && j.mdd.equals(mdd)){
+                return j;
+            }
+        }
+        for(Job j : pending){
+            if(j.kind.equals(kind) && j.mdd.equals(mdd)){
+                if(priority > j.priority){
+                    j.priority = priority;
+                    persist();
+                }
+                return j;
+            }
+        }
+        Job job = new Job(nextID++, kind, mdd, priority);
+        pending.add(job);
+        log.debug("Queued job " + job);
+        persist();
+        notifyAll();
+        return job;
+    }
+
+    /**
+     * Move a queued job to another priority, e.g. to the front of the queue
+     * @param id
+     * @param priority
+     * @return false if there is no such job still queued
+     */
+    public synchronized boolean setPriority(long id, int priority){
+        for(Job j : pending){
+            if(j.id == id){
+                j.priority = priority;
+                persist();
+                notifyAll();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cancel a job. A queued job is dropped at once; a running job is
+     * flagged and its worker interrupted, and is recorded as cancelled
+     * when its task returns. Either way the job leaves the persisted queue.
+     * @param id
+     * @return false if there is no such job queued or running
+     */
+    public synchronized boolean cancel(long id){
+        for(Job j : pending){
+            if(j.id == id){
+                pending.remove(j);
+                j.cancelled = true;
+                j.state = State.CANCELLED;
+                j.finished = System.currentTimeMillis();
+                remember(j);
+                persist();
+                log.info("Cancelled queued job " + j);
+                return true;
+            }
+        }
+        for(Job j : running){
+            if(j.id == id){
+                j.cancelled = true;
+                if(j.worker != null){
+                    j.worker.interrupt();
+                }
+                log.info("Cancelling running job " + j);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return All known jobs: running, then queued in run order, then recently finished
+     */
+    public synchronized List<Job> getJobs(){
+        List<Job> result = new ArrayList<Job>(running);
+        List<Job> queued = new ArrayList<Job>(pending);
+        Collections.sort(queued, PENDINGORDER);
+        result.addAll(queued);
+        result.addAll(history);
+        return result;
+    }
+
+    /**
+     * @param id
+     * @return The job with the given id, or null if unknown (or long finished)
+     */
+    public synchronized Job getJob(long id){
+        for(Job j : getJobs()){
+            if(j.id == id){
+                return j;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pick the next runnable job: best priority whose disk is idle, and
+     * which fits under the I/O limit.
+     */
+    private Job next(){
+        Collections.sort(pending, PENDINGORDER);
+        for(Job j : pending){
+            if(busyDisks.contains(j.mdd)){
+                continue;
+            }
+            if(kinds.get(j.kind).ioIntensive && ioRunning >= ioLimit){
+                continue;
+            }
+            return j;
+        }
+        return null;
+    }
+
+    private void finished(Job job){
+        synchronized(this){
+            running.remove(job);
+            busyDisks.remove(job.mdd);
+            if(kinds.get(job.kind).ioIntensive){
+                ioRunning--;
+            }
+            job.worker = null;
+            // Clear any interrupt from a cancel, before the worker waits again
+            Thread.interrupted();
+            remember(job);
+            // A job cut short by stop() stays in the queue file, to be rerun
+            if(!stopped){
+                persist();
+            }
+            notifyAll();
+        }
+    }
+
+    private void remember(Job job){
+        history.addFirst(job);
+        while(history.size() > HISTORY_SIZE){
+            history.removeLast();
+        }
+    }
+
+    private class Worker extends Thread {
+        @Override
+        public void run() {
+            while(true){
+                Job job = null;
+                Registration reg;
+                synchronized(JobScheduler.this){
+                    try {
+                        while(!stopped && (job = next()) == null){
+                            JobScheduler.this.wait();
+                        }
+                    } catch(InterruptedException e){
+                        return;
+                    }
+                    if(stopped){
+                        return;
+                    }
+                    reg = kinds.get(job.kind);
+                    pending.remove(job);
+                    running.add(job);
+                    busyDisks.add(job.mdd);
+                    if(reg.ioIntensive){
+                        ioRunning++;
+                    }
+                    job.state = JobScheduler.State.RUNNING;
+                    job.started = System.currentTimeMillis();
+                    job.worker = this;
+                }
+
+                log.info("Start: " + job.kind + " " + job.mdd);
+                try {
+                    reg.task.run(job);
+                    job.state = job.cancelled ? JobScheduler.State.CANCELLED : JobScheduler.State.DONE;
+                    log.info("End: " + job.kind + " " + job.mdd);
+                } catch(Exception e){
+                    if(job.cancelled){
+                        job.state = JobScheduler.State.CANCELLED;
+                        log.info("Cancelled: " + job.kind + " " + job.mdd);
+                    } else {
+                        job.error = e.toString();
+                        job.state = JobScheduler.State.FAILED;
+                        log.warn("Failed: " + job.kind + " " + job.mdd, e);
+                    }
+                } catch(Error e){
+                    job.error = e.toString();
+                    job.state = JobScheduler.State.FAILED;
+                    // Logged, not rethrown: the worker carries on with the queue
+                    log.error("Failed: " + job.kind + " " + job.mdd, e);
+                } finally {
+                    // Whatever happened, release the disk and the slot
+                    job.finished = System.currentTimeMillis();
+                    finished(job);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the queued and running jobs, one per line, as
+     * kind TAB priority TAB diskID TAB session. Written to a temporary
+     * file and renamed, so a crash never leaves a partial queue behind.
+     */
+    private void persist(){
+        File tmp = new File(queueFile.getPath() + ".tmp");
+        try {
+            PrintWriter pw = new PrintWriter(new FileWriter(tmp));
+            try {
+                for(Job j : running){
+                    writeJob(pw, j);
+                }
+                for(Job j : pending){
+                    writeJob(pw, j);
+                }
+            } finally {
+                pw.close();
+            }
+            Files.move(tmp.toPath(), queueFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e){
+            log.warn("Unable to save job queue " + queueFile, e);
+        }
+    }
+
+    private void writeJob(PrintWriter pw, Job j){
+        pw.println(j.kind + "\t" + j.priority + "\t" + j.mdd.getDiskID() + "\t" +
+                j.mdd.getSession().format());
+    }
+
+    /**
+     * Read the queue file as left by the previous run. Done at construction,
+     * before anything new is submitted and the file rewritten.
+     */
+    private List<String[]> load(){
+        List<String[]> result = new ArrayList<String[]>();
+        if(!queueFile.isFile()){
+            return result;
+        }
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(queueFile));
+            try {
+                String line;
+                while((line = br.readLine()) != null){
+                    String[] fields = line.split("\t");
+                    if(fields.length == 4){
+                        result.add(fields);
+                    }
+                }
+            } finally {
+                br.close();
+            }
+        } catch(IOException e){
+            log.warn("Unable to read job queue " + queueFile, e);
+        }
+        return result;
+    }
+
+    private void restore(){
+        for(String[] fields : saved){
+            try {
+                int priority = Integer.parseInt(fields[1]);
+                Session session = Session.parse(fields[3]);
+                ManagedDiskDescriptor mdd = new ManagedDiskDescriptor(fields[2], session);
+                if(!kinds.containsKey(fields[0])){
+                    log.warn("Dropping saved job of unknown kind " + fields[0] + " " + mdd);
+                    continue;
+                }
+                submit(fields[0], mdd, priority);
+                log.info("Restored job " + fields[0] + " " + mdd);
+            } catch(NumberFormatException e){
+                log.warn("Malformed saved job " + fields[0], e);
+            } catch(ParseException e){
+                log.warn("Malformed saved job " + fields[0], e);
+            }
+        }
+        saved.clear();
+    }
+}
@@ -33,14 +33,17 @@
  */
 package edu.uw.apl.tupelo.http.server.servlet;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.ObjectOutputStream;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.lang.reflect.Type;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -57,12 +60,16 @@ import org.apache.commons.logging.LogFactory;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 
+import edu.uw.apl.tupelo.http.common.ByteArrayAdapter;
 import edu.uw.apl.tupelo.http.server.Constants;
 import edu.uw.apl.tupelo.http.server.ContextListener;
 import edu.uw.apl.tupelo.http.server.Utils;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.store.AttributeOutputStream;
 import edu.uw.apl.tupelo.store.Store;
 
 
@@ -75,9 +82,11 @@ import edu.uw.apl.tupelo.store.Store;
  *
  * The expected url layout (i.e. path entered into web.xml) for this servlet is
  *
- * /disks/attr/get/DID/SID/key
+ * /disks/attr/get/DID/SID/key  (Accept application/octet-stream to stream)
  * /disks/attr/set/DID/SID/key  (POST)
  * /disks/attr/list/DID/SID
+ * /disks/attr/getmany/DID/SID  (POST, JSON list of keys)
+ * /disks/attr/setmany/DID/SID  (POST, JSON map of key to hex value)
  *
  */
 public class AttributesServlet extends HttpServlet {
@@ -102,6 +111,8 @@ public class AttributesServlet extends HttpServlet {
 		GsonBuilder gsonb = new GsonBuilder();
 		gsonb.registerTypeAdapter(Session.class, Constants.SESSIONSERIALIZER );
 		gson = gsonb.create();
+		batchGson = new GsonBuilder().registerTypeHierarchyAdapter
+			( byte[].class, new ByteArrayAdapter() ).create();
 
 		//		log.info( getClass() + " " + log );
 
@@ -147,6 +158,12 @@ public class AttributesServlet extends HttpServlet {
 		if( pi.startsWith( "/set/" ) ) {
 			String details = pi.substring( "/set/".length() );
 			setAttribute( req, res, details );
+		} else if( pi.startsWith( "/getmany/" ) ) {
+			String details = pi.substring( "/getmany/".length() );
+			getAttributes( req, res, details );
+		} else if( pi.startsWith( "/setmany/" ) ) {
+			String details = pi.substring( "/setmany/".length() );
+			setAttributes( req, res, details );
 		} else {
 			res.sendError( HttpServletResponse.SC_NOT_FOUND,
 						   "Unknown command '" + pi + "'" );
@@ -178,6 +195,23 @@ public class AttributesServlet extends HttpServlet {
 		// LOOK: check the content type...
 		// String hdr = req.getHeader( "Content-Encoding" );
 
+		// Raw bytes can be streamed, however large the value
+		if( Utils.acceptsOctetStream( req ) ) {
+			InputStream is = store.attributeInputStream( mdd, key );
+			if( is == null ) {
+				res.sendError( HttpServletResponse.SC_NOT_FOUND,
+							   "No attribute: " + key );
+				return;
+			}
+			res.setContentType( "application/octet-stream" );
+			try {
+				IOUtils.copy( is, res.getOutputStream() );
+			} finally {
+				is.close();
+			}
+			return;
+		}
+
 		byte[] value = store.getAttribute( mdd, key );
 		
 		if( Utils.acceptsJavaObjects( req ) ) {
@@ -232,11 +266,65 @@ public class AttributesServlet extends HttpServlet {
 		// String hdr = req.getHeader( "Content-Encoding" );
 
 		InputStream is = req.getInputStream();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		IOUtils.copy( is, baos );
+		// A broken upload is never committed, so sets nothing
+		AttributeOutputStream os = store.attributeOutputStream( mdd, key );
+		try {
+			IOUtils.copy( is, os );
+			os.commit();
+		} finally {
+			os.close();
+		}
+	}
+
+	private void getAttributes( HttpServletRequest req,
+								HttpServletResponse res,
+								String details )
+		throws IOException, ServletException {
+
+		ManagedDiskDescriptor mdd = null;
+		try {
+			mdd = fromPathInfo( details );
+		} catch( ParseException pe ) {
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "Malformed managed disk descriptor: " + details );
+			return;
+		}
+		JsonReader reader = new JsonReader
+			( new InputStreamReader( req.getInputStream() ) );
+		String[] keys = batchGson.fromJson( reader, String[].class );
 
-		byte[] value = baos.toByteArray();
-		store.setAttribute( mdd, key, value );
+		Map<String,byte[]> values = store.getAttributes
+			( mdd, Arrays.asList( keys ) );
+
+		res.setContentType( "application/json" );
+		PrintWriter pw = res.getWriter();
+		pw.print( batchGson.toJson( values ) );
+	}
+
+	private void setAttributes( HttpServletRequest req,
+								HttpServletResponse res,
+								String details )
+		throws IOException, ServletException {
+
+		ManagedDiskDescriptor mdd = null;
+		try {
+			mdd = fromPathInfo( details );
+		} catch( ParseException pe ) {
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "Malformed managed disk descriptor: " + details );
+			return;
+		}
+		JsonReader reader = new JsonReader
+			( new InputStreamReader( req.getInputStream() ) );
+		Map<String,byte[]> values = batchGson.fromJson( reader, VALUESTYPE );
+		for( String key : values.keySet() ) {
+			if( !ATTRNAMEPATTERN.matcher( key ).matches() ) {
+				res.sendError( HttpServletResponse.SC_BAD_REQUEST,
+							   "Malformed attribute name: " + key );
+				return;
+			}
+		}
+		store.setAttributes( mdd, values );
 	}
 
 	private void listAttributes( HttpServletRequest req,
@@ -303,6 +391,11 @@ public class AttributesServlet extends HttpServlet {
 
 	static final String ATTRNAMEREGEX = "([\\p{Alnum}_:\\.]+)";
 	
+	static final Pattern ATTRNAMEPATTERN = Pattern.compile( ATTRNAMEREGEX );
+
+	static final Type VALUESTYPE =
+		new TypeToken<Map<String,byte[]>>(){}.getType();
+
 	static public final Pattern ATTRPATHREGEX = Pattern.compile
 		( Constants.MDDPIREGEX.pattern() + "/" + ATTRNAMEREGEX );
 	
@@ -316,6 +409,8 @@ public class AttributesServlet extends HttpServlet {
 
 	private Store store;
 	private Gson gson;
+	// byte[] as hex, as for the other JSON-over-POST endpoints
+	private Gson batchGson;
 	private Log log;
 
 }
@@ -40,12 +40,15 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.UUID;
 
@@ -59,6 +62,9 @@ import javax.servlet.http.HttpServletResponse;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.apache.commons.codec.binary.Hex;
 
 import edu.uw.apl.commons.tsk4j.digests.BodyFile.Record;
 import edu.uw.apl.tupelo.http.common.ByteArrayAdapter;
@@ -91,6 +97,7 @@ import org.apache.commons.logging.LogFactory;
  * /disks/data/size/DID/SID
  * /disks/data/uuid/DID/SID
  * /disks/data/digest/DID/SID
+ * /disks/data/digest/DID/SID?from=N&count=M
  * /disks/data/filerecord/DID/SID
  * /disks/data/filerecord/check
  * /disks/data/filerecord/DID/SID
@@ -103,6 +110,14 @@ public class DataServlet extends HttpServlet {
     private static final String JAVA_CONTENT = "application/x-java-serialized-object";
     private static final String JSON_CONTENT = "application/json";
     private static final String TEXT_CONTENT = "text/plain";
+    // Response header carrying a digest's total grain hash count
+    private static final String DIGEST_SIZE_HEADER = "digest-size";
+    // Grain hashes read from the store per digest page
+    private static final int DIGEST_PAGE = 64 * 1024;
+    // Hashes looked up per store query when streaming records out
+    private static final int RECORD_PAGE = 1000;
+    // Most records held back per page before writing them out anyway
+    private static final int RECORD_BUFFER = 4096;
     private Store store;
     private Gson gson;
     private Log log;
@@ -273,12 +288,81 @@ public class DataServlet extends HttpServlet {
             return;
         }
 
-        // Get the records
-        List<Record> records = store.getRecords(mdd, algorithm, hashes);
+        // Stream the records out as the store finds them
         if(Utils.acceptsJson(req)){
-            respondJson(res, records);
+            res.setContentType(JSON_CONTENT);
+            final JsonWriter jw = new JsonWriter(res.getWriter());
+            jw.beginArray();
+            getRecords(mdd, algorithm, hashes, new Store.RecordCallback() {
+                @Override
+                public void gotRecord(Record record) {
+                    gson.toJson(record, Record.class, jw);
+                }
+            });
+            jw.endArray();
+            jw.close();
         } else {
-            respondText(res, records);
+            // As respondText would print the List
+            res.setContentType(TEXT_CONTENT);
+            final PrintWriter pw = res.getWriter();
+            final boolean[] first = { true };
+            pw.print("[");
+            getRecords(mdd, algorithm, hashes, new Store.RecordCallback() {
+                @Override
+                public void gotRecord(Record record) {
+                    if(!first[0]){
+                        pw.print(", ");
+                    }
+                    first[0] = false;
+                    pw.print(record);
+                }
+            });
+            pw.println("]");
+            pw.close();
+        }
+    }
+
+    /*
+      Hand the callback the records of the hashes, a page of hashes at a
+      time.  The store holds the disk's record store locked while it
+      delivers, so each page is gathered first and written to the client
+      only once that lock is released.  A slow client then holds up only
+      itself, not record ingest for the disk.  Memory stays bounded by
+      RECORD_BUFFER records though: a page matching more, e.g. a hash
+      common to many files, is written out as it goes, the lock held
+      meanwhile.  Repeated hashes are dropped first, as one query would,
+      lest two pages match the same records.
+    */
+    private void getRecords(ManagedDiskDescriptor mdd, String algorithm,
+            List<byte[]> hashes, final Store.RecordCallback callback) throws IOException {
+        Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+        List<byte[]> unique = new ArrayList<byte[]>(hashes.size());
+        for(byte[] hash : hashes){
+            if(seen.add(ByteBuffer.wrap(hash))){
+                unique.add(hash);
+            }
+        }
+        hashes = unique;
+        final List<Record> page = new ArrayList<Record>();
+        Store.RecordCallback gather = new Store.RecordCallback() {
+            @Override
+            public void gotRecord(Record record) throws IOException {
+                page.add(record);
+                if(page.size() >= RECORD_BUFFER){
+                    for(Record r : page){
+                        callback.gotRecord(r);
+                    }
+                    page.clear();
+                }
+            }
+        };
+        for(int from = 0; from < hashes.size(); from += RECORD_PAGE){
+            int to = Math.min(from + RECORD_PAGE, hashes.size());
+            store.getRecords(mdd, algorithm, hashes.subList(from, to), gather);
+            for(Record record : page){
+                callback.gotRecord(record);
+            }
+            page.clear();
         }
     }
 
@@ -479,32 +563,74 @@ public class DataServlet extends HttpServlet {
 			return;
 		}
 
-		// LOOK: check the content type...
-		//String hdr = req.getHeader( "Content-Encoding" );
-
-		ManagedDiskDigest digest = store.digest( mdd );
-		if( digest == null ) {
+		int size = store.digestSize( mdd );
+		if( size < 0 ) {
 			res.sendError( HttpServletResponse.SC_NOT_FOUND,
 						   "Missing digest: " + details );
 			return;
 		}
-		
-//		if( Utils.acceptsJavaObjects( req ) ) {
-//			res.setContentType( "application/x-java-serialized-object" );
-//			OutputStream os = res.getOutputStream();
-//			ObjectOutputStream oos = new ObjectOutputStream( os );
-//			oos.writeObject( digest );
-//		} 
+
+		/*
+		  Optional from,count parameters select a range of grain
+		  hashes.  Without them, the whole digest is sent.  Either
+		  way, the total grain count goes in a header, so a client can
+		  page through the rest.
+		*/
+		int from = 0;
+		int count = size;
+		try {
+			String p = req.getParameter( "from" );
+			if( p != null )
+				from = Integer.parseInt( p );
+			p = req.getParameter( "count" );
+			if( p != null )
+				count = Integer.parseInt( p );
+		} catch( NumberFormatException nfe ) {
+			res.sendError( HttpServletResponse.SC_BAD_REQUEST,
+						   "Bad digest range: " + req.getQueryString() );
+			return;
+		}
+		if( from < 0 || count < 0 ) {
+			res.sendError( HttpServletResponse.SC_BAD_REQUEST,
+						   "Bad digest range: " + req.getQueryString() );
+			return;
+		}
+		int to = (int)Math.min( size, (long)from + count );
+		res.setHeader( DIGEST_SIZE_HEADER, "" + size );
+
+		/*
+		  Sent a page at a time, so a large disk's digest is never
+		  wholly in memory
+		*/
 		if( Utils.acceptsJson( req ) ) {
-			res.setContentType( "application/json" );
-			String json = gson.toJson( digest );
-			PrintWriter pw = res.getWriter();
-			pw.print( json );
+			res.setContentType( JSON_CONTENT );
+			JsonWriter jw = new JsonWriter( res.getWriter() );
+			jw.beginObject();
+			jw.name( "grainHashes" );
+			jw.beginArray();
+			for( int i = from; i < to; i += DIGEST_PAGE ) {
+				ManagedDiskDigest page = store.digest
+					( mdd, i, Math.min( DIGEST_PAGE, to - i ) );
+				if( page == null )
+					break;
+				for( int g = 0; g < page.size(); g++ )
+					gson.toJson( page.get(g), byte[].class, jw );
+			}
+			jw.endArray();
+			jw.endObject();
+			jw.close();
 		} else {
-			res.setContentType( "text/plain" );
+			res.setContentType( TEXT_CONTENT );
 			PrintWriter pw = res.getWriter();
-			digest.writeTo( pw );
-			//			pw.println( "TODO: Store.digest text/plain" );
+			for( int i = from; i < to; i += DIGEST_PAGE ) {
+				ManagedDiskDigest page = store.digest
+					( mdd, i, Math.min( DIGEST_PAGE, to - i ) );
+				if( page == null )
+					break;
+				for( int g = 0; g < page.size(); g++ )
+					pw.println( new String( Hex.encodeHex( page.get(g) ) ) );
+			}
+			pw.close();
 		}
 	}
 
@@ -0,0 +1,200 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.http.server.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletConfig;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import edu.uw.apl.tupelo.http.server.Constants;
+import edu.uw.apl.tupelo.http.server.ContextListener;
+import edu.uw.apl.tupelo.http.server.Utils;
+import edu.uw.apl.tupelo.http.server.service.JobScheduler;
+import edu.uw.apl.tupelo.model.Session;
+
+
+/**
+ * A servlet reporting the state of the store's background jobs, as run
+ * by the JobScheduler (see ToolsServlet, DiskFileRecordService).
+ *
+ * The expected url layout (i.e. path entered into web.xml) for this servlet is
+ *
+ * /jobs
+ * /jobs/ID
+ *
+ * The first lists running, queued and recently finished jobs, the
+ * second just the one job.  Output is json if the client accepts it,
+ * otherwise text, one job per line.
+ *
+ * A POST to /jobs/ID with parameter 'cancel' cancels the job, and with
+ * parameter 'priority' moves a queued job to that priority.
+ */
+public class JobsServlet extends HttpServlet {
+
+    /**
+	 * Auto-generated
+	 */
+	private static final long serialVersionUID = 3194066284411658301L;
+
+	public void init( ServletConfig config ) throws ServletException {
+        super.init( config );
+		log = LogFactory.getLog( getClass().getPackage().getName() );
+
+		ServletContext sc = config.getServletContext();
+		scheduler = (JobScheduler)sc.getAttribute( ContextListener.JOBS_KEY );
+
+		// gson object claimed thread-safe, so can be a member...
+		GsonBuilder gsonb = new GsonBuilder();
+		gsonb.registerTypeAdapter(Session.class, Constants.SESSIONSERIALIZER );
+		gson = gsonb.create();
+	}
+	
+	public void doGet( HttpServletRequest req, HttpServletResponse res )
+		throws IOException, ServletException {
+
+		String sp = req.getServletPath();
+		log.debug( "Get.ServletPath: " + sp );
+		String pi = req.getPathInfo();
+		log.debug( "Get.PathInfo: " + pi );
+
+		if( pi == null || pi.equals( "/" ) ) {
+			list( req, res );
+			return;
+		}
+
+		long id;
+		try {
+			id = Long.parseLong( pi.substring( 1 ) );
+		} catch( NumberFormatException nfe ) {
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "Malformed job id: " + pi );
+			return;
+		}
+		JobScheduler.Job job = scheduler.getJob( id );
+		if( job == null ) {
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "Unknown job: " + id );
+			return;
+		}
+		if( Utils.acceptsJson( req ) ) {
+			res.setContentType( "application/json" );
+			PrintWriter pw = res.getWriter();
+			pw.print( gson.toJson( job ) );
+		} else {
+			res.setContentType( "text/plain" );
+			PrintWriter pw = res.getWriter();
+			pw.println( job );
+		}
+	}
+
+	public void doPost( HttpServletRequest req, HttpServletResponse res )
+		throws IOException, ServletException {
+
+		String pi = req.getPathInfo();
+		log.debug( "Post.PathInfo: " + pi );
+
+		long id;
+		try {
+			id = Long.parseLong( pi == null ? "" : pi.substring( 1 ) );
+		} catch( NumberFormatException nfe ) {
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "Malformed job id: " + pi );
+			return;
+		}
+
+		boolean found;
+		String p = req.getParameter( "priority" );
+		if( req.getParameter( "cancel" ) != null ) {
+			found = scheduler.cancel( id );
+		} else if( p != null ) {
+			int priority;
+			try {
+				priority = Integer.parseInt( p );
+			} catch( NumberFormatException nfe ) {
+				res.sendError( HttpServletResponse.SC_BAD_REQUEST,
+							   "Bad priority: " + p );
+				return;
+			}
+			found = scheduler.setPriority( id, priority );
+		} else {
+			res.sendError( HttpServletResponse.SC_BAD_REQUEST,
+						   "Expected 'cancel' or 'priority'" );
+			return;
+		}
+		if( !found ) {
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "No such pending job: " + id );
+			return;
+		}
+		res.setContentType( "text/plain" );
+		PrintWriter pw = res.getWriter();
+		pw.println( scheduler.getJob( id ) );
+	}
+
+	private void list( HttpServletRequest req, HttpServletResponse res )
+		throws IOException, ServletException {
+
+		List<JobScheduler.Job> jobs = scheduler.getJobs();
+		if( Utils.acceptsJson( req ) ) {
+			res.setContentType( "application/json" );
+			PrintWriter pw = res.getWriter();
+			pw.print( gson.toJson( jobs ) );
+		} else {
+			res.setContentType( "text/plain" );
+			PrintWriter pw = res.getWriter();
+			for( JobScheduler.Job job : jobs )
+				pw.println( job );
+		}
+	}
+
+	private JobScheduler scheduler;
+	private Gson gson;
+	private Log log;
+
+}
+
+// eof
@@ -37,6 +37,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.servlet.ServletContext;
@@ -57,6 +59,7 @@ import edu.uw.apl.tupelo.http.server.ContextListener;
 import edu.uw.apl.tupelo.http.server.Utils;
 import edu.uw.apl.tupelo.model.Session;
 import edu.uw.apl.tupelo.store.Store;
+import edu.uw.apl.tupelo.store.filesys.FileRecordStore;
 
 
 /**
@@ -70,6 +73,7 @@ import edu.uw.apl.tupelo.store.Store;
  * /uuid
  * /usablespace
  * /newsession
+ * /filterstats
 
  */
 public class MiscServlet extends HttpServlet {
@@ -123,6 +127,10 @@ public class MiscServlet extends HttpServlet {
 			usableSpace( req, res );
 			return;
 		}
+		if( sp.equals( "/filterstats" ) ) {
+			filterStats( req, res );
+			return;
+		}
 
 		/*
 		  LOOK: Should we allow GETs for content that by definition
@@ -223,6 +231,45 @@ public class MiscServlet extends HttpServlet {
 		}
 	}
 
+	/*
+	  How well the per-disk Bloom filters are answering file hash
+	  queries, see FileRecordStore
+	*/
+	private void filterStats( HttpServletRequest req, HttpServletResponse res )
+		throws IOException, ServletException {
+
+		long queries = FileRecordStore.getFilterQueries();
+		long skips = FileRecordStore.getFilterSkips();
+		long falsePositives = FileRecordStore.getFilterFalsePositives();
+		// Of the queries the filters let through, those finding nothing
+		long passed = queries - skips;
+		double falsePositiveRate = passed == 0 ? 0 :
+			(double)falsePositives / passed;
+
+		LinkedHashMap<String,Number> result = new LinkedHashMap<String,Number>();
+		result.put( "queries", queries );
+		result.put( "skips", skips );
+		result.put( "falsePositives", falsePositives );
+		result.put( "falsePositiveRate", falsePositiveRate );
+
+		if( Utils.acceptsJavaObjects( req ) ) {
+			res.setContentType( "application/x-java-serialized-object" );
+			OutputStream os = res.getOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream( os );
+			oos.writeObject( result );
+		} else if( Utils.acceptsJson( req ) ) {
+			res.setContentType( "application/json" );
+			String json = gson.toJson( result );
+			PrintWriter pw = res.getWriter();
+			pw.print( json );
+		} else {
+			res.setContentType( "text/plain" );
+			PrintWriter pw = res.getWriter();
+			for( Map.Entry<String,Number> me : result.entrySet() )
+				pw.println( me.getKey() + " " + me.getValue() );
+		}
+	}
+
 	private void newSession( HttpServletRequest req, HttpServletResponse res )
 		throws IOException, ServletException {
 		
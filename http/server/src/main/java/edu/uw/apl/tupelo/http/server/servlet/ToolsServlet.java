@@ -34,7 +34,7 @@
 package edu.uw.apl.tupelo.http.server.servlet;
 
 import java.io.IOException;
-import java.io.File;
+import java.io.PrintWriter;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -55,12 +55,10 @@ import org.apache.commons.logging.LogFactory;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.model.Session;
 import edu.uw.apl.tupelo.store.filesys.FilesystemStore;
-import edu.uw.apl.tupelo.store.tools.BodyFile;
-import edu.uw.apl.tupelo.store.tools.HashFS;
-import edu.uw.apl.tupelo.store.tools.HashVS;
-import edu.uw.apl.tupelo.fuse.ManagedDiskFileSystem;
 import edu.uw.apl.tupelo.http.server.Constants;
 import edu.uw.apl.tupelo.http.server.ContextListener;
+import edu.uw.apl.tupelo.http.server.service.DiskFileRecordService;
+import edu.uw.apl.tupelo.http.server.service.JobScheduler;
 
 
 /**
@@ -76,14 +74,17 @@ import edu.uw.apl.tupelo.http.server.ContextListener;
  * /tools
  * /tools/NAME/DID/SID/
  *
- * for the various tool NAMES: digest, hashfs, hashvs, bodyfile.
+ * for the various tool NAMES: digest, hashfs, hashvs, bodyfile,
+ * filerecord.  Submitting filerecord at a high priority moves a disk
+ * already waiting for its file records to the front of the queue.
  *
  * The first url produces a (html-marked up) 'matrix' of all managed
  * disks and tool names, for trivial point-and-click tool invocation.
 
  * All other urls invoke methods and should be done via POST.  They
- * are started in a newly spawned thread, which outlives the http
- * request.  The requests returns nothing.
+ * are submitted to the store's JobScheduler, which runs them after the
+ * http request completes.  The request returns the job's id and state;
+ * progress can then be followed via /jobs.
  */
 public class ToolsServlet extends HttpServlet {
 
@@ -107,6 +108,7 @@ public class ToolsServlet extends HttpServlet {
 		  view it as a FilesystemStore, to be able to invoke e.g. computeDigest()
 		*/
 		store = (FilesystemStore)sc.getAttribute( ContextListener.STORE_KEY );
+		scheduler = (JobScheduler)sc.getAttribute( ContextListener.JOBS_KEY );
 
 	}
 	
@@ -138,23 +140,16 @@ public class ToolsServlet extends HttpServlet {
 		String pi = req.getPathInfo();
 		log.debug( "Post.PathInfo: " + pi );
 
-		if( pi.startsWith( "/digest/" ) ) {
-			String details = pi.substring( "/digest/".length() );
-			computeDigest( req, res, details );
-		} else if( pi.startsWith( "/hashvs/" ) ) { 
-			String details = pi.substring( "/hashvs/".length() );
-			hashVolumeSystem( req, res, details );
-		} else if( pi.startsWith( "/hashfs/" ) ) {
-			String details = pi.substring( "/hashfs/".length() );
-			hashFileSystems( req, res, details );
-		} else if( pi.startsWith( "/bodyfile/" ) ) {
-			String details = pi.substring( "/bodyfile/".length() );
-			bodyfiles( req, res, details );
-		} else {
-			res.sendError( HttpServletResponse.SC_NOT_FOUND,
-						   "Unknown command '" + pi + "'" );
-			return;
+		for( String tool : TOOLS ) {
+			String prefix = "/" + tool + "/";
+			if( pi.startsWith( prefix ) ) {
+				String details = pi.substring( prefix.length() );
+				submit( req, res, tool, details );
+				return;
+			}
 		}
+		res.sendError( HttpServletResponse.SC_NOT_FOUND,
+					   "Unknown command '" + pi + "'" );
 	}
 
 	private void list( HttpServletRequest req, HttpServletResponse res )
@@ -175,122 +170,17 @@ public class ToolsServlet extends HttpServlet {
 		rd.forward( req, res );
 	}
 	
-	private void computeDigest( HttpServletRequest req, HttpServletResponse res,
-							   final String details )
-		throws IOException, ServletException {
-
-		log.debug( "computeDigest.details: '" + details  + "'" );
-
-		Matcher m = Constants.MDDPIREGEX.matcher( details );
-		if( !m.matches() ) {
-			res.sendError( HttpServletResponse.SC_NOT_FOUND,
-						   "Malformed managed disk descriptor: " + details );
-			return;
-		}
-		String diskID = m.group(1);
-		Session s = null;
-		try {
-			s = Session.parse( store.getUUID(), m.group(2) );
-		} catch( ParseException notAfterRegexMatch ) {
-		}
-	   final ManagedDiskDescriptor mdd = new ManagedDiskDescriptor( diskID,
-																	s );
-
-		Runnable r = new Runnable() {
-				public void run() {
-					try {
-						log.info( "Start: computeDigest " + mdd );
-						store.computeDigest( mdd );
-						log.info( "End: computeDigest " + mdd );
-					} catch( Exception e ) {
-						log.warn( details + " -> " + e );
-					}
-				}
-			};
-		new Thread( r ).start();
-	}
-
-	private void hashVolumeSystem( HttpServletRequest req,
-								   HttpServletResponse res,
-								   final String details )
-		throws IOException, ServletException {
-		
-		log.debug( "hashVolumeSystem.details: '" + details  + "'" );
-
-		Matcher m = Constants.MDDPIREGEX.matcher( details );
-		if( !m.matches() ) {
-			res.sendError( HttpServletResponse.SC_NOT_FOUND,
-						   "Malformed managed disk descriptor: " + details );
-			return;
-		}
-		String diskID = m.group(1);
-		Session s = null;
-		try {
-			s = Session.parse( store.getUUID(), m.group(2) );
-		} catch( ParseException notAfterRegexMatch ) {
-		}
-	   final ManagedDiskDescriptor mdd = new ManagedDiskDescriptor( diskID, s );
-
-	   ManagedDiskFileSystem mdfs = getMDFS();
-	   final File mdfsPath = mdfs.pathTo( mdd );
-	   Runnable r = new Runnable() {
-			   public void run() {
-				   try {
-					   log.info( "Start: hashVS " + mdd );
-					   HashVS.process( mdfsPath, mdd, store );
-					   log.info( "End: hashVS " + mdd );
-					} catch( Exception e ) {
-						log.warn( details + " -> " + e );
-					}
-				}
-			};
-		new Thread( r ).start();
-	}
-
-	private void hashFileSystems( HttpServletRequest req,
-								   HttpServletResponse res,
-								   final String details )
+	/**
+	 * Queue the named tool against the managed disk in the path info.
+	 * An optional 'priority' parameter overrides the default priority.
+	 * The response is the job's id and state, as text.
+	 */
+	private void submit( HttpServletRequest req, HttpServletResponse res,
+						 String tool, String details )
 		throws IOException, ServletException {
-		
-		log.debug( "hashFileSystems.details: '" + details  + "'" );
-
-		Matcher m = Constants.MDDPIREGEX.matcher( details );
-		if( !m.matches() ) {
-			res.sendError( HttpServletResponse.SC_NOT_FOUND,
-						   "Malformed managed disk descriptor: " + details );
-			return;
-		}
-		String diskID = m.group(1);
-		Session s = null;
-		try {
-			s = Session.parse( store.getUUID(), m.group(2) );
-		} catch( ParseException notAfterRegexMatch ) {
-		}
-	   final ManagedDiskDescriptor mdd = new ManagedDiskDescriptor( diskID, s );
 
-	   ManagedDiskFileSystem mdfs = getMDFS();
-	   final File mdfsPath = mdfs.pathTo( mdd );
-	   Runnable r = new Runnable() {
-			   public void run() {
-				   try {
-					   log.info( "Start: hashFS " + mdd );
-					   HashFS.process( mdfsPath, mdd, store );
-					   log.info( "End: hashFS " + mdd );
-					} catch( Exception e ) {
-						log.warn( details + " -> " + e );
-					}
-				}
-			};
-		new Thread( r ).start();
-	}
+		log.debug( tool + ".details: '" + details  + "'" );
 
-	private void bodyfiles( HttpServletRequest req,
-						   HttpServletResponse res,
-						   final String details )
-		throws IOException, ServletException {
-		
-		log.debug( "bodyfile.details: '" + details  + "'" );
-		
 		Matcher m = Constants.MDDPIREGEX.matcher( details );
 		if( !m.matches() ) {
 			res.sendError( HttpServletResponse.SC_NOT_FOUND,
@@ -303,62 +193,36 @@ public class ToolsServlet extends HttpServlet {
 			s = Session.parse( store.getUUID(), m.group(2) );
 		} catch( ParseException notAfterRegexMatch ) {
 		}
-	   final ManagedDiskDescriptor mdd = new ManagedDiskDescriptor( diskID, s );
-	   
-	   ManagedDiskFileSystem mdfs = getMDFS();
-	   final File mdfsPath = mdfs.pathTo( mdd );
-	   Runnable r = new Runnable() {
-			   public void run() {
-				   try {
-					   log.info( "Start: bodyfiles " + mdd );
-					   boolean printResult = false;
-					   BodyFile.process( mdfsPath, mdd, store, printResult );
-					   log.info( "End: bodyfiles " + mdd );
-					} catch( Exception e ) {
-						log.warn( details + " -> " + e );
-					}
-				}
-			};
-		new Thread( r ).start();
-	}
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor( diskID, s );
 
-
-	// look: do double-checked locking ??
-	private synchronized ManagedDiskFileSystem getMDFS() {
-		ServletContext sc = this.getServletContext();
-		ManagedDiskFileSystem mdfs = (ManagedDiskFileSystem)
-			sc.getAttribute( ContextListener.MDFS_OBJ_KEY );
-		if( mdfs == null ) {
-			File dataRoot = (File)sc.getAttribute
-				( ContextListener.DATA_ROOT_KEY );
-			File mountPoint = new File( dataRoot, "mdfs" );
-			mountPoint.mkdirs();
-			mdfs = new ManagedDiskFileSystem( store );
-			boolean needsOwnThread = true;
+		int priority = JobScheduler.PRIORITY_NORMAL;
+		String p = req.getParameter( "priority" );
+		if( p != null ) {
 			try {
-				mdfs.mount( mountPoint, needsOwnThread );
-				// LOOK: wait for the fuse mount to finish.
-				// Grr hate arbitrary sleeps!
-				Thread.sleep( 1000 * 2 );
-			} catch( Exception e ) {
-				log.warn( e );
-				return null;
+				priority = Integer.parseInt( p );
+			} catch( NumberFormatException nfe ) {
+				res.sendError( HttpServletResponse.SC_BAD_REQUEST,
+							   "Bad priority: " + p );
+				return;
 			}
-			
-			/*
-			  Make both the mdfs object AND mount point available
-			  for clean up at context destroy time
-			*/
-			sc.setAttribute( ContextListener.MDFS_OBJ_KEY, mdfs );
-			sc.setAttribute( ContextListener.MDFS_MOUNT_KEY, mountPoint );
 		}
-		return mdfs;
+
+		JobScheduler.Job job = scheduler.submit( tool, mdd, priority );
+		res.setStatus( HttpServletResponse.SC_ACCEPTED );
+		res.setContentType( "text/plain" );
+		PrintWriter pw = res.getWriter();
+		pw.println( job );
 	}
-	
+
 	private FilesystemStore store;
+	private JobScheduler scheduler;
 	private Log log;
 
+	// The tool names, which are also the scheduler job kinds
+	static private final String[] TOOLS = { "digest", "hashvs", "hashfs",
+											"bodyfile",
+											DiskFileRecordService.JOB_KIND };
+
 }
 
 // eof
-
@@ -25,5 +25,7 @@ The following managed disks are in this store.
 </tr>
 </c:forEach>
 </table>
+<p>
+Tool requests are queued; see <a href="./jobs">jobs</a> for their progress.
 </body>
 </html>
\ No newline at end of file
@@ -0,0 +1,176 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.http.server.service;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import edu.uw.apl.commons.tsk4j.digests.BodyFile.Record;
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.store.filesys.KnownFileSet;
+
+/**
+ * Tests the choice of which records of a filesystem walk get saved:
+ * skipping those before a resume's checkpoint, and dropping known files
+ */
+public class DiskFileRecordServiceTest extends junit.framework.TestCase {
+
+	ManagedDiskDescriptor mdd;
+	List<Record> walk;
+
+	protected void setUp() throws Exception {
+		Session session = Session.parse( UUID.randomUUID(), "20151021.0001" );
+		mdd = new ManagedDiskDescriptor( "disk1", session );
+		walk = new ArrayList<Record>();
+		for( int i = 0; i < 10; i++ ) {
+			byte[] md5 = new byte[16];
+			md5[0] = (byte)i;
+			walk.add( record( md5, "/file" + i, i ) );
+		}
+	}
+
+	public void testFreshStart() {
+		DiskFileRecordService.FilesystemWorker w = worker();
+		w.restart( 1 );
+		assertEquals( walk.subList( 0, 5 ),
+					  w.unsaved( walk.subList( 0, 5 ), null ) );
+		assertEquals( walk.subList( 5, 10 ),
+					  w.unsaved( walk.subList( 5, 10 ), null ) );
+		assertFalse( w.diverged() );
+	}
+
+	public void testResumeMidBatch() {
+		DiskFileRecordService.FilesystemWorker w = worker();
+		// An earlier run committed up to and including record 4
+		w.resume( 1, 5, copy( walk.get( 4 ) ) );
+		assertTrue( w.unsaved( walk.subList( 0, 3 ), null ).isEmpty() );
+		assertTrue( w.diverged() );
+		assertEquals( walk.subList( 5, 6 ),
+					  w.unsaved( walk.subList( 3, 6 ), null ) );
+		assertFalse( w.diverged() );
+		// Past the checkpoint, a record like it is saved as any other
+		assertEquals( walk.subList( 6, 10 ),
+					  w.unsaved( walk.subList( 6, 10 ), null ) );
+		assertEquals( 5, w.getResumed() );
+	}
+
+	public void testResumeAtBatchEnd() {
+		DiskFileRecordService.FilesystemWorker w = worker();
+		w.resume( 1, 5, copy( walk.get( 4 ) ) );
+		assertTrue( w.unsaved( walk.subList( 0, 5 ), null ).isEmpty() );
+		assertFalse( w.diverged() );
+		assertEquals( walk.subList( 5, 10 ),
+					  w.unsaved( walk.subList( 5, 10 ), null ) );
+	}
+
+	public void testResumeDiverged() {
+		DiskFileRecordService.FilesystemWorker w = worker();
+		// A checkpoint this walk never meets, e.g. the filesystem changed
+		w.resume( 1, 5, record( new byte[16], "/gone", 99 ) );
+		assertTrue( w.unsaved( walk.subList( 0, 5 ), null ).isEmpty() );
+		assertTrue( w.unsaved( walk.subList( 5, 10 ), null ).isEmpty() );
+		assertTrue( w.diverged() );
+
+		// Starting over saves everything
+		w.restart( 2 );
+		assertFalse( w.diverged() );
+		assertEquals( walk, w.unsaved( walk, null ) );
+		assertEquals( 0, w.getResumed() );
+	}
+
+	public void testKnownDropped() throws Exception {
+		File dir = new File( "target/test-known" );
+		if( dir.isDirectory() ) {
+			for( File f : dir.listFiles() )
+				f.delete();
+		}
+		dir.mkdirs();
+		// Records 2 and 7 are of known files
+		File list = new File( dir, "md5s.txt" );
+		FileWriter fw = new FileWriter( list );
+		fw.write( hex( walk.get( 2 ).md5 ) + "  two\n" );
+		fw.write( hex( walk.get( 7 ).md5 ) + "  seven\n" );
+		fw.close();
+		KnownFileSet.importList( dir, list );
+		KnownFileSet known = KnownFileSet.open( dir );
+		assertEquals( 2, known.size() );
+
+		DiskFileRecordService.FilesystemWorker w = worker();
+		w.restart( 1 );
+		List<Record> saved = new ArrayList<Record>();
+		saved.addAll( w.unsaved( walk.subList( 0, 5 ), known ) );
+		saved.addAll( w.unsaved( walk.subList( 5, 10 ), known ) );
+		assertEquals( 8, saved.size() );
+		assertFalse( saved.contains( walk.get( 2 ) ) );
+		assertFalse( saved.contains( walk.get( 7 ) ) );
+		assertEquals( 2, w.getKnown() );
+
+		// A resume skips to the checkpoint first, so the known file
+		// before it is neither saved nor counted
+		w = worker();
+		w.resume( 1, 4, copy( walk.get( 4 ) ) );
+		assertEquals( walk.subList( 5, 7 ),
+					  w.unsaved( walk.subList( 0, 7 ), known ) );
+		assertEquals( walk.subList( 8, 10 ),
+					  w.unsaved( walk.subList( 7, 10 ), known ) );
+		assertEquals( 1, w.getKnown() );
+	}
+
+	DiskFileRecordService.FilesystemWorker worker() {
+		return new DiskFileRecordService.FilesystemWorker( mdd, 0, 63, 1000 );
+	}
+
+	static Record record( byte[] md5, String path, long inode ) {
+		return new Record( md5, null, null, path,
+						   inode, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1 );
+	}
+
+	// The same file, as found again by a later walk
+	static Record copy( Record r ) {
+		return record( r.md5.clone(), r.path, r.inode );
+	}
+
+	static String hex( byte[] b ) {
+		StringBuilder sb = new StringBuilder();
+		for( byte x : b )
+			sb.append( String.format( "%02x", x & 0xff ) );
+		return sb.toString();
+	}
+}
+
+// eof
@@ -0,0 +1,209 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.http.server.service;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.Session;
+
+public class JobSchedulerTest extends junit.framework.TestCase {
+
+	File dir;
+	Session session;
+	
+	protected void setUp() throws Exception {
+		session = Session.parse( UUID.randomUUID(), "20151021.0001" );
+		dir = new File( "target/test-jobs" );
+		dir.mkdirs();
+		new File( dir, JobScheduler.QUEUE_FILE ).delete();
+	}
+
+	public void testDuplicateSubmit() {
+		JobScheduler js = new JobScheduler( dir, 2, 2 );
+		js.register( "noop", new Noop(), false );
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor
+			( "disk1", session );
+		JobScheduler.Job j1 = js.submit( "noop", mdd,
+										 JobScheduler.PRIORITY_LOW );
+		JobScheduler.Job j2 = js.submit( "noop", mdd,
+										 JobScheduler.PRIORITY_HIGH );
+		assertSame( j1, j2 );
+		assertEquals( JobScheduler.PRIORITY_HIGH, j1.getPriority() );
+		assertEquals( 1, js.getJobs().size() );
+	}
+
+	public void testOneJobPerDisk() throws Exception {
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch( 3 );
+		JobScheduler.Task t = new JobScheduler.Task() {
+				public void run( JobScheduler.Job job ) throws Exception {
+					int n = active.incrementAndGet();
+					if( n > maxActive.get() )
+						maxActive.set( n );
+					Thread.sleep( 50 );
+					active.decrementAndGet();
+					done.countDown();
+				}
+			};
+		JobScheduler js = new JobScheduler( dir, 4, 4 );
+		js.register( "a", t, false );
+		js.register( "b", t, false );
+		js.register( "c", t, false );
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor
+			( "disk1", session );
+		js.submit( "a", mdd, JobScheduler.PRIORITY_NORMAL );
+		js.submit( "b", mdd, JobScheduler.PRIORITY_NORMAL );
+		js.submit( "c", mdd, JobScheduler.PRIORITY_NORMAL );
+		js.start();
+		assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+		js.stop();
+		assertEquals( 1, maxActive.get() );
+	}
+
+	public void testRestore() {
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor
+			( "disk 2", session );
+		JobScheduler js1 = new JobScheduler( dir, 1, 1 );
+		js1.register( "noop", new Noop(), false );
+		js1.submit( "noop", mdd, JobScheduler.PRIORITY_HIGH );
+
+		JobScheduler js2 = new JobScheduler( dir, 1, 1 );
+		js2.register( "noop", new Noop(), false );
+		js2.start();
+		js2.stop();
+		JobScheduler.Job j = js2.getJobs().get( 0 );
+		assertEquals( mdd, j.getDescriptor() );
+		assertEquals( JobScheduler.PRIORITY_HIGH, j.getPriority() );
+	}
+
+	public void testPriorityAndCancelQueued() {
+		JobScheduler js = new JobScheduler( dir, 1, 1 );
+		js.register( "noop", new Noop(), false );
+		JobScheduler.Job j1 = js.submit
+			( "noop", new ManagedDiskDescriptor( "disk1", session ),
+			  JobScheduler.PRIORITY_NORMAL );
+		JobScheduler.Job j2 = js.submit
+			( "noop", new ManagedDiskDescriptor( "disk2", session ),
+			  JobScheduler.PRIORITY_NORMAL );
+		assertSame( j1, js.getJobs().get( 0 ) );
+		assertTrue( js.setPriority( j2.getID(), JobScheduler.PRIORITY_HIGH ) );
+		assertSame( j2, js.getJobs().get( 0 ) );
+
+		assertTrue( js.cancel( j1.getID() ) );
+		assertEquals( JobScheduler.State.CANCELLED, j1.getState() );
+		assertFalse( js.setPriority( j1.getID(), JobScheduler.PRIORITY_LOW ) );
+
+		// Only the remaining job is restored
+		JobScheduler js2 = new JobScheduler( dir, 1, 1 );
+		js2.register( "noop", new Noop(), false );
+		js2.start();
+		js2.stop();
+		assertEquals( 1, js2.getJobs().size() );
+		assertEquals( j2.getDescriptor(),
+					  js2.getJobs().get( 0 ).getDescriptor() );
+	}
+
+	public void testCancelRunning() throws Exception {
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch done = new CountDownLatch( 1 );
+		JobScheduler.Task t = new JobScheduler.Task() {
+				public void run( JobScheduler.Job job ) throws Exception {
+					started.countDown();
+					try {
+						Thread.sleep( 10 * 1000 );
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+		JobScheduler js = new JobScheduler( dir, 1, 1 );
+		js.register( "slow", t, false );
+		js.register( "noop", new Noop(), false );
+		js.start();
+		JobScheduler.Job j = js.submit
+			( "slow", new ManagedDiskDescriptor( "disk1", session ),
+			  JobScheduler.PRIORITY_NORMAL );
+		assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+		assertTrue( js.cancel( j.getID() ) );
+		assertTrue( j.isCancelled() );
+		assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+
+		// The worker survives the cancel, and runs the next job
+		JobScheduler.Job next = js.submit
+			( "noop", new ManagedDiskDescriptor( "disk2", session ),
+			  JobScheduler.PRIORITY_NORMAL );
+		for( int i = 0; i < 50 && next.getState() != JobScheduler.State.DONE; i++ )
+			Thread.sleep( 100 );
+		js.stop();
+		assertEquals( JobScheduler.State.CANCELLED, j.getState() );
+		assertEquals( JobScheduler.State.DONE, next.getState() );
+	}
+
+	// A job dying with an Error still frees its disk for the next job
+	public void testErrorReleasesDisk() throws Exception {
+		JobScheduler.Task t = new JobScheduler.Task() {
+				public void run( JobScheduler.Job job ) {
+					throw new AssertionError( "boom" );
+				}
+			};
+		JobScheduler js = new JobScheduler( dir, 1, 1 );
+		js.register( "error", t, false );
+		js.register( "noop", new Noop(), false );
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor
+			( "disk1", session );
+		JobScheduler.Job j = js.submit( "error", mdd,
+										JobScheduler.PRIORITY_HIGH );
+		JobScheduler.Job next = js.submit( "noop", mdd,
+										   JobScheduler.PRIORITY_LOW );
+		js.start();
+		for( int i = 0; i < 50 && next.getState() != JobScheduler.State.DONE; i++ )
+			Thread.sleep( 100 );
+		js.stop();
+		assertEquals( JobScheduler.State.FAILED, j.getState() );
+		assertEquals( JobScheduler.State.DONE, next.getState() );
+	}
+
+	static class Noop implements JobScheduler.Task {
+		public void run( JobScheduler.Job job ) {
+		}
+	}
+}
+
+// eof
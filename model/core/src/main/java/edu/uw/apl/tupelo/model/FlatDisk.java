@@ -41,6 +41,7 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 
 import org.apache.commons.io.IOUtils;
@@ -189,6 +190,17 @@ public class FlatDisk extends ManagedDisk {
 		return new FlatDiskRandomAccessRead();
 	}
 
+	@Override
+	public int read( long pos, ByteBuffer dst ) throws IOException {
+		if( pos < 0 )
+			throw new IllegalArgumentException( "Negative pos: " + pos );
+		if( pos >= size() )
+			return -1;
+		int len = (int)Math.min( size() - pos, dst.remaining() );
+		readManagedData( header.dataOffset + pos, dst, len );
+		return len;
+	}
+
 	class FlatDiskRandomAccessRead extends SeekableInputStream {
 		FlatDiskRandomAccessRead() throws IOException {
 			super( size() );
@@ -238,6 +250,18 @@ public class FlatDisk extends ManagedDisk {
 			return total;
 		}
 
+		/**
+		   Positional reads on the disk's shared channel, straight
+		   into dst.  For a direct dst (fuse's) the JVM has no copy to
+		   make at all.
+		*/
+		@Override
+		public int read( long pos, ByteBuffer dst ) throws IOException {
+			int n = FlatDisk.this.read( pos, dst );
+			seek( n == -1 ? pos : pos + n );
+			return n;
+		}
+
 		private final RandomAccessFile raf;
 	}
 }
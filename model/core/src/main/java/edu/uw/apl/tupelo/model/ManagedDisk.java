@@ -38,11 +38,16 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.FilenameFilter;
 import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.text.ParseException;
 import java.util.UUID;
 
@@ -107,6 +112,22 @@ abstract public class ManagedDisk {
 
 	abstract public void setParent( ManagedDisk md );
 
+	/**
+	 * Tell whether a byte range of this disk is known to read the same
+	 * as in the parent, from the managed data layout alone, i.e.
+	 * without reading any data.  Used to carry results computed on the
+	 * parent (e.g. file records of an unchanged filesystem) over to
+	 * this disk.  Requires the parent to have been set.
+	 *
+	 * @return true if every grain touching the range is inherited from
+	 * the parent, or zero both here and there.  False if in doubt, and
+	 * always false for a disk without a parent.
+	 */
+	public boolean sameAsParent( long offset, long length )
+		throws IOException {
+		return false;
+	}
+
 	abstract public void reportMetaData() throws IOException;
 
 	abstract public void writeTo( OutputStream os ) throws IOException;
@@ -130,6 +151,85 @@ abstract public class ManagedDisk {
 	abstract public SeekableInputStream getSeekableInputStream()
 		throws IOException;
 
+	/**
+	 * Read from pos into dst, as many bytes as dst has room for
+	 * (fewer only at eof).  Unlike reading via a SeekableInputStream,
+	 * this keeps no position or other per-reader state, so any number
+	 * of threads may read the one ManagedDisk at once, e.g. fuse
+	 * requests or digesters.  Readers share one channel on the managed
+	 * data and, where there are grains, one cache of them.
+	 *
+	 * @return the byte count read, -1 if pos is at or past eof
+	 */
+	abstract public int read( long pos, ByteBuffer dst ) throws IOException;
+
+	/**
+	 * As {@link #read(long,ByteBuffer)}, into b[off,off+len)
+	 */
+	public int read( long pos, byte[] b, int off, int len )
+		throws IOException {
+		return read( pos, ByteBuffer.wrap( b, off, len ) );
+	}
+
+	/**
+	 * Release the managed data file held open for positional reads,
+	 * if any.  A later read reopens it.
+	 */
+	public void close() throws IOException {
+		synchronized( channelLock ) {
+			if( channel != null ) {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * Read exactly len bytes of the managed data file, from offset,
+	 * into dst, via the channel shared by all readers.  FileChannels
+	 * close when a thread blocked on them is interrupted (e.g. a
+	 * cancelled job), so a channel closed under us by another thread
+	 * is reopened, rather than failing every reader thereafter.
+	 */
+	protected void readManagedData( long offset, ByteBuffer dst, int len )
+		throws IOException {
+		int limit = dst.limit();
+		dst.limit( dst.position() + len );
+		try {
+			while( dst.hasRemaining() ) {
+				long from = offset + len - dst.remaining();
+				int nin;
+				try {
+					nin = channel().read( dst, from );
+				} catch( ClosedChannelException cce ) {
+					if( Thread.currentThread().isInterrupted() )
+						throw cce;
+					continue;
+				}
+				if( nin == -1 )
+					throw new EOFException( managedData + ": " + from );
+			}
+		} finally {
+			dst.limit( limit );
+		}
+	}
+
+	private FileChannel channel() throws IOException {
+		FileChannel result = channel;
+		if( result != null && result.isOpen() )
+			return result;
+		synchronized( channelLock ) {
+			if( channel == null || !channel.isOpen() ) {
+				if( managedData == null )
+					throw new IllegalStateException
+						( header.diskID + ": managedData null" );
+				channel = new RandomAccessFile( managedData, "r" ).
+					getChannel();
+			}
+			return channel;
+		}
+	}
+
 	static public ManagedDisk readFrom( File managedDisk ) throws IOException {
 		ManagedDisk result = null;
 		FileInputStream fis = new FileInputStream( managedDisk );
@@ -360,6 +460,10 @@ abstract public class ManagedDisk {
 	protected UnmanagedDisk unmanagedData;// for creating/writing a ManagedDisk
 	protected File managedData;		// for loading a ManagedDisk
 	protected Log log;
+
+	// for positional reads, opened on first use
+	private volatile FileChannel channel;
+	private final Object channelLock = new Object();
 	
 	public enum DiskTypes { ERROR, FLAT, STREAMOPTIMIZED };
 	
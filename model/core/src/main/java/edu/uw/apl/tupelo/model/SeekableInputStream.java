@@ -35,6 +35,7 @@ package edu.uw.apl.tupelo.model;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * An abstract 'InputStream + seek' capturing the logic shared between
@@ -97,6 +98,45 @@ abstract public class SeekableInputStream extends InputStream {
 		return n;
 	}
 
+	/**
+	 * Read from pos into dst, as many bytes as dst has room for
+	 * (fewer only at eof), leaving the stream positioned after them.
+	 * So a seek plus read, but the bytes land in dst itself, which
+	 * may be direct (e.g. the buffer fuse hands us), rather than in
+	 * some byte[] the caller must then copy from.
+	 *
+	 * This version stages via a byte[] unless dst has one.
+	 * Subclasses override to fill dst with no staging at all.
+	 *
+	 * @return the byte count read, -1 if pos is at or past eof
+	 */
+	public int read( long pos, ByteBuffer dst ) throws IOException {
+		seek( pos );
+		if( posn >= size )
+			return -1;
+		int len = remaining( dst );
+		if( len == 0 )
+			return 0;
+		int n;
+		if( dst.hasArray() ) {
+			n = read( dst.array(), dst.arrayOffset() + dst.position(), len );
+			dst.position( dst.position() + n );
+		} else {
+			byte[] ba = new byte[len];
+			n = read( ba, 0, len );
+			dst.put( ba, 0, n );
+		}
+		return n;
+	}
+
+	/**
+	 * @return the byte count a read at the current position into dst
+	 * should produce: dst's space, bounded by eof
+	 */
+	protected int remaining( ByteBuffer dst ) {
+		return (int)Math.max( 0, Math.min( size - posn, dst.remaining() ) );
+	}
+	
 	@Override
 	public long skip( long n ) throws IOException {
 		if( n < 0 )
@@ -47,8 +47,12 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
 import java.util.zip.Deflater;
 import java.util.zip.DataFormatException;
@@ -794,6 +798,57 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		parent = md;
 	}
 
+	/**
+	 * A grain stored as zeros is not compared with the parent when
+	 * written, so counts as unchanged only if the parent's is zero too.
+	 */
+	@Override
+	public boolean sameAsParent( long offset, long length )
+		throws IOException {
+		if( parent == null || length <= 0 || offset < 0 ||
+			offset + length > size() )
+			return false;
+		readMetaData();
+		long last = (offset + length - 1) / grainSizeBytes;
+		for( long g = offset / grainSizeBytes; g <= last; g++ ) {
+			long gte = grainTableEntry( g );
+			if( gte == -1 )
+				continue;
+			if( gte != 0 || !isZeroInParent( g ) )
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	  The grain's entry, from its grain table: 0 for zeros, -1 for 'use
+	  parent', else its sector offset.  Whole tables of zeros or parent
+	  grains resolve to those values.
+	*/
+	private long grainTableEntry( long grain ) {
+		long perTable = grainTableCoverageBytes / grainSizeBytes;
+		long[] gt = grainDirectory[(int)(grain / perTable)];
+		if( gt == ZEROGDE )
+			return 0;
+		if( gt == PARENTGDE )
+			return -1;
+		return gt[(int)(grain % perTable)];
+	}
+
+	// Is the grain all zeros in the parent, following the parent chain?
+	private boolean isZeroInParent( long grain ) throws IOException {
+		if( !( parent instanceof StreamOptimizedDisk ) )
+			return false;
+		StreamOptimizedDisk sod = (StreamOptimizedDisk)parent;
+		sod.readMetaData();
+		if( sod.grainSizeBytes != grainSizeBytes )
+			return false;
+		long gte = sod.grainTableEntry( grain );
+		if( gte == -1 )
+			return sod.isZeroInParent( grain );
+		return gte == 0;
+	}
+
 	/**
 	 * The best a StreamOptimizedDisk can do to verify that a file on
 	 * disk really is the managed representation of the associated
@@ -880,22 +935,24 @@ public class StreamOptimizedDisk extends ManagedDisk {
 	/**
 	 * @return The uncompressed data count, in bytes
 	 */
-	private int uncompressGrain( byte[] ba, int offset, int len, byte[] output )
+	private int uncompressGrain( byte[] ba, int offset, int len,
+								 byte[] output, int outOffset, int outLen )
 		throws DataFormatException, IOException {
 		int result = 0;
 		switch( header.compressAlgorithm ) {
 		case DEFLATE:
 			Inflater inf = new Inflater();
 			inf.setInput( ba, offset, len );
-			result = inf.inflate( output );
+			result = inf.inflate( output, outOffset, outLen );
 			inf.end();
 			break;
 		case GZIP:
 			ByteArrayInputStream bais = new ByteArrayInputStream( ba );
 			GZIPInputStream gzis = new GZIPInputStream( bais );
 			int total = 0;
-			while( total < output.length ) {
-				int nin = gzis.read( output, total, output.length - total );
+			while( total < outLen ) {
+				int nin = gzis.read( output, outOffset + total,
+									 outLen - total );
 				//				System.out.println( nin + " " + total );
 				if( nin == -1 )
 					break;
@@ -908,7 +965,7 @@ public class StreamOptimizedDisk extends ManagedDisk {
 			if( !Snappy.isValidCompressedBuffer( ba, offset, len ) ){
 				throw new DataFormatException( "!isValidCompressedBuffer" );
 			}
-			result = Snappy.uncompress( ba, offset, len, output, 0 );
+			result = Snappy.uncompress( ba, offset, len, output, outOffset );
 			// to do
 			break;
 		case NONE:
@@ -947,6 +1004,186 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		return new SODRandomAccessRead( pis );
 	}
 
+	/**
+	 * Walks the grain table per grain, taking zeros from our zero
+	 * grain, parent grains from the parent's own read and stored
+	 * grains from the grain cache, decompressing on a miss.  A miss
+	 * covering a whole grain decompresses straight into dst where the
+	 * decompressor can write there, see canUncompressInto, and leaves
+	 * the cache alone.  Nothing per-reader is kept, so reads run
+	 * concurrently.  Each does briefly take two monitors: this disk's,
+	 * in readMetaData, which returns at once after the first load, and
+	 * the grain cache's, for lookups and adds only.  Neither is held
+	 * across i/o or decompression.
+	 */
+	@Override
+	public int read( long pos, ByteBuffer dst ) throws IOException {
+		if( pos < 0 )
+			throw new IllegalArgumentException( "Negative pos: " + pos );
+		readMetaData();
+		if( pos >= size() )
+			return -1;
+		int actual = (int)Math.min( size() - pos, dst.remaining() );
+		int total = 0;
+		while( total < actual ) {
+			long p = pos + total;
+			long g = p / grainSizeBytes;
+			int gOffset = (int)(p - g * grainSizeBytes);
+			int n = (int)Math.min( actual - total, grainSizeBytes - gOffset );
+			long gte = grainTableEntry( g );
+			if( gte == 0 ) {
+				dst.put( zeroGrain, 0, n );
+			} else if( gte == -1 ) {
+				if( parent == null )
+					throw new IllegalStateException( "No parent: " + g );
+				int limit = dst.limit();
+				dst.limit( dst.position() + n );
+				try {
+					// LOOK: should ALWAYS read n
+					n = parent.read( p, dst );
+				} finally {
+					dst.limit( limit );
+				}
+				// A parent ending early ends the read
+				if( n <= 0 )
+					break;
+			} else {
+				byte[] cached = cachedGrain( gte );
+				if( cached == null && n == grainSizeBytes &&
+					canUncompressInto( dst ) )
+					grainInto( gte, dst );
+				else
+					dst.put( cached != null ? cached : grain( gte ),
+							 gOffset, n );
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Also drops the grain cache, and closes any parent, which
+	 * likewise reopens on its next read.
+	 */
+	@Override
+	public void close() throws IOException {
+		super.close();
+		synchronized( grainCache ) {
+			grainCache.clear();
+		}
+		if( parent != null )
+			parent.close();
+	}
+
+	// The grain stored at sector gte, decompressed, if in the grain cache
+	private byte[] cachedGrain( long gte ) {
+		synchronized( grainCache ) {
+			return grainCache.get( gte );
+		}
+	}
+
+	/*
+	  The grain stored at sector gte, decompressed, via the grain
+	  cache.  The array may be shared with other readers, so is
+	  read-only.  Two readers missing on the same grain both
+	  decompress it, harmless.
+	*/
+	private byte[] grain( long gte ) throws IOException {
+		byte[] result = cachedGrain( gte );
+		if( result != null )
+			return result;
+		GrainMarker gm = grainMarker( gte );
+		byte[] compressed = new byte[gm.size];
+		readManagedData( gte * Constants.SECTORLENGTH + GrainMarker.SIZEOF,
+						 ByteBuffer.wrap( compressed ), gm.size );
+		result = new byte[(int)grainSizeBytes];
+		uncompressGrain( ByteBuffer.wrap( compressed ),
+						 ByteBuffer.wrap( result ), gte );
+		// only a good grain gets here, to be cached
+		synchronized( grainCache ) {
+			grainCache.put( gte, result );
+		}
+		return result;
+	}
+
+	/*
+	  Decompress the grain stored at sector gte straight into dst,
+	  which canUncompressInto and has room for it, bypassing the grain
+	  cache
+	*/
+	private void grainInto( long gte, ByteBuffer dst ) throws IOException {
+		GrainMarker gm = grainMarker( gte );
+		ByteBuffer compressed = dst.hasArray() ?
+			ByteBuffer.allocate( gm.size ) : compressedDirect( gm.size );
+		readManagedData( gte * Constants.SECTORLENGTH + GrainMarker.SIZEOF,
+						 compressed, gm.size );
+		compressed.flip();
+		uncompressGrain( compressed, dst, gte );
+	}
+
+	// The marker of the grain stored at sector gte
+	private GrainMarker grainMarker( long gte ) throws IOException {
+		ByteBuffer marker = ByteBuffer.allocate( GrainMarker.SIZEOF );
+		readManagedData( gte * Constants.SECTORLENGTH, marker,
+						 GrainMarker.SIZEOF );
+		marker.flip();
+		return new GrainMarker( marker.getLong(), marker.getInt() );
+	}
+
+	/*
+	  Whether a grain can be decompressed straight into dst.  Inflater
+	  and GZIPInputStream take only arrays, snappy direct buffers too,
+	  so a direct dst needs a snappy compressed disk.
+	*/
+	private boolean canUncompressInto( ByteBuffer dst ) {
+		return dst.hasArray() || (dst.isDirect() &&
+			header.compressAlgorithm == Compressions.SNAPPY);
+	}
+
+	/*
+	  Decompress the grain in src, stored at sector gte, into dst,
+	  which canUncompressInto and has room for a whole grain, and move
+	  dst past it.  src is array-backed for an array-backed dst, else
+	  direct.  A grain that will not decompress is an IOException.
+	*/
+	private void uncompressGrain( ByteBuffer src, ByteBuffer dst, long gte )
+		throws IOException {
+		int actualLength;
+		if( dst.hasArray() ) {
+			try {
+				actualLength = uncompressGrain
+					( src.array(), src.arrayOffset() + src.position(),
+					  src.remaining(), dst.array(),
+					  dst.arrayOffset() + dst.position(),
+					  (int)grainSizeBytes );
+			} catch( DataFormatException dfe ) {
+				throw new IOException( managedData + ": " + gte, dfe );
+			}
+		} else {
+			ByteBuffer out = dst.slice();
+			out.limit( (int)grainSizeBytes );
+			actualLength = Snappy.uncompress( src, out );
+		}
+		if( actualLength != grainSizeBytes )
+			throw new IllegalStateException
+				( "Bad inflate len: " + actualLength );
+		dst.position( dst.position() + actualLength );
+	}
+
+	/*
+	  A direct buffer, cleared, of at least size bytes, for compressed
+	  grains, one per thread since positional reads keep no state
+	*/
+	private static ByteBuffer compressedDirect( int size ) {
+		ByteBuffer result = COMPRESSEDDIRECT.get();
+		if( result == null || result.capacity() < size ) {
+			result = ByteBuffer.allocateDirect( size );
+			COMPRESSEDDIRECT.set( result );
+		}
+		result.clear();
+		return result;
+	}
+
 	class SODRandomAccessRead extends SeekableInputStream {
 		SODRandomAccessRead( SeekableInputStream parentStream )
 			throws IOException {
@@ -1060,30 +1297,7 @@ public class StreamOptimizedDisk extends ManagedDisk {
 						posn += fromParent;
 					} else {
 						if( gte != gtePrev ) {
-							raf.seek( gte * Constants.SECTORLENGTH );
-							GrainMarker gm = GrainMarker.readFrom( raf );
-							int nin = raf.read( compressedGrainBuffer,
-												0, gm.size );
-							if( nin != gm.size )
-								throw new IllegalStateException
-									( "Partial read: "+ nin + " " + gm.size);
-							if( log.isDebugEnabled() ) {
-								log.debug( "Inflating " + gdIndex + " "+
-										   gtIndex +
-										   " = " + nin + " " + gm.lba );
-							}
-							try {
-								int actualLength = uncompressGrain
-									( compressedGrainBuffer, 0, nin,
-									  grainBuffer );
-								if( actualLength != grainSizeBytes )
-									throw new IllegalStateException
-										( "Bad inflate len: " + actualLength );
-							} catch( DataFormatException dfe ) {
-								// what now??
-								log.warn( dfe );
-							}
-							gtePrev = gte;
+							loadGrain( gte );
 						}
 						System.arraycopy( grainBuffer, (int)gOffset,
 										  ba, off+total, fromGrain );
@@ -1100,6 +1314,156 @@ public class StreamOptimizedDisk extends ManagedDisk {
 			return total;
 		}
 
+		/**
+		   As readImpl, but into dst.  A read covering a whole grain
+		   decompresses that grain straight into dst, rather than via
+		   grainBuffer, where the decompressor can write there: dst
+		   array-backed (any compression), or dst direct and the grain
+		   snappy compressed.  Inflater and GZIPInputStream take only
+		   arrays, so deflate/gzip grains into a direct dst still go via
+		   grainBuffer.  Partial grains always do, since the cached
+		   grain serves the neighbouring reads.
+		*/
+		@Override
+		public int read( long pos, ByteBuffer dst ) throws IOException {
+			seek( pos );
+			if( posn >= size )
+				return -1;
+			int actual = remaining( dst );
+			int total = 0;
+			while( total < actual ) {
+				int left = actual - total;
+				long[] gt = grainDirectory[gdIndex];
+				if( gt == ZEROGDE ) {
+					long grainTableOffset = ((long)gtIndex << log2GrainSize) +
+						gOffset;
+					int fromGrainTable = (int)Math.min
+						( left, grainTableCoverageBytes - grainTableOffset );
+					dst.put( zeroGrainTable, 0, fromGrainTable );
+					total += fromGrainTable;
+					posn += fromGrainTable;
+				} else if( gt == PARENTGDE ) {
+					throw new IllegalStateException( "PARENTGDE!" );
+				} else {
+					int inGrain = (int)(grainSizeBytes - gOffset );
+					int fromGrain = Math.min( left, inGrain );
+					long gte = gt[gtIndex];
+					if( gte == 0 ) {
+						dst.put( zeroGrain, 0, fromGrain );
+					} else if( gte == -1 ) {
+						if( parentStream == null )
+							throw new IllegalStateException
+								( "No parent: " + gdIndex + " " + gtIndex );
+						int limit = dst.limit();
+						dst.limit( dst.position() + fromGrain );
+						int fromParent;
+						try {
+							// LOOK: fromParent should ALWAYS == fromGrain
+							fromParent = parentStream.read( posn, dst );
+						} finally {
+							dst.limit( limit );
+						}
+						// A parent ending early ends the read
+						if( fromParent <= 0 )
+							break;
+						fromGrain = fromParent;
+					} else if( gte == gtePrev || fromGrain < grainSizeBytes ||
+							   !loadGrain( gte, dst ) ) {
+						if( gte != gtePrev )
+							loadGrain( gte );
+						dst.put( grainBuffer, (int)gOffset, fromGrain );
+					}
+					total += fromGrain;
+					posn += fromGrain;
+				}
+				dPos();
+			}
+			// realigns any parentStream too
+			seek( pos + total );
+			return total;
+		}
+
+		/**
+		   Read and decompress grain gte into grainBuffer.  A grain
+		   that will not decompress is an IOException, and leaves
+		   grainBuffer holding no grain.
+		*/
+		private void loadGrain( long gte ) throws IOException {
+			GrainMarker gm = readCompressedGrain( gte );
+			if( log.isDebugEnabled() ) {
+				log.debug( "Inflating " + gdIndex + " "+
+						   gtIndex +
+						   " = " + gm.size + " " + gm.lba );
+			}
+			// no grain is at sector 0, the header is
+			gtePrev = 0;
+			try {
+				int actualLength = uncompressGrain
+					( compressedGrainBuffer, 0, gm.size,
+					  grainBuffer, 0, grainBuffer.length );
+				if( actualLength != grainSizeBytes )
+					throw new IllegalStateException
+						( "Bad inflate len: " + actualLength );
+			} catch( DataFormatException dfe ) {
+				throw new IOException( managedData + ": " + gte, dfe );
+			}
+			gtePrev = gte;
+		}
+
+		/**
+		   Read and decompress grain gte into dst, which has room for
+		   it, leaving grainBuffer untouched.  A grain that will not
+		   decompress is an IOException, as for loadGrain(long).
+
+		   @return false if the decompressor cannot write to dst, see
+		   read(long,ByteBuffer)
+		*/
+		private boolean loadGrain( long gte, ByteBuffer dst )
+			throws IOException {
+			if( !canUncompressInto( dst ) )
+				return false;
+			ByteBuffer src;
+			if( dst.hasArray() ) {
+				GrainMarker gm = readCompressedGrain( gte );
+				src = ByteBuffer.wrap( compressedGrainBuffer, 0, gm.size );
+			} else {
+				raf.seek( gte * Constants.SECTORLENGTH );
+				GrainMarker gm = GrainMarker.readFrom( raf );
+				if( compressedGrainDirect == null )
+					compressedGrainDirect = ByteBuffer.allocateDirect
+						( compressedGrainBuffer.length );
+				compressedGrainDirect.clear();
+				compressedGrainDirect.limit( gm.size );
+				FileChannel fc = raf.getChannel();
+				long from = raf.getFilePointer();
+				while( compressedGrainDirect.hasRemaining() ) {
+					if( fc.read( compressedGrainDirect,
+								 from + compressedGrainDirect.position() )
+						== -1 )
+						throw new IllegalStateException
+							( "Partial read: " + compressedGrainDirect );
+				}
+				compressedGrainDirect.flip();
+				src = compressedGrainDirect;
+			}
+			uncompressGrain( src, dst, gte );
+			return true;
+		}
+
+		/**
+		   Read grain gte's marker, then its compressed bytes into
+		   compressedGrainBuffer
+		*/
+		private GrainMarker readCompressedGrain( long gte )
+			throws IOException {
+			raf.seek( gte * Constants.SECTORLENGTH );
+			GrainMarker gm = GrainMarker.readFrom( raf );
+			int nin = raf.read( compressedGrainBuffer, 0, gm.size );
+			if( nin != gm.size )
+				throw new IllegalStateException
+					( "Partial read: "+ nin + " " + gm.size);
+			return gm;
+		}
 
 		/**
 		   Called whenever the local posn changes value.  Do NOT make
@@ -1147,6 +1511,8 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		private final SeekableInputStream parentStream;
 		private int log2GrainSize, log2GrainTableCoverage;
 		private byte[] compressedGrainBuffer;
+		// for snappy grains read into a direct buffer, made on demand
+		private ByteBuffer compressedGrainDirect;
 		private byte[] grainBuffer;
 		private int gdIndex, gtIndex;
 		private long gOffset;
@@ -1252,6 +1618,20 @@ public class StreamOptimizedDisk extends ManagedDisk {
 	private byte[] zeroGrainTable;
 	private long[][] grainDirectory;
 
+	/*
+	  Decompressed grains for positional reads, shared by all readers,
+	  keyed by grain table entry, least recently used dropped first
+	*/
+	@SuppressWarnings("serial")
+	private final Map<Long,byte[]> grainCache =
+		new LinkedHashMap<Long,byte[]>( 16, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry
+				( Map.Entry<Long,byte[]> eldest ) {
+				return size() > GRAINCACHESIZE;
+			}
+		};
+
 	
 	static private final byte[] ZEROGRAIN_DEFAULT =
 		new byte[(int)(GRAINSIZE_DEFAULT * Constants.SECTORLENGTH)];
@@ -1260,6 +1640,13 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		new byte[(int)(GRAINSIZE_DEFAULT * Constants.SECTORLENGTH *
 					   NUMGTESPERGT )];
 
+	// In grains, so 4MB for grains of GRAINSIZE_DEFAULT
+	static private final int GRAINCACHESIZE = 64;
+
+	// see compressedDirect
+	static private final ThreadLocal<ByteBuffer> COMPRESSEDDIRECT =
+		new ThreadLocal<ByteBuffer>();
+
 	static private long[] ZEROGDE = new long[0];
 	static private long[] PARENTGDE = new long[0];
 }
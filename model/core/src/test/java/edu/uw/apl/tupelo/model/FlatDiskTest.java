@@ -34,8 +34,12 @@
 package edu.uw.apl.tupelo.model;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.FileUtils;
 
 @SuppressWarnings("unused")
 public class FlatDiskTest extends junit.framework.TestCase {
@@ -71,6 +75,51 @@ public class FlatDiskTest extends junit.framework.TestCase {
 	}
 
 
+	// Positional reads into heap and direct ByteBuffers match the image
+	public void testReadByteBuffer() throws Exception {
+		File f = new File( "src/test/resources/64k" );
+		if( !f.exists() )
+			return;
+		byte[] data = FileUtils.readFileToByteArray( f );
+		File managed = File.createTempFile( "64k", ManagedDisk.FILESUFFIX );
+		try {
+			FlatDisk fd = new FlatDisk( new DiskImage( f ), Session.CANNED );
+			FileOutputStream fos = new FileOutputStream( managed );
+			fd.writeTo( fos );
+			fos.close();
+			ManagedDisk md = ManagedDisk.readFrom( managed );
+			SeekableInputStream sis = md.getSeekableInputStream();
+			try {
+				long[] offsets = { 0, 511, 4096, data.length - 100 };
+				for( long offset : offsets ) {
+					ByteBuffer[] bbs = { ByteBuffer.allocate( 1000 ),
+										 ByteBuffer.allocateDirect( 1000 ) };
+					for( ByteBuffer bb : bbs ) {
+						int expected = (int)Math.min( bb.remaining(),
+													  data.length - offset );
+						assertEquals( expected, sis.read( offset, bb ) );
+						for( int i = 0; i < expected; i++ )
+							assertEquals( data[(int)offset + i], bb.get( i ) );
+					}
+				}
+				assertEquals( -1, sis.read( data.length,
+											ByteBuffer.allocate( 1 ) ) );
+
+				// and the stateless read on the disk itself
+				byte[] ba = new byte[1000];
+				assertEquals( 1000, md.read( 4096, ba, 0, ba.length ) );
+				for( int i = 0; i < ba.length; i++ )
+					assertEquals( data[4096 + i], ba[i] );
+				assertEquals( -1, md.read( data.length, ba, 0, 1 ) );
+			} finally {
+				sis.close();
+				md.close();
+			}
+		} finally {
+			managed.delete();
+		}
+	}
+
 	public void testWriteCanned1() throws IOException {
 		File f = new File( "src/test/resources/64k" );
 		if( !f.exists() )
@@ -38,6 +38,13 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
 
 @SuppressWarnings("unused")
 public class StreamOptimizedDiskTest extends junit.framework.TestCase {
@@ -101,6 +108,320 @@ public class StreamOptimizedDiskTest extends junit.framework.TestCase {
 		}
 	}
 
+	// A child disk, stored against its parent, knows its unchanged grains
+	public void testSameAsParent() throws Exception {
+		// Parent grains are only matched within whole grain tables, so
+		// small grains, making one table: random, then zeros
+		long grainSize = 8;
+		int grain = (int)(grainSize * Constants.SECTORLENGTH);
+		int grains = ManagedDisk.NUMGTESPERGT;
+		byte[] data = new byte[grains * grain];
+		new Random( 1 ).nextBytes( data );
+		Arrays.fill( data, 8 * grain, data.length, (byte)0 );
+		File parentImage = File.createTempFile( "parent", ".dd" );
+		File childImage = File.createTempFile( "child", ".dd" );
+		File parentFile = File.createTempFile( "parent", ManagedDisk.FILESUFFIX );
+		File childFile = File.createTempFile( "child", ManagedDisk.FILESUFFIX );
+		try {
+			FileUtils.writeByteArrayToFile
+				( parentImage, data );
+			StreamOptimizedDisk parentSOD = new StreamOptimizedDisk
+				( new DiskImage( parentImage, "disk" ), Session.CANNED,
+				  Constants.NULLUUID, grainSize );
+			parentSOD.writeTo( parentFile );
+			ManagedDisk parent = ManagedDisk.readFrom( parentFile );
+
+			ManagedDiskDigest digest = new ManagedDiskDigest();
+			MessageDigest md5 = MessageDigest.
+				getInstance( ManagedDisk.DIGESTALGORITHM );
+			for( int g = 0; g < grains; g++ ) {
+				md5.update( data, g * grain, grain );
+				digest.add( md5.digest() );
+			}
+
+			// Change grain 2 only
+			data[2 * grain + 100]++;
+			FileUtils.writeByteArrayToFile
+				( childImage, data );
+			StreamOptimizedDisk childSOD = new StreamOptimizedDisk
+				( new DiskImage( childImage, "disk" ),
+				  Session.CANNED.successor(), parent.getUUIDCreate(),
+				  grainSize );
+			childSOD.setParentDigest( digest );
+			childSOD.writeTo( childFile );
+			ManagedDisk child = ManagedDisk.readFrom( childFile );
+
+			// No parent set, so nothing known
+			assertFalse( child.sameAsParent( 0, grain ) );
+			child.setParent( parent );
+			assertTrue( child.sameAsParent( 0, 2 * grain ) );
+			assertFalse( child.sameAsParent( 2 * grain, 1 ) );
+			assertFalse( child.sameAsParent( grain, 2 * grain ) );
+			assertTrue( child.sameAsParent( 3 * grain + 10, 5 * grain - 10 ) );
+			// Zero in both
+			assertTrue( child.sameAsParent( 8 * grain, data.length - 8 * grain ) );
+			assertFalse( child.sameAsParent( 0, data.length + 1 ) );
+			// A disk without a parent
+			assertFalse( parent.sameAsParent( 0, grain ) );
+		} finally {
+			parentImage.delete();
+			childImage.delete();
+			parentFile.delete();
+			childFile.delete();
+		}
+	}
+
+	/*
+	  Positional reads into heap and direct ByteBuffers match the
+	  image, for whole grains (decompressed straight into the buffer),
+	  partial grains, zero grains and reads crossing eof.  Both via a
+	  stream and of the ManagedDisk itself, whose reads go on after a
+	  close.
+	*/
+	public void testReadByteBuffer() throws Exception {
+		long grainSize = 8;
+		int grain = (int)(grainSize * Constants.SECTORLENGTH);
+		int grains = ManagedDisk.NUMGTESPERGT;
+		byte[] data = new byte[grains * grain];
+		new Random( 1 ).nextBytes( data );
+		Arrays.fill( data, 8 * grain, data.length - grain, (byte)0 );
+		File image = File.createTempFile( "image", ".dd" );
+		File managed = File.createTempFile( "image", ManagedDisk.FILESUFFIX );
+		try {
+			FileUtils.writeByteArrayToFile
+				( image, data );
+			ManagedDisk.Compressions[] cs = { ManagedDisk.Compressions.DEFLATE,
+											  ManagedDisk.Compressions.GZIP,
+											  ManagedDisk.Compressions.SNAPPY };
+			for( ManagedDisk.Compressions c : cs ) {
+				StreamOptimizedDisk sod = new StreamOptimizedDisk
+					( new DiskImage( image, "disk" ), Session.CANNED,
+					  Constants.NULLUUID, grainSize );
+				sod.setCompression( c );
+				sod.writeTo( managed );
+				ManagedDisk md = ManagedDisk.readFrom( managed );
+				SeekableInputStream sis = md.getSeekableInputStream();
+				try {
+					long[] offsets = { 0, 100, grain - 10, grain, 3 * grain + 7,
+									   8 * grain - 1, data.length - grain,
+									   data.length - 50 };
+					int[] lengths = { 1, grain, 2 * grain + 13, 4 * grain };
+					for( long offset : offsets ) {
+						for( int length : lengths ) {
+							checkRead( sis, data, offset,
+									   ByteBuffer.allocate( length ) );
+							checkRead( sis, data, offset,
+									   ByteBuffer.allocateDirect( length ) );
+							checkRead( md, data, offset,
+									   ByteBuffer.allocate( length ) );
+							checkRead( md, data, offset,
+									   ByteBuffer.allocateDirect( length ) );
+						}
+						md.close();
+					}
+					assertEquals( -1, sis.read( data.length,
+												ByteBuffer.allocate( 1 ) ) );
+				} finally {
+					sis.close();
+					md.close();
+				}
+			}
+		} finally {
+			image.delete();
+			managed.delete();
+		}
+	}
+
+	/*
+	  ManagedDisk positional reads, from many threads at once against
+	  the one disk, match the image.  Includes grains from the parent.
+	*/
+	public void testConcurrentRead() throws Exception {
+		long grainSize = 8;
+		final int grain = (int)(grainSize * Constants.SECTORLENGTH);
+		int grains = ManagedDisk.NUMGTESPERGT;
+		final byte[] data = new byte[grains * grain];
+		new Random( 1 ).nextBytes( data );
+		Arrays.fill( data, 8 * grain, 16 * grain, (byte)0 );
+		File parentImage = File.createTempFile( "parent", ".dd" );
+		File childImage = File.createTempFile( "child", ".dd" );
+		File parentFile = File.createTempFile( "parent", ManagedDisk.FILESUFFIX );
+		File childFile = File.createTempFile( "child", ManagedDisk.FILESUFFIX );
+		try {
+			FileUtils.writeByteArrayToFile
+				( parentImage, data );
+			StreamOptimizedDisk parentSOD = new StreamOptimizedDisk
+				( new DiskImage( parentImage, "disk" ), Session.CANNED,
+				  Constants.NULLUUID, grainSize );
+			parentSOD.writeTo( parentFile );
+			ManagedDisk parent = ManagedDisk.readFrom( parentFile );
+
+			ManagedDiskDigest digest = new ManagedDiskDigest();
+			MessageDigest md5 = MessageDigest.
+				getInstance( ManagedDisk.DIGESTALGORITHM );
+			for( int g = 0; g < grains; g++ ) {
+				md5.update( data, g * grain, grain );
+				digest.add( md5.digest() );
+			}
+
+			// Change the first half only, the rest is the parent's
+			for( int i = 0; i < data.length / 2; i += grain )
+				data[i]++;
+			FileUtils.writeByteArrayToFile
+				( childImage, data );
+			StreamOptimizedDisk childSOD = new StreamOptimizedDisk
+				( new DiskImage( childImage, "disk" ),
+				  Session.CANNED.successor(), parent.getUUIDCreate(),
+				  grainSize );
+			childSOD.setParentDigest( digest );
+			childSOD.writeTo( childFile );
+			final ManagedDisk child = ManagedDisk.readFrom( childFile );
+			child.setParent( parent );
+
+			final AtomicInteger failures = new AtomicInteger();
+			Thread[] ts = new Thread[8];
+			for( int t = 0; t < ts.length; t++ ) {
+				final Random r = new Random( t );
+				ts[t] = new Thread() {
+						public void run() {
+							try {
+								for( int i = 0; i < 500; i++ ) {
+									int offset = r.nextInt( data.length );
+									int len = 1 + r.nextInt( 3 * grain );
+									byte[] ba = new byte[len];
+									int expected = Math.min
+										( len, data.length - offset );
+									int n = child.read( offset, ba, 0, len );
+									if( n != expected ||
+										!Arrays.equals
+										( Arrays.copyOfRange
+										  ( data, offset, offset + n ),
+										  Arrays.copyOf( ba, n ) ) )
+										failures.incrementAndGet();
+								}
+							} catch( IOException ioe ) {
+								failures.incrementAndGet();
+							}
+						}
+					};
+				ts[t].start();
+			}
+			for( Thread t : ts )
+				t.join();
+			assertEquals( 0, failures.get() );
+			assertEquals( -1, child.read( data.length,
+										  ByteBuffer.allocate( 1 ) ) );
+			child.close();
+			parent.close();
+		} finally {
+			parentImage.delete();
+			childImage.delete();
+			parentFile.delete();
+			childFile.delete();
+		}
+	}
+
+	/*
+	  A grain that will not decompress fails the read, by every read
+	  path, rather than passing off whatever was in the buffer.  Other
+	  grains still read.
+	*/
+	public void testCorruptGrain() throws Exception {
+		long grainSize = 8;
+		int grain = (int)(grainSize * Constants.SECTORLENGTH);
+		byte[] data = new byte[ManagedDisk.NUMGTESPERGT * grain];
+		new Random( 1 ).nextBytes( data );
+		File image = File.createTempFile( "image", ".dd" );
+		File managed = File.createTempFile( "image", ManagedDisk.FILESUFFIX );
+		try {
+			FileUtils.writeByteArrayToFile
+				( image, data );
+			StreamOptimizedDisk sod = new StreamOptimizedDisk
+				( new DiskImage( image, "disk" ), Session.CANNED,
+				  Constants.NULLUUID, grainSize );
+			sod.setCompression( ManagedDisk.Compressions.DEFLATE );
+			sod.writeTo( managed );
+
+			// Grain 0's marker, lba 0 then size, is followed by a zlib
+			// header, which we break
+			byte[] md = FileUtils.readFileToByteArray
+				( managed );
+			ByteBuffer bb = ByteBuffer.wrap( md );
+			int at = -1;
+			for( int i = 0; i + 13 < md.length && at < 0; i += 512 ) {
+				int size = bb.getInt( i + 8 );
+				if( bb.getLong( i ) == 0 && size > 0 && size <= 2 * grain &&
+					md[i + 12] == 0x78 )
+					at = i + 12;
+			}
+			assertTrue( at > 0 );
+			md[at] = (byte)0xff;
+			md[at + 1] = (byte)0xff;
+			FileUtils.writeByteArrayToFile
+				( managed, md );
+
+			ManagedDisk disk = ManagedDisk.readFrom( managed );
+			SeekableInputStream sis = disk.getSeekableInputStream();
+			try {
+				ByteBuffer[] dsts = { ByteBuffer.allocate( grain ),
+									  ByteBuffer.allocate( 10 ) };
+				for( ByteBuffer dst : dsts ) {
+					try {
+						sis.read( 0, dst );
+						fail( "Read a corrupt grain" );
+					} catch( IOException expected ) {
+					}
+				}
+				try {
+					sis.seek( 0 );
+					sis.read( new byte[10] );
+					fail( "Read a corrupt grain" );
+				} catch( IOException expected ) {
+				}
+				try {
+					disk.read( 0, ByteBuffer.allocate( grain ) );
+					fail( "Read a corrupt grain" );
+				} catch( IOException expected ) {
+				}
+				checkRead( sis, data, grain, ByteBuffer.allocate( 2 * grain ) );
+				checkRead( sis, data, grain + 10, ByteBuffer.allocate( 10 ) );
+				try {
+					sis.read( 10, ByteBuffer.allocate( 10 ) );
+					fail( "Read a corrupt grain" );
+				} catch( IOException expected ) {
+				}
+			} finally {
+				sis.close();
+				disk.close();
+			}
+		} finally {
+			image.delete();
+			managed.delete();
+		}
+	}
+
+	private void checkRead( ManagedDisk md, byte[] data,
+							long offset, ByteBuffer bb ) throws IOException {
+		int expected = (int)Math.min( bb.remaining(), data.length - offset );
+		int n = md.read( offset, bb );
+		assertEquals( expected, n );
+		assertEquals( expected, bb.position() );
+		bb.flip();
+		for( int i = 0; i < n; i++ )
+			assertEquals( data[(int)offset + i], bb.get( i ) );
+	}
+
+	private void checkRead( SeekableInputStream sis, byte[] data,
+							long offset, ByteBuffer bb ) throws IOException {
+		int expected = (int)Math.min( bb.remaining(), data.length - offset );
+		int n = sis.read( offset, bb );
+		assertEquals( expected, n );
+		assertEquals( expected, bb.position() );
+		bb.flip();
+		for( int i = 0; i < n; i++ )
+			assertEquals( data[(int)offset + i], bb.get( i ) );
+	}
+
 	public void _testManage32m() throws IOException {
 		File f = new File( "src/test/resources/32m.zero" );
 		if( !f.exists() )
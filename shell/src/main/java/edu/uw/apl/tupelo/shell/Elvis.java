@@ -79,6 +79,7 @@ import edu.uw.apl.tupelo.model.ProgressMonitor;
 import edu.uw.apl.tupelo.model.StreamOptimizedDisk;
 import edu.uw.apl.tupelo.model.UnmanagedDisk;
 import edu.uw.apl.tupelo.http.client.HttpStoreProxy;
+import edu.uw.apl.tupelo.store.PagedManagedDiskDigest;
 import edu.uw.apl.tupelo.store.Store;
 import edu.uw.apl.tupelo.store.null_.NullStore;
 import edu.uw.apl.tupelo.utils.Discovery;
@@ -463,13 +464,16 @@ public class Elvis extends Shell {
                 for(ManagedDiskDescriptor mdd : matchingDisks){
                     System.out.println(mdd.toString());
                     System.out.println("Matching MD5|SHA1|SHA256|Size|Path:");
-                    List<Record> records = store.getRecords(mdd, algorithm, byteHashes);
-                    for(Record record : records){
-                        String md5 = new String(Hex.encodeHex(record.md5));
-                        String sha1 = new String(Hex.encodeHex(record.sha1));
-                        String sha256 = new String(Hex.encodeHex(record.sha256));
-                        System.out.println(md5+"|"+sha1+"|"+sha256+"|"+record.size+"|"+record.path);
-                    }
+                    // Print each as it arrives
+                    store.getRecords(mdd, algorithm, byteHashes, new Store.RecordCallback() {
+                        @Override
+                        public void gotRecord(Record record) {
+                            String md5 = new String(Hex.encodeHex(record.md5));
+                            String sha1 = new String(Hex.encodeHex(record.sha1));
+                            String sha256 = new String(Hex.encodeHex(record.sha256));
+                            System.out.println(md5+"|"+sha1+"|"+sha256+"|"+record.size+"|"+record.path);
+                        }
+                    });
                     System.out.println("\n");
                 }
             }
@@ -833,7 +837,7 @@ public class Elvis extends Shell {
 			if( debug )
 				System.out.println( "UUID: " + uuid );
 			log.info( "Requesting digest for: "+ recent );
-			digest = store.digest( recent );
+			digest = PagedManagedDiskDigest.open( store, recent );
 			if( digest == null ) {
 				log.warn( "No digest, continuing with full disk put" );
 			} else {
@@ -0,0 +1,106 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.uw.apl.tupelo.store;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The stream returned by {@link Store#attributeOutputStream}.  The
+ * value written becomes the attribute only on {@link #commit}.
+ * Closing without a commit, typically in a finally after some failed
+ * write, discards whatever was written, so a truncated value is never
+ * published:
+ *
+ * <pre>
+ * AttributeOutputStream os = store.attributeOutputStream( mdd, key );
+ * try {
+ *     ... write the value ...
+ *     os.commit();
+ * } finally {
+ *     os.close();
+ * }
+ * </pre>
+ */
+abstract public class AttributeOutputStream extends FilterOutputStream {
+
+	protected AttributeOutputStream( OutputStream out ) {
+		super( out );
+	}
+
+	// FilterOutputStream would write byte at a time
+	@Override
+	public void write( byte[] b, int off, int len ) throws IOException {
+		out.write( b, off, len );
+	}
+
+	/**
+	 * Complete the value and set the attribute to it, replacing any
+	 * previous value.  Closes the stream.
+	 */
+	public void commit() throws IOException {
+		if( done )
+			throw new IOException( "Already closed" );
+		done = true;
+		publish();
+	}
+
+	/**
+	 * Discard the value, unless already committed
+	 */
+	@Override
+	public void close() throws IOException {
+		if( done )
+			return;
+		done = true;
+		discard();
+	}
+
+	/**
+	 * Close the underlying stream and make its content the
+	 * attribute's value
+	 */
+	abstract protected void publish() throws IOException;
+
+	/**
+	 * Close the underlying stream and drop its content
+	 */
+	abstract protected void discard() throws IOException;
+
+	private boolean done;
+}
+
+// eof
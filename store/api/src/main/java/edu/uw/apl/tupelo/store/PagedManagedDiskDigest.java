@@ -0,0 +1,156 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.store;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import org.apache.commons.codec.binary.Hex;
+
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.ManagedDiskDigest;
+
+/**
+ * A read-only {@link ManagedDiskDigest} which fetches grain hashes from a
+ * {@link Store} one page at a time, as they are asked for.  Only the
+ * current page is held in memory, so a multi-terabyte disk's digest
+ * costs no more than a small one.
+ *
+ * Intended for sequential consumers, e.g. an incremental put via
+ * {@link edu.uw.apl.tupelo.model.ManagedDisk#setParentDigest}.  Random
+ * access works but may refetch pages.
+ *
+ * Since {@link #get(int)} cannot throw IOException, a failed page fetch
+ * surfaces as an IllegalStateException wrapping the IOException.
+ *
+ * Hashes {@link #add added} follow the store's, and are held in memory,
+ * the store's digest itself is never changed.
+ */
+public class PagedManagedDiskDigest extends ManagedDiskDigest {
+
+	/**
+	 * @return a paged digest for the managed disk, or null if the store
+	 * holds no digest for it
+	 */
+	static public PagedManagedDiskDigest open( Store store,
+											   ManagedDiskDescriptor mdd )
+		throws IOException {
+		return open( store, mdd, PAGESIZE_DEFAULT );
+	}
+
+	static public PagedManagedDiskDigest open( Store store,
+											   ManagedDiskDescriptor mdd,
+											   int pageSize )
+		throws IOException {
+		int size = store.digestSize( mdd );
+		if( size < 0 )
+			return null;
+		return new PagedManagedDiskDigest( store, mdd, size, pageSize );
+	}
+
+	private PagedManagedDiskDigest( Store store, ManagedDiskDescriptor mdd,
+									int size, int pageSize ) {
+		this.store = store;
+		this.mdd = mdd;
+		this.size = size;
+		this.pageSize = pageSize;
+		this.pageStart = -1;
+	}
+
+	@Override
+	public void add( byte[] ba ) {
+		tail.add( ba );
+	}
+
+	@Override
+	public byte[] get( int i ) {
+		if( i >= size && i < size() )
+			return tail.get( i - size );
+		if( i < 0 || i >= size )
+			throw new IndexOutOfBoundsException( "" + i + "/" + size() );
+		if( page == null || i < pageStart || i >= pageStart + page.size() ) {
+			try {
+				load( i - (i % pageSize) );
+			} catch( IOException ioe ) {
+				throw new IllegalStateException( ioe );
+			}
+		}
+		return page.get( i - pageStart );
+	}
+
+	@Override
+	public int size() {
+		return size + tail.size();
+	}
+
+	/**
+	 * Writes the hex-per-line form, a page at a time
+	 */
+	@Override
+	public void writeTo( Writer w ) throws IOException {
+		PrintWriter pw = new PrintWriter( w );
+		for( int from = 0; from < size; from += pageSize ) {
+			load( from );
+			for( int i = 0; i < page.size(); i++ ) {
+				pw.println( new String( Hex.encodeHex( page.get(i) ) ) );
+			}
+		}
+		for( int i = 0; i < tail.size(); i++ )
+			pw.println( new String( Hex.encodeHex( tail.get(i) ) ) );
+		pw.close();
+	}
+
+	private void load( int from ) throws IOException {
+		ManagedDiskDigest d = store.digest( mdd, from, pageSize );
+		if( d == null || d.size() == 0 )
+			throw new IOException( "Digest page missing: " + mdd + " " + from );
+		page = d;
+		pageStart = from;
+	}
+
+	private final Store store;
+	private final ManagedDiskDescriptor mdd;
+	private final int size;
+	private final int pageSize;
+	private ManagedDiskDigest page;
+	private int pageStart;
+	// Hashes added here, after the store's
+	private final ManagedDiskDigest tail = new ManagedDiskDigest();
+
+	// 64K grain hashes (16 bytes each for md5) per page
+	static public final int PAGESIZE_DEFAULT = 64 * 1024;
+}
+
+// eof
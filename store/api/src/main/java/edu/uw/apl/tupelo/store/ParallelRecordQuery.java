@@ -0,0 +1,210 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.uw.apl.tupelo.store;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.uw.apl.commons.tsk4j.digests.BodyFile.Record;
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+
+/**
+ * Fetch the file records matching some hashes from many managed disks
+ * at once, one task per disk on a bounded executor, rather than one
+ * disk after another.  Each disk's records are in its own database, so
+ * the lookups are independent, and a query's latency is that of the
+ * slowest disk rather than the sum over all of them.
+ * <br> <br>
+ * Records are handed to the callback as they arrive, from whichever
+ * disk, one call at a time, so the callback needs no locking of its
+ * own.  A query has a deadline: disks not done by then are abandoned,
+ * and nothing more is delivered from them.  Their tasks are interrupted,
+ * which a store should take as a cue to stop, as the filesystem store
+ * does by cancelling its SQLite query, lest they keep the executor's
+ * threads from later queries.  A failing callback ends the query at
+ * once, abandoning all disks not yet done.
+ */
+public class ParallelRecordQuery {
+
+	/**
+	 * Receives file records, and the disk they are from
+	 */
+	public interface Callback {
+		public void gotRecord( ManagedDiskDescriptor mdd, Record record )
+			throws IOException;
+	}
+
+	/**
+	 * @param store the store to query
+	 * @param executor runs the per-disk queries, see {@link #newExecutor}
+	 */
+	public ParallelRecordQuery( Store store, ExecutorService executor ) {
+		this.store = store;
+		this.executor = executor;
+	}
+
+	/**
+	 * @return a fixed-size pool of daemon threads suited to running
+	 * queries
+	 */
+	static public ExecutorService newExecutor( int threads ) {
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool( threads, new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable r ) {
+					Thread t = new Thread( r, "RecordQuery-" +
+										   count.incrementAndGet() );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+	}
+
+	/**
+	 * Query the disks for records with the hashes, waiting at most
+	 * timeoutMillis for all to answer.
+	 * @return the disks which did not answer in full, having failed or
+	 * missed the deadline.  Empty if all answered.
+	 * @throws IOException if the callback failed
+	 */
+	public List<ManagedDiskDescriptor> getRecords
+		( Collection<ManagedDiskDescriptor> disks, final String algorithm,
+		  final List<byte[]> hashes, long timeoutMillis,
+		  final Callback callback ) throws IOException {
+
+		final Object lock = new Object();
+		// Set once the query is over, so late records are dropped
+		final boolean[] done = { false };
+		// A callback failure, to rethrow on the query's thread
+		final IOException[] failure = { null };
+
+		CompletionService<ManagedDiskDescriptor> cs =
+			new ExecutorCompletionService<ManagedDiskDescriptor>( executor );
+		Map<Future<ManagedDiskDescriptor>,ManagedDiskDescriptor> pending =
+			new LinkedHashMap<Future<ManagedDiskDescriptor>,
+			ManagedDiskDescriptor>();
+		for( final ManagedDiskDescriptor mdd : disks ) {
+			Future<ManagedDiskDescriptor> f = cs.submit
+				( new Callable<ManagedDiskDescriptor>() {
+						@Override
+						public ManagedDiskDescriptor call() throws IOException {
+							store.getRecords( mdd, algorithm, hashes,
+											  new Store.RecordCallback() {
+									@Override
+									public void gotRecord( Record record )
+										throws IOException {
+										synchronized( lock ) {
+											if( done[0] )
+												throw new InterruptedIOException
+													( "Query over: " + mdd );
+											try {
+												callback.gotRecord( mdd, record );
+											} catch( IOException ioe ) {
+												if( failure[0] == null )
+													failure[0] = ioe;
+												done[0] = true;
+												throw ioe;
+											}
+										}
+									}
+								} );
+							return mdd;
+						}
+					} );
+			pending.put( f, mdd );
+		}
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		List<ManagedDiskDescriptor> incomplete =
+			new ArrayList<ManagedDiskDescriptor>();
+		try {
+			while( !pending.isEmpty() ) {
+				long wait = deadline - System.currentTimeMillis();
+				Future<ManagedDiskDescriptor> f =
+					wait > 0 ? cs.poll( wait, TimeUnit.MILLISECONDS ) : null;
+				if( f == null )
+					break;
+				ManagedDiskDescriptor mdd = pending.remove( f );
+				try {
+					f.get();
+				} catch( ExecutionException ee ) {
+					incomplete.add( mdd );
+				}
+				synchronized( lock ) {
+					if( failure[0] != null )
+						break;
+				}
+			}
+		} catch( InterruptedException ie ) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// Those left missed the deadline, or the callback failed
+			for( Map.Entry<Future<ManagedDiskDescriptor>,
+					 ManagedDiskDescriptor> me : pending.entrySet() ) {
+				me.getKey().cancel( true );
+				incomplete.add( me.getValue() );
+			}
+			// Waits out any record being delivered
+			synchronized( lock ) {
+				done[0] = true;
+			}
+		}
+		synchronized( lock ) {
+			if( failure[0] != null )
+				throw failure[0];
+		}
+		return incomplete;
+	}
+
+	private final Store store;
+	private final ExecutorService executor;
+}
+
+// eof
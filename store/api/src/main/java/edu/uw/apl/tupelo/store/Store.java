@@ -34,8 +34,10 @@
 package edu.uw.apl.tupelo.store;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import edu.uw.apl.commons.tsk4j.digests.BodyFile.Record;
@@ -128,6 +130,25 @@ public interface Store {
 	 */
 	public List<Record> getRecords(ManagedDiskDescriptor mdd, String algorithm, List<byte[]> hashes) throws IOException;
 
+	/**
+	 * As {@link #getRecords(ManagedDiskDescriptor, String, List)}, but
+	 * handing each record to the callback as it is found, rather than
+	 * collecting them all first
+	 * @param mdd the disk
+	 * @param algorithm the hash algorithm (MD5, SHA1, SHA256 only)
+	 * @param hashes the hashes to look up
+	 * @param callback gets each matching record
+	 */
+	public void getRecords(ManagedDiskDescriptor mdd, String algorithm, List<byte[]> hashes,
+						   RecordCallback callback) throws IOException;
+
+	/**
+	 * Receives file records one at a time, see getRecords
+	 */
+	public interface RecordCallback {
+		public void gotRecord( Record record ) throws IOException;
+	}
+
 	/**
 	 * @return size, in bytes, of the managed disk described by the
 	 * supplied descriptor. Return -1 if the descriptor does not
@@ -152,6 +173,29 @@ public interface Store {
 	public ManagedDiskDigest digest( ManagedDiskDescriptor mdd )
 		throws IOException;
 
+	/**
+	 * Get a range of the {@link ManagedDiskDigest} of a {@link ManagedDisk}
+	 * in the store: the hashes of grains from, from+1, ... from+count-1.
+	 * Fewer are returned if the range runs past the last grain.
+	 * For large disks, prefer paging through the digest this way (see
+	 * {@link PagedManagedDiskDigest}) over fetching it whole.
+	 * @param mdd
+	 * @param from index of the first grain hash wanted
+	 * @param count maximum number of grain hashes wanted
+	 * @return the grain hashes, or null if the disk has no digest
+	 * @throws IOException
+	 */
+	public ManagedDiskDigest digest( ManagedDiskDescriptor mdd,
+									 int from, int count )
+		throws IOException;
+
+	/**
+	 * @return the number of grain hashes in the digest of the managed disk,
+	 * or -1 if the disk has no digest
+	 * @throws IOException
+	 */
+	public int digestSize( ManagedDiskDescriptor mdd ) throws IOException;
+
 	/**
 	 * Get all the attributes associated with the ManagedDisk
 	 * @param mdd
@@ -183,6 +227,57 @@ public interface Store {
 	public byte[] getAttribute( ManagedDiskDescriptor mdd, String key )
 		throws IOException;
 
+	/**
+	 * Add several attributes about the ManagedDisk in one operation
+	 * @param mdd
+	 * @param values keyed by attribute name
+	 * @throws IOException
+	 */
+	public void setAttributes( ManagedDiskDescriptor mdd,
+							   Map<String,byte[]> values ) throws IOException;
+
+	/**
+	 * Get the values of several attributes for the ManagedDisk in one
+	 * operation. <br>
+	 * Keys with no attribute are absent from the result
+	 *
+	 * @param mdd
+	 * @param keys
+	 * @return values keyed by attribute name
+	 * @throws IOException
+	 */
+	public Map<String,byte[]> getAttributes( ManagedDiskDescriptor mdd,
+											 Collection<String> keys )
+		throws IOException;
+
+	/**
+	 * Add an attribute about the ManagedDisk, writing its value to the
+	 * returned stream.  For values too large to hold in memory,
+	 * e.g. the bodyfile of a large filesystem. <br>
+	 * The attribute is set, replacing any previous value, only when the
+	 * stream is committed.  Closed without a commit, nothing is set.
+	 *
+	 * @param mdd
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	public AttributeOutputStream attributeOutputStream
+		( ManagedDiskDescriptor mdd, String key ) throws IOException;
+
+	/**
+	 * Read the value of the attribute for the ManagedDisk from the
+	 * returned stream, which the caller must close. <br>
+	 * No attribute exists for the provided key, returns null
+	 *
+	 * @param mdd
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream attributeInputStream( ManagedDiskDescriptor mdd,
+											 String key ) throws IOException;
+
 	/**
 	 * Get the {@link ManagedDisk} associated with the provided {@link ManagedDiskDescriptor}
 	 * @param mdd
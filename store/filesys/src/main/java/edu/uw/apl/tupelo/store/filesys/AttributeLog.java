@@ -0,0 +1,414 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.uw.apl.tupelo.store.filesys;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The packed attribute store of one managed disk. <br>
+ * Attribute values are appended to a single log file, and an in-memory
+ * index maps each key to its latest value in the log, so listing and
+ * probing attributes costs no file system I/O once loaded. Each log
+ * record is the key (writeUTF), the value length (-1 for a removed
+ * key) and the value bytes.
+ * <br> <br>
+ * Large values, i.e. those streamed in, stay as one file per key in the
+ * disk's attrs directory. The log knows those keys too, listing the
+ * directory on load and again whenever its modification time changes
+ * or a key is missed, so files added by other processes are seen. A
+ * key's file supersedes any value of it in the log, being either a
+ * streamed value (which appends a removal anyway) or one written by a
+ * process not using the log. When the log is first created, small
+ * files in the attrs directory (from the file-per-key layout) are
+ * migrated into it.
+ * <br> <br>
+ * The log is reloaded when its length changes under us, i.e. another
+ * process appended to it. It is compacted, rewritten with only live
+ * records, once it is mostly superseded records.
+ */
+class AttributeLog {
+    private static final Log log = LogFactory.getLog(AttributeLog.class);
+
+    // Name of the log, in the disk's dir, beside (not in) the attrs dir
+    static final String FILENAME = "attrs.log";
+
+    // Largest attrs dir file migrated into the log on load
+    static final int MIGRATE_MAX = 64 * 1024;
+
+    // Log size below which we never bother compacting
+    private static final long COMPACT_MIN = 1024 * 1024;
+
+    private final File logFile;
+    private final File attrDir;
+    // key -> {offset of value, length of value} in the log
+    private final Map<String,long[]> index;
+    // keys held as files in attrDir
+    private final Set<String> fileKeys;
+    private long attrDirModified;
+    private long logLength;
+    private long liveBytes;
+
+    AttributeLog(File diskDir, File attrDir) throws IOException {
+        this.logFile = new File(diskDir, FILENAME);
+        this.attrDir = attrDir;
+        index = new LinkedHashMap<String,long[]>();
+        fileKeys = new HashSet<String>();
+        // No log yet means the disk's attributes are still file per key
+        boolean unpacked = !logFile.isFile();
+        load();
+        listFiles();
+        if(unpacked && !fileKeys.isEmpty()){
+            migrate();
+        }
+    }
+
+    synchronized Collection<String> keys() throws IOException {
+        refresh();
+        Set<String> result = new LinkedHashSet<String>(index.keySet());
+        result.addAll(fileKeys);
+        return result;
+    }
+
+    synchronized boolean contains(String key) throws IOException {
+        refresh();
+        return index.containsKey(key) || hasFile(key);
+    }
+
+    /**
+     * @return the value's file, if the key is held as a file, else null
+     */
+    synchronized File file(String key) throws IOException {
+        refresh();
+        return hasFile(key) ? new File(attrDir, key) : null;
+    }
+
+    synchronized byte[] get(String key) throws IOException {
+        Map<String,byte[]> result = get(Collections.singleton(key));
+        return result.get(key);
+    }
+
+    /**
+     * @return values of those of the keys which are present
+     */
+    synchronized Map<String,byte[]> get(Collection<String> keys) throws IOException {
+        refresh();
+        Map<String,byte[]> result = new HashMap<String,byte[]>();
+        RandomAccessFile raf = null;
+        try {
+            for(String key : keys){
+                long[] entry = index.get(key);
+                if(hasFile(key)){
+                    result.put(key, FileUtils.readFileToByteArray(new File(attrDir, key)));
+                } else if(entry != null){
+                    if(raf == null){
+                        raf = new RandomAccessFile(logFile, "r");
+                    }
+                    result.put(key, read(raf, entry));
+                }
+            }
+        } finally {
+            if(raf != null){
+                raf.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Set all the values with a single append to the log
+     */
+    synchronized void put(Map<String,byte[]> values) throws IOException {
+        refresh();
+        append(values, false);
+        for(String key : values.keySet()){
+            if(fileKeys.remove(key)){
+                new File(attrDir, key).delete();
+            }
+        }
+        compactIfWasteful();
+    }
+
+    /**
+     * Record that a (large) value has been written as a file in the
+     * attrs dir, so superseding any value in the log
+     */
+    synchronized void putFile(String key) throws IOException {
+        refresh();
+        fileKeys.add(key);
+        if(index.containsKey(key)){
+            Map<String,byte[]> removal = new HashMap<String,byte[]>();
+            removal.put(key, null);
+            append(removal, false);
+        }
+    }
+
+    // A null value appends a removal record
+    private void append(Map<String,byte[]> values, boolean sync) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        Map<String,long[]> entries = new HashMap<String,long[]>();
+        for(Map.Entry<String,byte[]> me : values.entrySet()){
+            dos.writeUTF(me.getKey());
+            byte[] value = me.getValue();
+            if(value == null){
+                dos.writeInt(-1);
+            } else {
+                dos.writeInt(value.length);
+                entries.put(me.getKey(), new long[] {logLength + dos.size(), value.length});
+                dos.write(value);
+            }
+        }
+        dos.flush();
+        FileOutputStream fos = new FileOutputStream(logFile, true);
+        try {
+            baos.writeTo(fos);
+            if(sync){
+                fos.getFD().sync();
+            }
+        } finally {
+            fos.close();
+        }
+        if(logFile.length() != logLength + baos.size()){
+            // Another process appended too, so our offsets are unknown
+            reload();
+            return;
+        }
+        logLength += baos.size();
+        for(String key : values.keySet()){
+            long[] old = index.remove(key);
+            if(old != null){
+                liveBytes -= old[1];
+            }
+            long[] entry = entries.get(key);
+            if(entry != null){
+                index.put(key, entry);
+                liveBytes += entry[1];
+            }
+        }
+    }
+
+    /*
+      Catch up with other processes: reload the log if its length has
+      changed, re-list the attrs dir if it has been modified.
+    */
+    private void refresh() throws IOException {
+        if(logFile.length() != logLength){
+            reload();
+        }
+        if(attrDir.lastModified() != attrDirModified){
+            listFiles();
+        }
+    }
+
+    /*
+      Whether the key is held as a file, re-listing the attrs dir on a
+      miss in case the file was added within the modification time's
+      granularity.  A listed file since removed is forgotten.
+    */
+    private boolean hasFile(String key) {
+        if(!fileKeys.contains(key)){
+            if(index.containsKey(key)){
+                return false;
+            }
+            listFiles();
+        }
+        if(!fileKeys.contains(key)){
+            return false;
+        }
+        if(!new File(attrDir, key).isFile()){
+            fileKeys.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    private void listFiles() {
+        attrDirModified = attrDir.lastModified();
+        fileKeys.clear();
+        File[] fs = attrDir.listFiles();
+        if(fs == null){
+            return;
+        }
+        for(File f : fs){
+            fileKeys.add(f.getName());
+        }
+    }
+
+    private void reload() throws IOException {
+        index.clear();
+        liveBytes = 0;
+        logLength = 0;
+        load();
+    }
+
+    private static byte[] read(RandomAccessFile raf, long[] entry) throws IOException {
+        byte[] value = new byte[(int) entry[1]];
+        raf.seek(entry[0]);
+        raf.readFully(value);
+        return value;
+    }
+
+    /*
+      Rebuild the index from the log.  A record cut short (a crash
+      mid-append) is dropped, and the log truncated back to the last
+      whole record.
+    */
+    private void load() throws IOException {
+        if(!logFile.isFile()){
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        try {
+            long length = raf.length();
+            long good = 0;
+            try {
+                while(good < length){
+                    String key = raf.readUTF();
+                    int len = raf.readInt();
+                    long offset = raf.getFilePointer();
+                    if(len > 0 && offset + len > length){
+                        throw new EOFException();
+                    }
+                    raf.seek(offset + Math.max(len, 0));
+                    long[] old = index.remove(key);
+                    if(old != null){
+                        liveBytes -= old[1];
+                    }
+                    if(len >= 0){
+                        index.put(key, new long[] {offset, len});
+                        liveBytes += len;
+                    }
+                    good = raf.getFilePointer();
+                }
+            } catch(EOFException eof){
+                log.warn("Truncating torn record at " + good + " in " + logFile);
+                raf.setLength(good);
+            }
+            logLength = good;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+      Move small attrs dir files into the log.  The log is synced
+      before the files are removed, so a crash loses nothing.
+    */
+    private void migrate() throws IOException {
+        Map<String,byte[]> small = new HashMap<String,byte[]>();
+        for(String key : fileKeys){
+            File f = new File(attrDir, key);
+            if(f.isFile() && f.length() <= MIGRATE_MAX && !index.containsKey(key)){
+                small.put(key, FileUtils.readFileToByteArray(f));
+            }
+        }
+        if(small.isEmpty()){
+            return;
+        }
+        append(small, true);
+        for(String key : small.keySet()){
+            fileKeys.remove(key);
+            new File(attrDir, key).delete();
+        }
+        log.info("Migrated " + small.size() + " attributes into " + logFile);
+    }
+
+    private void compactIfWasteful() throws IOException {
+        if(logLength < COMPACT_MIN || liveBytes * 2 > logLength){
+            return;
+        }
+        Map<String,byte[]> live = new HashMap<String,byte[]>();
+        RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+        try {
+            for(Map.Entry<String,long[]> me : index.entrySet()){
+                live.put(me.getKey(), read(raf, me.getValue()));
+            }
+        } finally {
+            raf.close();
+        }
+        File tmp = new File(logFile.getPath() + ".tmp");
+        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(tmp));
+        Map<String,long[]> rebuilt = new LinkedHashMap<String,long[]>();
+        long length = 0;
+        try {
+            for(String key : index.keySet()){
+                byte[] value = live.get(key);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(baos);
+                dos.writeUTF(key);
+                dos.writeInt(value.length);
+                dos.flush();
+                rebuilt.put(key, new long[] {length + baos.size(), value.length});
+                baos.writeTo(bos);
+                bos.write(value);
+                length += baos.size() + value.length;
+            }
+        } finally {
+            bos.close();
+        }
+        if(logFile.length() != logLength){
+            // Appended to meanwhile, by another process; try again later
+            tmp.delete();
+            return;
+        }
+        long before = logLength;
+        Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        index.clear();
+        index.putAll(rebuilt);
+        logLength = length;
+        log.info("Compacted " + logFile + ": " + before + " -> " + logLength + " bytes");
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.uw.apl.tupelo.store.filesys;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A Bloom filter over file hashes (md5, sha1, sha256), so a lookup of a
+ * hash a disk does not have can usually be answered without querying
+ * its {@link FileRecordStore}. <br>
+ * File hashes are already uniformly distributed, so the filter's bit
+ * positions come straight from the hash bytes (double hashing on the
+ * first two 64-bit words), rather than from rehashing.
+ * <br> <br>
+ * A filter is built in memory, then written to a file. A filter read
+ * back from file is memory-mapped, so opening one costs next to
+ * nothing, whatever its size.
+ */
+class BloomFilter {
+
+    // File layout: magic, hash function count, capacity, count, bits
+    private static final int MAGIC = 0x426c6f31;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+    // Target false positive rate, at capacity
+    static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private final LongBuffer bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final long capacity;
+    private long count;
+
+    private BloomFilter(LongBuffer bits, int hashCount, long capacity, long count) {
+        this.bits = bits;
+        this.bitCount = (long) bits.capacity() * 64;
+        this.hashCount = hashCount;
+        this.capacity = capacity;
+        this.count = count;
+    }
+
+    /**
+     * @param capacity number of hashes the filter is sized for, at
+     * FALSE_POSITIVE_RATE
+     */
+    static BloomFilter create(long capacity) {
+        capacity = Math.max(capacity, 64);
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-capacity * Math.log(FALSE_POSITIVE_RATE) / (ln2 * ln2));
+        int k = Math.max(1, (int) Math.round((double) m / capacity * ln2));
+        long words = (m + 63) / 64;
+        if(words > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("Bloom filter too large: " + capacity);
+        }
+        return new BloomFilter(LongBuffer.wrap(new long[(int) words]), k, capacity, 0);
+    }
+
+    /**
+     * Map a filter previously written by {@link #writeTo(File)}
+     * @return the filter, or null if the file is missing or not a filter
+     */
+    static BloomFilter map(File f) throws IOException {
+        if(!f.isFile()){
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            if(fc.size() < HEADER_SIZE){
+                return null;
+            }
+            MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if(mbb.getInt() != MAGIC){
+                return null;
+            }
+            int k = mbb.getInt();
+            long capacity = mbb.getLong();
+            long count = mbb.getLong();
+            // The mapping outlives the channel
+            return new BloomFilter(mbb.slice().asLongBuffer(), k, capacity, count);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return a writable copy, e.g. of a mapped filter, to add to
+     */
+    BloomFilter copy() {
+        long[] words = new long[bits.capacity()];
+        LongBuffer lb = bits.duplicate();
+        lb.rewind();
+        lb.get(words);
+        return new BloomFilter(LongBuffer.wrap(words), hashCount, capacity, count);
+    }
+
+    void add(byte[] hash) {
+        long h1 = word(hash, 0);
+        long h2 = word(hash, 8);
+        for(int i = 0; i < hashCount; i++){
+            long bit = Math.abs((h1 + i * h2) % bitCount);
+            int index = (int) (bit >>> 6);
+            bits.put(index, bits.get(index) | (1L << (bit & 63)));
+        }
+        count++;
+    }
+
+    boolean mightContain(byte[] hash) {
+        long h1 = word(hash, 0);
+        long h2 = word(hash, 8);
+        for(int i = 0; i < hashCount; i++){
+            long bit = Math.abs((h1 + i * h2) % bitCount);
+            if((bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the filter holds more hashes than it was sized
+     * for, so its false positive rate is above target
+     */
+    boolean isFull() {
+        return count > capacity;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Write the filter to a file, atomically replacing any existing one
+     */
+    void writeTo(File f) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 1024 * 64));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(hashCount);
+            dos.writeLong(capacity);
+            dos.writeLong(count);
+            for(int i = 0; i < bits.capacity(); i++){
+                dos.writeLong(bits.get(i));
+            }
+        } finally {
+            dos.close();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Up to 8 bytes of the hash from offset, as a long.  Short hashes wrap
+    private static long word(byte[] hash, int offset) {
+        long result = 0;
+        if(hash.length == 0){
+            return result;
+        }
+        for(int i = 0; i < 8; i++){
+            result = (result << 8) | (hash[(offset + i) % hash.length] & 0xff);
+        }
+        return result;
+    }
+}
@@ -40,14 +40,30 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -55,6 +71,7 @@ import org.sqlite.JDBC;
 
 import edu.uw.apl.commons.tsk4j.digests.BodyFile.Record;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.store.Store.RecordCallback;
 
 /**
  * A store for keeping a disk's file {@link Record} information. <br>
@@ -72,11 +89,42 @@ public class FileRecordStore implements Closeable {
 	// Name of the version file
 	private static final String DB_VERSION_FILE = "fileRecord.version";
 	// The DB version
-	private static final int VERSION = 2;
+	// 3: indexes on the hash columns
+	// 4: compact records: paths split into a shared directory and a
+	//    name, attr and name/meta types packed, and times other than
+	//    mtime held relative to mtime, so mostly small or zero
+	// 5: directories, and so records, belong to a filesystem
+	private static final int VERSION = 5;
+	// Oldest version which can be brought up to date in place
+	private static final int MIGRATABLE_VERSION = 2;
 
 	// SQL Table/column names
 	private static final String TABLE_NAME = "records";
-	// String
+	private static final String DIRS_TABLE = "dirs";
+	// long, String: a directory's id and path, with trailing /
+	private static final String DIR_ID_COL = "id";
+	private static final String DIR_PATH_COL = "path";
+	// int, the directory's filesystem id, NO_FILESYSTEM if unknown
+	private static final String DIR_FS_COL = "fs";
+	private static final String FILESYSTEMS_TABLE = "filesystems";
+	// int, long, long: a filesystem's id, and its start and length in
+	// sectors, as the volume system has them
+	private static final String FS_ID_COL = "id";
+	private static final String FS_START_COL = "start";
+	private static final String FS_LENGTH_COL = "length";
+	// long, its record count, null until all its records are in
+	private static final String FS_RECORDS_COL = "records";
+	// long, a record's id, aliasing its rowid, so that VACUUM keeps it
+	// for the hash index and sorted hash files, which refer to it
+	private static final String ID_COL = "id";
+	// long, String: a record's directory id and name within it
+	private static final String DIR_COL = "dir";
+	private static final String NAME_COL = "name";
+	// int, packed attr_type, attr_id
+	private static final String ATTR_COL = "attr";
+	// int, packed name_type, meta_type
+	private static final String TYPE_COL = "type";
+	// String, the version 2-3 full path
 	private static final String PATH_COL = "path";
 	// byte[]
 	private static final String MD5_COL = "md5";
@@ -86,10 +134,10 @@ public class FileRecordStore implements Closeable {
 	private static final String SHA256_COL = "sha256";
 	// long
 	private static final String INODE_COL = "inode";
-	// short
+	// short, version 2-3, now packed in ATTR_COL
 	private static final String ATTR_TYPE_COL = "attr_type";
 	private static final String ATTR_ID_COL = "attr_id";
-	// byte
+	// byte, version 2-3, now packed in TYPE_COL
 	private static final String NAME_TYPE_COL = "name_type";
 	private static final String META_TYPE_COL = "meta_type";
 	// int
@@ -107,18 +155,66 @@ public class FileRecordStore implements Closeable {
 	// Insert batch size
 	public static final int INSERT_BATCH_SIZE = 1000;
 
-	// Table creation SQL statement
+	// The filesystem of records added without one
+	public static final int NO_FILESYSTEM = 0;
+
+	// Most prepared statements kept, the IN (...) queries vary in length
+	private static final int STATEMENT_CACHE_SIZE = 32;
+
+	// Most hashes queried with IN (...), SQLite allows 999 parameters.
+	// Larger sets are loaded into QUERY_TABLE and joined.
+	static final int IN_LIST_MAX = 500;
+
+	// Bloom filter file names, by hash column, see BloomFilter
+	private static final String[] FILTER_FILES = {
+			"fileRecord.md5.bloom", "fileRecord.sha1.bloom", "fileRecord.sha256.bloom"
+	};
+	// Present while some store's filters lag its table, e.g. mid bulk load
+	private static final String FILTER_STALE_FILE = "fileRecord.bloom.stale";
+
+	// Sorted hash file names and hash widths, by hash column, see SortedHashFile
+	private static final String[] SORTED_FILES = {
+			"fileRecord.md5.sorted", "fileRecord.sha1.sorted", "fileRecord.sha256.sorted"
+	};
+	private static final int[] HASH_WIDTHS = { 16, 20, 32 };
+
+	// Bloom filter metrics, over all FileRecordStores
+	private static final AtomicLong FILTER_QUERIES = new AtomicLong();
+	private static final AtomicLong FILTER_SKIPS = new AtomicLong();
+	private static final AtomicLong FILTER_FALSE_POSITIVES = new AtomicLong();
+
+	// Stores running a callback query, checked by the watchdog
+	private static final Set<FileRecordStore> QUERYING = Collections.newSetFromMap(
+			new ConcurrentHashMap<FileRecordStore,Boolean>());
+	private static final long QUERY_WATCH_MILLIS = 100;
+	private static ScheduledExecutorService queryWatchdog;
+
+	// Table creation SQL statements
+	private static final String CREATE_FILESYSTEMS_STATEMENT =
+			"CREATE TABLE "+FILESYSTEMS_TABLE+" ("+
+			FS_ID_COL+" INTEGER PRIMARY KEY, "+
+			FS_START_COL+" INTEGER, "+
+			FS_LENGTH_COL+" INTEGER, "+
+			FS_RECORDS_COL+" INTEGER"+
+			")";
+	private static final String CREATE_DIRS_STATEMENT =
+			"CREATE TABLE "+DIRS_TABLE+" ("+
+			DIR_ID_COL+" INTEGER PRIMARY KEY, "+
+			DIR_FS_COL+" INTEGER NOT NULL DEFAULT "+NO_FILESYSTEM+", "+
+			DIR_PATH_COL+" TEXT, "+
+			"UNIQUE ("+DIR_FS_COL+", "+DIR_PATH_COL+")"+
+			")";
 	private static final String CREATE_STATEMENT =
 			"CREATE TABLE "+TABLE_NAME+" ("+
-			PATH_COL+" STRING, "+
+			ID_COL+" INTEGER PRIMARY KEY, "+
+			DIR_COL+" INTEGER, "+
+			NAME_COL+" TEXT, "+
 			MD5_COL+" BLOB, "+
 			SHA1_COL+" BLOB, "+
 			SHA256_COL+" BLOB, "+
 			INODE_COL+" INTEGER, "+
-			ATTR_TYPE_COL+" INTEGER, "+
-			ATTR_ID_COL+" INTEGER, "+
-			NAME_TYPE_COL+" INTEGER, "+
-			META_TYPE_COL+" INTEGER, "+
+			ATTR_COL+" INTEGER, "+
+			TYPE_COL+" INTEGER, "+
 			PERM_COL+" INTEGER, "+
 			UID_COL+" INTEGER, "+
 			GID_COL+" INTEGER, "+
@@ -129,13 +225,107 @@ public class FileRecordStore implements Closeable {
 			CRTIME_COL+" INTEGER"+
 			")";
 
+	// Version 2-3 migration: the directory part of a path, with trailing
+	// /, is what is left once every other character is trimmed off its end
+	private static final String OLD_PATH = "IFNULL(r."+PATH_COL+", '')";
+	private static final String OLD_DIR = "rtrim("+OLD_PATH+", replace("+OLD_PATH+", '/', ''))";
+	private static final String[] MIGRATE_STATEMENTS = {
+			CREATE_FILESYSTEMS_STATEMENT,
+			CREATE_DIRS_STATEMENT,
+			"INSERT INTO "+DIRS_TABLE+" ("+DIR_PATH_COL+") SELECT DISTINCT "+OLD_DIR+
+			" FROM "+TABLE_NAME+" r",
+			CREATE_STATEMENT.replace("TABLE "+TABLE_NAME+" ", "TABLE "+TABLE_NAME+"_compact "),
+			"INSERT INTO "+TABLE_NAME+"_compact ("+ID_COL+", "+DIR_COL+", "+NAME_COL+", "+
+			MD5_COL+", "+SHA1_COL+", "+SHA256_COL+", "+INODE_COL+", "+ATTR_COL+", "+TYPE_COL+", "+
+			PERM_COL+", "+UID_COL+", "+GID_COL+", "+SIZE_COL+", "+
+			ATIME_COL+", "+MTIME_COL+", "+CTIME_COL+", "+CRTIME_COL+") "+
+			"SELECT r.rowid, d."+DIR_ID_COL+", substr("+OLD_PATH+", length(d."+DIR_PATH_COL+") + 1), "+
+			"NULLIF(r."+MD5_COL+", x''), NULLIF(r."+SHA1_COL+", x''), NULLIF(r."+SHA256_COL+", x''), "+
+			"r."+INODE_COL+", (r."+ATTR_TYPE_COL+" << 16) | (r."+ATTR_ID_COL+" & 65535), "+
+			"(r."+NAME_TYPE_COL+" << 8) | (r."+META_TYPE_COL+" & 255), "+
+			"r."+PERM_COL+", r."+UID_COL+", r."+GID_COL+", r."+SIZE_COL+", "+
+			"r."+ATIME_COL+" - r."+MTIME_COL+", r."+MTIME_COL+", "+
+			"r."+CTIME_COL+" - r."+MTIME_COL+", r."+CRTIME_COL+" - r."+MTIME_COL+" "+
+			"FROM "+TABLE_NAME+" r JOIN "+DIRS_TABLE+" d ON d."+DIR_PATH_COL+" = "+OLD_DIR,
+			"DROP TABLE "+TABLE_NAME,
+			"ALTER TABLE "+TABLE_NAME+"_compact RENAME TO "+TABLE_NAME
+	};
+
+	// Version 4 migration: existing directories are of no known filesystem
+	private static final String[] MIGRATE_V4_STATEMENTS = {
+			CREATE_FILESYSTEMS_STATEMENT,
+			CREATE_DIRS_STATEMENT.replace("TABLE "+DIRS_TABLE+" ", "TABLE "+DIRS_TABLE+"_fs "),
+			"INSERT INTO "+DIRS_TABLE+"_fs ("+DIR_ID_COL+", "+DIR_PATH_COL+") "+
+			"SELECT "+DIR_ID_COL+", "+DIR_PATH_COL+" FROM "+DIRS_TABLE,
+			"DROP TABLE "+DIRS_TABLE,
+			"ALTER TABLE "+DIRS_TABLE+"_fs RENAME TO "+DIRS_TABLE
+	};
+
+	// Hash column index creation SQL statements
+	private static final String[] CREATE_INDEX_STATEMENTS = {
+			"CREATE INDEX IF NOT EXISTS "+TABLE_NAME+"_"+MD5_COL+" ON "+TABLE_NAME+" ("+MD5_COL+")",
+			"CREATE INDEX IF NOT EXISTS "+TABLE_NAME+"_"+SHA1_COL+" ON "+TABLE_NAME+" ("+SHA1_COL+")",
+			"CREATE INDEX IF NOT EXISTS "+TABLE_NAME+"_"+SHA256_COL+" ON "+TABLE_NAME+" ("+SHA256_COL+")"
+	};
+
+	// Hash column index removal SQL statements
+	private static final String[] DROP_INDEX_STATEMENTS = {
+			"DROP INDEX IF EXISTS "+TABLE_NAME+"_"+MD5_COL,
+			"DROP INDEX IF EXISTS "+TABLE_NAME+"_"+SHA1_COL,
+			"DROP INDEX IF EXISTS "+TABLE_NAME+"_"+SHA256_COL
+	};
+
 	// Insert SQL statment
 	private static final String INSERT_STATEMENT =
 			"INSERT INTO "+TABLE_NAME+" ("+
-			PATH_COL+", "+MD5_COL+", "+SHA1_COL+", "+SHA256_COL+", "+INODE_COL+", "+ ATTR_TYPE_COL+", "+
-			ATTR_ID_COL+", "+NAME_TYPE_COL+", "+META_TYPE_COL+", "+PERM_COL+", "+
+			DIR_COL+", "+NAME_COL+", "+MD5_COL+", "+SHA1_COL+", "+SHA256_COL+", "+INODE_COL+", "+
+			ATTR_COL+", "+TYPE_COL+", "+PERM_COL+", "+
 			UID_COL+", "+GID_COL+", "+SIZE_COL+", "+ATIME_COL+", "+MTIME_COL+", "
-			+CTIME_COL+", "+CRTIME_COL+") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+			+CTIME_COL+", "+CRTIME_COL+") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	// Directory lookup and insert statements
+	private static final String SELECT_DIR_STATEMENT =
+			"SELECT "+DIR_ID_COL+" FROM "+DIRS_TABLE+" WHERE "+DIR_FS_COL+" = ? AND "+
+			DIR_PATH_COL+" = ?";
+	private static final String INSERT_DIR_STATEMENT =
+			"INSERT INTO "+DIRS_TABLE+" ("+DIR_FS_COL+", "+DIR_PATH_COL+") VALUES (?, ?)";
+
+	// Filesystem insert, completion and lookup statements. Lookups find
+	// only complete filesystems, the latest if hashed more than once
+	private static final String INSERT_FILESYSTEM_STATEMENT =
+			"INSERT INTO "+FILESYSTEMS_TABLE+" ("+FS_START_COL+", "+FS_LENGTH_COL+") VALUES (?, ?)";
+	private static final String END_FILESYSTEM_STATEMENT =
+			"UPDATE "+FILESYSTEMS_TABLE+" SET "+FS_RECORDS_COL+" = ? WHERE "+FS_ID_COL+" = ?";
+	private static final String SELECT_FILESYSTEM_STATEMENT =
+			"SELECT IFNULL(MAX("+FS_ID_COL+"), "+NO_FILESYSTEM+") FROM "+FILESYSTEMS_TABLE+
+			" WHERE "+FS_START_COL+" = ? AND "+FS_LENGTH_COL+" = ? AND "+
+			FS_RECORDS_COL+" IS NOT NULL";
+
+	// Filesystems registered but never ended, left by an interrupted load
+	private static final String SELECT_PARTIAL_FILESYSTEM_STATEMENT =
+			"SELECT IFNULL(MAX("+FS_ID_COL+"), "+NO_FILESYSTEM+") FROM "+FILESYSTEMS_TABLE+
+			" WHERE "+FS_START_COL+" = ? AND "+FS_LENGTH_COL+" = ? AND "+
+			FS_RECORDS_COL+" IS NULL";
+	private static final String COUNT_PARTIAL_FILESYSTEMS_STATEMENT =
+			"SELECT COUNT(*) FROM "+FILESYSTEMS_TABLE+" WHERE "+FS_RECORDS_COL+" IS NULL";
+
+	// Discarding a filesystem: its records, then its directories, then itself
+	private static final String[] DELETE_FILESYSTEM_STATEMENTS = {
+			"DELETE FROM "+TABLE_NAME+" WHERE "+DIR_COL+" IN (SELECT "+DIR_ID_COL+
+			" FROM "+DIRS_TABLE+" WHERE "+DIR_FS_COL+" = ?)",
+			"DELETE FROM "+DIRS_TABLE+" WHERE "+DIR_FS_COL+" = ?",
+			"DELETE FROM "+FILESYSTEMS_TABLE+" WHERE "+FS_ID_COL+" = ?"
+	};
+
+	// Directory ids kept in memory
+	private static final int DIR_CACHE_SIZE = 4096;
+
+	// Select full records, with their directory path.  Add the FROM
+	// tables, records as r, and the joins to it
+	private static final String SELECT_RECORDS =
+			"SELECT d."+DIR_PATH_COL+" AS "+PATH_COL+", r.* FROM ";
+	private static final String JOIN_DIRS =
+			" JOIN "+DIRS_TABLE+" d ON d."+DIR_ID_COL+" = r."+DIR_COL;
 
 	// Count the number of hashes statement
 	private static final String COUNT_MD5_STATEMENT =
@@ -155,20 +345,47 @@ public class FileRecordStore implements Closeable {
 
     // Select statement
     private static final String SELECT_RECORD_BY_MD5 =
-            "SELECT * FROM "+TABLE_NAME+" WHERE "+MD5_COL+" = ?";
+            SELECT_RECORDS+TABLE_NAME+" r"+JOIN_DIRS+" WHERE r."+MD5_COL+" = ?";
     private static final String SELECT_RECORD_BY_SHA1 =
-            "SELECT * FROM "+TABLE_NAME+" WHERE "+SHA1_COL+" = ?";
+            SELECT_RECORDS+TABLE_NAME+" r"+JOIN_DIRS+" WHERE r."+SHA1_COL+" = ?";
     private static final String SELECT_RECORD_BY_SHA256 =
-            "SELECT * FROM "+TABLE_NAME+" WHERE "+SHA256_COL+" = ?";
+            SELECT_RECORDS+TABLE_NAME+" r"+JOIN_DIRS+" WHERE r."+SHA256_COL+" = ?";
 
     // Select from multiple hashes
     // This needs a ? added for each potential hash, and a closing )
     private static final String SELECT_RECORD_BY_MD5_HASHES =
-            "SELECT * FROM "+TABLE_NAME+" WHERE "+MD5_COL+" IN (";
+            SELECT_RECORDS+TABLE_NAME+" r"+JOIN_DIRS+" WHERE r."+MD5_COL+" IN (";
     private static final String SELECT_RECORD_BY_SHA1_HASHES =
-            "SELECT * FROM "+TABLE_NAME+" WHERE "+SHA1_COL+" IN (";
+            SELECT_RECORDS+TABLE_NAME+" r"+JOIN_DIRS+" WHERE r."+SHA1_COL+" IN (";
     private static final String SELECT_RECORD_BY_SHA256_HASHES =
-            "SELECT * FROM "+TABLE_NAME+" WHERE "+SHA256_COL+" IN (";
+            SELECT_RECORDS+TABLE_NAME+" r"+JOIN_DIRS+" WHERE r."+SHA256_COL+" IN (";
+
+    // Hash columns, by HashIndex.algorithmCode
+    private static final String[] HASH_COLS = { MD5_COL, SHA1_COL, SHA256_COL };
+
+    // The temporary table of hashes for large queries, one per connection
+    private static final String QUERY_TABLE = "temp.query_hashes";
+    private static final String CREATE_QUERY_TABLE =
+            "CREATE TEMP TABLE IF NOT EXISTS query_hashes (hash BLOB PRIMARY KEY) WITHOUT ROWID";
+    private static final String INSERT_QUERY_HASH =
+            "INSERT OR IGNORE INTO "+QUERY_TABLE+" (hash) VALUES (?)";
+    private static final String CLEAR_QUERY_TABLE =
+            "DELETE FROM "+QUERY_TABLE;
+
+    // Select by rowid, needs a ? added for each rowid, and a closing )
+    private static final String SELECT_RECORD_BY_ROWIDS =
+            SELECT_RECORDS+TABLE_NAME+" r"+JOIN_DIRS+" WHERE r.rowid IN (";
+
+    // Select all records of one filesystem, in the order added
+    private static final String SELECT_RECORD_BY_FILESYSTEM =
+            SELECT_RECORDS+TABLE_NAME+" r"+JOIN_DIRS+" WHERE d."+DIR_FS_COL+" = ? ORDER BY r.rowid";
+
+    // The count, and the last added, of one filesystem's records
+    private static final String COUNT_BY_FILESYSTEM =
+            "SELECT COUNT(*) FROM "+TABLE_NAME+" r"+JOIN_DIRS+" WHERE d."+DIR_FS_COL+" = ?";
+    private static final String SELECT_LAST_RECORD_BY_FILESYSTEM =
+            SELECT_RECORDS+TABLE_NAME+" r"+JOIN_DIRS+" WHERE d."+DIR_FS_COL+" = ?"+
+            " ORDER BY r.rowid DESC LIMIT 1";
 
 	// Count all rows statement
 	private static final String COUNT_STATEMENT =
@@ -178,6 +395,60 @@ public class FileRecordStore implements Closeable {
 	private File versionFile;
 	private ManagedDiskDescriptor mdd;
 	private Connection connection;
+	private File dataDir;
+	// Prepared statements by SQL, least recently used first
+	private final Map<String,PreparedStatement> statements =
+			new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+			if(size() <= STATEMENT_CACHE_SIZE){
+				return false;
+			}
+			try {
+				eldest.getValue().close();
+			} catch(SQLException e){
+				log.warn("Exception closing statement", e);
+			}
+			return true;
+		}
+	};
+	// The pool we belong to, if any
+	FileRecordStorePool pool;
+	// Directory ids by filesystem and path, most recently used last
+	private final Map<String,Long> dirIDs =
+			new LinkedHashMap<String,Long>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+			return size() > DIR_CACHE_SIZE;
+		}
+	};
+	// Bloom filters by hash column, mapped on first use
+	private final FilterFiles filterFiles;
+	// Set once we have marked the filters stale, until we write them out.
+	// Meanwhile we answer from pendingFilters, or if null, from SQLite and
+	// rebuild the filters when done.
+	private boolean filtersDirty;
+	private BloomFilter[] pendingFilters;
+	// Filters are rebuilt once at the end of a bulk load, not kept up
+	private boolean bulkLoading;
+	// The thread a callback query runs for, and a statement to cancel
+	// it with, guarded by queryLock, not our own lock, which it holds
+	private final Object queryLock = new Object();
+	private Thread querying;
+	private Statement canceller;
+	// The version of a database awaiting migration, else 0, see migrate().
+	// A failed migration is kept to hand to those waiting on it.
+	private int pendingVersion;
+	private IOException migrationFailure;
+	private boolean vacuumPending;
+	// Sorted hash files by hash column, if enabled, mapped on first use
+	private boolean sortedHashFiles;
+	private SortedHashFile[] sorted;
+	// The store-wide index to keep up to date, and our disk's name in it
+	private HashIndex hashIndex;
+	private String indexName;
 
 	/**
 	 * Create a new FileHashStore that saves the data in the dataDir folder
@@ -187,6 +458,24 @@ public class FileRecordStore implements Closeable {
 	 * @throws Exception
 	 */
 	public FileRecordStore(File dataDir, ManagedDiskDescriptor mdd) throws IOException{
+		this(dataDir, mdd, null, null);
+		migrate();
+		vacuum();
+	}
+
+	/**
+	 * As above, also adding any new records to the store-wide hash index.
+	 * An older database is not migrated here, but left for the caller
+	 * to {@link #migrate}, off any thread serving requests.
+	 * @param hashIndex
+	 * @param indexName the disk's name in the index
+	 */
+	FileRecordStore(File dataDir, ManagedDiskDescriptor mdd, HashIndex hashIndex,
+			String indexName) throws IOException{
+		this.hashIndex = hashIndex;
+		this.indexName = indexName;
+		this.dataDir = dataDir;
+		this.filterFiles = new FilterFiles(dataDir);
 		try{
 			this.mdd = mdd;
 			// log.info("FileRecordStore for "+mdd);
@@ -203,6 +492,14 @@ public class FileRecordStore implements Closeable {
 
 			if(setup){
 				init();
+			} else {
+				int version = readVersion();
+				if(version >= MIGRATABLE_VERSION && version < VERSION){
+					pendingVersion = version;
+				} else if(version == VERSION && readVersionFile() != VERSION){
+					// Migrated by a run which died before updating the file
+					writeVersion();
+				}
 			}
 		} catch(SQLException e){
 			throw new IOException(e);
@@ -211,39 +508,295 @@ public class FileRecordStore implements Closeable {
 
 	/**
 	 * Check that the DB version matches the system version.
-	 * If it does not, drop and re-create the table.
+	 * If it is older, but no older than MIGRATABLE_VERSION, bring it up
+	 * to date in place, keeping its records.  If older still, drop and
+	 * re-create the table.
 	 * @throws IOException
 	 */
-	public void checkVersion() throws IOException {
-	    boolean reInit = false;
-	    if(!versionFile.exists()){
-	        // Check version failed. Delete and re-init
-	        reInit = true;
-	    } else {
+	public synchronized void checkVersion() throws IOException {
+	    int version = readVersion();
+	    if(version >= VERSION){
+	        return;
+	    }
+
+	    if(version >= MIGRATABLE_VERSION){
+	        pendingVersion = version;
+	        migrate();
+	        vacuum();
+	        return;
+	    }
+
+	    // Check version failed. Delete and re-init
+	    log.info("FileRecordStore version "+version+" less than system version "+VERSION);
+        try {
+            log.info("Re-creating FileRecordStore");
+            // Close the connection and delete the file.
+            closeStatements();
+            connection.close();
+            sqlFile.delete();
+            dirIDs.clear();
+            deleteFilters();
+            deleteSortedFiles();
+            // Re-open the connection
+            connection = DriverManager.getConnection(JDBC.PREFIX + sqlFile.getAbsolutePath());
+            connection.setAutoCommit(false);
+            // Re-run init
+            init();
+        } catch (SQLException e) {
+            log.warn("SQLiteException re-opening the connection", e);
+        }
+        if(hashIndex != null){
+            hashIndex.remove(indexName);
+        }
+	}
+
+	/*
+	  The database's version, as recorded in it, else, for databases from
+	  before it was, in the version file.  The database's own is set in
+	  the same transaction as any change of layout, so cannot disagree
+	  with it.
+	*/
+	private int readVersion() throws IOException {
+	    try {
+	        Statement statement = connection.createStatement();
+	        ResultSet result = statement.executeQuery("PRAGMA user_version");
+	        int version = result.getInt(1);
+	        result.close();
+	        statement.close();
+	        connection.commit();
+	        if(version > 0){
+	            return version;
+	        }
+	    } catch (SQLException e) {
+	        throw new IOException(e);
+	    }
+	    return readVersionFile();
+	}
+
+	private int readVersionFile() throws IOException {
+	    int version = 0;
+	    if(versionFile.exists()){
 	        BufferedReader reader = new BufferedReader(new FileReader(versionFile));
+	        version = Integer.parseInt(reader.readLine());
+	        reader.close();
+	    }
+	    return version;
+	}
+
+	/**
+	 * @return true if the database is of an older layout, which
+	 * {@link #migrate} must bring up to date before the store is used
+	 */
+	synchronized boolean isMigrationPending() {
+	    return pendingVersion != 0;
+	}
+
+	/**
+	 * Wait for another thread to {@link #migrate} the database
+	 * @throws IOException if the migration failed
+	 */
+	synchronized void awaitMigration() throws IOException, InterruptedException {
+	    while(pendingVersion != 0){
+	        if(migrationFailure != null){
+	            throw new IOException("Migration failed for "+mdd, migrationFailure);
+	        }
+	        wait();
+	    }
+	}
+
+	/**
+	 * Bring a version 2 to 4 database up to date in place, if it is one,
+	 * keeping its records, and their rowids, which the hash index, Bloom
+	 * filters and sorted hash files refer to.  The new layout, hash
+	 * indexes and version are committed together, so a crash leaves the
+	 * database either as it was or fully migrated.  Compacting frees
+	 * space, to be reclaimed by a {@link #vacuum}.
+	 * @throws IOException
+	 */
+	synchronized void migrate() throws IOException {
+	    int version = pendingVersion;
+	    if(version == 0){
+	        return;
+	    }
+	    log.info("Migrating FileRecordStore for "+mdd+" from version "+version+" to "+VERSION);
+	    try {
+	        // Tables in use by a statement cannot be dropped
+	        closeStatements();
+	        Statement statement = connection.createStatement();
+	        if(hasCurrentLayout(statement)){
+	            // Migrated before the database recorded its version, by a
+	            // run which then died before updating the version file
+	            log.info("FileRecordStore for "+mdd+" already migrated");
+	        } else if(version < 4){
+	            // Version 3 to 4: compact records, straight to the version 5 layout
+	            for(String drop : DROP_INDEX_STATEMENTS){
+	                statement.executeUpdate(drop);
+	            }
+	            for(String migrate : MIGRATE_STATEMENTS){
+	                statement.executeUpdate(migrate);
+	            }
+	            vacuumPending = true;
+	        } else {
+	            // Version 4 to 5: directories get a filesystem
+	            for(String migrate : MIGRATE_V4_STATEMENTS){
+	                statement.executeUpdate(migrate);
+	            }
+	        }
+	        // Version 2 to 3: index the hash columns
+	        for(String create : CREATE_INDEX_STATEMENTS){
+	            statement.executeUpdate(create);
+	        }
+	        statement.executeUpdate("PRAGMA user_version = "+VERSION);
+	        statement.close();
+	        connection.commit();
+	    } catch (SQLException e) {
+	        try {
+	            connection.rollback();
+	        } catch (SQLException re) {
+	            log.warn("Rolling back migration for "+mdd, re);
+	        }
+	        migrationFailure = new IOException(e);
+	        notifyAll();
+	        throw migrationFailure;
+	    }
+	    writeVersion();
+	    dirIDs.clear();
+	    pendingVersion = 0;
+	    migrationFailure = null;
+	    notifyAll();
+	}
+
+	// Whether the directories have a filesystem, as only version 5 has
+	private boolean hasCurrentLayout(Statement statement) throws SQLException {
+	    // No result set at all if there is no such table
+	    if(!statement.execute("PRAGMA table_info("+DIRS_TABLE+")")){
+	        return false;
+	    }
+	    ResultSet result = statement.getResultSet();
+	    try {
+	        while(result.next()){
+	            if(DIR_FS_COL.equals(result.getString("name"))){
+	                return true;
+	            }
+	        }
+	        return false;
+	    } finally {
+	        result.close();
+	    }
+	}
+
+	/**
+	 * Reclaim the space freed by a {@link #migrate}, if any.  Rewrites
+	 * the whole database, so is slow, and left to a background thread.
+	 * @throws IOException
+	 */
+	synchronized void vacuum() throws IOException {
+	    if(!vacuumPending){
+	        return;
+	    }
+	    log.info("Vacuuming FileRecordStore for "+mdd);
+	    try {
+	        outsideTransaction("VACUUM");
+	    } catch (SQLException e) {
+	        throw new IOException(e);
+	    }
+	    vacuumPending = false;
+	}
+
+	/**
+	 * @return true if the disk's records, in dataDir, look to be in an
+	 * older layout, so that opening them will need a {@link #migrate}.
+	 * Cheap: no database is opened.
+	 */
+	static boolean mayNeedMigration(File dataDir) throws IOException {
+	    File versionFile = new File(dataDir, DB_VERSION_FILE);
+	    if(!new File(dataDir, DB_FILE).exists() || !versionFile.exists()){
+	        return false;
+	    }
+	    BufferedReader reader = new BufferedReader(new FileReader(versionFile));
+	    try {
 	        int version = Integer.parseInt(reader.readLine());
+	        return version >= MIGRATABLE_VERSION && version < VERSION;
+	    } finally {
 	        reader.close();
-	        if(version < VERSION){
-	            log.info("FileRecordStore version "+version+" less than system version "+VERSION);
-	            reInit = true;
+	    }
+	}
+
+	/**
+	 * Prepare for adding a large number of records, e.g. all those of a
+	 * disk.  The hash indexes are dropped, to be rebuilt once, and the
+	 * database switched to write-ahead logging with relaxed syncing.
+	 * Call {@link #endBulkLoad()} when done.
+	 * <br>
+	 * A crash mid-load can lose recent records, but not corrupt the
+	 * database. A load is resumed from whatever records survived, see
+	 * {@link #findPartialFilesystem}.
+	 * @throws IOException
+	 */
+	public synchronized void beginBulkLoad() throws IOException {
+	    log.debug("Beginning bulk load for "+mdd);
+	    markFiltersStale();
+	    pendingFilters = null;
+	    bulkLoading = true;
+	    try {
+	        Statement statement = connection.createStatement();
+	        for(String drop : DROP_INDEX_STATEMENTS){
+	            statement.executeUpdate(drop);
 	        }
+	        statement.close();
+	        connection.commit();
+	        // Journal mode cannot be changed inside a transaction
+	        pragma("journal_mode=WAL");
+	        pragma("synchronous=OFF");
+	    } catch (SQLException e) {
+	        throw new IOException(e);
 	    }
+	}
 
-        if (reInit) {
-            try {
-                log.info("Re-creating FileRecordStore");
-                // Close the connection and delete the file.
-                connection.close();
-                sqlFile.delete();
-                // Re-open the connection
-                connection = DriverManager.getConnection(JDBC.PREFIX + sqlFile.getAbsolutePath());
-                connection.setAutoCommit(false);
-                // Re-run init
-                init();
-            } catch (SQLException e) {
-                log.warn("SQLiteException re-opening the connection", e);
-            }
-        }
+	/**
+	 * Finish a bulk load: rebuild the hash indexes and restore full
+	 * syncing.  The database stays in write-ahead logging mode.
+	 * @throws IOException
+	 */
+	public synchronized void endBulkLoad() throws IOException {
+	    log.debug("Ending bulk load for "+mdd);
+	    try {
+	        createIndexes();
+	        pragma("synchronous=FULL");
+	        pragma("wal_checkpoint(TRUNCATE)");
+	    } catch (SQLException e) {
+	        throw new IOException(e);
+	    }
+	    bulkLoading = false;
+	    flushFilters();
+	    if(sortedHashFiles){
+	        writeSortedFiles();
+	    }
+	}
+
+	// Run a PRAGMA outside of any transaction
+	private void pragma(String pragma) throws SQLException {
+	    outsideTransaction("PRAGMA "+pragma);
+	}
+
+	private void outsideTransaction(String sql) throws SQLException {
+	    connection.setAutoCommit(true);
+	    try {
+	        Statement statement = connection.createStatement();
+	        statement.execute(sql);
+	        statement.close();
+	    } finally {
+	        connection.setAutoCommit(false);
+	    }
+	}
+
+	private void createIndexes() throws SQLException {
+	    Statement statement = connection.createStatement();
+	    for(String create : CREATE_INDEX_STATEMENTS){
+	        statement.executeUpdate(create);
+	    }
+	    statement.close();
+	    connection.commit();
 	}
 
 	/**
@@ -251,11 +804,13 @@ public class FileRecordStore implements Closeable {
 	 * @return
 	 * @throws Exception
 	 */
-	public boolean hasData() throws IOException {
+	public synchronized boolean hasData() throws IOException {
 		try{
-			PreparedStatement count = connection.prepareStatement(COUNT_STATEMENT);
+			PreparedStatement count = prepare(COUNT_STATEMENT);
 			ResultSet result = count.executeQuery();
-			return result.getInt(1) > 0;
+			boolean hasData = result.getInt(1) > 0;
+			result.close();
+			return hasData;
 		} catch(SQLException e){
 			throw new IOException(e);
 		}
@@ -265,34 +820,29 @@ public class FileRecordStore implements Closeable {
 	 * Add all the hashes in the (Filename, hash) map to the database
 	 * @param hashes
 	 */
-    public void addRecords(List<Record> records) throws IOException {
+    public synchronized void addRecords(List<Record> records) throws IOException {
+        addRecords(NO_FILESYSTEM, records);
+    }
+
+    /**
+     * As above, the records all being of one filesystem
+     * @param filesystem as from {@link #addFilesystem}
+     * @param records
+     */
+    public synchronized void addRecords(int filesystem, List<Record> records) throws IOException {
         log.debug("Adding file records for disk " + mdd);
 
+        markFiltersStale();
         try {
+            long firstID = nextRecordID();
+            // Not cached, batching leaves the statement unfit for reuse
             PreparedStatement insert = connection.prepareStatement(INSERT_STATEMENT);
 
             int count = 0;
 
             // Add everything
             for (Record record : records) {
-                insert.setString(1, record.path);
-                insert.setBytes(2, record.md5);
-                insert.setBytes(3, record.sha1);
-                insert.setBytes(4, record.sha256);
-                insert.setLong(5, record.inode);
-                insert.setShort(6, record.attrType);
-                insert.setShort(7, record.attrId);
-                insert.setByte(8, record.nameType);
-                insert.setByte(9, record.metaType);
-                insert.setInt(10, record.perms);
-                insert.setInt(11, record.uid);
-                insert.setInt(12, record.gid);
-                insert.setLong(13, record.size);
-                insert.setInt(14, record.atime);
-                insert.setInt(15, record.mtime);
-                insert.setInt(16, record.ctime);
-                insert.setInt(17, record.crtime);
-
+                bindRecord(insert, filesystem, record);
                 insert.addBatch();
 
                 count++;
@@ -309,18 +859,225 @@ public class FileRecordStore implements Closeable {
             insert.executeBatch();
             insert.close();
             connection.commit();
+            deleteSortedFiles();
+            if(hashIndex != null){
+                hashIndex.add(indexName, firstID, records);
+            }
+            addToFilters(records);
             log.debug("Done adding records");
         } catch (SQLException e) {
+            abandonAdd();
             throw new IOException(e);
         }
     }
 
+    /**
+     * Register a filesystem about to have its records added
+     * @param start the filesystem's first sector, 0 for a disk holding a
+     * bare filesystem
+     * @param length its sectors, 0 for a bare filesystem
+     * @return the id to add its records under
+     * @throws IOException
+     */
+    public synchronized int addFilesystem(long start, long length) throws IOException {
+        try {
+            PreparedStatement insert = prepare(INSERT_FILESYSTEM_STATEMENT);
+            insert.setLong(1, start);
+            insert.setLong(2, length);
+            insert.executeUpdate();
+            ResultSet rs = prepare("SELECT last_insert_rowid()").executeQuery();
+            int result = rs.getInt(1);
+            rs.close();
+            connection.commit();
+            return result;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Mark all of a filesystem's records added, making it visible to
+     * {@link #findFilesystem}
+     * @param filesystem as from {@link #addFilesystem}
+     * @param records how many were added
+     * @throws IOException
+     */
+    public synchronized void endFilesystem(int filesystem, long records) throws IOException {
+        try {
+            PreparedStatement update = prepare(END_FILESYSTEM_STATEMENT);
+            update.setLong(1, records);
+            update.setInt(2, filesystem);
+            update.executeUpdate();
+            connection.commit();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @param start
+     * @param length
+     * @return the id of the filesystem with the extent, as given to
+     * {@link #addFilesystem}, or NO_FILESYSTEM if there is none whose
+     * records are all in
+     * @throws IOException
+     */
+    public synchronized int findFilesystem(long start, long length) throws IOException {
+        try {
+            PreparedStatement select = prepare(SELECT_FILESYSTEM_STATEMENT);
+            select.setLong(1, start);
+            select.setLong(2, length);
+            ResultSet rs = select.executeQuery();
+            int result = rs.getInt(1);
+            rs.close();
+            return result;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Hand every record of a filesystem to the callback, in the order added
+     * @param filesystem as from {@link #findFilesystem}
+     * @param callback
+     * @return the number of records
+     * @throws IOException
+     */
+    public synchronized long getFilesystemRecords(int filesystem, RecordCallback callback)
+            throws IOException {
+        try {
+            PreparedStatement query = prepare(SELECT_RECORD_BY_FILESYSTEM);
+            query.setInt(1, filesystem);
+            return deliver(query.executeQuery(), callback);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @param start
+     * @param length
+     * @return the id of a filesystem with the extent that was registered by
+     * {@link #addFilesystem} but never ended, as left by an interrupted
+     * load, or NO_FILESYSTEM. Its records so far can be kept, and the load
+     * resumed after them.
+     * @throws IOException
+     */
+    public synchronized int findPartialFilesystem(long start, long length) throws IOException {
+        try {
+            PreparedStatement select = prepare(SELECT_PARTIAL_FILESYSTEM_STATEMENT);
+            select.setLong(1, start);
+            select.setLong(2, length);
+            ResultSet rs = select.executeQuery();
+            int result = rs.getInt(1);
+            rs.close();
+            return result;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return true if any filesystem's load was started and not ended
+     * @throws IOException
+     */
+    public synchronized boolean hasPartialFilesystems() throws IOException {
+        try {
+            ResultSet rs = prepare(COUNT_PARTIAL_FILESYSTEMS_STATEMENT).executeQuery();
+            boolean result = rs.getInt(1) > 0;
+            rs.close();
+            return result;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @param filesystem
+     * @return how many records the filesystem has so far
+     * @throws IOException
+     */
+    public synchronized long getFilesystemRecordCount(int filesystem) throws IOException {
+        try {
+            PreparedStatement count = prepare(COUNT_BY_FILESYSTEM);
+            count.setInt(1, filesystem);
+            ResultSet rs = count.executeQuery();
+            long result = rs.getLong(1);
+            rs.close();
+            return result;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @param filesystem
+     * @return the filesystem's most recently added record, null if none
+     * @throws IOException
+     */
+    public synchronized Record getLastFilesystemRecord(int filesystem) throws IOException {
+        try {
+            PreparedStatement query = prepare(SELECT_LAST_RECORD_BY_FILESYSTEM);
+            query.setInt(1, filesystem);
+            final List<Record> result = new ArrayList<Record>(1);
+            deliver(query.executeQuery(), new RecordCallback(){
+                @Override
+                public void gotRecord(Record record) {
+                    result.add(record);
+                }
+            });
+            return result.isEmpty() ? null : result.get(0);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Remove a filesystem and all its records, e.g. a partial load that
+     * cannot be resumed
+     * @param filesystem
+     * @throws IOException
+     */
+    public synchronized void discardFilesystem(int filesystem) throws IOException {
+        log.debug("Discarding filesystem "+filesystem+" of "+mdd);
+        markFiltersStale();
+        pendingFilters = null;
+        try {
+            for(String sql : DELETE_FILESYSTEM_STATEMENTS){
+                PreparedStatement delete = prepare(sql);
+                delete.setInt(1, filesystem);
+                delete.executeUpdate();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        dirIDs.clear();
+        deleteSortedFiles();
+        if(hashIndex != null){
+            hashIndex.reindex(indexName, this);
+        }
+        flushFilters();
+    }
+
 	/**
 	 * Checks if the provided hash is contained in the store
 	 * @param hash
 	 * @return
 	 */
-	public boolean containsFileHash(String algorithm, byte[] hash) throws IOException {
+	public synchronized boolean containsFileHash(String algorithm, byte[] hash) throws IOException {
+		List<byte[]> candidates = filter(algorithm, Collections.singletonList(hash));
+		if(candidates != null && candidates.isEmpty()){
+		    return false;
+		}
+		SortedHashFile sortedFile = getSorted(algorithm);
+		if(sortedFile != null){
+		    boolean found = sortedFile.contains(hash);
+		    if(candidates != null && !found){
+		        FILTER_FALSE_POSITIVES.incrementAndGet();
+		    }
+		    return found;
+		}
 		try{
 		    // Get the correct query string
 		    String baseQuery = null;
@@ -338,13 +1095,15 @@ public class FileRecordStore implements Closeable {
                 throw new IllegalArgumentException("Invalid hash algorithm: "+algorithm);
             }
 
-			PreparedStatement query = connection.prepareStatement(baseQuery);
+			PreparedStatement query = prepare(baseQuery);
 			query.setBytes(1, hash);
-			query.closeOnCompletion();
 			ResultSet result = query.executeQuery();
 			// If the count is != 0, the hash is in there
 			boolean hasData = result.getInt(1) != 0;
 			result.close();
+			if(candidates != null && !hasData){
+			    FILTER_FALSE_POSITIVES.incrementAndGet();
+			}
 			return hasData;
 		} catch(SQLException e){
 			throw new IOException(e);
@@ -357,7 +1116,7 @@ public class FileRecordStore implements Closeable {
 	 * @return
 	 * @throws IOException
 	 */
-    public boolean containsFileHash(String algorithm, List<byte[]> hashes) throws IOException {
+    public synchronized boolean containsFileHash(String algorithm, List<byte[]> hashes) throws IOException {
         if (hashes == null || hashes.isEmpty()) {
             throw new IllegalArgumentException("Array must not be empty");
         }
@@ -368,7 +1127,36 @@ public class FileRecordStore implements Closeable {
             return containsFileHash(algorithm, hashes.get(0));
         }
 
+        List<byte[]> candidates = filter(algorithm, hashes);
+        if (candidates != null) {
+            if (candidates.isEmpty()) {
+                return false;
+            }
+            hashes = candidates;
+        }
+
+        SortedHashFile sortedFile = getSorted(algorithm);
+        if (sortedFile != null) {
+            for (byte[] hash : hashes) {
+                if (sortedFile.contains(hash)) {
+                    return true;
+                }
+            }
+            if (candidates != null) {
+                FILTER_FALSE_POSITIVES.incrementAndGet();
+            }
+            return false;
+        }
+
         try {
+            if (hashes.size() > IN_LIST_MAX) {
+                boolean hasHash = joinQueryHashes(algorithm, hashes, null) > 0;
+                if (candidates != null && !hasHash) {
+                    FILTER_FALSE_POSITIVES.incrementAndGet();
+                }
+                return hasHash;
+            }
+
             String baseQuery = null;
             switch(algorithm.toLowerCase()){
             case MD5:
@@ -393,17 +1181,19 @@ public class FileRecordStore implements Closeable {
             queryBuilder.append("?)");
 
             // Now, build the statement
-            PreparedStatement query = connection.prepareStatement(queryBuilder.toString());
+            PreparedStatement query = prepare(queryBuilder.toString());
             // The prepared statement setXXXX() methods start with 1
             for (int i = 1; i <= hashes.size(); i++) {
                 query.setBytes(i, hashes.get(i - 1));
             }
-            query.closeOnCompletion();
 
             // Run the query
             ResultSet result = query.executeQuery();
             boolean hasHash = result.getInt(1) != 0;
             result.close();
+            if (candidates != null && !hasHash) {
+                FILTER_FALSE_POSITIVES.incrementAndGet();
+            }
             return hasHash;
         } catch (SQLException e) {
             throw new IOException(e);
@@ -415,48 +1205,21 @@ public class FileRecordStore implements Closeable {
 	 * @param record
 	 * @throws SQLException
 	 */
-	public void addRecord(Record record) throws IOException {
-	    /*
-            PATH_COL+" STRING, "+
-            MD5_COL+" BLOB, "+
-            SHA1_COL+" BLOB, "+
-            SHA256_COL+" BLOB, "+
-            INODE_COL+" INTEGER, "+
-            ATTR_TYPE_COL+" INTEGER, "+
-            ATTR_ID_COL+" INTEGER, "+
-            NAME_TYPE_COL+" INTEGER, "+
-            META_TYPE_COL+" INTEGER, "+
-            PERM_COL+" INTEGER, "+
-            UID_COL+" INTEGER, "+
-            GID_COL+" INTEGER, "+
-            SIZE_COL+" INTEGER, "+
-            ATIME_COL+" INTEGER, "+
-            MTIME_COL+" INTEGER, "+
-            CTIME_COL+" INTEGER, "+
-            CRTIME_COL+" INTEGER"+
-	     */
+	public synchronized void addRecord(Record record) throws IOException {
+		markFiltersStale();
 		try{
-			PreparedStatement insert = connection.prepareStatement(INSERT_STATEMENT);
-			insert.setString(1, record.path);
-			insert.setBytes(2, record.md5);
-			insert.setBytes(3, record.sha1);
-			insert.setBytes(4, record.sha256);
-			insert.setLong(5, record.inode);
-			insert.setShort(6, record.attrType);
-			insert.setShort(7, record.attrId);
-			insert.setByte(8, record.nameType);
-			insert.setByte(9, record.metaType);
-			insert.setInt(10, record.perms);
-			insert.setInt(11, record.uid);
-			insert.setInt(12, record.gid);
-			insert.setLong(13, record.size);
-			insert.setInt(14, record.atime);
-			insert.setInt(15, record.mtime);
-			insert.setInt(16, record.ctime);
-			insert.setInt(17, record.crtime);
+			long id = nextRecordID();
+			PreparedStatement insert = prepare(INSERT_STATEMENT);
+			bindRecord(insert, NO_FILESYSTEM, record);
 			insert.execute();
-			insert.close();
+			connection.commit();
+			deleteSortedFiles();
+			if(hashIndex != null){
+				hashIndex.add(indexName, id, Collections.singletonList(record));
+			}
+			addToFilters(Collections.singletonList(record));
 		} catch(SQLException e){
+			abandonAdd();
 			throw new IOException(e);
 		}
 	}
@@ -468,126 +1231,692 @@ public class FileRecordStore implements Closeable {
 	 * @return the list of records
 	 * @throws IOException
 	 */
-    public List<Record> getRecordsFromHash(String algorithm, byte[] hash) throws IOException {
+    public synchronized List<Record> getRecordsFromHash(String algorithm, byte[] hash) throws IOException {
+        return getRecordsFromHashes(algorithm, Collections.singletonList(hash));
+    }
+
+    /**
+     * Get the list of {@link Record} objects with a matching hashes
+     * @param algorithm the algorithm type
+     * @param hash the hashes
+     * @return the list of records
+     * @throws IOException
+     */
+    public synchronized List<Record> getRecordsFromHashes(String algorithm, List<byte[]> hashes) throws IOException {
+        final List<Record> records = new LinkedList<Record>();
+        getRecordsFromHashes(algorithm, hashes, new RecordCallback() {
+            @Override
+            public void gotRecord(Record record) {
+                records.add(record);
+            }
+        });
+        return records;
+    }
+
+    /**
+     * Hand each {@link Record} with one of the hashes to the callback, as
+     * read from the database.  The store is locked meanwhile, so slow
+     * callbacks hold up other users of this disk's records.
+     * @param algorithm the algorithm type
+     * @param hashes the hashes
+     * @param callback gets each matching record
+     * @throws IOException
+     */
+    public synchronized void getRecordsFromHashes(String algorithm, List<byte[]> hashes,
+            RecordCallback callback) throws IOException {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        List<byte[]> candidates = filter(algorithm, hashes);
+        if (candidates != null) {
+            if (candidates.isEmpty()) {
+                return;
+            }
+            hashes = candidates;
+        }
         try {
-            String baseQuery = null;
-            switch(algorithm.toLowerCase()){
-            case MD5:
-                baseQuery = SELECT_RECORD_BY_MD5;
-                break;
-            case SHA1:
-                baseQuery = SELECT_RECORD_BY_SHA1;
-                break;
-            case SHA256:
-                baseQuery = SELECT_RECORD_BY_SHA256;
-                break;
-           default:
-                throw new IllegalArgumentException("Invalid hash algorithm: "+algorithm);
+            watchQuery();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        try {
+            long found;
+            SortedHashFile sortedFile = getSorted(algorithm);
+            if (sortedFile != null) {
+                found = getRecordsFromSorted(sortedFile, hashes, callback);
+            } else if (hashes.size() > IN_LIST_MAX) {
+                found = joinQueryHashes(algorithm, hashes, callback);
+            } else if (hashes.size() == 1) {
+                String baseQuery = null;
+                switch(algorithm.toLowerCase()){
+                case MD5:
+                    baseQuery = SELECT_RECORD_BY_MD5;
+                    break;
+                case SHA1:
+                    baseQuery = SELECT_RECORD_BY_SHA1;
+                    break;
+                case SHA256:
+                    baseQuery = SELECT_RECORD_BY_SHA256;
+                    break;
+               default:
+                    throw new IllegalArgumentException("Invalid hash algorithm: "+algorithm);
+                }
+
+                // Prep the query
+                PreparedStatement query = prepare(baseQuery);
+                query.setBytes(1, hashes.get(0));
+
+                // Run the query
+                found = deliver(query.executeQuery(), callback);
+            } else {
+                String baseQuery = null;
+                switch(algorithm.toLowerCase()){
+                case MD5:
+                    baseQuery = SELECT_RECORD_BY_MD5_HASHES;
+                    break;
+                case SHA1:
+                    baseQuery = SELECT_RECORD_BY_SHA1_HASHES;
+                    break;
+                case SHA256:
+                    baseQuery = SELECT_RECORD_BY_SHA256_HASHES;
+                    break;
+               default:
+                    throw new IllegalArgumentException("Invalid hash algorithm: "+algorithm);
+                }
+
+                // Build the query string
+                StringBuilder queryBuilder = new StringBuilder(baseQuery);
+                for (int i = 0; i < (hashes.size() - 1); i++) {
+                    queryBuilder.append("?, ");
+                }
+                // Close off the query
+                // The last ? gets added here
+                queryBuilder.append("?)");
+
+                // Prep the query
+                PreparedStatement query = prepare(queryBuilder.toString());
+                for (int i = 1; i <= hashes.size(); i++) {
+                    query.setBytes(i, hashes.get(i - 1));
+                }
+
+                // Run the query
+                found = deliver(query.executeQuery(), callback);
             }
+            if (candidates != null && found == 0) {
+                FILTER_FALSE_POSITIVES.incrementAndGet();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            unwatchQuery();
+        }
+    }
 
-            // Prep the query
-            PreparedStatement query = connection.prepareStatement(baseQuery);
-            query.setBytes(1, hash);
-            query.closeOnCompletion();
+    /*
+      SQLite ignores thread interrupts, so a query its caller has given
+      up on, e.g. a ParallelRecordQuery past its deadline, would run on,
+      keeping the caller's thread and our lock.  While a callback query
+      runs, a watchdog thread cancels it once its thread is interrupted.
+    */
+    private void watchQuery() throws SQLException {
+        Statement statement = connection.createStatement();
+        synchronized (queryLock) {
+            querying = Thread.currentThread();
+            canceller = statement;
+        }
+        QUERYING.add(this);
+        startQueryWatchdog();
+    }
 
-            // Run the query
-            ResultSet result = query.executeQuery();
+    private void unwatchQuery() {
+        QUERYING.remove(this);
+        Statement statement;
+        synchronized (queryLock) {
+            querying = null;
+            statement = canceller;
+            canceller = null;
+        }
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            log.warn("Closing query canceller for "+mdd, e);
+        }
+    }
 
-            // Get the results out
-            List<Record> records = new LinkedList<Record>();
+    private void cancelIfInterrupted() {
+        synchronized (queryLock) {
+            if (querying != null && querying.isInterrupted()) {
+                log.debug("Cancelling interrupted query for "+mdd);
+                try {
+                    canceller.cancel();
+                } catch (SQLException e) {
+                    log.warn("Cancelling query for "+mdd, e);
+                }
+            }
+        }
+    }
+
+    private static synchronized void startQueryWatchdog() {
+        if (queryWatchdog != null) {
+            return;
+        }
+        queryWatchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "RecordQueryWatchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        queryWatchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (FileRecordStore store : QUERYING) {
+                    store.cancelIfInterrupted();
+                }
+            }
+        }, QUERY_WATCH_MILLIS, QUERY_WATCH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Hand each row to the callback, then close the results
+    private long deliver(ResultSet result, RecordCallback callback)
+            throws SQLException, IOException {
+        long count = 0;
+        try {
             while (result.next()) {
-                records.add(getRecordFromResult(result));
+                callback.gotRecord(getRecordFromResult(result));
+                count++;
             }
+        } finally {
             result.close();
-            return records;
-        } catch (SQLException e) {
-            throw new IOException(e);
+        }
+        return count;
+    }
+
+    /*
+      Query a large hash set: load the hashes, sorted, into the temporary
+      table and join it against the records, reading matches as SQLite
+      finds them.  With callback null, stop at the first match;
+      otherwise hand it all matches.  Returns the number of matches.
+    */
+    private long joinQueryHashes(String algorithm, List<byte[]> hashes,
+            RecordCallback callback) throws SQLException, IOException {
+        String column = HASH_COLS[HashIndex.algorithmCode(algorithm)];
+        long start = System.currentTimeMillis();
+        prepare(CREATE_QUERY_TABLE).execute();
+        try {
+            // Sorted, the primary key is built in order
+            List<byte[]> sorted = new ArrayList<byte[]>(hashes);
+            Collections.sort(sorted, HashIndex.HASH_ORDER);
+            PreparedStatement insert = connection.prepareStatement(INSERT_QUERY_HASH);
+            int count = 0;
+            for (byte[] hash : sorted) {
+                insert.setBytes(1, hash);
+                insert.addBatch();
+                if (++count % INSERT_BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+            insert.close();
+
+            long found;
+            if (callback == null) {
+                ResultSet result = prepare("SELECT 1 FROM "+QUERY_TABLE+" q JOIN "+TABLE_NAME+
+                        " r ON r."+column+" = q.hash LIMIT 1").executeQuery();
+                found = result.next() ? 1 : 0;
+                result.close();
+            } else {
+                found = deliver(prepare(SELECT_RECORDS+QUERY_TABLE+" q JOIN "+TABLE_NAME+
+                        " r ON r."+column+" = q.hash"+JOIN_DIRS).executeQuery(), callback);
+            }
+            log.debug("Joined " + hashes.size() + " hashes in " +
+                    (System.currentTimeMillis() - start) + " ms for " + mdd);
+            return found;
+        } finally {
+            prepare(CLEAR_QUERY_TABLE).execute();
         }
     }
 
     /**
-     * Get the list of {@link Record} objects with a matching hashes
-     * @param algorithm the algorithm type
-     * @param hash the hashes
-     * @return the list of records
-     * @throws IOException
+     * @return number of hash queries to any FileRecordStore with Bloom filters
+     */
+    public static long getFilterQueries() {
+        return FILTER_QUERIES.get();
+    }
+
+    /**
+     * @return number of hash queries answered by Bloom filters alone,
+     * i.e. without a database query
+     */
+    public static long getFilterSkips() {
+        return FILTER_SKIPS.get();
+    }
+
+    /**
+     * @return number of hash queries which Bloom filters passed to the
+     * database, which then found nothing
+     */
+    public static long getFilterFalsePositives() {
+        return FILTER_FALSE_POSITIVES.get();
+    }
+
+    /*
+      The hashes the column's Bloom filter cannot rule out, or null if
+      there is no filter to consult
+    */
+    private List<byte[]> filter(String algorithm, List<byte[]> hashes) throws IOException {
+        BloomFilter filter = getFilter(HashIndex.algorithmCode(algorithm));
+        if (filter == null) {
+            return null;
+        }
+        FILTER_QUERIES.incrementAndGet();
+        List<byte[]> result = new ArrayList<byte[]>(hashes.size());
+        for (byte[] hash : hashes) {
+            if (filter.mightContain(hash)) {
+                result.add(hash);
+            }
+        }
+        if (result.isEmpty()) {
+            FILTER_SKIPS.incrementAndGet();
+        }
+        return result;
+    }
+
+    /*
+      The column's filter, or null to ask SQLite.  Filters lagging the
+      table, by our writes or another store's, are not used, nor rebuilt
+      until the writer is done.
+    */
+    private BloomFilter getFilter(int column) throws IOException {
+        if (filtersDirty) {
+            return pendingFilters == null ? null : pendingFilters[column];
+        }
+        if (filterFiles.isStale()) {
+            return null;
+        }
+        BloomFilter[] current = filterFiles.mapped();
+        // Records from before filters, build them now
+        if (current == null && hasData()) {
+            rebuildFilters();
+            current = filterFiles.mapped();
+        }
+        return current == null ? null : current[column];
+    }
+
+    /**
+     * Write out Bloom filters for records from before filters, so that
+     * their files can be read without us, see {@link FilterFiles}
+     * @return false if the store has no records, so no filters
      */
-    public List<Record> getRecordsFromHashes(String algorithm, List<byte[]> hashes) throws IOException {
+    synchronized boolean buildFilters() throws IOException {
+        if (!hasData()) {
+            return false;
+        }
+        if (!filtersDirty && !filterFiles.isStale() && filterFiles.mapped() == null) {
+            rebuildFilters();
+        }
+        return true;
+    }
+
+    /**
+     * A disk's Bloom filter files, by hash column.  Mapped on first use,
+     * and mapped afresh once replaced, by this or any other store, the
+     * files' identities being re-checked before each use.  Needing no
+     * database, the who-has path keeps one per disk to rule out hashes
+     * before probing the {@link HashIndex}.
+     */
+    static class FilterFiles {
+        private final File dataDir;
+        private BloomFilter[] filters;
+        private Object[] ids;
+
+        FilterFiles(File dataDir) {
+            this.dataDir = dataDir;
+        }
+
+        /**
+         * @return true while some store's writes have the filters
+         * lagging its table, so they cannot be trusted
+         */
+        boolean isStale() {
+            return new File(dataDir, FILTER_STALE_FILE).exists();
+        }
+
+        /**
+         * @return the filters as on disk, or null if any is missing
+         */
+        synchronized BloomFilter[] mapped() throws IOException {
+            Object[] current = new Object[FILTER_FILES.length];
+            for (int i = 0; i < current.length; i++) {
+                current[i] = fileID(new File(dataDir, FILTER_FILES[i]));
+                if (current[i] == null) {
+                    filters = null;
+                    return null;
+                }
+            }
+            if (filters == null || !Arrays.equals(current, ids)) {
+                BloomFilter[] loaded = new BloomFilter[FILTER_FILES.length];
+                for (int i = 0; i < loaded.length; i++) {
+                    loaded[i] = BloomFilter.map(new File(dataDir, FILTER_FILES[i]));
+                    if (loaded[i] == null) {
+                        filters = null;
+                        return null;
+                    }
+                }
+                filters = loaded;
+                ids = current;
+            }
+            return filters;
+        }
+
+        synchronized void forget() {
+            filters = null;
+        }
+    }
+
+    // A file's identity, which any rewrite changes, or null if missing
+    static Object fileID(File f) throws IOException {
         try {
-            // Use the single lookup method for a single hash
-            if (hashes.size() == 1) {
-                return getRecordsFromHash(algorithm, hashes.get(0));
+            BasicFileAttributes a = Files.readAttributes(f.toPath(),
+                    BasicFileAttributes.class);
+            return Arrays.asList(a.fileKey(), a.lastModifiedTime(), a.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /*
+      Mark the filters stale before changing the table, so that no store
+      trusts them until we are done.  Our additions then go to in-memory
+      copies, written out once by flushFilters.  If the filters were
+      already stale, another store is writing, or one died writing, so
+      we rebuild them instead.
+    */
+    private void markFiltersStale() throws IOException {
+        if (filtersDirty) {
+            return;
+        }
+        boolean fresh = new File(dataDir, FILTER_STALE_FILE).createNewFile();
+        BloomFilter[] current = fresh ? filterFiles.mapped() : null;
+        pendingFilters = null;
+        if (current != null) {
+            pendingFilters = new BloomFilter[current.length];
+            for (int i = 0; i < current.length; i++) {
+                pendingFilters[i] = current[i].copy();
             }
+        }
+        filtersDirty = true;
+    }
 
-            String baseQuery = null;
-            switch(algorithm.toLowerCase()){
-            case MD5:
-                baseQuery = SELECT_RECORD_BY_MD5_HASHES;
-                break;
-            case SHA1:
-                baseQuery = SELECT_RECORD_BY_SHA1_HASHES;
-                break;
-            case SHA256:
-                baseQuery = SELECT_RECORD_BY_SHA256_HASHES;
-                break;
-           default:
-                throw new IllegalArgumentException("Invalid hash algorithm: "+algorithm);
+    /*
+      Add new records' hashes to the pending filters.  A filter grown
+      past its capacity (so past its target false positive rate) is
+      rebuilt larger instead.
+    */
+    private void addToFilters(List<Record> records) {
+        if (pendingFilters == null) {
+            return;
+        }
+        for (Record record : records) {
+            byte[][] hashes = {record.md5, record.sha1, record.sha256};
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] != null) {
+                    pendingFilters[i].add(hashes[i]);
+                }
+            }
+        }
+        for (BloomFilter f : pendingFilters) {
+            if (f.isFull()) {
+                pendingFilters = null;
+                return;
             }
+        }
+    }
 
-            // Build the query string
-            StringBuilder queryBuilder = new StringBuilder(baseQuery);
-            for (int i = 0; i < (hashes.size() - 1); i++) {
-                queryBuilder.append("?, ");
+    /*
+      Write out the filters we have held stale, unless mid bulk load.
+      Called once a batch of changes is committed, not per insert.
+    */
+    private void flushFilters() throws IOException {
+        if (!filtersDirty || bulkLoading) {
+            return;
+        }
+        if (pendingFilters == null) {
+            rebuildFilters();
+        } else {
+            for (int i = 0; i < pendingFilters.length; i++) {
+                pendingFilters[i].writeTo(new File(dataDir, FILTER_FILES[i]));
             }
-            // Close off the query
-            // The last ? gets added here
-            queryBuilder.append("?)");
+        }
+        pendingFilters = null;
+        filtersDirty = false;
+        new File(dataDir, FILTER_STALE_FILE).delete();
+    }
 
-            // Prep the query
-            PreparedStatement query = connection.prepareStatement(queryBuilder.toString());
-            for (int i = 1; i <= hashes.size(); i++) {
-                query.setBytes(i, hashes.get(i - 1));
+    /*
+      Build the filters from scratch, with room for the table to double
+      before they need rebuilding again
+    */
+    private void rebuildFilters() throws IOException {
+        log.debug("Building Bloom filters for "+mdd);
+        try {
+            Statement statement = connection.createStatement();
+            ResultSet count = statement.executeQuery(COUNT_STATEMENT);
+            long rows = count.getLong(1);
+            count.close();
+            statement.close();
+
+            BloomFilter[] built = new BloomFilter[FILTER_FILES.length];
+            for (int i = 0; i < built.length; i++) {
+                built[i] = BloomFilter.create(2 * rows);
             }
-            query.closeOnCompletion();
+            ResultSet result = selectHashes();
+            try {
+                while (result.next()) {
+                    for (int i = 0; i < built.length; i++) {
+                        byte[] hash = result.getBytes(i + 2);
+                        if (hash != null) {
+                            built[i].add(hash);
+                        }
+                    }
+                }
+            } finally {
+                result.close();
+            }
+            // The read was a transaction too, end it
+            connection.commit();
+            for (int i = 0; i < built.length; i++) {
+                built[i].writeTo(new File(dataDir, FILTER_FILES[i]));
+            }
+            filterFiles.forget();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
 
-            // Run the query
-            ResultSet result = query.executeQuery();
+    /**
+     * Keep, and answer hash queries from, a sorted file of each hash
+     * column, see {@link SortedHashFile}.  SQLite is then only queried
+     * for full records, by rowid.  The files are written at the end of
+     * a bulk load, or on first query, and dropped when records are
+     * added, so suit disks whose records are loaded once.  Default off.
+     */
+    public synchronized void setSortedHashFiles(boolean b) {
+        if (b != sortedHashFiles) {
+            sortedHashFiles = b;
+            sorted = null;
+        }
+    }
 
-            // Get the results out
-            List<Record> records = new LinkedList<Record>();
-            while (result.next()) {
-                records.add(getRecordFromResult(result));
+    /*
+      The hash column's sorted file, or null if not enabled, or if it
+      cannot be written, when it is tried once per open
+    */
+    private SortedHashFile getSorted(String algorithm) throws IOException {
+        int column = HashIndex.algorithmCode(algorithm);
+        if (!sortedHashFiles || bulkLoading) {
+            return null;
+        }
+        if (sorted == null) {
+            SortedHashFile[] mapped = new SortedHashFile[SORTED_FILES.length];
+            boolean missing = false;
+            for (int i = 0; i < mapped.length; i++) {
+                mapped[i] = SortedHashFile.map(new File(dataDir, SORTED_FILES[i]));
+                missing |= mapped[i] == null;
             }
-            result.close();
-            return records;
+            // Records from before sorted files, or since added
+            if (missing && hasData()) {
+                writeSortedFiles();
+                for (int i = 0; i < mapped.length; i++) {
+                    mapped[i] = SortedHashFile.map(new File(dataDir, SORTED_FILES[i]));
+                }
+            }
+            sorted = mapped;
+        }
+        return sorted[column];
+    }
+
+    private void writeSortedFiles() throws IOException {
+        log.debug("Writing sorted hash files for "+mdd);
+        try {
+            Statement statement = connection.createStatement();
+            for (int i = 0; i < SORTED_FILES.length; i++) {
+                // In hash order straight off the column's index
+                ResultSet rows = statement.executeQuery("SELECT rowid, "+HASH_COLS[i]+
+                        " FROM "+TABLE_NAME+" WHERE "+HASH_COLS[i]+" IS NOT NULL"+
+                        " ORDER BY "+HASH_COLS[i]);
+                try {
+                    File f = new File(dataDir, SORTED_FILES[i]);
+                    if (!SortedHashFile.write(f, HASH_WIDTHS[i], rows)) {
+                        log.warn("Odd width "+HASH_COLS[i]+" hashes, no sorted file for "+mdd);
+                    }
+                } finally {
+                    rows.close();
+                }
+            }
+            statement.close();
+            // The read was a transaction too, end it
+            connection.commit();
+            sorted = null;
         } catch (SQLException e) {
             throw new IOException(e);
         }
     }
 
+    /*
+      After a failed add: drop any part batch, lest a later commit write
+      it out.  Earlier batches are committed but were never indexed, so
+      the hash index no longer holds all our records.
+    */
+    private void abandonAdd() throws IOException {
+        try {
+            connection.rollback();
+        } catch (SQLException re) {
+            log.warn("Rolling back records for "+mdd, re);
+        }
+        deleteSortedFiles();
+        if(hashIndex != null){
+            hashIndex.markIncomplete(indexName);
+        }
+    }
+
+    private void deleteSortedFiles() {
+        for (String name : SORTED_FILES) {
+            new File(dataDir, name).delete();
+        }
+        sorted = null;
+    }
+
+    /*
+      Hand the callback the records of the hashes in the sorted file,
+      fetched by rowid, in rowid order.  Returns the number of records.
+    */
+    private long getRecordsFromSorted(SortedHashFile sortedFile,
+            List<byte[]> hashes, RecordCallback callback) throws SQLException, IOException {
+        List<Long> matches = new ArrayList<Long>();
+        for (byte[] hash : hashes) {
+            sortedFile.find(hash, matches);
+        }
+        // A hash queried twice finds its rows twice, which could then
+        // fall in two batches, so be delivered twice, as SQLite would not
+        List<Long> rowids = new ArrayList<Long>(new TreeSet<Long>(matches));
+        long found = 0;
+        for (int from = 0; from < rowids.size(); from += IN_LIST_MAX) {
+            List<Long> batch = rowids.subList(from, Math.min(from + IN_LIST_MAX, rowids.size()));
+            StringBuilder queryBuilder = new StringBuilder(SELECT_RECORD_BY_ROWIDS);
+            for (int i = 0; i < batch.size() - 1; i++) {
+                queryBuilder.append("?, ");
+            }
+            queryBuilder.append("?)");
+            PreparedStatement query = prepare(queryBuilder.toString());
+            for (int i = 0; i < batch.size(); i++) {
+                query.setLong(i + 1, batch.get(i));
+            }
+            found += deliver(query.executeQuery(), callback);
+        }
+        return found;
+    }
+
+    private void deleteFilters() {
+        for (String name : FILTER_FILES) {
+            new File(dataDir, name).delete();
+        }
+        filterFiles.forget();
+        pendingFilters = null;
+    }
+
+    /*
+      The rowid the next record inserted gets.  Records are only ever
+      appended, so a batch of inserts get consecutive rowids from here.
+    */
+    private long nextRecordID() throws SQLException {
+        Statement statement = connection.createStatement();
+        ResultSet result = statement.executeQuery("SELECT IFNULL(MAX(rowid), 0) + 1 FROM "+TABLE_NAME);
+        long id = result.getLong(1);
+        result.close();
+        statement.close();
+        return id;
+    }
+
+    /**
+     * @return the rowid and hashes of every record, for the hash index.
+     * The caller must hold our lock until done with the result, as it
+     * reads through our connection.
+     */
+    ResultSet selectHashes() throws SQLException {
+        assert Thread.holdsLock(this);
+        Statement statement = connection.createStatement();
+        statement.closeOnCompletion();
+        return statement.executeQuery("SELECT rowid, "+MD5_COL+", "+SHA1_COL+", "+SHA256_COL+" FROM "+TABLE_NAME);
+    }
+
     /**
      * Creates a Record object from the current row of a ResultSet
      * @param result
      * @return
      */
     private Record getRecordFromResult(ResultSet result) throws SQLException {
-        String path = result.getString(PATH_COL);
+        // The directory path ends in /, or is empty
+        String path = result.getString(PATH_COL) + result.getString(NAME_COL);
         byte[] md5 = result.getBytes(MD5_COL);
         byte[] sha1 = result.getBytes(SHA1_COL);
         byte[] sha256 = result.getBytes(SHA256_COL);
         long inode = result.getLong(INODE_COL);
-        int attrType = result.getInt(ATTR_TYPE_COL);
-        int attrId = result.getInt(ATTR_ID_COL);
-        int nameType = result.getInt(NAME_TYPE_COL);
-        int metaType = result.getInt(META_TYPE_COL);
+        int attr = result.getInt(ATTR_COL);
+        int attrType = attr >> 16;
+        int attrId = attr & 0xffff;
+        int type = result.getInt(TYPE_COL);
+        int nameType = type >> 8;
+        int metaType = (byte) type;
         int perms = result.getInt(PERM_COL);
         int uid = result.getInt(UID_COL);
         int gid = result.getInt(GID_COL);
         long size = result.getLong(SIZE_COL);
-        int atime = result.getInt(ATIME_COL);
         int mtime = result.getInt(MTIME_COL);
-        int ctime = result.getInt(CTIME_COL);
-        int crtime = result.getInt(CRTIME_COL);
+        int atime = (int) (mtime + result.getLong(ATIME_COL));
+        int ctime = (int) (mtime + result.getLong(CTIME_COL));
+        int crtime = (int) (mtime + result.getLong(CRTIME_COL));
 
         // Create the record object
         return new Record(md5, sha1, sha256, path, inode, attrType, attrId, nameType, metaType, perms, uid,
@@ -595,6 +1924,64 @@ public class FileRecordStore implements Closeable {
 
     }
 
+    /*
+      Set the INSERT_STATEMENT parameters from the record, in the
+      compact form getRecordFromResult undoes
+    */
+    private void bindRecord(PreparedStatement insert, int filesystem, Record record)
+            throws SQLException {
+        String path = record.path == null ? "" : record.path;
+        int slash = path.lastIndexOf('/');
+        insert.setLong(1, dirID(filesystem, path.substring(0, slash + 1)));
+        insert.setString(2, path.substring(slash + 1));
+        insert.setBytes(3, nullIfEmpty(record.md5));
+        insert.setBytes(4, nullIfEmpty(record.sha1));
+        insert.setBytes(5, nullIfEmpty(record.sha256));
+        insert.setLong(6, record.inode);
+        insert.setInt(7, (record.attrType << 16) | (record.attrId & 0xffff));
+        insert.setInt(8, (record.nameType << 8) | (record.metaType & 0xff));
+        insert.setInt(9, record.perms);
+        insert.setInt(10, record.uid);
+        insert.setInt(11, record.gid);
+        insert.setLong(12, record.size);
+        insert.setLong(13, (long) record.atime - record.mtime);
+        insert.setInt(14, record.mtime);
+        insert.setLong(15, (long) record.ctime - record.mtime);
+        insert.setLong(16, (long) record.crtime - record.mtime);
+    }
+
+    private static byte[] nullIfEmpty(byte[] hash) {
+        return hash == null || hash.length == 0 ? null : hash;
+    }
+
+    // The id of the filesystem's directory path, adding it if new
+    private long dirID(int filesystem, String dir) throws SQLException {
+        String key = filesystem + ":" + dir;
+        Long result = dirIDs.get(key);
+        if (result != null) {
+            return result;
+        }
+        PreparedStatement select = prepare(SELECT_DIR_STATEMENT);
+        select.setInt(1, filesystem);
+        select.setString(2, dir);
+        ResultSet rs = select.executeQuery();
+        if (rs.next()) {
+            result = rs.getLong(1);
+            rs.close();
+        } else {
+            rs.close();
+            PreparedStatement insert = prepare(INSERT_DIR_STATEMENT);
+            insert.setInt(1, filesystem);
+            insert.setString(2, dir);
+            insert.executeUpdate();
+            rs = prepare("SELECT last_insert_rowid()").executeQuery();
+            result = rs.getLong(1);
+            rs.close();
+        }
+        dirIDs.put(key, result);
+        return result;
+    }
+
 	/**
 	 * Run initial setup
 	 * @throws SQLException
@@ -602,10 +1989,19 @@ public class FileRecordStore implements Closeable {
 	private void init() throws SQLException {
 		log.debug("Initializing database for managed disk "+mdd);
 		Statement statement = connection.createStatement();
+		statement.executeUpdate(CREATE_FILESYSTEMS_STATEMENT);
+		statement.executeUpdate(CREATE_DIRS_STATEMENT);
 		statement.executeUpdate(CREATE_STATEMENT);
+		statement.executeUpdate("PRAGMA user_version = "+VERSION);
+		statement.close();
 		connection.commit();
+		createIndexes();
+
+		writeVersion();
+	}
 
-		// Write the version info
+	// Write the version info
+	private void writeVersion() {
 		try{
 		    BufferedWriter writer = new BufferedWriter(new FileWriter(versionFile));
 		    writer.write(""+VERSION);
@@ -616,13 +2012,69 @@ public class FileRecordStore implements Closeable {
 		}
 	}
 
+	/**
+	 * Done with the store.  A store from a {@link FileRecordStorePool}
+	 * goes back to the pool, and stays open for the next user
+	 */
 	@Override
 	public void close() throws IOException {
+		if(pool != null){
+			pool.release(this);
+		} else {
+			closeConnection();
+		}
+	}
+
+	/*
+	  End the open transaction, so our reads no longer hold the
+	  database lock against other connections.  Called by the pool
+	  when the last user is done with us.
+	*/
+	synchronized void endTransaction() throws IOException {
 		try {
-			connection.close();
+			// May since have been evicted by another thread
+			if(!connection.isClosed()){
+				flushFilters();
+				connection.commit();
+			}
 		} catch (SQLException e) {
 			throw new IOException(e);
 		}
 	}
 
+	// Really close, releasing the statements and connection
+	synchronized void closeConnection() throws IOException {
+		try {
+			flushFilters();
+		} finally {
+			try {
+				closeStatements();
+				connection.close();
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/*
+	  A prepared statement for the SQL, from the cache if we have
+	  prepared it before.  Cached statements are closed only on
+	  eviction or closeConnection, so callers must not close them.
+	*/
+	private PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement result = statements.get(sql);
+		if(result == null){
+			result = connection.prepareStatement(sql);
+			statements.put(sql, result);
+		}
+		return result;
+	}
+
+	private void closeStatements() throws SQLException {
+		for(PreparedStatement ps : statements.values()){
+			ps.close();
+		}
+		statements.clear();
+	}
+
 }
@@ -0,0 +1,260 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.uw.apl.tupelo.store.filesys;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+
+/**
+ * A bounded pool of open {@link FileRecordStore}s, one per managed disk,
+ * so that repeated record lookups on a disk reuse its connection and
+ * prepared statements rather than reopening the database each time.
+ * <br> <br>
+ * A store handed out by {@link #acquire} is shared by all current users
+ * of that disk (FileRecordStore serializes its own methods). Calling
+ * close() on it returns it to the pool. When more than the capacity
+ * are open, the least recently used stores that no one holds are
+ * closed.
+ * <br> <br>
+ * Stores are opened outside the pool's lock, so one slow disk (e.g. a
+ * large database being initialized) holds up only those wanting that
+ * same disk, who wait on its opening rather than open it again.
+ */
+class FileRecordStorePool {
+    private static final Log log = LogFactory.getLog(FileRecordStorePool.class);
+
+    // The default number of stores kept open
+    static final int CAPACITY_DEFAULT = 32;
+
+    private final int capacity;
+    // Open stores, least recently used first
+    private final LinkedHashMap<ManagedDiskDescriptor,FileRecordStore> stores;
+    // Current users of each open store
+    private final Map<FileRecordStore,Integer> users;
+    // Stores being opened, by the first to want them
+    private final Map<ManagedDiskDescriptor,FutureTask<FileRecordStore>> opening;
+
+    FileRecordStorePool(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        stores = new LinkedHashMap<ManagedDiskDescriptor,FileRecordStore>(16, 0.75f, true);
+        users = new HashMap<FileRecordStore,Integer>();
+        opening = new HashMap<ManagedDiskDescriptor,FutureTask<FileRecordStore>>();
+    }
+
+    /**
+     * Get the open store for the disk, opening it if need be. The caller
+     * must close() it when done.
+     * @param dataDir the disk's directory
+     * @param hashIndex the store-wide hash index, may be null
+     * @param indexName the disk's name in the index
+     */
+    FileRecordStore acquire(ManagedDiskDescriptor mdd, File dataDir,
+            HashIndex hashIndex, String indexName) throws IOException {
+        while (true) {
+            List<FileRecordStore> evicted;
+            FileRecordStore result;
+            FutureTask<FileRecordStore> task = null;
+            boolean opener = false;
+            synchronized (this) {
+                result = stores.get(mdd);
+                if (result != null) {
+                    users.put(result, users.get(result) + 1);
+                    evicted = evict();
+                } else {
+                    evicted = null;
+                    task = opening.get(mdd);
+                    if (task == null) {
+                        task = new FutureTask<FileRecordStore>(
+                                opener(mdd, dataDir, hashIndex, indexName));
+                        opening.put(mdd, task);
+                        opener = true;
+                    }
+                }
+            }
+            if (result != null) {
+                closeAll(evicted);
+                return result;
+            }
+            if (opener) {
+                task.run();
+            }
+            await(task);
+            // Now pooled, unless already evicted, so take it as usual
+        }
+    }
+
+    /*
+      Opens the store, outside our lock, then pools it.  Pooled before
+      the task completes, so those awaiting it find it on retrying.
+    */
+    private Callable<FileRecordStore> opener(final ManagedDiskDescriptor mdd,
+            final File dataDir, final HashIndex hashIndex, final String indexName) {
+        return new Callable<FileRecordStore>() {
+            @Override
+            public FileRecordStore call() throws IOException {
+                FileRecordStore result = null;
+                try {
+                    result = new FileRecordStore(dataDir, mdd, hashIndex, indexName);
+                    result.pool = FileRecordStorePool.this;
+                } finally {
+                    synchronized (FileRecordStorePool.this) {
+                        opening.remove(mdd);
+                        if (result != null) {
+                            stores.put(mdd, result);
+                            users.put(result, 0);
+                        }
+                    }
+                }
+                return result;
+            }
+        };
+    }
+
+    // Wait for an opening, ours or another's, rethrowing its failure
+    private static void await(FutureTask<FileRecordStore> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Waiting for a record store to open");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Give back a store from {@link #acquire}. Called by
+     * FileRecordStore.close()
+     */
+    void release(FileRecordStore store) throws IOException {
+        List<FileRecordStore> evicted;
+        Integer count;
+        synchronized (this) {
+            count = users.get(store);
+            if (count == null) {
+                // Already evicted, or the pool closed
+                return;
+            }
+            count = Math.max(0, count - 1);
+            users.put(store, count);
+            evicted = evict();
+        }
+        if (count == 0 && !evicted.contains(store)) {
+            store.endTransaction();
+        }
+        closeAll(evicted);
+    }
+
+    /**
+     * @return the number of stores open
+     */
+    synchronized int size() {
+        return stores.size();
+    }
+
+    /**
+     * Close every store, in use or not. Later releases are ignored.
+     */
+    void close() throws IOException {
+        List<FileRecordStore> all;
+        synchronized (this) {
+            all = new ArrayList<FileRecordStore>(stores.values());
+            stores.clear();
+            users.clear();
+        }
+        closeAll(all);
+    }
+
+    // Take out least recently used idle stores while over capacity
+    private List<FileRecordStore> evict() {
+        List<FileRecordStore> result = new ArrayList<FileRecordStore>();
+        Iterator<FileRecordStore> it = stores.values().iterator();
+        while (stores.size() > capacity && it.hasNext()) {
+            FileRecordStore store = it.next();
+            if (users.get(store) == 0) {
+                it.remove();
+                users.remove(store);
+                result.add(store);
+            }
+        }
+        return result;
+    }
+
+    // Close outside the pool lock, as a store may be busy in another thread
+    private void closeAll(List<FileRecordStore> closing) throws IOException {
+        IOException first = null;
+        for (FileRecordStore store : closing) {
+            try {
+                store.closeConnection();
+            } catch (IOException e) {
+                log.warn("Exception closing record store", e);
+                if (first == null) {
+                    first = e;
+                }
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+}
@@ -34,14 +34,27 @@
 package edu.uw.apl.tupelo.store.filesys;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.FileStore;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.DriverManager;
@@ -53,11 +66,18 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 
 import edu.uw.apl.commons.tsk4j.digests.BodyFile.Record;
 import edu.uw.apl.tupelo.model.ManagedDisk;
@@ -66,6 +86,7 @@ import edu.uw.apl.tupelo.model.ManagedDiskDigest;
 import edu.uw.apl.tupelo.model.Session;
 import edu.uw.apl.tupelo.model.ProgressMonitor;
 import edu.uw.apl.tupelo.model.Utils;
+import edu.uw.apl.tupelo.store.AttributeOutputStream;
 import edu.uw.apl.tupelo.store.Store;
 
 /**
@@ -84,18 +105,145 @@ import edu.uw.apl.tupelo.store.Store;
    In particular, a put() first writes to a temp dir/file, and only
    when it is time to move into the final Store location do we require
    the 'real' lock.
+
+   A store may span several data roots ('volumes'), e.g. one per
+   physical drive.  The first is the primary, holding the store's
+   uuid.txt and session.txt; every volume has the same disks/ and
+   temp/ layout beneath it, and all share the one store UUID.  Each
+   managed disk lives wholly on one volume, chosen at put() time by
+   the store's Placement policy.  A put's temp file is on the same
+   volume as its final location, so the final move is a rename.
+   Concurrent puts are steered to different volumes where possible.
 */
 public class FilesystemStore implements Store {
+
+	/**
+	 * How a put() picks the volume for a new managed disk, in a
+	 * multi-volume store.  Under every policy, volumes without room
+	 * for the disk's data are passed over, as are volumes busier (with
+	 * puts in progress) than the least busy.
+	 */
+	public enum Placement {
+		// the volume with the most usable space
+		FREESPACE,
+		// each volume in turn
+		ROUNDROBIN,
+		// the volume of the disk's latest session, so a chain of
+		// sessions stays together. FREESPACE for a new disk
+		AFFINITY
+	}
+
+	/**
+	 * When a put() forces managed data to disk.  Whatever the policy,
+	 * the data only becomes visible in the store once completely
+	 * written, via an atomic rename.
+	 */
+	public enum Fsync {
+		// once, when all data is written (the default)
+		END,
+		// every so many MiB written, and at the end, to bound the
+		// dirty data the OS holds for a single put
+		INTERVAL,
+		// never, leaving it to the OS
+		NONE
+	}
+
+	/**
+	 * What becomes of file records matching the store's
+	 * {@link KnownFileSet}, e.g. stock OS files listed by the NSRL
+	 */
+	public enum KnownFiles {
+		// recorded like any other file (the default)
+		KEEP,
+		// not recorded at all
+		SKIP
+	}
+
+	// MiB between syncs under Fsync.INTERVAL, unless set otherwise
+	static public final int FSYNC_INTERVAL_DEFAULT = 64;
+
+	/**
+	 * Notified of changes to the store's content, so that follow-on
+	 * work (digests, file records) can start as soon as its input is
+	 * in place, rather than on some later poll.  Called on the thread
+	 * making the change, after the change is complete and visible, so
+	 * implementations should be quick, e.g. just queue the real work.
+	 * A listener's exceptions are logged, never passed to the caller.
+	 */
+	public interface Listener {
+		/**
+		 * A put() has moved a new managed disk into the store
+		 */
+		public void putCompleted( ManagedDiskDescriptor mdd );
+
+		/**
+		 * An attribute of the disk has been set, by value or stream
+		 */
+		public void attributeSet( ManagedDiskDescriptor mdd, String key );
+
+		/**
+		 * The grain digest of the disk has been computed and saved
+		 */
+		public void digestComputed( ManagedDiskDescriptor mdd );
+	}
+
+	/**
+	 * A Listener ignoring all events, to extend when only some are of
+	 * interest
+	 */
+	static public class ListenerAdapter implements Listener {
+		@Override
+		public void putCompleted( ManagedDiskDescriptor mdd ) {
+		}
+
+		@Override
+		public void attributeSet( ManagedDiskDescriptor mdd, String key ) {
+		}
+
+		@Override
+		public void digestComputed( ManagedDiskDescriptor mdd ) {
+		}
+	}
+
     private boolean writable;
+    private Fsync fsync;
+    private boolean packedAttributes;
+    private volatile boolean sortedHashFiles;
+    private volatile KnownFiles knownFiles;
+    private KnownFileSet knownFileSet;
+    // Held through an import, which can take hours, instead of our lock
+    private final Object knownFilesImport = new Object();
+    private int fsyncIntervalMiB;
     
     private final UUID uuid;
-    private final File root, tempDir;
+    private final File root;
+    private final List<File> volumes;
+    private final Placement placement;
     private final Map<ManagedDiskDescriptor,ManagedDisk> descriptorMap;
     private final Map<String,ManagedDisk> pathMap;
+    private final Map<ManagedDiskDescriptor,File> volumeMap;
+    private final Map<File,Integer> activePuts;
+    private final Map<ManagedDiskDescriptor,AttributeLog> attributeLogs;
+    private final Set<ManagedDiskDescriptor> indexChecked;
+    private HashIndex hashIndex;
+    // Each disk's Bloom filters, consulted before the hash index, and
+    // the disks found to have no records, so no filters
+    private final Map<ManagedDiskDescriptor,FileRecordStore.FilterFiles> filterFiles;
+    private final Set<ManagedDiskDescriptor> noRecords;
+    // Open FileRecordStores, reused across calls
+    private final FileRecordStorePool recordStores =
+        new FileRecordStorePool(FileRecordStorePool.CAPACITY_DEFAULT);
+    // Disks whose records await migration to the current layout, taken
+    // by the migrator thread, started on first need
+    private final LinkedBlockingDeque<ManagedDiskDescriptor> migrations =
+        new LinkedBlockingDeque<ManagedDiskDescriptor>();
+    private Thread migrator;
+    private final Set<ManagedDiskDescriptor> pendingPuts;
+    private final List<Listener> listeners =
+        new CopyOnWriteArrayList<Listener>();
+    private int nextVolume;
     private final Log log;
 
-    private TempDirCleaner tempDirCleaner;
-
 	public FilesystemStore( File root ) {
 		this( root, true );
 	}
@@ -108,23 +256,65 @@ public class FilesystemStore implements Store {
 	 * pass false so a FilesystemStore has known empty status initially
 	 */
 	public FilesystemStore( File root, boolean loadManagedDisks ) {
+		this( Collections.singletonList( root ), Placement.FREESPACE,
+			  loadManagedDisks );
+	}
+
+	/**
+	 * @param volumes - data roots for the Store, typically one per
+	 * drive.  The first is the primary, holding store-wide state.
+	 * Volumes may be added to an existing store, but not removed
+	 * while they hold managed disks.
+	 *
+	 * @param placement - how new managed disks are assigned to volumes
+	 *
+	 * @param loadManagedDisks - normally true, but for test cases useful to
+	 * pass false so a FilesystemStore has known empty status initially
+	 *
+	 * @throws IllegalStateException if a volume belongs to another store
+	 */
+	public FilesystemStore( List<File> volumes, Placement placement,
+							boolean loadManagedDisks ) {
 		log = LogFactory.getLog( getClass() );
-		this.root = root;
+		if( volumes.isEmpty() )
+			throw new IllegalArgumentException( "No store volumes" );
+		this.volumes = new ArrayList<File>( volumes );
+		this.placement = placement;
+		this.root = this.volumes.get( 0 );
 		log.info( "Store.root = " + root );
-		tempDir = new File( root, "temp" );
-		tempDir.mkdirs();
-		log.debug( "FSStore.tmp = " + tempDir );
-
-        // Start the temp directory cleaner
-        tempDirCleaner = new TempDirCleaner(tempDir);
-        new Thread(tempDirCleaner).start();
+		root.mkdirs();
 
 		uuid = loadUUID();
+		activePuts = new HashMap<File,Integer>();
+		for( File volume : this.volumes ) {
+			if( volume != root ) {
+				log.info( "Store.volume = " + volume );
+				checkVolumeUUID( volume );
+			}
+			File tempDir = tempDir( volume );
+			tempDir.mkdirs();
+			log.debug( "FSStore.tmp = " + tempDir );
+			// Start the temp directory cleaner
+			new Thread( new TempDirCleaner( tempDir ) ).start();
+			activePuts.put( volume, 0 );
+		}
+
 		descriptorMap = new HashMap<ManagedDiskDescriptor,ManagedDisk>();
 		pathMap = new HashMap<String,ManagedDisk>();
-		if( loadManagedDisks )
+		volumeMap = new HashMap<ManagedDiskDescriptor,File>();
+		pendingPuts = new HashSet<ManagedDiskDescriptor>();
+		attributeLogs = new HashMap<ManagedDiskDescriptor,AttributeLog>();
+		indexChecked = new HashSet<ManagedDiskDescriptor>();
+		filterFiles = new HashMap<ManagedDiskDescriptor,FileRecordStore.FilterFiles>();
+		noRecords = new HashSet<ManagedDiskDescriptor>();
+		if( loadManagedDisks ) {
 			loadManagedDisks();
+			scheduleMigrations();
+		}
 		writable = true;
+		fsync = Fsync.END;
+		fsyncIntervalMiB = FSYNC_INTERVAL_DEFAULT;
+		knownFiles = KnownFiles.KEEP;
         // Load the JDBC driver for the FileHashStore
         try {
             DriverManager.registerDriver(new org.sqlite.JDBC());
@@ -140,15 +330,51 @@ public class FilesystemStore implements Store {
 	public void setWritable( boolean b ) {
 		writable = b;
 	}
+
+	/**
+	 * @param intervalMiB - for Fsync.INTERVAL, MiB written between syncs
+	 */
+	public void setFsyncPolicy( Fsync policy, int intervalMiB ) {
+		if( intervalMiB < 1 )
+			throw new IllegalArgumentException( "Bad fsync interval: " +
+												intervalMiB );
+		fsync = policy;
+		fsyncIntervalMiB = intervalMiB;
+	}
+
+	public Fsync getFsyncPolicy() {
+		return fsync;
+	}
 	
 	@Override
 	public synchronized UUID getUUID() {
 		return uuid;
 	}
 
+	/**
+	 * Total over all volumes, counting each underlying file system once
+	 */
 	@Override
 	public synchronized long getUsableSpace() {
-		return root.getUsableSpace();
+		long result = 0;
+		Set<FileStore> seen = new HashSet<FileStore>();
+		for( File volume : volumes ) {
+			try {
+				if( !seen.add( Files.getFileStore( volume.toPath() ) ) )
+					continue;
+			} catch( IOException ioe ) {
+				log.warn( ioe );
+			}
+			result += volume.getUsableSpace();
+		}
+		return result;
+	}
+
+	/**
+	 * @return the store's data roots, primary first
+	 */
+	public List<File> getVolumes() {
+		return Collections.unmodifiableList( volumes );
 	}
 
 	/**
@@ -193,78 +419,88 @@ public class FilesystemStore implements Store {
 	 * and the store proper NOT updated
 	 */
 	@Override
-	public synchronized void put( ManagedDisk md ) throws IOException {
+	public void put( ManagedDisk md ) throws IOException {
 
 		ManagedDiskDescriptor mdd = md.getDescriptor();
-		if( descriptorMap.containsKey( mdd ) )
-			throw new IllegalArgumentException( "Already stored: " + mdd );
-		
-		String fileName = dataFileName( mdd );
-		File tempFile = new File( tempDir, fileName );
-		log.info( "Writing to " + tempFile );
-		/*
-		  Since the temp file itself is to be used as a lock,
-		  canonicalise it first to avoid any unintended side-stepping
-		  of lock requirements.  Since this is where the expensive
-		  operation occurs, we maintain the accessibility of the wider
-		  store object itself...
-		*/
-		tempFile = tempFile.getCanonicalFile();
-		synchronized( tempFile ) {
-			log.debug( "Locked " + tempFile );
-			FileOutputStream fos = new FileOutputStream( tempFile );
-			BufferedOutputStream bos = new BufferedOutputStream( fos, 1024*64 );
-			md.writeTo( bos );
-			bos.flush();
-			bos.close();
-			fos.close();
-			// Verify for that data written is complete...
+		File volume = beginPut( md );
+		try {
+			put( md, volume );
+		} finally {
+			endPut( mdd, volume );
+		}
+		firePutCompleted( mdd );
+	}
+
+	private void put( ManagedDisk md, File volume ) throws IOException {
+		put( md, volume, null, 0 );
+	}
+
+	@Override
+	public void put( ManagedDisk md, ProgressMonitor.Callback cb,
+					 int progressUpdateIntervalSecs )
+		throws IOException {
+
+		ManagedDiskDescriptor mdd = md.getDescriptor();
+		File volume = beginPut( md );
+		try {
+			put( md, volume, cb, progressUpdateIntervalSecs );
+		} finally {
+			endPut( mdd, volume );
+		}
+		firePutCompleted( mdd );
+	}
+
+	public void addListener( Listener l ) {
+		listeners.add( l );
+	}
+
+	public void removeListener( Listener l ) {
+		listeners.remove( l );
+	}
+
+	private void firePutCompleted( ManagedDiskDescriptor mdd ) {
+		for( Listener l : listeners ) {
 			try {
-				md.setManagedData( tempFile );
-				md.verify();
-			} catch( IllegalStateException ise ) {
-				log.warn( ise );
-				tempFile.delete();
-				throw ise;
+				l.putCompleted( mdd );
+			} catch( RuntimeException re ) {
+				log.warn( "Listener failed on put of " + mdd, re );
 			}
-			log.debug( "Unlocked " + tempFile );
 		}
+	}
 
-		// we are now adding to the Store proper, so need the lock....
-		synchronized( this ) {
-			File outDir = diskDataDir( root, mdd );
-			outDir.mkdirs();
-			File outFile = new File( outDir, fileName );
-			log.info( "Moving to " + outFile );
-			tempFile.renameTo( outFile );
-			log.info( "Moved to " + outFile );
-			md.setManagedData( outFile );
+	private void fireAttributeSet( ManagedDiskDescriptor mdd, String key ) {
+		for( Listener l : listeners ) {
+			try {
+				l.attributeSet( mdd, key );
+			} catch( RuntimeException re ) {
+				log.warn( "Listener failed on attribute " + key + " of " +
+						  mdd, re );
+			}
+		}
+	}
 
-			// Access controls in place to guard against file system screw ups..
-			outFile.setWritable( writable );
-			// Since only ever supposed to be a single file in the dir, protect the dir
-			outDir.setWritable( writable );
-			
-			link( md );
-			descriptorMap.put( mdd, md );
-			String path = asPathName( mdd );
-			pathMap.put( path, md );
+	private void fireDigestComputed( ManagedDiskDescriptor mdd ) {
+		for( Listener l : listeners ) {
+			try {
+				l.digestComputed( mdd );
+			} catch( RuntimeException re ) {
+				log.warn( "Listener failed on digest of " + mdd, re );
+			}
 		}
 	}
 
-	@Override
-	public synchronized void put( ManagedDisk md, ProgressMonitor.Callback cb,
-								  int progressUpdateIntervalSecs )
+	/*
+	  Write the managed data to the volume's temp dir, then move it
+	  into place.  With no callback, the written data is also
+	  verified before the move.
+	*/
+	private void put( ManagedDisk md, File volume, ProgressMonitor.Callback cb,
+					  int progressUpdateIntervalSecs )
 		throws IOException {
 
-		// LOOK: this is same code as put(ManagedDisk) but with the progmon..
-
 		ManagedDiskDescriptor mdd = md.getDescriptor();
-		if( descriptorMap.containsKey( mdd ) )
-			throw new IllegalArgumentException( "Already stored: " + mdd );
-		
 		String fileName = dataFileName( mdd );
-		File tempFile = new File( tempDir, fileName );
+		File tempFile = new File( tempDir( volume ), fileName );
 		log.info( "Writing to " + tempFile );
 		/*
 		  Since the temp file itself is to be used as a lock,
@@ -276,23 +512,63 @@ public class FilesystemStore implements Store {
 		tempFile = tempFile.getCanonicalFile();
 		synchronized( tempFile ) {
 			log.debug( "Locked " + tempFile );
-			FileOutputStream fos = new FileOutputStream( tempFile );
-			BufferedOutputStream bos = new BufferedOutputStream( fos, 1024*64 );
-			ProgressMonitor pm = new ProgressMonitor
-				( md, bos, cb, progressUpdateIntervalSecs );
-			pm.start();
-			bos.close();
-			fos.close();
+			/*
+			  The unmanaged size (plus header) bounds the managed data
+			  for all but incompressible stream-optimized disks, so
+			  extend the file to that, if the volume has room, and
+			  truncate it back on close.  Java 7 has no fallocate, so
+			  on most file systems the extension is sparse and
+			  reserves nothing: a volume filling up meanwhile still
+			  fails the write midway.  It only spares the file system
+			  growing the file with every write.
+			*/
+			long expected = md.size() + ManagedDisk.Header.SIZEOF;
+			long prealloc = volume.getUsableSpace() > expected ? expected : 0;
+			ManagedDataOutputStream mdos = new ManagedDataOutputStream
+				( tempFile, prealloc, fsync, fsyncIntervalMiB * 1024L * 1024 );
+			try {
+				if( cb == null ) {
+					md.writeTo( mdos );
+				} else {
+					ProgressMonitor pm = new ProgressMonitor
+						( md, mdos, cb, progressUpdateIntervalSecs );
+					pm.start();
+				}
+			} finally {
+				mdos.close();
+			}
+			log.info( String.format
+					  ( "Put %s: %d bytes in %.1f s, %.1f MiB/s (fsync %s)",
+						mdd, mdos.getBytesWritten(),
+						mdos.getElapsedMillis() / 1000.0,
+						mdos.getBytesWritten() /
+						(Math.max( mdos.getElapsedMillis(), 1 ) / 1000.0) /
+						(1024 * 1024), fsync ) );
+			if( cb == null ) {
+				// Verify for that data written is complete...
+				try {
+					md.setManagedData( tempFile );
+					md.verify();
+				} catch( IllegalStateException ise ) {
+					log.warn( ise );
+					tempFile.delete();
+					throw ise;
+				}
+			}
 			log.debug( "Unlocked " + tempFile );
 		}
 
 		// we are now adding to the Store proper, so need the lock....
 		synchronized( this ) {
-			File outDir = diskDataDir( root, mdd );
+			File outDir = diskDataDir( volume, mdd );
 			outDir.mkdirs();
 			File outFile = new File( outDir, fileName );
 			log.info( "Moving to " + outFile );
-			tempFile.renameTo( outFile );
+			// Same volume, so this is a rename
+			Files.move( tempFile.toPath(), outFile.toPath(),
+						StandardCopyOption.ATOMIC_MOVE );
+			if( fsync != Fsync.NONE )
+				syncDirectory( outDir );
 			log.info( "Moved to " + outFile );
 			md.setManagedData( outFile );
 
@@ -303,11 +579,122 @@ public class FilesystemStore implements Store {
 			
 			link( md );
 			descriptorMap.put( mdd, md );
+			volumeMap.put( mdd, volume );
 			String path = asPathName( mdd );
 			pathMap.put( path, md );
 		}
 	}
 
+	/*
+	  Make a rename durable by syncing the directory holding it.  Not
+	  possible on all platforms (e.g. Windows), so failures are only
+	  logged.
+	*/
+	private void syncDirectory( File dir ) {
+		try {
+			FileChannel fc = FileChannel.open( dir.toPath(),
+											   StandardOpenOption.READ );
+			try {
+				fc.force( true );
+			} finally {
+				fc.close();
+			}
+		} catch( IOException ioe ) {
+			log.debug( "Cannot sync " + dir + ": " + ioe );
+		}
+	}
+
+	/**
+	 * Reserve the descriptor (so two concurrent puts of the same disk
+	 * cannot both proceed) and pick the volume to hold it.
+	 */
+	private synchronized File beginPut( ManagedDisk md ) {
+		ManagedDiskDescriptor mdd = md.getDescriptor();
+		if( descriptorMap.containsKey( mdd ) || pendingPuts.contains( mdd ) )
+			throw new IllegalArgumentException( "Already stored: " + mdd );
+		File volume = chooseVolume( md );
+		pendingPuts.add( mdd );
+		activePuts.put( volume, activePuts.get( volume ) + 1 );
+		log.info( "Placing " + mdd + " on " + volume );
+		return volume;
+	}
+
+	private synchronized void endPut( ManagedDiskDescriptor mdd, File volume ) {
+		pendingPuts.remove( mdd );
+		activePuts.put( volume, activePuts.get( volume ) - 1 );
+	}
+
+	// Called with the store lock held
+	private File chooseVolume( ManagedDisk md ) {
+		if( volumes.size() == 1 )
+			return root;
+
+		if( placement == Placement.AFFINITY ) {
+			File v = chainVolume( md.getDescriptor() );
+			if( v != null )
+				return v;
+		}
+
+		// Only volumes with room, and of those only the least busy
+		List<File> candidates = new ArrayList<File>();
+		for( File volume : volumes ) {
+			if( volume.getUsableSpace() > md.size() )
+				candidates.add( volume );
+		}
+		if( candidates.isEmpty() )
+			candidates.addAll( volumes );
+		int fewest = Integer.MAX_VALUE;
+		for( File volume : candidates )
+			fewest = Math.min( fewest, activePuts.get( volume ) );
+		for( Iterator<File> it = candidates.iterator(); it.hasNext(); ) {
+			if( activePuts.get( it.next() ) > fewest )
+				it.remove();
+		}
+
+		if( placement == Placement.ROUNDROBIN ) {
+			for( int i = 0; i < volumes.size(); i++ ) {
+				int index = (nextVolume + i) % volumes.size();
+				File volume = volumes.get( index );
+				if( candidates.contains( volume ) ) {
+					nextVolume = index + 1;
+					return volume;
+				}
+			}
+		}
+		File result = candidates.get( 0 );
+		for( File volume : candidates ) {
+			if( volume.getUsableSpace() > result.getUsableSpace() )
+				result = volume;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the volume of the latest stored session of the same disk,
+	 * or null if this is the disk's first session
+	 */
+	private File chainVolume( ManagedDiskDescriptor mdd ) {
+		ManagedDiskDescriptor latest = null;
+		for( ManagedDiskDescriptor el : descriptorMap.keySet() ) {
+			if( !el.getDiskID().equals( mdd.getDiskID() ) )
+				continue;
+			if( latest == null ||
+				ManagedDiskDescriptor.DEFAULTCOMPARATOR.compare
+				( el, latest ) > 0 )
+				latest = el;
+		}
+		return latest == null ? null : volumeMap.get( latest );
+	}
+
+	/**
+	 * @return the volume holding the managed disk. Disks not (yet)
+	 * stored resolve to the primary volume.
+	 */
+	private synchronized File volumeOf( ManagedDiskDescriptor mdd ) {
+		File result = volumeMap.get( mdd );
+		return result == null ? root : result;
+	}
+
 	@Override
 	public synchronized long size( ManagedDiskDescriptor mdd )
 		throws IOException {
@@ -355,7 +742,7 @@ public class FilesystemStore implements Store {
 			return null;
 		}
 
-		File f = managedDataDigest( root, mdd );
+		File f = managedDataDigest( volumeOf( mdd ), mdd );
 		if( !f.isFile() ) {
 			log.warn( "Digest missing: " + mdd );
 			return null;
@@ -377,6 +764,99 @@ public class FilesystemStore implements Store {
 		return result;
 	}
 
+	/**
+	 * The digest file holds one fixed-width hex line per grain, so any
+	 * range of it can be read directly, without parsing what precedes it.
+	 */
+	@Override
+	public ManagedDiskDigest digest( ManagedDiskDescriptor mdd,
+									 int from, int count )
+		throws IOException {
+
+		if( !descriptorMap.containsKey( mdd ) ) {
+			return null;
+		}
+		File f = managedDataDigest( volumeOf( mdd ), mdd );
+		if( !f.isFile() ) {
+			log.warn( "Digest missing: " + mdd );
+			return null;
+		}
+		ManagedDiskDigest result = new ManagedDiskDigest();
+		RandomAccessFile raf = new RandomAccessFile( f, "r" );
+		try {
+			int lineLength = digestLineLength( raf );
+			if( lineLength == 0 || from < 0 || count <= 0 )
+				return result;
+			long total = raf.length() / lineLength;
+			if( from >= total )
+				return result;
+			int n = (int)Math.min( count, total - from );
+			byte[] lines = new byte[n * lineLength];
+			raf.seek( (long)from * lineLength );
+			raf.readFully( lines );
+			char[] hex = new char[digestHexLength( lines, lineLength )];
+			for( int i = 0; i < n; i++ ) {
+				int offset = i * lineLength;
+				for( int c = 0; c < hex.length; c++ )
+					hex[c] = (char)lines[offset+c];
+				try {
+					result.add( Hex.decodeHex( hex ) );
+				} catch( DecoderException de ) {
+					throw new IOException( de );
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		return result;
+	}
+
+	@Override
+	public int digestSize( ManagedDiskDescriptor mdd ) throws IOException {
+		if( !descriptorMap.containsKey( mdd ) ) {
+			return -1;
+		}
+		File f = managedDataDigest( volumeOf( mdd ), mdd );
+		if( !f.isFile() ) {
+			return -1;
+		}
+		RandomAccessFile raf = new RandomAccessFile( f, "r" );
+		try {
+			int lineLength = digestLineLength( raf );
+			if( lineLength == 0 )
+				return 0;
+			return (int)(raf.length() / lineLength);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return length in bytes of each line of a digest file, including
+	 * its line separator, 0 if the file is empty
+	 */
+	static private int digestLineLength( RandomAccessFile raf )
+		throws IOException {
+		byte[] first = new byte[(int)Math.min( 256, raf.length() )];
+		raf.seek( 0 );
+		raf.readFully( first );
+		for( int i = 0; i < first.length; i++ ) {
+			if( first[i] == '\n' )
+				return i + 1;
+		}
+		if( first.length > 0 )
+			throw new IOException( "Malformed digest file" );
+		return 0;
+	}
+
+	// the hex digits in a line, i.e. less the '\n' or '\r\n'
+	static private int digestHexLength( byte[] lines, int lineLength ) {
+		int result = lineLength - 1;
+		if( result > 0 && lines[result-1] == '\r' )
+			result--;
+		return result;
+	}
+
 	/**
 	 * Scan the managed data identified by the supplied ManagedDiskDescriptor
 	 * and sha1 hash each grain.  Save the hashes list to a file alongside
@@ -385,7 +865,7 @@ public class FilesystemStore implements Store {
 	public void computeDigest( ManagedDiskDescriptor mdd )
 		throws IOException {
 
-		File digestFile = managedDataDigest( root, mdd );
+		File digestFile = managedDataDigest( volumeOf( mdd ), mdd );
 		if( digestFile.exists() )
 			return;
 		
@@ -408,41 +888,43 @@ public class FilesystemStore implements Store {
 		log.info( "Grains: " + grainCount );
 		byte[] grain = new byte[(int)md.grainSizeBytes()];
 		InputStream is = md.getInputStream();
-		//		DigestInputStream dis = new DigestInputStream( is, sha1 );
-		//		List<byte[]> digest = new ArrayList<byte[]>( grainCount );
-		ManagedDiskDigest digest = new ManagedDiskDigest();
-		for( int g = 1; g <= grainCount; g++ ) {
-			//	int nin = dis.read( grain );
-			int nin = is.read( grain );
-			/*
-			  Only the last read could/should return a partial grain,
-			  and that would be if the data size not a multiple of
-			  grainSize, which is OK.
-			*/
-			if( nin != grain.length && g < grainCount ) {
-				throw new IllegalStateException( "Partial read (" +
-												 g + "/" +
-												 grainCount + "). Fix!" );
+		/*
+		  Hashes go straight out to the digest file as computed, so
+		  memory use is independent of disk size.  Written to a
+		  temporary name first, so that the digest file, once visible,
+		  is always complete.
+		*/
+		File tmpFile = new File( digestFile.getPath() + ".tmp" );
+		PrintWriter pw = new PrintWriter
+			( new BufferedWriter( new FileWriter( tmpFile ), 64 * 1024 ) );
+		try {
+			for( int g = 1; g <= grainCount; g++ ) {
+				int nin = is.read( grain );
+				/*
+				  Only the last read could/should return a partial grain,
+				  and that would be if the data size not a multiple of
+				  grainSize, which is OK.
+				*/
+				if( nin != grain.length && g < grainCount ) {
+					throw new IllegalStateException( "Partial read (" +
+													 g + "/" +
+													 grainCount + "). Fix!" );
+				}
+				byte[] hash = mdg.digest( grain );
+				pw.println( new String( Hex.encodeHex( hash ) ) );
+				mdg.reset();
+				if( log.isTraceEnabled() )
+					log.trace( g );
 			}
-			byte[] hash = mdg.digest( grain );
-			digest.add( hash );
-			mdg.reset();
-			if( log.isTraceEnabled() )
-				log.trace( g );
+		} finally {
+			is.close();
+			pw.close();
 		}
-		//		dis.close();
-		is.close();
-
-
-		/*		FileOutputStream fos = new FileOutputStream( digestFile );
-		ObjectOutputStream oos = new ObjectOutputStream( fos );
-		oos.writeObject( digest );
-		oos.close();
-		fos.close();
-		*/
-		FileWriter fw = new FileWriter( digestFile );
-		digest.writeTo( fw );
-		fw.close();
+		if( pw.checkError() )
+			throw new IOException( "Failed writing " + tmpFile );
+		if( !tmpFile.renameTo( digestFile ) )
+			throw new IOException( "Failed renaming " + tmpFile );
+		fireDigestComputed( mdd );
 	}
 	
 	// for the benefit of the fuse-based ManagedDiskFileSystem
@@ -451,16 +933,127 @@ public class FilesystemStore implements Store {
 		return descriptorMap.get( mdd );
 	}
 
+	/**
+	 * @return the descriptor of the disk's parent, i.e. the earlier
+	 * session it was stored as a delta against, null if it has none,
+	 * or the disk is unknown
+	 */
+	public synchronized ManagedDiskDescriptor getParent
+		( ManagedDiskDescriptor mdd ) {
+		ManagedDisk md = descriptorMap.get( mdd );
+		if( md == null || !md.hasParent() )
+			return null;
+		UUID linkage = md.getUUIDParent();
+		for( ManagedDisk el : descriptorMap.values() ) {
+			if( el.getUUIDCreate().equals( linkage ) )
+				return el.getDescriptor();
+		}
+		return null;
+	}
+
 	@Override
 	public synchronized Collection<ManagedDiskDescriptor> enumerate()
 		throws IOException {
 		return descriptorMap.keySet();
 	}
 
+	/**
+	 * Keep each disk's (small) attributes packed in a single log
+	 * rather than one file per key, see {@link AttributeLog}.  Disks'
+	 * existing attribute files are migrated into the log when first
+	 * accessed.  Default is off, i.e. file per key.  Off only means no
+	 * new logs: a disk already having one (packed by some other store
+	 * instance) is always read and written through it.
+	 */
+	public void setPackedAttributes( boolean b ) {
+		packedAttributes = b;
+	}
+
+	/**
+	 * Answer each disk's file record hash queries from sorted,
+	 * memory-mapped hash files rather than SQLite, see
+	 * {@link FileRecordStore#setSortedHashFiles}.  Default is off.
+	 */
+	public void setSortedHashFiles( boolean b ) {
+		sortedHashFiles = b;
+	}
+
+	/**
+	 * Set what happens to file records of known files, see
+	 * {@link #getKnownFileSet}.  Default is KEEP.
+	 */
+	public void setKnownFilePolicy( KnownFiles policy ) {
+		knownFiles = policy;
+	}
+
+	public KnownFiles getKnownFilePolicy() {
+		return knownFiles;
+	}
+
+	/**
+	 * @return the store's set of known-file hashes, held under the
+	 * store root and mapped on first use.  Empty until a list has been
+	 * imported, see {@link #importKnownFiles}.  Mapped afresh once its
+	 * files change, e.g. by an import in another process.
+	 */
+	public synchronized KnownFileSet getKnownFileSet() throws IOException {
+		if( knownFileSet == null || knownFileSet.isStale() )
+			knownFileSet = KnownFileSet.open( knownFilesDir() );
+		return knownFileSet;
+	}
+
+	/**
+	 * Add the hashes in a list, e.g. an NSRL file, to the store's
+	 * known-file set.  Records already in the store are not affected,
+	 * only those built from now on.  The store stays usable meanwhile,
+	 * with the set as it was until the import is done.
+	 *
+	 * @return the number of hashes read from the list
+	 */
+	public long importKnownFiles( File list ) throws IOException {
+		synchronized( knownFilesImport ) {
+			long result = KnownFileSet.importList( knownFilesDir(), list );
+			KnownFileSet imported = KnownFileSet.open( knownFilesDir() );
+			synchronized( this ) {
+				knownFileSet = imported;
+			}
+			return result;
+		}
+	}
+
+	private File knownFilesDir() {
+		return new File( root, KnownFileSet.DIR );
+	}
+
+	/*
+	  The disk's attribute log, loaded on first use, or null if
+	  attributes are not packed, nor were ever packed by anyone else
+	*/
+	private AttributeLog attributeLog( ManagedDiskDescriptor mdd )
+		throws IOException {
+		synchronized( attributeLogs ) {
+			AttributeLog result = attributeLogs.get( mdd );
+			if( result == null ) {
+				File volume = volumeOf( mdd );
+				File dir = diskDir( volume, mdd );
+				if( !packedAttributes &&
+					!new File( dir, AttributeLog.FILENAME ).isFile() )
+					return null;
+				dir.mkdirs();
+				result = new AttributeLog( dir, attrDir( volume, mdd ) );
+				attributeLogs.put( mdd, result );
+			}
+			return result;
+		}
+	}
+
 	@Override
 	public Collection<String> listAttributes( ManagedDiskDescriptor mdd )
 		throws IOException {
-		File dir = attrDir( root, mdd );
+		AttributeLog al = attributeLog( mdd );
+		if( al != null )
+			return al.keys();
+		File dir = attrDir( volumeOf( mdd ), mdd );
 		if( !dir.isDirectory() )
 			return Collections.emptyList();
 		List<String> result = new ArrayList<String>();
@@ -474,72 +1067,270 @@ public class FilesystemStore implements Store {
 	@Override
 	public void setAttribute( ManagedDiskDescriptor mdd,
 							  String key, byte[] value ) throws IOException {
+		setAttributes( mdd, Collections.singletonMap( key, value ) );
+	}
 
-		String fileName = key;
-		File outDir = attrDir( root, mdd );
-		outDir.mkdirs();
-		File outFile = new File( outDir, fileName );
-		outFile = outFile.getCanonicalFile();
-		synchronized( outFile ) {
-			log.debug( "Locked " + outFile );
-			FileUtils.writeByteArrayToFile( outFile, value );
-			log.debug( "Unlocked " + outFile );
+	@Override
+	public void setAttributes( ManagedDiskDescriptor mdd,
+							   Map<String,byte[]> values ) throws IOException {
+		AttributeLog al = attributeLog( mdd );
+		if( al != null ) {
+			al.put( values );
+		} else {
+			File outDir = attrDir( volumeOf( mdd ), mdd );
+			outDir.mkdirs();
+			for( Map.Entry<String,byte[]> me : values.entrySet() ) {
+				File outFile = new File( outDir, me.getKey() );
+				outFile = outFile.getCanonicalFile();
+				synchronized( outFile ) {
+					log.debug( "Locked " + outFile );
+					FileUtils.writeByteArrayToFile( outFile, me.getValue() );
+					log.debug( "Unlocked " + outFile );
+				}
+			}
 		}
+		for( String key : values.keySet() )
+			fireAttributeSet( mdd, key );
 	}
 
 	@Override
 	public byte[] getAttribute( ManagedDiskDescriptor mdd, String key )
 		throws IOException {
-		File dir = attrDir( root, mdd );
+		return getAttributes( mdd, Collections.singleton( key ) ).get( key );
+	}
+
+	@Override
+	public Map<String,byte[]> getAttributes( ManagedDiskDescriptor mdd,
+											 Collection<String> keys )
+		throws IOException {
+		AttributeLog al = attributeLog( mdd );
+		if( al != null )
+			return al.get( keys );
+		Map<String,byte[]> result = new HashMap<String,byte[]>();
+		File dir = attrDir( volumeOf( mdd ), mdd );
 		if( !dir.isDirectory() )
-			return null;
-		File inFile = new File( dir, key );
+			return result;
+		for( String key : keys ) {
+			File inFile = new File( dir, key );
+			if( inFile.isFile() )
+				result.put( key, FileUtils.readFileToByteArray( inFile ) );
+		}
+		return result;
+	}
+
+	/*
+	  Unpacked, the value goes to a file, see fileOutputStream.
+	  Packed, it is held in memory and appended to the log on commit,
+	  just as setAttribute would, unless it outgrows a packed value,
+	  whereupon it carries on as a file.  So small values streamed in,
+	  e.g. a single key http set, stay packed.
+	*/
+	@Override
+	public AttributeOutputStream attributeOutputStream
+		( final ManagedDiskDescriptor mdd, final String key )
+		throws IOException {
+		final AttributeLog al = attributeLog( mdd );
+		if( al == null )
+			return fileOutputStream( mdd, key, null );
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		return new AttributeOutputStream( baos ) {
+			private AttributeOutputStream file;
+			@Override
+			public void write( int b ) throws IOException {
+				write( new byte[] { (byte)b }, 0, 1 );
+			}
+			@Override
+			public void write( byte[] b, int off, int len )
+				throws IOException {
+				if( file == null &&
+					baos.size() + len > AttributeLog.MIGRATE_MAX ) {
+					file = fileOutputStream( mdd, key, al );
+					baos.writeTo( file );
+					baos.reset();
+				}
+				if( file != null )
+					file.write( b, off, len );
+				else
+					baos.write( b, off, len );
+			}
+			@Override
+			public void flush() throws IOException {
+				if( file != null )
+					file.flush();
+			}
+			@Override
+			protected void publish() throws IOException {
+				if( file != null )
+					file.commit();
+				else
+					setAttribute( mdd, key, baos.toByteArray() );
+			}
+			@Override
+			protected void discard() throws IOException {
+				if( file != null )
+					file.close();
+			}
+		};
+	}
+
+	/*
+	  The value is written to a temp file of its own in the volume's
+	  temp dir, and only moved into the attrs dir on commit, so
+	  readers never see a partial value, and concurrent writers of one
+	  key never share a file.  Closed without a commit, or after a
+	  failed write, the temp file is just deleted.  Any packed value
+	  of the key is superseded, via al.
+	*/
+	private AttributeOutputStream fileOutputStream
+		( final ManagedDiskDescriptor mdd, final String key,
+		  final AttributeLog al ) throws IOException {
+		File volume = volumeOf( mdd );
+		final File outDir = attrDir( volume, mdd );
+		outDir.mkdirs();
+		final File outFile = new File( outDir, key ).getCanonicalFile();
+		File tmp = tempDir( volume );
+		tmp.mkdirs();
+		final File tempFile = File.createTempFile
+			( asFileBase( mdd ) + "-", ".attr", tmp );
+		FileOutputStream fos = new FileOutputStream( tempFile );
+		return new AttributeOutputStream
+			( new BufferedOutputStream( fos, 1024*64 ) ) {
+			private boolean failed;
+			@Override
+			public void write( int b ) throws IOException {
+				try {
+					out.write( b );
+				} catch( IOException ioe ) {
+					failed = true;
+					throw ioe;
+				}
+			}
+			@Override
+			public void write( byte[] b, int off, int len )
+				throws IOException {
+				try {
+					out.write( b, off, len );
+				} catch( IOException ioe ) {
+					failed = true;
+					throw ioe;
+				}
+			}
+			@Override
+			protected void publish() throws IOException {
+				try {
+					out.close();
+				} catch( IOException ioe ) {
+					failed = true;
+					throw ioe;
+				} finally {
+					if( failed )
+						tempFile.delete();
+				}
+				if( failed )
+					throw new IOException( "Earlier write failed: " + key );
+				Files.move( tempFile.toPath(), outFile.toPath(),
+							StandardCopyOption.ATOMIC_MOVE,
+							StandardCopyOption.REPLACE_EXISTING );
+				if( al != null )
+					al.putFile( key );
+				log.debug( "Set attribute " + outFile );
+				fireAttributeSet( mdd, key );
+			}
+			@Override
+			protected void discard() throws IOException {
+				try {
+					out.close();
+				} finally {
+					tempFile.delete();
+				}
+			}
+		};
+	}
+
+	@Override
+	public InputStream attributeInputStream( ManagedDiskDescriptor mdd,
+											 String key )
+		throws IOException {
+		File inFile = null;
+		AttributeLog al = attributeLog( mdd );
+		if( al != null ) {
+			inFile = al.file( key );
+			if( inFile == null ) {
+				// Packed, so small enough to hand over whole
+				byte[] value = al.get( key );
+				return value == null ? null : new ByteArrayInputStream( value );
+			}
+		} else {
+			inFile = new File( attrDir( volumeOf( mdd ), mdd ), key );
+		}
 		if( !inFile.isFile() )
 			return null;
-		return FileUtils.readFileToByteArray( inFile );
+		return new BufferedInputStream( new FileInputStream( inFile ),
+										1024*64 );
 	}
 
     @Override
     public void putFileRecords(ManagedDiskDescriptor mdd, List<Record> records) throws IOException {
         FileRecordStore store = getRecordStore(mdd);
-        store.addRecords(records);
-        store.close();
+        try {
+            store.addRecords(records);
+        } finally {
+            store.close();
+        }
     }
 
     @Override
     public List<Record> getRecords(ManagedDiskDescriptor mdd, String algorithm, List<byte[]> hashes) throws IOException {
         FileRecordStore store = getRecordStore(mdd);
-        List<Record> records = store.getRecordsFromHashes(algorithm, hashes);
-        store.close();
-        return records;
+        try {
+            return store.getRecordsFromHashes(algorithm, hashes);
+        } finally {
+            store.close();
+        }
     }
 
     @Override
-    public List<ManagedDiskDescriptor> checkForHash(String algorithm, byte[] hash) throws IOException {
-        Collection<ManagedDiskDescriptor> disks = enumerate();
-        List<ManagedDiskDescriptor> matchingDisks = new ArrayList<ManagedDiskDescriptor>(disks.size());
-        // Iterate over the disks and see if they have a matching hash
-        for (ManagedDiskDescriptor mdd : disks) {
-            FileRecordStore store = getRecordStore(mdd);
-            if (store.containsFileHash(algorithm, hash)) {
-                matchingDisks.add(mdd);
-            }
+    public void getRecords(ManagedDiskDescriptor mdd, String algorithm, List<byte[]> hashes,
+            RecordCallback callback) throws IOException {
+        FileRecordStore store = getRecordStore(mdd);
+        try {
+            store.getRecordsFromHashes(algorithm, hashes, callback);
+        } finally {
             store.close();
         }
-        return matchingDisks;
     }
 
+    @Override
+    public List<ManagedDiskDescriptor> checkForHash(String algorithm, byte[] hash) throws IOException {
+        return checkForHashes(algorithm, Collections.singletonList(hash));
+    }
+
+    /**
+     * Answered from the store-wide {@link HashIndex}, so one index
+     * probe per hash, however many disks the store holds.  Hashes which
+     * every disk's Bloom filters rule out are not probed at all.
+     */
     @Override
     public List<ManagedDiskDescriptor> checkForHashes(String algorithm, List<byte[]> hashes) throws IOException {
-        Collection<ManagedDiskDescriptor> disks = enumerate();
-        List<ManagedDiskDescriptor> matchingDisks = new ArrayList<ManagedDiskDescriptor>(disks.size());
-        // Iterate over the disks and see if they have a matching hash
-        for (ManagedDiskDescriptor mdd : disks) {
-            FileRecordStore store = getRecordStore(mdd);
-            if (store.containsFileHash(algorithm, hashes)) {
-                matchingDisks.add(mdd);
+        if (hashes == null || hashes.isEmpty()) {
+            throw new IllegalArgumentException("Array must not be empty");
+        }
+        HashIndex index = getHashIndex();
+        ensureIndexed(index);
+        hashes = admitted(algorithm, hashes);
+        if (hashes.isEmpty()) {
+            return new ArrayList<ManagedDiskDescriptor>();
+        }
+        Map<String,List<Long>> found = index.find(algorithm, hashes);
+        List<ManagedDiskDescriptor> matchingDisks = new ArrayList<ManagedDiskDescriptor>(found.size());
+        synchronized (this) {
+            for (String path : found.keySet()) {
+                ManagedDisk md = pathMap.get(path);
+                // Only disks still in the store
+                if (md != null) {
+                    matchingDisks.add(md.getDescriptor());
+                }
             }
-            store.close();
         }
         return matchingDisks;
     }
@@ -547,19 +1338,221 @@ public class FilesystemStore implements Store {
     @Override
     public boolean hasFileRecords(ManagedDiskDescriptor mdd) throws IOException {
         FileRecordStore store = getRecordStore(mdd);
-        boolean hasData = store.hasData();
-        store.close();
-        return hasData;
+        try {
+            return store.hasData();
+        } finally {
+            store.close();
+        }
     }
 
     /**
-     * Get the FileRecordStore associated with the managed disk
+     * Get the FileRecordStore associated with the managed disk.  Stores
+     * are pooled, so callers must close() the result when done, which
+     * hands it back to the pool rather than closing it
      * @param mdd
      * @return
      * @throws Exception
      */
     public FileRecordStore getRecordStore(ManagedDiskDescriptor mdd) throws IOException {
-        return new FileRecordStore(diskDir(root, mdd), mdd);
+        FileRecordStore result = recordStores.acquire(mdd, diskDir(volumeOf(mdd), mdd),
+                getHashIndex(), asPathName(mdd));
+        if (result.isMigrationPending()) {
+            // Not yet reached by the migrator, so have it do this disk next
+            migrations.addFirst(mdd);
+            startMigrator();
+            try {
+                result.awaitMigration();
+            } catch (InterruptedException ie) {
+                result.close();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Awaiting migration of " + mdd);
+            } catch (IOException ioe) {
+                result.close();
+                throw ioe;
+            }
+        }
+        result.setSortedHashFiles(sortedHashFiles);
+        return result;
+    }
+
+    /*
+      Queue for migration the disks whose records are in an older layout,
+      so that is done, and the space it frees reclaimed, in the
+      background, rather than by whichever request first opens them.
+    */
+    private void scheduleMigrations() {
+        List<ManagedDiskDescriptor> disks;
+        synchronized (this) {
+            disks = new ArrayList<ManagedDiskDescriptor>(descriptorMap.keySet());
+        }
+        for (ManagedDiskDescriptor mdd : disks) {
+            try {
+                if (FileRecordStore.mayNeedMigration(diskDir(volumeOf(mdd), mdd))) {
+                    migrations.add(mdd);
+                }
+            } catch (IOException ioe) {
+                log.warn("Checking record store version of " + mdd, ioe);
+            }
+        }
+        if (!migrations.isEmpty()) {
+            startMigrator();
+        }
+    }
+
+    private synchronized void startMigrator() {
+        if (migrator != null) {
+            return;
+        }
+        migrator = new Thread("RecordStoreMigrator") {
+            @Override
+            public void run() {
+                while (true) {
+                    ManagedDiskDescriptor mdd;
+                    try {
+                        mdd = migrations.take();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    try {
+                        FileRecordStore store = recordStores.acquire(mdd,
+                                diskDir(volumeOf(mdd), mdd), getHashIndex(),
+                                asPathName(mdd));
+                        try {
+                            store.migrate();
+                            store.vacuum();
+                        } finally {
+                            store.close();
+                        }
+                    } catch (IOException ioe) {
+                        log.warn("Migrating record store of " + mdd, ioe);
+                    }
+                }
+            }
+        };
+        migrator.setDaemon(true);
+        migrator.start();
+    }
+
+    // The store-wide hash index, opened on first use
+    private synchronized HashIndex getHashIndex() throws IOException {
+        if (hashIndex == null) {
+            hashIndex = new HashIndex(root);
+        }
+        return hashIndex;
+    }
+
+    /*
+      Those of the hashes which some disk's Bloom filters cannot rule
+      out.  The filters are read from their files, so cost no database
+      work, bar a one-off build for disks with records from before
+      filters.  A disk whose filters are stale, i.e. mid write, rules
+      out nothing.
+    */
+    private List<byte[]> admitted(String algorithm, List<byte[]> hashes) throws IOException {
+        int column = HashIndex.algorithmCode(algorithm);
+        List<ManagedDiskDescriptor> disks;
+        synchronized (this) {
+            disks = new ArrayList<ManagedDiskDescriptor>(descriptorMap.keySet());
+        }
+        boolean[] admit = new boolean[hashes.size()];
+        int count = 0;
+        for (ManagedDiskDescriptor mdd : disks) {
+            FileRecordStore.FilterFiles ff;
+            synchronized (this) {
+                ff = filterFiles.get(mdd);
+                if (ff == null) {
+                    ff = new FileRecordStore.FilterFiles(diskDir(volumeOf(mdd), mdd));
+                    filterFiles.put(mdd, ff);
+                }
+            }
+            if (ff.isStale()) {
+                return hashes;
+            }
+            BloomFilter[] filters = ff.mapped();
+            if (filters == null) {
+                synchronized (this) {
+                    // Any records since would have left stale or new filters
+                    if (noRecords.contains(mdd)) {
+                        continue;
+                    }
+                }
+                FileRecordStore store = getRecordStore(mdd);
+                boolean hasRecords;
+                try {
+                    hasRecords = store.buildFilters();
+                } finally {
+                    store.close();
+                }
+                if (!hasRecords) {
+                    synchronized (this) {
+                        noRecords.add(mdd);
+                    }
+                    continue;
+                }
+                filters = ff.mapped();
+                if (filters == null) {
+                    return hashes;
+                }
+            }
+            for (int i = 0; i < admit.length; i++) {
+                if (!admit[i] && filters[column].mightContain(hashes.get(i))) {
+                    admit[i] = true;
+                    count++;
+                }
+            }
+            if (count == admit.length) {
+                return hashes;
+            }
+        }
+        List<byte[]> result = new ArrayList<byte[]>(count);
+        for (int i = 0; i < admit.length; i++) {
+            if (admit[i]) {
+                result.add(hashes.get(i));
+            }
+        }
+        return result;
+    }
+
+    /*
+      Index the records of any disk the hash index does not fully hold,
+      i.e. those with records from before the index existed.  A one-off
+      cost per disk; each disk is checked once per run, and again after
+      a failed index update left it incomplete.
+    */
+    private void ensureIndexed(HashIndex index) throws IOException {
+        List<ManagedDiskDescriptor> unchecked = new ArrayList<ManagedDiskDescriptor>();
+        Set<String> failed = index.takeFailed();
+        synchronized (this) {
+            for (String path : failed) {
+                ManagedDisk md = pathMap.get(path);
+                if (md != null) {
+                    indexChecked.remove(md.getDescriptor());
+                }
+            }
+            for (ManagedDiskDescriptor mdd : descriptorMap.keySet()) {
+                if (!indexChecked.contains(mdd)) {
+                    unchecked.add(mdd);
+                }
+            }
+        }
+        for (ManagedDiskDescriptor mdd : unchecked) {
+            String path = asPathName(mdd);
+            if (!index.isComplete(path)) {
+                FileRecordStore store = getRecordStore(mdd);
+                try {
+                    if (store.hasData()) {
+                        index.reindex(path, store);
+                    } else {
+                        index.markComplete(path);
+                    }
+                } finally {
+                    store.close();
+                }
+            }
+            synchronized (this) {
+                indexChecked.add(mdd);
+            }
+        }
     }
 
     /*********************** Private Implementation *********************/
@@ -597,8 +1590,46 @@ public class FilesystemStore implements Store {
 		return result;
 	}
 
+	/**
+	 * A secondary volume records the store UUID too, so a volume from
+	 * one store is never mistaken for part of another.
+	 */
+	private void checkVolumeUUID( File volume ) {
+		File f = new File( volume, "uuid.txt" );
+		try {
+			if( f.exists() ) {
+				BufferedReader br = new BufferedReader( new FileReader( f ) );
+				String line = br.readLine();
+				br.close();
+				if( !uuid.toString().equals( line ) )
+					throw new IllegalStateException
+						( "Volume " + volume + " belongs to store " + line );
+			} else {
+				volume.mkdirs();
+				PrintWriter pw = new PrintWriter( new FileWriter( f ) );
+				pw.println( uuid );
+				pw.close();
+			}
+		} catch( IOException ioe ) {
+			log.warn( ioe );
+			throw new IllegalStateException( "Volume UUID error: " + volume );
+		}
+	}
+
 	private void loadManagedDisks() {
-		File dir = new File( root, "disks" );
+		for( File volume : volumes )
+			loadManagedDisks( volume );
+		Collection<ManagedDisk> allDisks = pathMap.values();
+		List<ManagedDisk> linkedDisks = new ArrayList<ManagedDisk>
+			( allDisks.size() );
+		for( ManagedDisk md : allDisks ) {
+			// LOOK: withdraw any ManagedDisk which cannot be fully linked
+			link( md, allDisks, linkedDisks );
+		}
+	}
+
+	private void loadManagedDisks( File volume ) {
+		File dir = new File( volume, "disks" );
 		dir.mkdirs();
 		Collection<File> fs = FileUtils.listFiles
 			( dir, new String[] { ManagedDisk.FILESUFFIX.substring(1) }, true );
@@ -612,6 +1643,7 @@ public class FilesystemStore implements Store {
 					log.warn( "Previous value: " + prev + " for descriptor " +
 							  mdd );
 				}
+				volumeMap.put( mdd, volume );
 				String path = asPathName( mdd );
 				pathMap.put( path, md );
 				log.debug( "Located managed disk: " + f );
@@ -620,13 +1652,6 @@ public class FilesystemStore implements Store {
 				continue;
 			}
 		}
-		Collection<ManagedDisk> allDisks = pathMap.values();
-		List<ManagedDisk> linkedDisks = new ArrayList<ManagedDisk>
-			( allDisks.size() );
-		for( ManagedDisk md : allDisks ) {
-			// LOOK: withdraw any ManagedDisk which cannot be fully linked
-			link( md, allDisks, linkedDisks );
-		}
 	}
 
 	private void link( ManagedDisk md ) {
@@ -683,6 +1708,10 @@ public class FilesystemStore implements Store {
 		return dir;
 	}
 
+	static private File tempDir( File root ) {
+		return new File( root, "temp" );
+	}
+
 	static private File diskDataDir( File root, ManagedDiskDescriptor mdd ) {
 		File dir = diskDir( root, mdd );
 		dir = new File( dir, "data" );
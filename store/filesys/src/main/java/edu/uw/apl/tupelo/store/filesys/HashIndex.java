@@ -0,0 +1,439 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.uw.apl.tupelo.store.filesys;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sqlite.JDBC;
+
+import edu.uw.apl.commons.tsk4j.digests.BodyFile.Record;
+
+/**
+ * A store-wide inverted index of file hashes: from each hash to the
+ * managed disks, and the {@link FileRecordStore} record ids on those
+ * disks, with a file of that hash. <br>
+ * Answering which disks hold some hashes is then one index probe per
+ * hash, rather than a query of every disk's FileRecordStore.
+ * <br> <br>
+ * Disks are identified by their store path name (diskID/session). The
+ * index is kept up to date by FileRecordStore as records are added. A
+ * disk is marked complete once the index holds all its records; disks
+ * with records from before the index existed are indexed by
+ * {@link #reindex}. A failed update is rolled back and leaves the disk
+ * incomplete, so due a reindex, see {@link #takeFailed}.
+ */
+class HashIndex implements Closeable {
+    private static final Log log = LogFactory.getLog(HashIndex.class);
+
+    // The name of the database file, in the store root
+    static final String DB_FILE = "hashIndex.sqlite";
+
+    // Algorithm codes, as stored
+    private static final int MD5 = 0;
+    private static final int SHA1 = 1;
+    private static final int SHA256 = 2;
+
+    // Most hashes per IN (...), SQLite allows 999 parameters
+    private static final int QUERY_BATCH_SIZE = 500;
+
+    /**
+     * Orders hashes as SQLite orders BLOBs, i.e. by unsigned bytes
+     */
+    static final Comparator<byte[]> HASH_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            int n = Math.min(a.length, b.length);
+            for(int i = 0; i < n; i++){
+                int c = (a[i] & 0xff) - (b[i] & 0xff);
+                if(c != 0){
+                    return c;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+
+    private static final String CREATE_DISKS =
+            "CREATE TABLE IF NOT EXISTS disks (" +
+            "id INTEGER PRIMARY KEY, path TEXT UNIQUE, complete INTEGER)";
+    private static final String CREATE_HASHES =
+            "CREATE TABLE IF NOT EXISTS hashes (" +
+            "alg INTEGER, hash BLOB, disk INTEGER, record INTEGER, " +
+            "PRIMARY KEY (alg, hash, disk, record)) WITHOUT ROWID";
+    private static final String INSERT_HASH =
+            "INSERT OR IGNORE INTO hashes VALUES (?, ?, ?, ?)";
+    // Needs a ? per hash and a closing )
+    private static final String SELECT_HASHES =
+            "SELECT disks.path, hashes.record FROM hashes JOIN disks ON hashes.disk = disks.id " +
+            "WHERE hashes.alg = ? AND hashes.hash IN (";
+
+    private final Connection connection;
+    // path -> disk id
+    private final Map<String,Long> diskIDs;
+    // Disks whose updates failed, since last taken
+    private final Set<String> failed;
+
+    HashIndex(File storeRoot) throws IOException {
+        diskIDs = new HashMap<String,Long>();
+        failed = new HashSet<String>();
+        try {
+            connection = DriverManager.getConnection(JDBC.PREFIX +
+                    new File(storeRoot, DB_FILE).getAbsolutePath());
+            Statement statement = connection.createStatement();
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=NORMAL");
+            statement.executeUpdate(CREATE_DISKS);
+            statement.executeUpdate(CREATE_HASHES);
+            statement.close();
+            loadDiskIDs();
+            connection.setAutoCommit(false);
+        } catch(SQLException e){
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return true if the index holds all records of the disk
+     */
+    synchronized boolean isComplete(String disk) throws IOException {
+        try {
+            PreparedStatement query = connection.prepareStatement(
+                    "SELECT complete FROM disks WHERE path = ?");
+            query.setString(1, disk);
+            ResultSet rs = query.executeQuery();
+            boolean result = rs.next() && rs.getInt(1) != 0;
+            rs.close();
+            query.close();
+            return result;
+        } catch(SQLException e){
+            throw new IOException(e);
+        }
+    }
+
+    synchronized void markComplete(String disk) throws IOException {
+        try {
+            setComplete(diskID(disk));
+            connection.commit();
+        } catch(SQLException e){
+            throw failed(disk, e);
+        }
+    }
+
+    /**
+     * Index records just added to a disk's FileRecordStore
+     * @param firstRecord the record id of the first of the records, the
+     * rest following in order. 1 means the disk had no records before,
+     * so is now completely indexed
+     */
+    synchronized void add(String disk, long firstRecord, List<Record> records)
+            throws IOException {
+        try {
+            long id = diskID(disk);
+            PreparedStatement insert = connection.prepareStatement(INSERT_HASH);
+            long recordID = firstRecord;
+            for(Record record : records){
+                addBatch(insert, id, recordID++, record.md5, record.sha1, record.sha256);
+            }
+            insert.executeBatch();
+            insert.close();
+            if(firstRecord == 1){
+                setComplete(id);
+            }
+            connection.commit();
+        } catch(SQLException e){
+            throw failed(disk, e);
+        }
+    }
+
+    /**
+     * Index all of a disk's records, replacing anything held for it,
+     * and mark it complete
+     */
+    void reindex(String disk, FileRecordStore records) throws IOException {
+        // The store's lock first, as its writers hold it when adding to us.
+        // It keeps them off the connection we read the records through.
+        synchronized (records) {
+            synchronized (this) {
+                reindexLocked(disk, records);
+            }
+        }
+    }
+
+    private void reindexLocked(String disk, FileRecordStore records) throws IOException {
+        log.info("Indexing file hashes of " + disk);
+        try {
+            long id = diskID(disk);
+            remove(id);
+            PreparedStatement insert = connection.prepareStatement(INSERT_HASH);
+            ResultSet rs = records.selectHashes();
+            try {
+                int count = 0;
+                while(rs.next()){
+                    addBatch(insert, id, rs.getLong(1), rs.getBytes(2), rs.getBytes(3), rs.getBytes(4));
+                    if(++count % FileRecordStore.INSERT_BATCH_SIZE == 0){
+                        insert.executeBatch();
+                    }
+                }
+            } finally {
+                rs.close();
+            }
+            insert.executeBatch();
+            insert.close();
+            setComplete(id);
+            connection.commit();
+        } catch(SQLException e){
+            throw failed(disk, e);
+        }
+    }
+
+    /**
+     * Forget all of a disk's records, e.g. after its FileRecordStore is
+     * re-created
+     */
+    synchronized void remove(String disk) throws IOException {
+        try {
+            remove(diskID(disk));
+            PreparedStatement update = connection.prepareStatement(
+                    "UPDATE disks SET complete = 0 WHERE path = ?");
+            update.setString(1, disk);
+            update.executeUpdate();
+            update.close();
+            connection.commit();
+        } catch(SQLException e){
+            throw failed(disk, e);
+        }
+    }
+
+    /**
+     * Note that the index is missing some of a disk's records, e.g. ones
+     * its FileRecordStore committed before failing to add the rest
+     */
+    synchronized void markIncomplete(String disk) {
+        failed.add(disk);
+        try {
+            PreparedStatement update = connection.prepareStatement(
+                    "UPDATE disks SET complete = 0 WHERE path = ?");
+            update.setString(1, disk);
+            update.executeUpdate();
+            update.close();
+            connection.commit();
+        } catch(SQLException e){
+            log.warn("Cannot mark " + disk + " incomplete: " + e);
+        }
+    }
+
+    /**
+     * @return the disks whose index updates have failed since the last
+     * call, each now marked incomplete so due a {@link #reindex}
+     */
+    synchronized Set<String> takeFailed() {
+        Set<String> result = new HashSet<String>(failed);
+        failed.clear();
+        return result;
+    }
+
+    /**
+     * @param algorithm MD5, SHA-1 or SHA-256
+     * @return the disks with any of the hashes, and for each the ids of
+     * the matching records
+     */
+    synchronized Map<String,List<Long>> find(String algorithm, List<byte[]> hashes)
+            throws IOException {
+        int alg = algorithmCode(algorithm);
+        Map<String,List<Long>> result = new LinkedHashMap<String,List<Long>>();
+        if(hashes.size() > QUERY_BATCH_SIZE){
+            // Sorted, each batch probes one narrow range of the index
+            hashes = new ArrayList<byte[]>(hashes);
+            Collections.sort(hashes, HASH_ORDER);
+        }
+        try {
+            for(int from = 0; from < hashes.size(); from += QUERY_BATCH_SIZE){
+                List<byte[]> batch = hashes.subList(from,
+                        Math.min(from + QUERY_BATCH_SIZE, hashes.size()));
+                StringBuilder sb = new StringBuilder(SELECT_HASHES);
+                for(int i = 0; i < batch.size() - 1; i++){
+                    sb.append("?, ");
+                }
+                sb.append("?)");
+                PreparedStatement query = connection.prepareStatement(sb.toString());
+                query.setInt(1, alg);
+                for(int i = 0; i < batch.size(); i++){
+                    query.setBytes(i + 2, batch.get(i));
+                }
+                ResultSet rs = query.executeQuery();
+                while(rs.next()){
+                    String disk = rs.getString(1);
+                    List<Long> ids = result.get(disk);
+                    if(ids == null){
+                        ids = new ArrayList<Long>();
+                        result.put(disk, ids);
+                    }
+                    ids.add(rs.getLong(2));
+                }
+                rs.close();
+                query.close();
+            }
+            // Reads only, but end the transaction so writers can checkpoint
+            connection.commit();
+        } catch(SQLException e){
+            throw new IOException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            connection.close();
+        } catch(SQLException e){
+            throw new IOException(e);
+        }
+    }
+
+    static int algorithmCode(String algorithm) {
+        switch(algorithm.toLowerCase()){
+        case "md5":
+            return MD5;
+        case "sha-1":
+        case "sha1":
+            return SHA1;
+        case "sha-256":
+        case "sha256":
+            return SHA256;
+        default:
+            throw new IllegalArgumentException("Invalid hash algorithm: " + algorithm);
+        }
+    }
+
+    /*
+      Undo a failed update, which may have got part way, so no later
+      commit writes it out.  The disk is then marked incomplete: its
+      entries can no longer be trusted to be all its records.
+    */
+    private IOException failed(String disk, SQLException e) {
+        log.warn("Index update of " + disk + " failed: " + e);
+        try {
+            connection.rollback();
+            // Any disk id added by the update went with it
+            loadDiskIDs();
+        } catch(SQLException se){
+            log.warn("Rolling back index update of " + disk + ": " + se);
+        }
+        markIncomplete(disk);
+        return new IOException(e);
+    }
+
+    private void loadDiskIDs() throws SQLException {
+        diskIDs.clear();
+        Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT id, path FROM disks");
+        while(rs.next()){
+            diskIDs.put(rs.getString(2), rs.getLong(1));
+        }
+        rs.close();
+        statement.close();
+    }
+
+    private void addBatch(PreparedStatement insert, long disk, long record,
+            byte[] md5, byte[] sha1, byte[] sha256) throws SQLException {
+        byte[][] hashes = {md5, sha1, sha256};
+        int[] algs = {MD5, SHA1, SHA256};
+        for(int i = 0; i < hashes.length; i++){
+            if(hashes[i] == null){
+                continue;
+            }
+            insert.setInt(1, algs[i]);
+            insert.setBytes(2, hashes[i]);
+            insert.setLong(3, disk);
+            insert.setLong(4, record);
+            insert.addBatch();
+        }
+    }
+
+    private void remove(long disk) throws SQLException {
+        PreparedStatement delete = connection.prepareStatement(
+                "DELETE FROM hashes WHERE disk = ?");
+        delete.setLong(1, disk);
+        delete.executeUpdate();
+        delete.close();
+    }
+
+    private void setComplete(long disk) throws SQLException {
+        PreparedStatement update = connection.prepareStatement(
+                "UPDATE disks SET complete = 1 WHERE id = ?");
+        update.setLong(1, disk);
+        update.executeUpdate();
+        update.close();
+    }
+
+    // The disk's id, adding it if new
+    private long diskID(String disk) throws SQLException {
+        Long id = diskIDs.get(disk);
+        if(id != null){
+            return id;
+        }
+        PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO disks (path, complete) VALUES (?, 0)");
+        insert.setString(1, disk);
+        insert.executeUpdate();
+        insert.close();
+        Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT last_insert_rowid()");
+        id = rs.getLong(1);
+        rs.close();
+        statement.close();
+        diskIDs.put(disk, id);
+        return id;
+    }
+}
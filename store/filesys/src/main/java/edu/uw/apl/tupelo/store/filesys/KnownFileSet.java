@@ -0,0 +1,437 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.uw.apl.tupelo.store.filesys;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sqlite.JDBC;
+
+import edu.uw.apl.commons.tsk4j.digests.BodyFile.Record;
+
+/**
+ * A set of known-file hashes, e.g. from the NSRL, against which file
+ * records can be checked as they are built. <br>
+ * The set is kept as one {@link SortedHashFile} of hashes per kind.
+ * Lookups search those memory-mapped files in place. An import merges a
+ * list with the hashes already held in a scratch SQLite database, which
+ * does the sorting, writes the files anew, and then deletes the database,
+ * so the set is not held on disk twice.
+ * <br> <br>
+ * A list is read line by line. A list with a header line, e.g. an NSRL
+ * file ("SHA-1","MD5",...) or hashdeep output (%%%% size,md5,...), is
+ * read as comma separated, quoted, columns, and only the columns the
+ * header names as MD5, SHA-1 or SHA-256 are taken as hashes, so a file
+ * or product name never is. Without a header, only the first field of
+ * each line is taken, by its length, which covers md5sum or sha1sum
+ * output and plain lists of one hash per line. Fields which are not hex
+ * of their kind's length are skipped.
+ */
+public class KnownFileSet {
+    private static final Log log = LogFactory.getLog(KnownFileSet.class);
+
+    // Directory, under the store root, holding the set
+    public static final String DIR = "knownfiles";
+
+    private static final String DATABASE = "known.sqlite";
+
+    // Tables and sorted file names, and hash widths, by HashIndex.algorithmCode
+    private static final String[] TABLES = { "md5", "sha1", "sha256" };
+    private static final int[] WIDTHS = { 16, 20, 32 };
+
+    // Ends the first field of a line without a header
+    private static final Pattern FIELD_END = Pattern.compile("[,\\s]");
+
+    // Rows inserted between commits on import
+    private static final int COMMIT_INTERVAL = 100000;
+
+    private final File dir;
+    // The mapped sorted files, null where there are no hashes of a kind
+    private final SortedHashFile[] sorted;
+    // The identities of the files as mapped, see isStale
+    private final Object[] ids;
+
+    private KnownFileSet(File dir, SortedHashFile[] sorted, Object[] ids){
+        this.dir = dir;
+        this.sorted = sorted;
+        this.ids = ids;
+    }
+
+    /**
+     * Load the set kept in a directory
+     * @param dir as written by {@link #importList}
+     * @return the set, empty if nothing has been imported
+     * @throws IOException
+     */
+    public static KnownFileSet open(File dir) throws IOException {
+        // Identified before mapping, so a file replaced meanwhile shows as stale
+        Object[] ids = ids(dir);
+        SortedHashFile[] sorted = new SortedHashFile[TABLES.length];
+        for(int i = 0; i < TABLES.length; i++){
+            sorted[i] = SortedHashFile.map(sortedFile(dir, i));
+        }
+        return new KnownFileSet(dir, sorted, ids);
+    }
+
+    /**
+     * @return true if the set's files have been replaced since it was
+     * opened, e.g. by an import in another process, so that opening it
+     * again would see other hashes
+     */
+    public boolean isStale() throws IOException {
+        return !Arrays.equals(ids, ids(dir));
+    }
+
+    private static Object[] ids(File dir) throws IOException {
+        Object[] result = new Object[TABLES.length];
+        for(int i = 0; i < TABLES.length; i++){
+            result[i] = FileRecordStore.fileID(sortedFile(dir, i));
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the set holds no hashes at all
+     */
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    /**
+     * @return the number of hashes held, of all kinds
+     */
+    public long size(){
+        long result = 0;
+        for(SortedHashFile s : sorted){
+            if(s != null){
+                result += s.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param algorithm MD5, SHA-1 or SHA-256
+     * @param hash
+     * @return true if the hash is in the set
+     */
+    public boolean contains(String algorithm, byte[] hash){
+        return contains(HashIndex.algorithmCode(algorithm), hash);
+    }
+
+    /**
+     * @param record
+     * @return true if any of the record's hashes is in the set
+     */
+    public boolean isKnown(Record record){
+        return contains(0, record.md5) || contains(1, record.sha1) ||
+            contains(2, record.sha256);
+    }
+
+    private boolean contains(int kind, byte[] hash){
+        SortedHashFile s = sorted[kind];
+        return s != null && hash != null && s.contains(hash);
+    }
+
+    /**
+     * Add the hashes in a list to the set kept in a directory, and
+     * rewrite its sorted files. Hashes already in the set are ignored.
+     * Sets already opened do not see the new hashes, {@link #open} again.
+     * Should the import fail, the set is left as it was.
+     * @param dir the set's directory, created if need be
+     * @param list
+     * @return the number of hashes read from the list
+     * @throws IOException
+     */
+    public static long importList(File dir, File list) throws IOException {
+        dir.mkdirs();
+        log.info("Importing known file hashes from " + list);
+        // Any database left is from an import that failed, or from before
+        // the database was scratch, and holds nothing to lose by merging
+        File database = new File(dir, DATABASE);
+        try {
+            Connection connection = DriverManager.getConnection(
+                    JDBC.PREFIX + database.getAbsolutePath());
+            try {
+                connection.setAutoCommit(false);
+                Statement statement = connection.createStatement();
+                for(String table : TABLES){
+                    statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + table +
+                            " (hash BLOB PRIMARY KEY) WITHOUT ROWID");
+                }
+                statement.close();
+                PreparedStatement[] inserts = new PreparedStatement[TABLES.length];
+                for(int i = 0; i < TABLES.length; i++){
+                    inserts[i] = connection.prepareStatement(
+                            "INSERT OR IGNORE INTO " + TABLES[i] + " (hash) VALUES (?)");
+                }
+                seed(dir, connection, inserts);
+                long count = read(list, connection, inserts);
+                for(PreparedStatement insert : inserts){
+                    insert.close();
+                }
+                connection.commit();
+                writeSorted(dir, connection);
+                log.info("Imported " + count + " known file hashes from " + list);
+                return count;
+            } finally {
+                connection.close();
+            }
+        } catch(SQLException e){
+            throw new IOException(e);
+        } finally {
+            database.delete();
+            new File(dir, DATABASE + "-journal").delete();
+        }
+    }
+
+    // Load the hashes already in the set, which are in order, so cheap to insert
+    private static void seed(File dir, Connection connection, PreparedStatement[] inserts)
+            throws IOException, SQLException {
+        for(int i = 0; i < TABLES.length; i++){
+            SortedHashFile s = SortedHashFile.map(sortedFile(dir, i));
+            if(s == null){
+                continue;
+            }
+            for(long j = 0; j < s.size(); j++){
+                inserts[i].setBytes(1, s.get(j));
+                inserts[i].executeUpdate();
+                if((j + 1) % COMMIT_INTERVAL == 0){
+                    connection.commit();
+                }
+            }
+            connection.commit();
+            log.debug("Kept " + s.size() + " known " + TABLES[i] + " hashes");
+        }
+    }
+
+    private static long read(File list, Connection connection, PreparedStatement[] inserts)
+            throws IOException, SQLException {
+        long count = 0;
+        long skipped = 0;
+        // The hash kind of each column, -1 for others, once a header is
+        // read; till then only the first field of a line is a hash
+        int[] columns = null;
+        BufferedReader br = new BufferedReader(new FileReader(list));
+        try {
+            String line;
+            while((line = br.readLine()) != null){
+                if(line.startsWith("%%%%")){
+                    // hashdeep's header, or its version line
+                    int[] header = header(columns(line.substring(4).trim()));
+                    if(header != null){
+                        columns = header;
+                    }
+                    continue;
+                }
+                if(line.isEmpty() || line.charAt(0) == '#' || line.charAt(0) == '%'){
+                    continue;
+                }
+                int[] kinds;
+                List<String> fields;
+                if(columns == null){
+                    fields = columns(line);
+                    int[] header = header(fields);
+                    if(header != null){
+                        columns = header;
+                        continue;
+                    }
+                    fields = Collections.singletonList(firstField(line));
+                    kinds = new int[] { kindOf(fields.get(0)) };
+                } else {
+                    fields = columns(line);
+                    kinds = columns;
+                }
+                for(int i = 0; i < kinds.length && i < fields.size(); i++){
+                    if(kinds[i] < 0){
+                        continue;
+                    }
+                    byte[] hash = decode(fields.get(i), kinds[i]);
+                    if(hash == null){
+                        skipped++;
+                        continue;
+                    }
+                    inserts[kinds[i]].setBytes(1, hash);
+                    inserts[kinds[i]].executeUpdate();
+                    if(++count % COMMIT_INTERVAL == 0){
+                        connection.commit();
+                        log.debug("Read " + count + " known file hashes");
+                    }
+                }
+            }
+        } finally {
+            br.close();
+        }
+        if(skipped > 0){
+            log.warn("Skipped " + skipped + " fields of " + list + " not hashes of their kind");
+        }
+        return count;
+    }
+
+    /*
+      The hash kind of each of a header's columns, -1 for those not
+      naming one, or null if the line names no hash, so is no header
+    */
+    private static int[] header(List<String> fields){
+        int[] result = new int[fields.size()];
+        boolean any = false;
+        for(int i = 0; i < result.length; i++){
+            String name = fields.get(i).trim().toLowerCase().replace("-", "");
+            result[i] = Arrays.asList(TABLES).indexOf(name);
+            any |= result[i] >= 0;
+        }
+        return any ? result : null;
+    }
+
+    /*
+      Split a line of comma separated columns.  A column may be quoted,
+      the quotes removed, a doubled quote within it standing for one,
+      and any comma within it kept.
+    */
+    private static List<String> columns(String line){
+        List<String> result = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for(int i = 0; i < line.length(); i++){
+            char c = line.charAt(i);
+            if(c == '"'){
+                if(quoted && i + 1 < line.length() && line.charAt(i + 1) == '"'){
+                    sb.append(c);
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if(c == ',' && !quoted){
+                result.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        result.add(sb.toString());
+        return result;
+    }
+
+    // A line's first field, up to a comma or whitespace, unquoted
+    private static String firstField(String line){
+        line = line.trim();
+        if(line.startsWith("\"")){
+            int end = line.indexOf('"', 1);
+            return end < 0 ? line.substring(1) : line.substring(1, end);
+        }
+        Matcher m = FIELD_END.matcher(line);
+        return m.find() ? line.substring(0, m.start()) : line;
+    }
+
+    // The hash kind of a hex field, by its length, or -1 if none
+    private static int kindOf(String field){
+        for(int i = 0; i < WIDTHS.length; i++){
+            if(field.length() == WIDTHS[i] * 2){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The field as a hash of the kind, or null if it is not one
+    private static byte[] decode(String field, int kind){
+        field = field.trim();
+        if(field.length() != WIDTHS[kind] * 2){
+            return null;
+        }
+        try {
+            return Hex.decodeHex(field.toCharArray());
+        } catch(DecoderException e){
+            return null;
+        }
+    }
+
+    // Write every kind, and only once all are good replace the old files
+    private static void writeSorted(File dir, Connection connection)
+            throws IOException, SQLException {
+        File[] written = new File[TABLES.length];
+        try {
+            for(int i = 0; i < TABLES.length; i++){
+                written[i] = new File(sortedFile(dir, i).getPath() + ".new");
+                Statement statement = connection.createStatement();
+                ResultSet rows = statement.executeQuery("SELECT hash FROM " + TABLES[i] +
+                        " WHERE length(hash) = " + WIDTHS[i] + " ORDER BY hash");
+                try {
+                    SortedHashFile.writeKeys(written[i], WIDTHS[i], rows);
+                } finally {
+                    rows.close();
+                    statement.close();
+                }
+                if(SortedHashFile.map(written[i]) == null){
+                    throw new IOException("Cannot map known file hashes " + written[i]);
+                }
+            }
+            for(int i = 0; i < TABLES.length; i++){
+                Files.move(written[i].toPath(), sortedFile(dir, i).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            for(File f : written){
+                if(f != null){
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private static File sortedFile(File dir, int kind){
+        return new File(dir, TABLES[kind] + ".sorted");
+    }
+}
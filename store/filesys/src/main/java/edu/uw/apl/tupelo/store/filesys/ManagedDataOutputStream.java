@@ -0,0 +1,250 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.uw.apl.tupelo.store.filesys;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The output stream a FilesystemStore put() writes managed data to. <br>
+ * Data is gathered into large direct buffers, which a dedicated writer
+ * thread hands to a FileChannel. There are two buffers, so the caller
+ * (typically compressing grains) fills one while the other is being
+ * written. <br>
+ * The file is preallocated to the expected size on open and truncated to
+ * the real size on close. Data is forced to disk according to the
+ * {@link FilesystemStore.Fsync} policy.
+ * <br> <br>
+ * flush() is deliberately a no-op: the managed disk writers flush often
+ * (e.g. after every grain table), and pushing out partial buffers would
+ * defeat the large writes. Everything is written, and synced per the
+ * policy, by close().
+ */
+class ManagedDataOutputStream extends OutputStream {
+    // Size of each of the two write buffers
+    static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // Handed to the writer thread to tell it to finish
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final FilesystemStore.Fsync fsync;
+    private final long syncInterval;
+    private final BlockingQueue<ByteBuffer> full;
+    private final BlockingQueue<ByteBuffer> free;
+    private final Thread writer;
+    private final long start;
+    private ByteBuffer current;
+    private volatile IOException writeError;
+    private volatile long written;
+    private long elapsed;
+    private boolean closed;
+
+    /**
+     * @param file the file to create (or overwrite)
+     * @param preallocate expected final size in bytes, 0 if unknown
+     * @param fsync when to force data to disk
+     * @param syncInterval for Fsync.INTERVAL, bytes written between syncs
+     * @throws IOException
+     */
+    ManagedDataOutputStream(File file, long preallocate, FilesystemStore.Fsync fsync,
+            long syncInterval) throws IOException {
+        this.file = file;
+        this.fsync = fsync;
+        this.syncInterval = syncInterval;
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        if(preallocate > 0){
+            raf.setLength(preallocate);
+        }
+        channel = raf.getChannel();
+        full = new ArrayBlockingQueue<ByteBuffer>(2);
+        free = new ArrayBlockingQueue<ByteBuffer>(2);
+        free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        current = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        writer = new Writer();
+        writer.setName("ManagedDataWriter-" + file.getName());
+        writer.setDaemon(true);
+        writer.start();
+        start = System.currentTimeMillis();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if(!current.hasRemaining()){
+            handOff();
+        }
+        current.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while(len > 0){
+            if(!current.hasRemaining()){
+                handOff();
+            }
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkError();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed){
+            return;
+        }
+        closed = true;
+        try {
+            if(current.position() > 0){
+                current.flip();
+                put(full, current);
+            }
+            put(full, EOF);
+            try {
+                writer.join();
+            } catch(InterruptedException e){
+                throw new InterruptedIOException("Interrupted writing " + file);
+            }
+            checkError();
+            // Drop any preallocated space beyond what was written
+            channel.truncate(written);
+            if(fsync != FilesystemStore.Fsync.NONE){
+                channel.force(true);
+            }
+        } finally {
+            writer.interrupt();
+            channel.close();
+            raf.close();
+            elapsed = System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * @return bytes written to the file so far
+     */
+    long getBytesWritten(){
+        return written;
+    }
+
+    /**
+     * @return milliseconds from open to close, valid after close
+     */
+    long getElapsedMillis(){
+        return elapsed;
+    }
+
+    // Pass the full buffer to the writer, continue with the free one
+    private void handOff() throws IOException {
+        checkError();
+        current.flip();
+        put(full, current);
+        try {
+            current = free.take();
+        } catch(InterruptedException e){
+            throw new InterruptedIOException("Interrupted writing " + file);
+        }
+        checkError();
+    }
+
+    // Queue a buffer for the writer, failing if the writer has died
+    private void put(BlockingQueue<ByteBuffer> q, ByteBuffer b) throws IOException {
+        try {
+            while(!q.offer(b, 100, TimeUnit.MILLISECONDS)){
+                if(!writer.isAlive()){
+                    checkError();
+                    throw new IOException("Writer stopped for " + file);
+                }
+            }
+        } catch(InterruptedException e){
+            throw new InterruptedIOException("Interrupted writing " + file);
+        }
+    }
+
+    private void checkError() throws IOException {
+        if(writeError != null){
+            throw writeError;
+        }
+    }
+
+    private class Writer extends Thread {
+        @Override
+        public void run() {
+            long sinceSync = 0;
+            try {
+                while(true){
+                    ByteBuffer b = full.take();
+                    if(b == EOF){
+                        return;
+                    }
+                    while(b.hasRemaining()){
+                        int n = channel.write(b, written);
+                        written += n;
+                        sinceSync += n;
+                    }
+                    if(fsync == FilesystemStore.Fsync.INTERVAL && sinceSync >= syncInterval){
+                        channel.force(false);
+                        sinceSync = 0;
+                    }
+                    b.clear();
+                    free.put(b);
+                }
+            } catch(IOException e){
+                writeError = e;
+                // Unblock a caller waiting for a free buffer
+                free.offer(ByteBuffer.allocate(0));
+            } catch(InterruptedException e){
+                writeError = new InterruptedIOException("Interrupted writing " + file);
+                free.offer(ByteBuffer.allocate(0));
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.uw.apl.tupelo.store.filesys;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A sorted file of fixed-width hashes: one hash column of a
+ * {@link FileRecordStore}, as (hash, record rowid) entries, or one hash
+ * kind of a {@link KnownFileSet}, as hashes alone. <br>
+ * The file is memory-mapped and searched in place, so answering whether
+ * a disk has a hash, and which records have it, needs no database query
+ * at all.  File hashes are uniformly distributed, so the search
+ * interpolates on the leading 8 bytes, typically landing within a few
+ * entries of the target, before finishing by bisection.  A file is
+ * mapped in chunks of whole entries, so is not limited to 2 GiB.
+ * <br> <br>
+ * The file is a snapshot: written once records are in, and replaced,
+ * never updated, should more arrive.
+ */
+class SortedHashFile {
+
+    // File layout: magic, hash width, entry count, entries. The magic
+    // says whether each entry has a rowid after its hash
+    private static final int MAGIC = 0x53686631;
+    private static final int KEYS_MAGIC = 0x53686b31;
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final int ROWID_SIZE = 8;
+
+    // Most bytes mapped by one buffer
+    private static final int CHUNK_SIZE = 1 << 30;
+
+    // Interpolation steps before plain bisection, which bounds the
+    // worst case for a skewed file
+    private static final int INTERPOLATIONS = 4;
+
+    // Entries by index: chunk i >>> shift, entry (i & mask) within it
+    private final ByteBuffer[] chunks;
+    private final int shift;
+    private final long mask;
+    private final int width;
+    private final int entrySize;
+    private final boolean rowids;
+    private final long count;
+
+    private SortedHashFile(ByteBuffer[] chunks, int shift, int width,
+            boolean rowids, long count) {
+        this.chunks = chunks;
+        this.shift = shift;
+        this.mask = (1L << shift) - 1;
+        this.width = width;
+        this.entrySize = width + (rowids ? ROWID_SIZE : 0);
+        this.rowids = rowids;
+        this.count = count;
+    }
+
+    /**
+     * Write a file of the rows, atomically replacing any existing one
+     * @param rows (rowid, hash) rows, ordered by hash, no null hashes
+     * @return false, and no file written, if a hash is not width bytes
+     */
+    static boolean write(File f, int width, ResultSet rows)
+            throws IOException, SQLException {
+        return write(f, width, rows, true);
+    }
+
+    /**
+     * Write a file of hashes alone, with no rowids, atomically replacing
+     * any existing one
+     * @param rows (hash) rows, ordered by hash, no null hashes
+     * @return false, and no file written, if a hash is not width bytes
+     */
+    static boolean writeKeys(File f, int width, ResultSet rows)
+            throws IOException, SQLException {
+        return write(f, width, rows, false);
+    }
+
+    private static boolean write(File f, int width, ResultSet rows, boolean rowids)
+            throws IOException, SQLException {
+        File tmp = new File(f.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        int hashColumn = rowids ? 2 : 1;
+        long n = 0;
+        boolean ok = true;
+        try {
+            raf.setLength(0);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(raf.getFD()), 1024 * 64));
+            dos.writeInt(rowids ? MAGIC : KEYS_MAGIC);
+            dos.writeInt(width);
+            dos.writeLong(0);
+            while (rows.next()) {
+                byte[] hash = rows.getBytes(hashColumn);
+                if (hash.length != width) {
+                    ok = false;
+                    break;
+                }
+                dos.write(hash);
+                if (rowids) {
+                    dos.writeLong(rows.getLong(1));
+                }
+                n++;
+            }
+            dos.flush();
+            // The count goes in last, once known
+            raf.seek(8);
+            raf.writeLong(n);
+        } finally {
+            raf.close();
+        }
+        if (!ok) {
+            tmp.delete();
+            return false;
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Map a file previously written by {@link #write} or {@link #writeKeys}
+     * @return the file, or null if missing or not a sorted hash file
+     */
+    static SortedHashFile map(File f) throws IOException {
+        return map(f, CHUNK_SIZE);
+    }
+
+    // As map(File), with at most chunkSize bytes per mapped buffer
+    static SortedHashFile map(File f, int chunkSize) throws IOException {
+        if (!f.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            if (fc.size() < HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer header = fc.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            int magic = header.getInt();
+            if (magic != MAGIC && magic != KEYS_MAGIC) {
+                return null;
+            }
+            boolean rowids = magic == MAGIC;
+            int width = header.getInt();
+            long n = header.getLong();
+            if (width < 8 || n < 0) {
+                return null;
+            }
+            int entrySize = width + (rowids ? ROWID_SIZE : 0);
+            if (HEADER_SIZE + n * entrySize != fc.size()) {
+                return null;
+            }
+            // A power of two entries per chunk, so indexing is a shift
+            int shift = 0;
+            while ((2L << shift) * entrySize <= chunkSize) {
+                shift++;
+            }
+            long perChunk = 1L << shift;
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((n + perChunk - 1) >>> shift)];
+            for (int i = 0; i < chunks.length; i++) {
+                long first = (long) i << shift;
+                long entries = Math.min(perChunk, n - first);
+                // The mappings outlive the channel
+                chunks[i] = fc.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + first * entrySize, entries * entrySize);
+            }
+            return new SortedHashFile(chunks, shift, width, rowids, n);
+        } finally {
+            raf.close();
+        }
+    }
+
+    long size() {
+        return count;
+    }
+
+    /**
+     * @return the hash of entry i, which is less than size()
+     */
+    byte[] get(long i) {
+        byte[] result = new byte[width];
+        ByteBuffer chunk = chunks[(int) (i >>> shift)].duplicate();
+        chunk.position(offset(i));
+        chunk.get(result);
+        return result;
+    }
+
+    boolean contains(byte[] hash) {
+        long i = lowerBound(hash);
+        return i < count && compare(i, hash, lead(hash)) == 0;
+    }
+
+    /**
+     * Add the rowids of the records with this hash to the list. A file
+     * of hashes alone has no rowids to add.
+     */
+    void find(byte[] hash, List<Long> rowids) {
+        if (hash.length != width || !this.rowids) {
+            return;
+        }
+        long key = lead(hash);
+        for (long i = lowerBound(hash); i < count && compare(i, hash, key) == 0; i++) {
+            rowids.add(chunks[(int) (i >>> shift)].getLong(offset(i) + width));
+        }
+    }
+
+    // The first entry not less than the hash, or count if none
+    private long lowerBound(byte[] hash) {
+        if (hash.length != width) {
+            // Never equal, and anywhere will do for a miss
+            return count;
+        }
+        long key = lead(hash);
+        long lo = 0;
+        long hi = count;
+        int steps = 0;
+        while (lo < hi) {
+            long mid;
+            if (steps++ < INTERPOLATIONS && hi - lo > 2) {
+                mid = interpolate(key, lo, hi - 1);
+            } else {
+                mid = (lo + hi) >>> 1;
+            }
+            if (compare(mid, hash, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Where the key should be in [lo, hi], if the leading longs are even
+    private long interpolate(long key, long lo, long hi) {
+        double loKey = leadAt(lo) ^ Long.MIN_VALUE;
+        double hiKey = leadAt(hi) ^ Long.MIN_VALUE;
+        double k = key ^ Long.MIN_VALUE;
+        if (k <= loKey) {
+            return lo;
+        }
+        if (k >= hiKey) {
+            return hi;
+        }
+        long result = lo + (long) ((k - loKey) / (hiKey - loKey) * (hi - lo));
+        return Math.max(lo, Math.min(hi, result));
+    }
+
+    // Entry i against the hash, as unsigned bytes, as SQLite orders BLOBs
+    private int compare(long i, byte[] hash, long key) {
+        ByteBuffer chunk = chunks[(int) (i >>> shift)];
+        int offset = offset(i);
+        long a = chunk.getLong(offset) ^ Long.MIN_VALUE;
+        long b = key ^ Long.MIN_VALUE;
+        if (a != b) {
+            return a < b ? -1 : 1;
+        }
+        for (int j = 8; j < width; j++) {
+            int c = (chunk.get(offset + j) & 0xff) - (hash[j] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    // The leading 8 bytes of entry i's hash
+    private long leadAt(long i) {
+        return chunks[(int) (i >>> shift)].getLong(offset(i));
+    }
+
+    // Entry i's offset within its chunk
+    private int offset(long i) {
+        return (int) (i & mask) * entrySize;
+    }
+
+    // The first 8 bytes of the hash, big-endian, as in the file
+    private static long lead(byte[] hash) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (hash[i] & 0xff);
+        }
+        return result;
+    }
+}
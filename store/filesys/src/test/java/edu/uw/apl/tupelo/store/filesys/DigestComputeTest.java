@@ -35,10 +35,18 @@ package edu.uw.apl.tupelo.store.filesys;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.Collection;
 
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.tupelo.model.DiskImage;
+import edu.uw.apl.tupelo.model.FlatDisk;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.model.ManagedDiskDigest;
+import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.store.PagedManagedDiskDigest;
 
 public class DigestComputeTest extends junit.framework.TestCase {
 
@@ -59,6 +67,51 @@ public class DigestComputeTest extends junit.framework.TestCase {
 			System.out.println( d );
 		}
 	}
+
+	/**
+	 * Ranges and the paged digest must agree, grain by grain, with
+	 * the whole digest
+	 */
+	public void testDigestPaging() throws Exception {
+		File f = new File( "src/test/resources/1m" );
+		if( !f.exists() )
+			return;
+		File dir = new File( "test-store-paging" );
+		FileUtils.deleteDirectory( dir );
+		FilesystemStore fs = new FilesystemStore( dir, false );
+		FlatDisk fd = new FlatDisk( new DiskImage( f ), Session.CANNED );
+		ManagedDiskDescriptor mdd = fd.getDescriptor();
+		fs.put( fd );
+		assertEquals( -1, fs.digestSize( mdd ) );
+		fs.computeDigest( mdd );
+
+		ManagedDiskDigest whole = fs.digest( mdd );
+		assertEquals( whole.size(), fs.digestSize( mdd ) );
+
+		ManagedDiskDigest range = fs.digest( mdd, 3, 5 );
+		assertEquals( 5, range.size() );
+		for( int i = 0; i < range.size(); i++ )
+			assertTrue( Arrays.equals( whole.get( 3+i ), range.get(i) ) );
+		assertEquals( 2, fs.digest( mdd, whole.size()-2, 10 ).size() );
+		assertEquals( 0, fs.digest( mdd, whole.size(), 10 ).size() );
+
+		ManagedDiskDigest paged = PagedManagedDiskDigest.open( fs, mdd, 3 );
+		assertEquals( whole.size(), paged.size() );
+		for( int i = 0; i < whole.size(); i++ )
+			assertTrue( Arrays.equals( whole.get(i), paged.get(i) ) );
+
+		// Added hashes follow the store's
+		byte[] extra = new byte[16];
+		extra[0] = 1;
+		paged.add( extra );
+		assertEquals( whole.size() + 1, paged.size() );
+		assertTrue( Arrays.equals( extra, paged.get( whole.size() ) ) );
+		assertTrue( Arrays.equals( whole.get(0), paged.get(0) ) );
+		StringWriter sw = new StringWriter();
+		paged.writeTo( sw );
+		assertEquals( whole.size() + 1, sw.toString().split( "\n" ).length );
+		FileUtils.deleteDirectory( dir );
+	}
 }
 
 // eof
@@ -33,13 +33,36 @@
  */
 package edu.uw.apl.tupelo.store.filesys;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.sqlite.JDBC;
+
+import edu.uw.apl.commons.tsk4j.digests.BodyFile.Record;
 import edu.uw.apl.tupelo.model.DiskImage;
 import edu.uw.apl.tupelo.model.FlatDisk;
+import edu.uw.apl.tupelo.model.ManagedDisk;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.model.StreamOptimizedDisk;
+import edu.uw.apl.tupelo.store.AttributeOutputStream;
+import edu.uw.apl.tupelo.store.ParallelRecordQuery;
 
 public class FilesystemStoreTest extends junit.framework.TestCase {
 
@@ -87,6 +110,327 @@ public class FilesystemStoreTest extends junit.framework.TestCase {
 	}
 	*/
 
+	public void testMultiVolume() throws Exception {
+		File f1 = new File( "src/test/resources/1m" );
+		File f2 = new File( "src/test/resources/64k" );
+		if( !f1.exists() || !f2.exists() )
+			return;
+		File v1 = new File( "test-store-v1" );
+		File v2 = new File( "test-store-v2" );
+		FileUtils.deleteDirectory( v1 );
+		FileUtils.deleteDirectory( v2 );
+		List<File> volumes = Arrays.asList( v1, v2 );
+		FilesystemStore fs = new FilesystemStore
+			( volumes, FilesystemStore.Placement.ROUNDROBIN, false );
+		FlatDisk fd1 = new FlatDisk( new DiskImage( f1 ), Session.CANNED );
+		FlatDisk fd2 = new FlatDisk( new DiskImage( f2 ), Session.CANNED );
+		fs.put( fd1 );
+		fs.put( fd2 );
+		assertTrue( FilesystemStore.managedDataFile
+					( v1, fd1.getDescriptor() ).isFile() );
+		assertTrue( FilesystemStore.managedDataFile
+					( v2, fd2.getDescriptor() ).isFile() );
+
+		// One store, whichever volume the disks are on
+		FilesystemStore reloaded = new FilesystemStore
+			( volumes, FilesystemStore.Placement.ROUNDROBIN, true );
+		assertEquals( fs.getUUID(), reloaded.getUUID() );
+		assertEquals( 2, reloaded.enumerate().size() );
+
+		// A volume of one store cannot join another
+		try {
+			new FilesystemStore( Arrays.asList( new File( "test-store" ), v2 ),
+								 FilesystemStore.Placement.FREESPACE, false );
+			fail();
+		} catch( IllegalStateException ise ) {
+		}
+		FileUtils.deleteDirectory( v1 );
+		FileUtils.deleteDirectory( v2 );
+	}
+
+	public void testFsyncPolicies() throws Exception {
+		File f = new File( "src/test/resources/1m" );
+		if( !f.exists() )
+			return;
+		for( FilesystemStore.Fsync policy : FilesystemStore.Fsync.values() ) {
+			File root = new File( "test-store-" + policy );
+			FileUtils.deleteDirectory( root );
+			FilesystemStore fs = new FilesystemStore( root, false );
+			fs.setFsyncPolicy( policy, 1 );
+			FlatDisk fd = new FlatDisk( new DiskImage( f ), Session.CANNED );
+			fs.put( fd );
+			// The preallocated file is truncated to the data written
+			File data = FilesystemStore.managedDataFile
+				( root, fd.getDescriptor() );
+			assertEquals( f.length() + ManagedDisk.Header.SIZEOF,
+						  data.length() );
+			// and nothing left behind in temp
+			assertEquals( 0, new File( root, "temp" ).list().length );
+
+			// Data far short of the preallocation, a compressed disk
+			// of zeros, is truncated back to what was written
+			File zeros = new File( root, "zeros" );
+			FileUtils.writeByteArrayToFile( zeros, new byte[1024*1024] );
+			StreamOptimizedDisk sod = new StreamOptimizedDisk
+				( new DiskImage( zeros ), Session.CANNED );
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			sod.writeTo( expected );
+			assertTrue( expected.size() < zeros.length() );
+			fs.put( sod );
+			data = FilesystemStore.managedDataFile
+				( root, sod.getDescriptor() );
+			assertEquals( expected.size(), data.length() );
+			assertTrue( Arrays.equals( expected.toByteArray(),
+									   FileUtils.readFileToByteArray( data ) ) );
+			assertEquals( 0, new File( root, "temp" ).list().length );
+			FileUtils.deleteDirectory( root );
+		}
+	}
+
+	public void testHashIndex() throws Exception {
+		File f1 = new File( "src/test/resources/1m" );
+		File f2 = new File( "src/test/resources/64k" );
+		if( !f1.exists() || !f2.exists() )
+			return;
+		File root = new File( "test-store-hashindex" );
+		FileUtils.deleteDirectory( root );
+		FilesystemStore fs = new FilesystemStore( root, false );
+		FlatDisk fd1 = new FlatDisk( new DiskImage( f1 ), Session.CANNED );
+		FlatDisk fd2 = new FlatDisk( new DiskImage( f2 ), Session.CANNED );
+		fs.put( fd1 );
+		fs.put( fd2 );
+		ManagedDiskDescriptor mdd1 = fd1.getDescriptor();
+		ManagedDiskDescriptor mdd2 = fd2.getDescriptor();
+
+		byte[] shared = new byte[16];
+		byte[] only1 = new byte[16];
+		only1[0] = 1;
+		byte[] only2 = new byte[16];
+		only2[0] = 2;
+
+		// Records from before the index existed...
+		FileRecordStore frs = new FileRecordStore
+			( new File( root, "disks/" + FilesystemStore.asPathName( mdd1 ) ),
+			  mdd1 );
+		frs.addRecords( Arrays.asList( record( shared, "/a" ),
+									   record( only1, "/b" ) ) );
+		frs.close();
+		// ...and those added since
+		fs.putFileRecords( mdd2, Arrays.asList( record( shared, "/c" ),
+												record( only2, "/d" ) ) );
+
+		assertEquals( 2, fs.checkForHash( "MD5", shared ).size() );
+		List<ManagedDiskDescriptor> found = fs.checkForHash( "MD5", only1 );
+		assertEquals( Arrays.asList( mdd1 ), found );
+		found = fs.checkForHashes( "MD5", Arrays.asList( only2, new byte[16] ) );
+		assertEquals( 2, found.size() );
+		assertTrue( fs.checkForHash( "MD5", new byte[] { 9 } ).isEmpty() );
+
+		// The index persists
+		fs = new FilesystemStore( root, true );
+		fs.putFileRecords( mdd1, Arrays.asList( record( only2, "/e" ) ) );
+		assertEquals( 2, fs.checkForHash( "MD5", only2 ).size() );
+
+		// An index update failing, here for want of its table, leaves
+		// the disk due a reindex, which finds the unindexed record
+		Connection c = DriverManager.getConnection
+			( JDBC.PREFIX + new File( root, HashIndex.DB_FILE ).getAbsolutePath() );
+		Statement s = c.createStatement();
+		s.execute( "ALTER TABLE hashes RENAME TO hidden" );
+		try {
+			fs.putFileRecords( mdd2, Arrays.asList( record( only1, "/f" ) ) );
+			fail();
+		} catch( IOException expected ) {
+		}
+		s.execute( "ALTER TABLE hidden RENAME TO hashes" );
+		assertEquals( 2, fs.checkForHash( "MD5", only1 ).size() );
+
+		// Hashes all disks' Bloom filters rule out never reach the index
+		s.execute( "ALTER TABLE hashes RENAME TO hidden" );
+		byte[] absent = new byte[16];
+		absent[0] = 3;
+		assertTrue( fs.checkForHash( "MD5", absent ).isEmpty() );
+		s.execute( "ALTER TABLE hidden RENAME TO hashes" );
+		s.close();
+		c.close();
+		FileUtils.deleteDirectory( root );
+	}
+
+	public void testParallelRecordQuery() throws Exception {
+		File f1 = new File( "src/test/resources/1m" );
+		File f2 = new File( "src/test/resources/64k" );
+		if( !f1.exists() || !f2.exists() )
+			return;
+		File root = new File( "test-store-parallel" );
+		FileUtils.deleteDirectory( root );
+		FilesystemStore fs = new FilesystemStore( root, false );
+		FlatDisk fd1 = new FlatDisk( new DiskImage( f1 ), Session.CANNED );
+		FlatDisk fd2 = new FlatDisk( new DiskImage( f2 ), Session.CANNED );
+		fs.put( fd1 );
+		fs.put( fd2 );
+		ManagedDiskDescriptor mdd1 = fd1.getDescriptor();
+		ManagedDiskDescriptor mdd2 = fd2.getDescriptor();
+		byte[] shared = new byte[16];
+		fs.putFileRecords( mdd1, Arrays.asList( record( shared, "/a" ),
+												record( shared, "/b" ) ) );
+		fs.putFileRecords( mdd2, Arrays.asList( record( shared, "/c" ) ) );
+
+		ExecutorService executor = ParallelRecordQuery.newExecutor( 2 );
+		try {
+			ParallelRecordQuery query = new ParallelRecordQuery( fs, executor );
+			final Map<String,ManagedDiskDescriptor> found =
+				new HashMap<String,ManagedDiskDescriptor>();
+			List<ManagedDiskDescriptor> incomplete = query.getRecords
+				( Arrays.asList( mdd1, mdd2 ), "MD5", Arrays.asList( shared ),
+				  10000, new ParallelRecordQuery.Callback() {
+						public void gotRecord( ManagedDiskDescriptor mdd,
+											   Record r ) {
+							found.put( r.path, mdd );
+						}
+					} );
+			assertTrue( incomplete.isEmpty() );
+			assertEquals( 3, found.size() );
+			assertEquals( mdd2, found.get( "/c" ) );
+
+			// A disk slower than the deadline is left out, and its task
+			// interrupted, freeing its thread
+			final ManagedDiskDescriptor stuck = mdd1;
+			final CountDownLatch[] released = { new CountDownLatch( 1 ) };
+			FilesystemStore slow = new FilesystemStore( root, false ) {
+					@Override
+					public void getRecords( ManagedDiskDescriptor mdd,
+											String algorithm,
+											List<byte[]> hashes,
+											RecordCallback callback )
+						throws IOException {
+						if( mdd.equals( stuck ) ) {
+							try {
+								new CountDownLatch( 1 ).await();
+							} catch( InterruptedException ie ) {
+								released[0].countDown();
+								throw new InterruptedIOException();
+							}
+						}
+						super.getRecords( mdd, algorithm, hashes, callback );
+					}
+				};
+			query = new ParallelRecordQuery( slow, executor );
+			found.clear();
+			incomplete = query.getRecords
+				( Arrays.asList( mdd1, mdd2 ), "MD5", Arrays.asList( shared ),
+				  2000, new ParallelRecordQuery.Callback() {
+						public void gotRecord( ManagedDiskDescriptor mdd,
+											   Record r ) {
+							found.put( r.path, mdd );
+						}
+					} );
+			assertEquals( Arrays.asList( mdd1 ), incomplete );
+			assertEquals( 1, found.size() );
+			assertTrue( released[0].await( 10, TimeUnit.SECONDS ) );
+
+			// A failing callback ends the query, not waiting out the rest
+			released[0] = new CountDownLatch( 1 );
+			long start = System.currentTimeMillis();
+			try {
+				query.getRecords
+					( Arrays.asList( mdd1, mdd2 ), "MD5", Arrays.asList( shared ),
+					  60000, new ParallelRecordQuery.Callback() {
+							public void gotRecord( ManagedDiskDescriptor mdd,
+												   Record r ) throws IOException {
+								throw new IOException( "Callback failed" );
+							}
+						} );
+				fail();
+			} catch( IOException expected ) {
+				assertEquals( "Callback failed", expected.getMessage() );
+			}
+			assertTrue( System.currentTimeMillis() - start < 30000 );
+			assertTrue( released[0].await( 10, TimeUnit.SECONDS ) );
+		} finally {
+			executor.shutdownNow();
+		}
+		FileUtils.deleteDirectory( root );
+	}
+
+	public void testRecordMigration() throws Exception {
+		File f = new File( "src/test/resources/64k" );
+		if( !f.exists() )
+			return;
+		File root = new File( "test-store-migration" );
+		FileUtils.deleteDirectory( root );
+		FilesystemStore fs = new FilesystemStore( root, false );
+		FlatDisk fd = new FlatDisk( new DiskImage( f ), Session.CANNED );
+		fs.put( fd );
+		ManagedDiskDescriptor mdd = fd.getDescriptor();
+		fs.putFileRecords( mdd, Arrays.asList( record( new byte[16], "/a" ) ) );
+		File dataDir = null;
+		for( File sql : FileUtils.listFiles( root, null, true ) )
+			if( sql.getName().equals( "fileRecord.sqlite" ) )
+				dataDir = sql.getParentFile();
+
+		// Records in an older layout, as from an earlier release...
+		byte[] digest = new byte[16];
+		digest[0] = 1;
+		RecordStoreTest.writeVersion4( dataDir, digest );
+		assertTrue( FileRecordStore.mayNeedMigration( dataDir ) );
+
+		// ...are migrated by the store, in the background or on demand
+		fs = new FilesystemStore( root, true );
+		List<Record> found = fs.getRecords( mdd, "MD5",
+											Arrays.asList( digest ) );
+		assertEquals( 1, found.size() );
+		assertEquals( "/some/file", found.get( 0 ).path );
+		assertFalse( FileRecordStore.mayNeedMigration( dataDir ) );
+		FileUtils.deleteDirectory( root );
+	}
+
+	static Record record( byte[] md5, String path ) {
+		return new Record( md5, null, null, path,
+						   1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1 );
+	}
+
+	public void testListener() throws Exception {
+		File f = new File( "src/test/resources/64k" );
+		if( !f.exists() )
+			return;
+		final List<String> events = new java.util.ArrayList<String>();
+		FilesystemStore.Listener l = new FilesystemStore.Listener() {
+				public void putCompleted( ManagedDiskDescriptor mdd ) {
+					events.add( "put " + mdd.getDiskID() );
+				}
+				public void attributeSet( ManagedDiskDescriptor mdd,
+										  String key ) {
+					events.add( "attr " + key );
+				}
+				public void digestComputed( ManagedDiskDescriptor mdd ) {
+					events.add( "digest " + mdd.getDiskID() );
+				}
+			};
+		store.addListener( l );
+		// A failing listener must not fail the store operation
+		store.addListener( new FilesystemStore.ListenerAdapter() {
+				public void putCompleted( ManagedDiskDescriptor mdd ) {
+					throw new IllegalStateException( "Listener bug" );
+				}
+			} );
+		FlatDisk fd = new FlatDisk( new DiskImage( f ), Session.CANNED );
+		ManagedDiskDescriptor mdd = fd.getDescriptor();
+		store.put( fd );
+		store.setAttribute( mdd, "a", "1".getBytes() );
+		AttributeOutputStream os = store.attributeOutputStream( mdd, "b" );
+		os.write( "2".getBytes() );
+		os.commit();
+		store.computeDigest( mdd );
+		// Already computed, so no second event
+		store.computeDigest( mdd );
+		store.removeListener( l );
+		store.setAttribute( mdd, "c", "3".getBytes() );
+
+		String id = mdd.getDiskID();
+		assertEquals( Arrays.asList( "put " + id, "attr a", "attr b",
+									 "digest " + id ), events );
+	}
+
 	public void testAttributeRoundTest() throws Exception {
 
 		Session session = Session.CANNED;
@@ -102,6 +446,187 @@ public class FilesystemStoreTest extends junit.framework.TestCase {
 		assertTrue( Arrays.equals( value1, value2 ) );
 	}
 
+	public void testAttributeStream() throws Exception {
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor
+			( "someDisk", Session.CANNED );
+		String key = "streamed";
+		byte[] value = new byte[1024*1024];
+		new java.util.Random( 1 ).nextBytes( value );
+
+		AttributeOutputStream os = store.attributeOutputStream( mdd, key );
+		os.write( value, 0, 1000 );
+		os.write( value, 1000, value.length - 1000 );
+		// Not visible until committed
+		assertNull( store.getAttribute( mdd, key ) );
+		os.commit();
+		os.close();
+
+		assertTrue( Arrays.equals( value, store.getAttribute( mdd, key ) ) );
+		InputStream is = store.attributeInputStream( mdd, key );
+		byte[] read = IOUtils.toByteArray( is );
+		is.close();
+		assertTrue( Arrays.equals( value, read ) );
+
+		assertNull( store.attributeInputStream( mdd, "nosuchkey" ) );
+
+		// Closed without commit, e.g. a failed write: nothing set...
+		os = store.attributeOutputStream( mdd, "aborted" );
+		os.write( value, 0, 1000 );
+		os.close();
+		assertNull( store.getAttribute( mdd, "aborted" ) );
+		// ...and the earlier value kept
+		os = store.attributeOutputStream( mdd, key );
+		os.write( value, 0, 10 );
+		os.close();
+		assertTrue( Arrays.equals( value, store.getAttribute( mdd, key ) ) );
+
+		// Concurrent writers of one key each have their own temp file
+		AttributeOutputStream os1 = store.attributeOutputStream( mdd, "two" );
+		AttributeOutputStream os2 = store.attributeOutputStream( mdd, "two" );
+		os1.write( "first".getBytes() );
+		os2.write( "second".getBytes() );
+		os2.commit();
+		os1.close();
+		assertEquals( "second", new String( store.getAttribute( mdd, "two" ) ) );
+	}
+
+	public void testPackedAttributes() throws Exception {
+		File root = new File( "test-store-packed" );
+		FileUtils.deleteDirectory( root );
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor
+			( "someDisk", Session.CANNED );
+
+		// Start with the file per key layout...
+		FilesystemStore fs = new FilesystemStore( root, false );
+		fs.setAttribute( mdd, "a", "1".getBytes() );
+		fs.setAttribute( mdd, "b", "2".getBytes() );
+
+		// ...which is migrated on first use once packed
+		fs = new FilesystemStore( root, false );
+		fs.setPackedAttributes( true );
+		assertEquals( 2, fs.listAttributes( mdd ).size() );
+		File attrs = new File( root, "disks/someDisk/" +
+							   Session.CANNED + "/attrs" );
+		assertEquals( 0, attrs.list().length );
+
+		Map<String,byte[]> values = new HashMap<String,byte[]>();
+		values.put( "b", "3".getBytes() );
+		values.put( "c", "4".getBytes() );
+		fs.setAttributes( mdd, values );
+		AttributeOutputStream os = fs.attributeOutputStream( mdd, "big" );
+		os.write( "5".getBytes() );
+		os.commit();
+
+		// Reload from the log
+		fs = new FilesystemStore( root, false );
+		fs.setPackedAttributes( true );
+		assertEquals( 4, fs.listAttributes( mdd ).size() );
+		Map<String,byte[]> got = fs.getAttributes
+			( mdd, Arrays.asList( "a", "b", "c", "big", "none" ) );
+		assertEquals( 4, got.size() );
+		assertEquals( "1", new String( got.get( "a" ) ) );
+		assertEquals( "3", new String( got.get( "b" ) ) );
+		assertEquals( "4", new String( got.get( "c" ) ) );
+		assertEquals( "5", new String( got.get( "big" ) ) );
+		assertNull( fs.getAttribute( mdd, "none" ) );
+		// A small streamed value is packed, not a file...
+		assertFalse( new File( attrs, "big" ).exists() );
+		// ...one too large to pack is
+		byte[] huge = new byte[AttributeLog.MIGRATE_MAX + 1];
+		os = fs.attributeOutputStream( mdd, "huge" );
+		os.write( huge, 0, 10 );
+		os.write( huge, 10, huge.length - 10 );
+		os.commit();
+		assertTrue( new File( attrs, "huge" ).isFile() );
+		assertEquals( huge.length, fs.getAttribute( mdd, "huge" ).length );
+
+		// An unpacked store still reads (and writes) an existing log
+		FilesystemStore unpacked = new FilesystemStore( root, false );
+		assertEquals( 5, unpacked.listAttributes( mdd ).size() );
+		assertEquals( "4", new String( unpacked.getAttribute( mdd, "c" ) ) );
+		unpacked.setAttribute( mdd, "a", "7".getBytes() );
+		assertEquals( "7", new String( fs.getAttribute( mdd, "a" ) ) );
+		assertFalse( new File( attrs, "a" ).exists() );
+
+		// Files written by a process not using the log are seen, and
+		// supersede logged values
+		FileUtils.writeByteArrayToFile( new File( attrs, "c" ),
+										"6".getBytes() );
+		FileUtils.writeByteArrayToFile( new File( attrs, "d" ),
+										"8".getBytes() );
+		assertEquals( "6", new String( fs.getAttribute( mdd, "c" ) ) );
+		assertEquals( "8", new String( fs.getAttribute( mdd, "d" ) ) );
+		assertEquals( 6, fs.listAttributes( mdd ).size() );
+		fs = new FilesystemStore( root, false );
+		fs.setPackedAttributes( true );
+		assertEquals( "6", new String( fs.getAttribute( mdd, "c" ) ) );
+		FileUtils.deleteDirectory( root );
+	}
+
+	public void testKnownFiles() throws Exception {
+		File root = new File( "test-store-known" );
+		FileUtils.deleteDirectory( root );
+		FilesystemStore fs = new FilesystemStore( root, false );
+		assertTrue( fs.getKnownFileSet().isEmpty() );
+		assertEquals( FilesystemStore.KnownFiles.KEEP,
+					  fs.getKnownFilePolicy() );
+
+		// An NSRL style list, and a plain md5sum style one
+		File nsrl = new File( root, "NSRLFile.txt" );
+		FileUtils.writeStringToFile
+			( nsrl,
+			  "\"SHA-1\",\"MD5\",\"CRC32\",\"FileName\",\"FileSize\"," +
+			  "\"ProductCode\",\"OpSystemCode\",\"SpecialCode\"\n" +
+			  "\"0000002D9D62AEBE1E0E9DB6C9C1F7C3E4D3C9B1\"," +
+			  "\"0F8D1E3C7A8CCDE1BB1A8B1C3E1E1B2A\",\"2E3B1F3C\"," +
+			  "\"kernel32.dll\",1024,1,\"358\",\"\"\n" +
+			  // Names of hash length, and a comma within quotes, are
+			  // not hashes
+			  "\"0000002D9D62AEBE1E0E9DB6C9C1F7C3E4D3C9B2\"," +
+			  "\"0F8D1E3C7A8CCDE1BB1A8B1C3E1E1B2B\",\"2E3B1F3D\"," +
+			  "\"a,0123456789abcdef0123456789abcdef\",1024," +
+			  "\"0123456789abcdef0123456789abcdef\",\"358\",\"\"\n" );
+		File plain = new File( root, "md5s.txt" );
+		FileUtils.writeStringToFile
+			( plain, "# comment\n" +
+			  "d41d8cd98f00b204e9800998ecf8427e  empty.txt\n" +
+			  "0f8d1e3c7a8ccde1bb1a8b1c3e1e1b2a  kernel32.dll\n" );
+		assertEquals( 4, fs.importKnownFiles( nsrl ) );
+		assertEquals( 2, fs.importKnownFiles( plain ) );
+		// The sorted files are the set, the database only scratch
+		File dir = new File( root, KnownFileSet.DIR );
+		assertFalse( new File( dir, "known.sqlite" ).exists() );
+		assertTrue( new File( dir, "md5.sorted" ).isFile() );
+
+		// Duplicates across lists are held once
+		KnownFileSet known = fs.getKnownFileSet();
+		assertEquals( 5, known.size() );
+		assertFalse( known.contains( "MD5", Hex.decodeHex
+			( "0123456789abcdef0123456789abcdef".toCharArray() ) ) );
+		byte[] empty = Hex.decodeHex
+			( "d41d8cd98f00b204e9800998ecf8427e".toCharArray() );
+		byte[] sha1 = Hex.decodeHex
+			( "0000002d9d62aebe1e0e9db6c9c1f7c3e4d3c9b1".toCharArray() );
+		assertTrue( known.contains( "MD5", empty ) );
+		assertTrue( known.contains( "SHA-1", sha1 ) );
+		assertFalse( known.contains( "SHA-256", new byte[32] ) );
+		assertTrue( known.isKnown
+					( new Record( null, sha1, null, "/windows/kernel32.dll",
+								  1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1 ) ) );
+		assertFalse( known.isKnown
+					 ( new Record( new byte[16], null, null, "/other",
+								   1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1 ) ) );
+
+		// The set persists with the store, and is seen afresh by a store
+		// with it open once another imports more
+		FilesystemStore other = new FilesystemStore( root, false );
+		assertEquals( 5, other.getKnownFileSet().size() );
+		FileUtils.writeStringToFile
+			( plain, "d41d8cd98f00b204e9800998ecf8427f\n" );
+		assertEquals( 1, fs.importKnownFiles( plain ) );
+		assertEquals( 6, other.getKnownFileSet().size() );
+		FileUtils.deleteDirectory( root );
+	}
 }
 
 // eof
@@ -33,12 +33,28 @@
  */
 package edu.uw.apl.tupelo.store.filesys;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import edu.uw.apl.commons.tsk4j.digests.BodyFile.Record;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.store.Store;
 
 public class RecordStoreTest extends junit.framework.TestCase {
 	private File testDir;
@@ -105,6 +121,594 @@ public class RecordStoreTest extends junit.framework.TestCase {
 		assertEquals(store.containsFileHash("MD5", badHash), false);
 	}
 
+	/**
+	 * Test a bulk load leaves the hash columns indexed
+	 */
+	public void testBulkLoad() throws Exception {
+		List<Record> records = new ArrayList<Record>();
+		for(int i = 0; i < 2500; i++){
+			byte[] digest = MD5.digest((FILE_NAME + i).getBytes());
+			records.add(new Record(digest, null, null, FILE_NAME + i, i, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+		}
+		store.beginBulkLoad();
+		assertEquals(0, countIndexes());
+		store.addRecords(records);
+		store.endBulkLoad();
+		assertEquals(3, countIndexes());
+
+		byte[] digest = MD5.digest((FILE_NAME + 1234).getBytes());
+		assertTrue(store.containsFileHash("MD5", digest));
+		assertEquals(1, store.getRecordsFromHash("MD5", digest).size());
+	}
+
+	/**
+	 * Test a version 2 store is brought up to date, keeping its records
+	 */
+	public void testMigration() throws Exception {
+		// A version 2 database, as written before hash indexes and the
+		// compact layout
+		store.close();
+		for(File f : testDir.listFiles()){
+			f.delete();
+		}
+		byte[] digest = MD5.digest(FILE_NAME.getBytes());
+		Connection c = DriverManager.getConnection("jdbc:sqlite:" +
+				new File(testDir, "fileRecord.sqlite").getAbsolutePath());
+		try {
+			c.createStatement().executeUpdate("CREATE TABLE records (path STRING, " +
+					"md5 BLOB, sha1 BLOB, sha256 BLOB, inode INTEGER, attr_type INTEGER, " +
+					"attr_id INTEGER, name_type INTEGER, meta_type INTEGER, perms INTEGER, " +
+					"uid INTEGER, gid INTEGER, size INTEGER, atime INTEGER, mtime INTEGER, " +
+					"ctime INTEGER, crtime INTEGER)");
+			PreparedStatement ps = c.prepareStatement("INSERT INTO records VALUES " +
+					"(?, ?, NULL, NULL, 7, 128, -1, 1, 2, 493, 0, 0, 42, ?, 1000, 1000, 900)");
+			String[] paths = { FILE_NAME, "/some/other", "top" };
+			for(String path : paths){
+				ps.setString(1, path);
+				ps.setBytes(2, path.equals(FILE_NAME) ? digest : MD5.digest(path.getBytes()));
+				ps.setInt(3, 1005);
+				ps.executeUpdate();
+			}
+			// A gap in the rowids, which the migration and its VACUUM must keep
+			c.createStatement().executeUpdate("DELETE FROM records WHERE path = '/some/other'");
+		} finally {
+			c.close();
+		}
+		FileWriter fw = new FileWriter(new File(testDir, "fileRecord.version"));
+		fw.write("2");
+		fw.close();
+
+		// Brought up to date on open
+		store = new FileRecordStore(testDir,
+				new ManagedDiskDescriptor("hash-test", Session.testSession()));
+		assertEquals(3, countIndexes());
+		List<Record> found = store.getRecordsFromHash("MD5", digest);
+		assertEquals(1, found.size());
+		Record r = found.get(0);
+		assertEquals(FILE_NAME, r.path);
+		assertEquals(7, r.inode);
+		assertEquals(128, r.attrType);
+		// Attribute ids are unsigned 16 bit, which Record holds in a short
+		assertEquals((short) 65535, r.attrId);
+		assertEquals(1, r.nameType);
+		assertEquals(2, r.metaType);
+		assertEquals(493, r.perms);
+		assertEquals(42, r.size);
+		assertEquals(1005, r.atime);
+		assertEquals(1000, r.mtime);
+		assertEquals(1000, r.ctime);
+		assertEquals(900, r.crtime);
+		assertNull(r.sha1);
+		assertEquals("top", store.getRecordsFromHash("MD5",
+				MD5.digest("top".getBytes())).get(0).path);
+		c = DriverManager.getConnection("jdbc:sqlite:" +
+				new File(testDir, "fileRecord.sqlite").getAbsolutePath());
+		try {
+			ResultSet rs = c.createStatement().executeQuery("SELECT id FROM records WHERE name = 'top'");
+			assertEquals(3, rs.getLong(1));
+		} finally {
+			c.close();
+		}
+
+		// Records added since share the directories
+		store.addRecord(new Record(MD5.digest("new".getBytes()), null, null, "/some/new",
+				1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+		assertEquals("/some/new", store.getRecordsFromHash("MD5",
+				MD5.digest("new".getBytes())).get(0).path);
+		store.checkVersion();
+		assertTrue(store.containsFileHash("MD5", digest));
+	}
+
+	public void testMigrationV4() throws Exception {
+		store.close();
+		byte[] digest = MD5.digest(FILE_NAME.getBytes());
+		writeVersion4(testDir, digest);
+
+		store = new FileRecordStore(testDir,
+				new ManagedDiskDescriptor("hash-test", Session.testSession()));
+		Record r = store.getRecordsFromHash("MD5", digest).get(0);
+		assertEquals("/some/file", r.path);
+		assertEquals(42, r.size);
+		assertEquals(FileRecordStore.NO_FILESYSTEM, store.findFilesystem(0, 0));
+		int fs = store.addFilesystem(0, 0);
+		store.addRecords(fs, Arrays.asList(new Record(MD5.digest("new".getBytes()), null, null,
+				"/some/new", 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1)));
+		store.endFilesystem(fs, 1);
+		assertEquals(fs, store.findFilesystem(0, 0));
+	}
+
+	/**
+	 * Test a store opened for a pool leaves migration to the caller, and
+	 * one migrated by a run that died before recording it opens
+	 */
+	public void testMigrationRecovery() throws Exception {
+		store.close();
+		byte[] digest = MD5.digest(FILE_NAME.getBytes());
+		writeVersion4(testDir, digest);
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor("hash-test", Session.testSession());
+
+		FileRecordStore pending = new FileRecordStore(testDir, mdd, null, null);
+		assertTrue(pending.isMigrationPending());
+		pending.migrate();
+		assertFalse(pending.isMigrationPending());
+		pending.awaitMigration();
+		pending.closeConnection();
+
+		// Migrated, but with no version recorded, as by earlier releases
+		Connection c = DriverManager.getConnection("jdbc:sqlite:" +
+				new File(testDir, "fileRecord.sqlite").getAbsolutePath());
+		try {
+			c.createStatement().executeUpdate("PRAGMA user_version = 0");
+		} finally {
+			c.close();
+		}
+		FileWriter fw = new FileWriter(new File(testDir, "fileRecord.version"));
+		fw.write("4");
+		fw.close();
+
+		store = new FileRecordStore(testDir, mdd);
+		assertEquals("/some/file", store.getRecordsFromHash("MD5", digest).get(0).path);
+		assertEquals(3, countIndexes());
+		BufferedReader br = new BufferedReader(new FileReader(new File(testDir, "fileRecord.version")));
+		assertEquals("5", br.readLine());
+		br.close();
+	}
+
+	// A version 4 database: compact, but no filesystems
+	static void writeVersion4(File dir, byte[] digest) throws Exception {
+		for(File f : dir.listFiles()){
+			f.delete();
+		}
+		Connection c = DriverManager.getConnection("jdbc:sqlite:" +
+				new File(dir, "fileRecord.sqlite").getAbsolutePath());
+		try {
+			c.createStatement().executeUpdate("CREATE TABLE dirs (id INTEGER PRIMARY KEY, " +
+					"path TEXT UNIQUE)");
+			c.createStatement().executeUpdate("CREATE TABLE records (dir INTEGER, name TEXT, " +
+					"md5 BLOB, sha1 BLOB, sha256 BLOB, inode INTEGER, attr INTEGER, type INTEGER, " +
+					"perms INTEGER, uid INTEGER, gid INTEGER, size INTEGER, atime INTEGER, " +
+					"mtime INTEGER, ctime INTEGER, crtime INTEGER)");
+			c.createStatement().executeUpdate("INSERT INTO dirs VALUES (5, '/some/')");
+			PreparedStatement ps = c.prepareStatement("INSERT INTO records VALUES " +
+					"(5, 'file', ?, NULL, NULL, 7, 0, 0, 0, 0, 0, 42, 0, 1000, 0, 0)");
+			ps.setBytes(1, digest);
+			ps.executeUpdate();
+		} finally {
+			c.close();
+		}
+		FileWriter fw = new FileWriter(new File(dir, "fileRecord.version"));
+		fw.write("4");
+		fw.close();
+	}
+
+	/**
+	 * Records are kept by filesystem, for copying those of an unchanged
+	 * filesystem to a later session of the disk
+	 */
+	public void testFilesystems() throws Exception {
+		int fs1 = store.addFilesystem(2048, 1000);
+		int fs2 = store.addFilesystem(4096, 1000);
+		List<Record> records = new ArrayList<Record>();
+		for(int i = 0; i < 10; i++){
+			byte[] digest = MD5.digest(("fs1" + i).getBytes());
+			records.add(new Record(digest, null, null, "/etc/file" + i, i, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+		}
+		store.addRecords(fs1, records);
+		// Same paths, other filesystem
+		store.addRecords(fs2, records.subList(0, 3));
+
+		// Not found until complete
+		assertEquals(FileRecordStore.NO_FILESYSTEM, store.findFilesystem(2048, 1000));
+		store.endFilesystem(fs1, 10);
+		store.endFilesystem(fs2, 3);
+		assertEquals(fs1, store.findFilesystem(2048, 1000));
+		assertEquals(fs2, store.findFilesystem(4096, 1000));
+		assertEquals(FileRecordStore.NO_FILESYSTEM, store.findFilesystem(2048, 999));
+
+		final List<Record> got = new ArrayList<Record>();
+		Store.RecordCallback collect = new Store.RecordCallback() {
+			@Override
+			public void gotRecord(Record record) {
+				got.add(record);
+			}
+		};
+		assertEquals(10, store.getFilesystemRecords(fs1, collect));
+		for(int i = 0; i < 10; i++){
+			assertEquals("/etc/file" + i, got.get(i).path);
+			assertEquals(i, got.get(i).inode);
+		}
+		got.clear();
+		assertEquals(3, store.getFilesystemRecords(fs2, collect));
+		assertEquals(0, store.getFilesystemRecords(FileRecordStore.NO_FILESYSTEM, collect));
+		// Hash lookups see both filesystems
+		assertEquals(2, store.getRecordsFromHash("MD5", records.get(0).md5).size());
+	}
+
+	/**
+	 * Test a filesystem left part loaded can be found, checked against
+	 * its last record, and discarded
+	 */
+	public void testPartialFilesystems() throws Exception {
+		assertFalse(store.hasPartialFilesystems());
+		int fs1 = store.addFilesystem(2048, 1000);
+		int fs2 = store.addFilesystem(4096, 1000);
+		List<Record> records = new ArrayList<Record>();
+		for(int i = 0; i < 10; i++){
+			byte[] digest = MD5.digest(("partial" + i).getBytes());
+			records.add(new Record(digest, null, null, "/etc/file" + i, i, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+		}
+		store.addRecords(fs1, records);
+		store.addRecords(fs2, records.subList(0, 4));
+		store.endFilesystem(fs1, 10);
+
+		assertTrue(store.hasPartialFilesystems());
+		assertEquals(FileRecordStore.NO_FILESYSTEM, store.findPartialFilesystem(2048, 1000));
+		assertEquals(fs2, store.findPartialFilesystem(4096, 1000));
+		assertEquals(4, store.getFilesystemRecordCount(fs2));
+		Record last = store.getLastFilesystemRecord(fs2);
+		assertEquals("/etc/file3", last.path);
+		assertEquals(3, last.inode);
+
+		store.discardFilesystem(fs2);
+		assertFalse(store.hasPartialFilesystems());
+		assertEquals(0, store.getFilesystemRecordCount(fs2));
+		assertNull(store.getLastFilesystemRecord(fs2));
+		// The other filesystem is untouched
+		assertEquals(10, store.getFilesystemRecordCount(fs1));
+		assertEquals(1, store.getRecordsFromHash("MD5", records.get(0).md5).size());
+	}
+
+	/**
+	 * Test lookups of absent hashes are answered by the Bloom filters
+	 */
+	public void testBloomFilter() throws Exception {
+		List<Record> records = new ArrayList<Record>();
+		for(int i = 0; i < 1000; i++){
+			byte[] digest = MD5.digest((FILE_NAME + i).getBytes());
+			records.add(new Record(digest, null, null, FILE_NAME + i, i, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+		}
+		store.addRecords(records);
+		// Written once the store is done, not per batch
+		assertFalse(new File(testDir, "fileRecord.md5.bloom").exists());
+		store.endTransaction();
+		assertTrue(new File(testDir, "fileRecord.md5.bloom").isFile());
+
+		long skips = FileRecordStore.getFilterSkips();
+		int absent = 1000;
+		for(int i = 0; i < absent; i++){
+			byte[] digest = MD5.digest(("absent" + i).getBytes());
+			assertFalse(store.containsFileHash("MD5", digest));
+		}
+		// Nearly all answered by the filter, at about a 1% false positive rate
+		assertTrue(FileRecordStore.getFilterSkips() - skips > absent * 0.95);
+
+		// Later records are added to the filters too
+		byte[] late = MD5.digest("late".getBytes());
+		store.addRecord(new Record(late, null, null, "/late", 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+		assertTrue(store.containsFileHash("MD5", late));
+		assertEquals(1, store.getRecordsFromHashes("MD5",
+				Arrays.asList(late, MD5.digest("absent".getBytes()))).size());
+	}
+
+	/**
+	 * Test a store sharing the disk with another sees the other's
+	 * additions, not trusting its own, now stale, filters
+	 */
+	public void testBloomFilterShared() throws Exception {
+		List<Record> records = new ArrayList<Record>();
+		for(int i = 0; i < 100; i++){
+			byte[] digest = MD5.digest((FILE_NAME + i).getBytes());
+			records.add(new Record(digest, null, null, FILE_NAME + i, i, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+		}
+		store.addRecords(records);
+		store.endTransaction();
+		byte[] late = MD5.digest("late".getBytes());
+		byte[] later = MD5.digest("later".getBytes());
+		assertFalse(store.containsFileHash("MD5", late));
+
+		FileRecordStore other = new FileRecordStore(testDir,
+				new ManagedDiskDescriptor("hash-test", Session.testSession()));
+		try {
+			other.addRecord(new Record(late, null, null, "/late", 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+			// Mid write, the filters are not trusted, nor rebuilt
+			assertTrue(store.containsFileHash("MD5", late));
+			assertTrue(other.containsFileHash("MD5", late));
+			other.endTransaction();
+			// Written out, and remapped by the first store
+			assertTrue(store.containsFileHash("MD5", late));
+
+			// Nor during a bulk load
+			store.endTransaction();
+			other.beginBulkLoad();
+			other.addRecords(Collections.singletonList(
+					new Record(later, null, null, "/later", 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1)));
+			assertTrue(store.containsFileHash("MD5", later));
+			store.endTransaction();
+			other.endBulkLoad();
+			assertTrue(store.containsFileHash("MD5", later));
+		} finally {
+			other.close();
+		}
+		long skips = FileRecordStore.getFilterSkips();
+		assertFalse(store.containsFileHash("MD5", MD5.digest("absent".getBytes())));
+		assertEquals(skips + 1, FileRecordStore.getFilterSkips());
+	}
+
+	/**
+	 * Test, and time, queries of small to very large hash sets, the
+	 * large ones being joined rather than listed
+	 */
+	public void testLargeQueries() throws Exception {
+		int stored = 10000;
+		List<Record> records = new ArrayList<Record>();
+		for(int i = 0; i < stored; i++){
+			byte[] digest = MD5.digest((FILE_NAME + i).getBytes());
+			records.add(new Record(digest, null, null, FILE_NAME + i, i, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+		}
+		store.addRecords(records);
+
+		for(int size : new int[]{ 10, 10000, 1000000 }){
+			// Every other hash of the first 2*stored is present
+			List<byte[]> hashes = new ArrayList<byte[]>(size);
+			int present = 0;
+			for(int i = 0; i < size; i++){
+				if(i % 2 == 0 && i < 2 * stored){
+					hashes.add(MD5.digest((FILE_NAME + (i / 2)).getBytes()));
+					present++;
+				} else {
+					hashes.add(MD5.digest(("absent" + i).getBytes()));
+				}
+			}
+			long start = System.currentTimeMillis();
+			assertEquals(present, store.getRecordsFromHashes("MD5", hashes).size());
+			assertTrue(store.containsFileHash("MD5", hashes));
+			long stop = System.currentTimeMillis();
+			System.out.println(size + " hashes -> " + (stop - start) + " ms, " +
+					(size * 1000L / Math.max(1, stop - start)) + " hashes/s");
+		}
+
+		// None present, past the IN (...) limit
+		List<byte[]> absent = new ArrayList<byte[]>();
+		for(int i = 0; i <= FileRecordStore.IN_LIST_MAX * 2; i++){
+			absent.add(MD5.digest(("none" + i).getBytes()));
+		}
+		assertFalse(store.containsFileHash("MD5", absent));
+		assertTrue(store.getRecordsFromHashes("MD5", absent).isEmpty());
+	}
+
+	/**
+	 * Test records are handed to a callback one by one, as found
+	 */
+	public void testRecordCallback() throws Exception {
+		List<Record> records = new ArrayList<Record>();
+		byte[] common = MD5.digest(new byte[0]);
+		for(int i = 0; i < 3000; i++){
+			records.add(new Record(common, null, null, FILE_NAME + i, i, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+		}
+		store.addRecords(records);
+
+		final int[] count = new int[1];
+		store.getRecordsFromHashes("MD5", Arrays.asList(common, MD5.digest("absent".getBytes())),
+				new Store.RecordCallback() {
+			@Override
+			public void gotRecord(Record record) {
+				assertTrue(record.path.startsWith(FILE_NAME));
+				count[0]++;
+			}
+		});
+		assertEquals(3000, count[0]);
+	}
+
+	/**
+	 * Test hash queries answered from sorted hash files agree with SQLite
+	 */
+	public void testSortedHashFiles() throws Exception {
+		List<Record> records = new ArrayList<Record>();
+		for(int i = 0; i < 5000; i++){
+			byte[] digest = MD5.digest((FILE_NAME + (i % 4000)).getBytes());
+			records.add(new Record(digest, null, null, FILE_NAME + i, i, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+		}
+		store.beginBulkLoad();
+		store.addRecords(records);
+		store.endBulkLoad();
+		store.setSortedHashFiles(true);
+
+		List<byte[]> hashes = new ArrayList<byte[]>();
+		for(int i = 0; i < 1000; i++){
+			hashes.add(MD5.digest((FILE_NAME + (i * 7)).getBytes()));
+			hashes.add(MD5.digest(("absent" + i).getBytes()));
+		}
+		long start = System.currentTimeMillis();
+		List<Record> found = store.getRecordsFromHashes("MD5", hashes);
+		long stop = System.currentTimeMillis();
+		System.out.println(hashes.size() + " hashes, sorted file -> " + (stop - start) + " ms");
+		assertTrue(new File(testDir, "fileRecord.md5.sorted").isFile());
+
+		store.setSortedHashFiles(false);
+		assertEquals(store.getRecordsFromHashes("MD5", hashes).size(), found.size());
+		store.setSortedHashFiles(true);
+
+		// The first 1000 hashes repeat, so have two records each
+		byte[] twice = MD5.digest((FILE_NAME + 7).getBytes());
+		assertEquals(2, store.getRecordsFromHash("MD5", twice).size());
+		assertTrue(store.containsFileHash("MD5", twice));
+		assertFalse(store.containsFileHash("MD5", MD5.digest("absent".getBytes())));
+		assertFalse(store.containsFileHash("SHA-1", twice));
+
+		// Hashes queried twice are delivered once, even in distinct batches
+		List<byte[]> repeated = new ArrayList<byte[]>();
+		repeated.add(MD5.digest((FILE_NAME + 1000).getBytes()));
+		for(int i = 1; i < FileRecordStore.IN_LIST_MAX; i++){
+			byte[] digest = MD5.digest((FILE_NAME + (1000 + i)).getBytes());
+			repeated.add(digest);
+			repeated.add(digest);
+		}
+		assertEquals(FileRecordStore.IN_LIST_MAX,
+				store.getRecordsFromHashes("MD5", repeated).size());
+
+		// Added records drop the file, which is then rewritten
+		byte[] late = MD5.digest("late".getBytes());
+		store.addRecord(new Record(late, null, null, "/late", 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1));
+		assertFalse(new File(testDir, "fileRecord.md5.sorted").isFile());
+		assertTrue(store.containsFileHash("MD5", late));
+		assertTrue(new File(testDir, "fileRecord.md5.sorted").isFile());
+	}
+
+	/**
+	 * Test a sorted hash file mapped in many chunks, as a file over 2 GiB
+	 * would be, with and without rowids
+	 */
+	public void testSortedHashFileChunks() throws Exception {
+		Connection c = DriverManager.getConnection("jdbc:sqlite::memory:");
+		c.createStatement().executeUpdate("CREATE TABLE t (hash BLOB)");
+		PreparedStatement insert = c.prepareStatement("INSERT INTO t (hash) VALUES (?)");
+		for(int i = 0; i < 3000; i++){
+			insert.setBytes(1, MD5.digest(("chunk" + (i % 2500)).getBytes()));
+			insert.executeUpdate();
+		}
+		File f = new File(testDir, "chunks.sorted");
+		ResultSet rows = c.createStatement().executeQuery("SELECT rowid, hash FROM t ORDER BY hash");
+		assertTrue(SortedHashFile.write(f, 16, rows));
+		// 7 entries a chunk, rounded down to 4
+		SortedHashFile sorted = SortedHashFile.map(f, 24 * 7);
+		assertEquals(3000, sorted.size());
+		for(int i = 0; i < 2500; i++){
+			byte[] hash = MD5.digest(("chunk" + i).getBytes());
+			assertTrue(sorted.contains(hash));
+			List<Long> rowids = new ArrayList<Long>();
+			sorted.find(hash, rowids);
+			assertEquals(i < 500 ? 2 : 1, rowids.size());
+			assertEquals(i + 1, (long)rowids.get(0));
+		}
+		assertFalse(sorted.contains(MD5.digest("absent".getBytes())));
+		for(int i = 1; i < sorted.size(); i++){
+			assertTrue(compareUnsigned(sorted.get(i - 1), sorted.get(i)) <= 0);
+		}
+
+		// Hashes alone, one entry a chunk
+		rows = c.createStatement().executeQuery("SELECT DISTINCT hash FROM t ORDER BY hash");
+		assertTrue(SortedHashFile.writeKeys(f, 16, rows));
+		assertEquals(16 + 2500 * 16, f.length());
+		sorted = SortedHashFile.map(f, 16);
+		assertEquals(2500, sorted.size());
+		for(int i = 0; i < 2500; i++){
+			byte[] hash = MD5.digest(("chunk" + i).getBytes());
+			assertTrue(sorted.contains(hash));
+			List<Long> rowids = new ArrayList<Long>();
+			sorted.find(hash, rowids);
+			assertTrue(rowids.isEmpty());
+		}
+		c.close();
+		f.delete();
+	}
+
+	private static int compareUnsigned(byte[] a, byte[] b){
+		for(int i = 0; i < a.length; i++){
+			int c = (a[i] & 0xff) - (b[i] & 0xff);
+			if(c != 0){
+				return c;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Test pooled stores are shared, and idle ones evicted past capacity
+	 */
+	public void testPool() throws Exception {
+		FileRecordStorePool pool = new FileRecordStorePool(1);
+		File dirA = new File(testDir, "a");
+		File dirB = new File(testDir, "b");
+		dirA.mkdir();
+		dirB.mkdir();
+		ManagedDiskDescriptor a = new ManagedDiskDescriptor("pool-a", Session.testSession());
+		ManagedDiskDescriptor b = new ManagedDiskDescriptor("pool-b", Session.testSession());
+		try {
+			FileRecordStore first = pool.acquire(a, dirA, null, null);
+			FileRecordStore second = pool.acquire(a, dirA, null, null);
+			assertSame(first, second);
+			first.close();
+			second.close();
+			// Still open for the next user
+			assertFalse(second.hasData());
+			assertEquals(1, pool.size());
+
+			// Over capacity, but 'b' is in use so only the idle 'a' goes
+			FileRecordStore other = pool.acquire(b, dirB, null, null);
+			assertEquals(1, pool.size());
+			assertNotSame(first, pool.acquire(a, dirA, null, null));
+			assertEquals(2, pool.size());
+			other.close();
+			assertEquals(1, pool.size());
+
+			// Opened once, outside the pool lock, however many want it at once
+			final FileRecordStorePool shared = new FileRecordStorePool(2);
+			final File dirC = new File(dirA, "c");
+			dirC.mkdir();
+			final ManagedDiskDescriptor c = new ManagedDiskDescriptor("pool-c", Session.testSession());
+			ExecutorService es = Executors.newFixedThreadPool(4);
+			List<Future<FileRecordStore>> acquired = new ArrayList<Future<FileRecordStore>>();
+			for(int i = 0; i < 8; i++){
+				acquired.add(es.submit(new Callable<FileRecordStore>() {
+					@Override
+					public FileRecordStore call() throws Exception {
+						return shared.acquire(c, dirC, null, null);
+					}
+				}));
+			}
+			es.shutdown();
+			for(Future<FileRecordStore> f : acquired){
+				assertSame(acquired.get(0).get(), f.get());
+			}
+			assertEquals(1, shared.size());
+			shared.close();
+			for(File f : dirC.listFiles()){
+				f.delete();
+			}
+			dirC.delete();
+		} finally {
+			pool.close();
+			for(File dir : new File[]{dirA, dirB}){
+				for(File f : dir.listFiles()){
+					f.delete();
+				}
+				dir.delete();
+			}
+		}
+	}
+
+	private int countIndexes() throws Exception {
+		Connection c = DriverManager.getConnection("jdbc:sqlite:" +
+				new File(testDir, "fileRecord.sqlite").getAbsolutePath());
+		try {
+			ResultSet rs = c.createStatement().executeQuery
+				("SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND tbl_name = 'records'");
+			return rs.getInt(1);
+		} finally {
+			c.close();
+		}
+	}
+
 	@Override
 	protected void tearDown() throws Exception {
 		// Close the store
@@ -34,12 +34,15 @@
 // Note the extra underscore, since null is a reserved word in Java
 package edu.uw.apl.tupelo.store.null_;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.TimeZone;
 
@@ -52,6 +55,7 @@ import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.model.ManagedDiskDigest;
 import edu.uw.apl.tupelo.model.Session;
 import edu.uw.apl.tupelo.model.ProgressMonitor;
+import edu.uw.apl.tupelo.store.AttributeOutputStream;
 import edu.uw.apl.tupelo.store.Store;
 
 /**
@@ -133,6 +137,19 @@ public class NullStore implements Store {
 		// LOOK: should this be null ???
 		return null;
 	}
+
+	@Override
+	public ManagedDiskDigest digest( ManagedDiskDescriptor mdd,
+									 int from, int count )
+		throws IOException {
+
+		return null;
+	}
+
+	@Override
+	public int digestSize( ManagedDiskDescriptor mdd ) throws IOException {
+		return -1;
+	}
 	
 	@Override
 	public Collection<String> listAttributes( ManagedDiskDescriptor mdd )
@@ -154,6 +171,38 @@ public class NullStore implements Store {
 		// LOOK: should this be null ???
 		return new byte[0];
 	}
+
+	@Override
+	public void setAttributes( ManagedDiskDescriptor mdd,
+							   Map<String,byte[]> values ) throws IOException {
+	}
+
+	@Override
+	public Map<String,byte[]> getAttributes( ManagedDiskDescriptor mdd,
+											 Collection<String> keys )
+		throws IOException {
+		return Collections.emptyMap();
+	}
+
+	@Override
+	public AttributeOutputStream attributeOutputStream
+		( ManagedDiskDescriptor mdd, String key ) throws IOException {
+		return new AttributeOutputStream( new NullOutputStream() ) {
+			@Override
+			protected void publish() {
+			}
+			@Override
+			protected void discard() {
+			}
+		};
+	}
+
+	@Override
+	public InputStream attributeInputStream( ManagedDiskDescriptor mdd,
+											 String key )
+		throws IOException {
+		return new ByteArrayInputStream( new byte[0] );
+	}
 	
 	// for the benefit of the fuse-based ManagedDiskFileSystem
 	@Override
@@ -201,4 +250,9 @@ public class NullStore implements Store {
     public List<Record> getRecords(ManagedDiskDescriptor mdd, String algorithm, List<byte[]> hashes) throws IOException {
         return null;
     }
+
+    @Override
+    public void getRecords(ManagedDiskDescriptor mdd, String algorithm, List<byte[]> hashes,
+            RecordCallback callback) throws IOException {
+    }
 }
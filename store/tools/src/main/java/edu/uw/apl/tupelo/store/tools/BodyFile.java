@@ -34,7 +34,8 @@
 package edu.uw.apl.tupelo.store.tools;
 
 import java.io.File;
-import java.io.StringWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.List;
 
 import org.apache.log4j.LogManager;
@@ -48,6 +49,7 @@ import edu.uw.apl.commons.tsk4j.image.Image;
 import edu.uw.apl.commons.tsk4j.volsys.Partition;
 import edu.uw.apl.commons.tsk4j.volsys.VolumeSystem;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.store.AttributeOutputStream;
 import edu.uw.apl.tupelo.store.Store;
 
 /**
@@ -130,12 +132,19 @@ public class BodyFile {
 						fs = new FileSystem( i, p.start() );
 						edu.uw.apl.commons.tsk4j.digests.BodyFile bf =
 							BodyFileBuilder.create( fs );
-						StringWriter sw = new StringWriter();
-						BodyFileCodec.format( bf, sw );
-						String value = sw.toString();
 						String key = "bodyfile-" +
 							p.start() + "-" + p.length();
-						store.setAttribute( mdd, key, value.getBytes() );
+						// Straight to the store, never whole in memory
+						AttributeOutputStream os =
+							store.attributeOutputStream( mdd, key );
+						try {
+							Writer w = new OutputStreamWriter( os );
+							BodyFileCodec.format( bf, w );
+							w.flush();
+							os.commit();
+						} finally {
+							os.close();
+						}
 						if( printResult )
 							BodyFileCodec.format( bf, System.out );
 						fs.close();
@@ -35,7 +35,7 @@ package edu.uw.apl.tupelo.store.tools;
 
 import java.io.File;
 import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.OutputStreamWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.DigestInputStream;
@@ -62,6 +62,7 @@ import edu.uw.apl.commons.tsk4j.image.Image;
 import edu.uw.apl.commons.tsk4j.volsys.Partition;
 import edu.uw.apl.commons.tsk4j.volsys.VolumeSystem;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.store.AttributeOutputStream;
 import edu.uw.apl.tupelo.store.Store;
 
 /**
@@ -275,17 +276,22 @@ public class HashFS {
 		
 		List<String> sorted = new ArrayList<String>( fileHashes.keySet() );
 		Collections.sort( sorted );
-		StringWriter sw = new StringWriter();
-		PrintWriter pw = new PrintWriter( sw );
-		for( String fName : sorted ) {
-			byte[] hash = fileHashes.get( fName );
-			String s = new String( Hex.encodeHex( hash ) );
-			pw.println( s + " " + fName );
-		}
-		pw.close();
-		String value = sw.toString();
 		String key = keyName( start, length );
-		store.setAttribute( mdd, key, value.getBytes() );
+		AttributeOutputStream os = store.attributeOutputStream( mdd, key );
+		try {
+			PrintWriter pw = new PrintWriter( new OutputStreamWriter( os ) );
+			for( String fName : sorted ) {
+				byte[] hash = fileHashes.get( fName );
+				String s = new String( Hex.encodeHex( hash ) );
+				pw.println( s + " " + fName );
+			}
+			pw.flush();
+			if( pw.checkError() )
+				throw new IOException( "Writing " + key );
+			os.commit();
+		} finally {
+			os.close();
+		}
 	}
 	
 	static byte[] DIGESTBUFFER = new byte[ 1024*1024 ];
@@ -0,0 +1,121 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.uw.apl.tupelo.store.tools;
+
+import java.io.File;
+
+import org.apache.commons.cli.*;
+import org.apache.log4j.LogManager;
+
+import edu.uw.apl.tupelo.store.filesys.FilesystemStore;
+
+/**
+ * Simple Tupelo Utility: Import known-file hash lists, e.g. NSRL
+ * NSRLFile.txt, or md5sum/sha1sum output, into the store's known-file
+ * set.  A store run with the 'skip' known file policy then leaves
+ * these files out of the file records it builds for each managed disk.
+ *
+ * With no list files given, just report the size of the current set.
+ */
+
+public class KnownFiles extends Base {
+
+	static public void main( String[] args ) {
+		KnownFiles main = new KnownFiles();
+		try {
+			main.readArgs( args );
+			main.start();
+		} catch( Exception e ) {
+			System.err.println( e );
+			if( debug )
+				e.printStackTrace();
+			System.exit(-1);
+		} finally {
+			LogManager.shutdown();
+		}
+	}
+
+	public KnownFiles() {
+	}
+
+	@Override
+	/*
+	  Am NOT calling super method, since cmd line arg processing not
+	  composable.
+	*/
+	public void readArgs( String[] args ) {
+		Options os = commonOptions();
+
+		String usage = commonUsage() + " hashList*";
+		final String HEADER = "";
+		final String FOOTER = "";
+		CommandLineParser clp = new DefaultParser();
+		CommandLine cl = null;
+		try {
+			cl = clp.parse( os, args );
+		} catch( ParseException pe ) {
+			printUsage( os, usage, HEADER, FOOTER );
+			System.exit(1);
+		}
+		commonParse( os, cl, usage, HEADER, FOOTER );
+		lists = cl.getArgs();
+	}
+
+	public void start() throws Exception {
+		File dir = new File( storeLocation );
+		if( !dir.isDirectory() ) {
+			throw new IllegalStateException
+				( "Not a directory: " + storeLocation );
+		}
+		boolean loadManagedDisks = false;
+		FilesystemStore store = new FilesystemStore( dir, loadManagedDisks );
+		for( String list : lists ) {
+			File f = new File( list );
+			if( !f.isFile() ) {
+				System.err.println( "Not a file: " + list );
+				continue;
+			}
+			long n = store.importKnownFiles( f );
+			if( verbose )
+				System.out.println( list + ": " + n + " hashes" );
+		}
+		System.out.println( "Known file hashes: " +
+							store.getKnownFileSet().size() );
+	}
+
+	String[] lists;
+}
+
+// eof